@@ -31,6 +31,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.processtool.bpm.BpmEvent;
+import pl.net.bluesoft.rnd.processtool.bpm.BpmTaskPage;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.bpm.exception.ProcessToolSecurityException;
 import pl.net.bluesoft.rnd.processtool.bpm.impl.AbstractProcessToolSession;
@@ -395,22 +396,6 @@ public class ActivitiBpmSession extends AbstractProcessToolSession {
         }.go();
     }
 
-    @Override
-    public Collection<ProcessQueue> getUserAvailableQueues(ProcessToolContext ctx) {
-        Collection<ProcessQueue> configs = getUserQueuesFromConfig(ctx);
-        final List<String> names = keyFilter("name", configs);
-
-        if (names.isEmpty()) {
-            return new ArrayList();
-        }
-
-        TaskService ts = getProcessEngine().getTaskService();
-        for (ProcessQueue q : configs) {
-            q.setProcessCount(ts.createTaskQuery().taskCandidateGroup(q.getName()).taskUnnassigned().count());
-        }
-        return configs;
-    }
-
     @Override
     public BpmTask assignTaskFromQueue(final ProcessQueue pq, BpmTask pi, ProcessToolContext ctx) {
 
@@ -540,6 +525,17 @@ public class ActivitiBpmSession extends AbstractProcessToolSession {
 		return findProcessTasksHelper(filter, ctx, new Page(resultOffset, maxResults));
 	}
 
+	/** The Activiti task query has no seek support, the cursor here is just the offset of the next page */
+	@Override
+	public BpmTaskPage findFilteredTasksPage(ProcessInstanceFilter filter, ProcessToolContext ctx, String cursor, int maxResults) {
+		int offset = cursor != null ? Integer.parseInt(cursor) : 0;
+		List<BpmTask> tasks = findFilteredTasks(filter, ctx, offset, maxResults + 1);
+		if (tasks.size() > maxResults) {
+			return new BpmTaskPage(new ArrayList<BpmTask>(tasks.subList(0, maxResults)), String.valueOf(offset + maxResults));
+		}
+		return new BpmTaskPage(tasks, null);
+	}
+
 	private List<BpmTask> findProcessTasksHelper(ProcessInstanceFilter filter, ProcessToolContext ctx, final Page page) {
 		final TaskQueryImplEnhanced q = new TaskQueryImplEnhanced();
 		for (UserData u : filter.getOwners()) {
@@ -3,8 +3,6 @@ package org.aperteworkflow.ext.activiti;
 import com.thoughtworks.xstream.XStream;
 import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ProcessEngine;
-import org.activiti.engine.ProcessEngineConfiguration;
-import org.activiti.engine.ProcessEngines;
 import org.activiti.engine.impl.cfg.StandaloneProcessEngineConfiguration;
 import org.activiti.engine.impl.db.IbatisVariableTypeHandler;
 import org.activiti.engine.impl.interceptor.SessionFactory;
@@ -16,7 +14,6 @@ import org.apache.ibatis.mapping.Environment;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
 import org.apache.ibatis.type.JdbcType;
-import org.aperteworkflow.ext.activiti.wrappers.DataSourceWrapper;
 import org.hibernate.Session;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
@@ -31,7 +28,7 @@ import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
 import pl.net.bluesoft.util.io.IOUtils;
 
 import javax.naming.InitialContext;
-import javax.sql.DataSource;
+import javax.naming.NamingException;
 import javax.transaction.Status;
 import javax.transaction.UserTransaction;
 import java.io.*;
@@ -47,6 +44,8 @@ import java.util.logging.Logger;
 public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
     private static Logger logger = Logger.getLogger(ActivitiContextFactoryImpl.class.getName());
     private ProcessToolRegistry registry;
+    private final ActivitiEngineHolder engineHolder = new ActivitiEngineHolder();
+    private volatile UserTransaction userTransaction;
 
     public ActivitiContextFactoryImpl(ProcessToolRegistry registry) {
         this.registry = registry;
@@ -68,12 +67,19 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
         }
     }
 
+    @Override
+    public void close() {
+        //stops the job executor of the shared engine as well
+        engineHolder.close();
+    }
+
     public <T> T withProcessToolContextNonJta(ReturningProcessToolContextCallback<T> callback) {
         Session session = registry.getSessionFactory().openSession();
         try {
-            CustomStandaloneProcessEngineConfiguration processEngineConfiguration = getProcessEngineConfiguration(session);
-            ProcessEngine pi = getProcessEngine(processEngineConfiguration);
+            Session previousSession = engineHolder.bindSession(session);
             try {
+                ProcessEngine pi = engineHolder.getProcessEngine();
+                CustomStandaloneProcessEngineConfiguration processEngineConfiguration = engineHolder.getConfiguration();
                 org.hibernate.Transaction tx = session.beginTransaction();
                 T res;
                 try {
@@ -91,7 +97,7 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
                 tx.commit();
                 return res;
             } finally {
-                pi.close();
+                engineHolder.unbindSession(previousSession);
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -102,14 +108,7 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
 
     public <T> T withProcessToolContextJta(ReturningProcessToolContextCallback<T> callback) {
         try {
-            UserTransaction ut;
-            try {
-                ut = (UserTransaction) new InitialContext().lookup("java:comp/UserTransaction");
-            } catch (Exception e) {
-                //it should work on jboss regardless. But it does not..
-                logger.warning("java:comp/UserTransaction not found, looking for UserTransaction");
-                ut = (UserTransaction) new InitialContext().lookup("UserTransaction");
-            }
+            UserTransaction ut = getUserTransaction();
 
             logger.fine("ut.getStatus() = " + ut.getStatus());
             if (ut.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
@@ -120,10 +119,10 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
             Session session = registry.getSessionFactory().getCurrentSession();
             T res;
             try {
-                //init activiti
-                CustomStandaloneProcessEngineConfiguration processEngineConfiguration = getProcessEngineConfiguration(session);
-                ProcessEngine processEngine = getProcessEngine(processEngineConfiguration);
+                Session previousSession = engineHolder.bindSession(session);
                 try {
+                    ProcessEngine processEngine = engineHolder.getProcessEngine();
+                    CustomStandaloneProcessEngineConfiguration processEngineConfiguration = engineHolder.getConfiguration();
                     try {
                         ActivitiContextImpl ctx = new ActivitiContextImpl(session, this, processEngine, processEngineConfiguration);
                         res = callback.processWithContext(ctx);
@@ -137,7 +136,7 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
                         throw e;
                     }
                 } finally {
-                    processEngine.close();
+                    engineHolder.unbindSession(previousSession);
                 }
             } finally {
                 session.flush();
@@ -155,7 +154,7 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
      * since Activiti does not provide any other way to add custom mappings
      * (was the abandonment of Hibernate a right decision?)
      */
-    public class CustomStandaloneProcessEngineConfiguration extends StandaloneProcessEngineConfiguration {
+    public static class CustomStandaloneProcessEngineConfiguration extends StandaloneProcessEngineConfiguration {
 
         @Override
         protected void initSqlSessionFactory() {
@@ -185,22 +184,19 @@ public class ActivitiContextFactoryImpl implements ProcessToolContextFactory {
         }
     }
 
-    public CustomStandaloneProcessEngineConfiguration getProcessEngineConfiguration(Session sess) {
-        CustomStandaloneProcessEngineConfiguration customStandaloneProcessEngineConfiguration = new CustomStandaloneProcessEngineConfiguration();
-                customStandaloneProcessEngineConfiguration
-                .setDatabaseSchemaUpdate(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE)
-                .setDataSource(getDataSourceWrapper(sess))
-                .setHistory(ProcessEngineConfiguration.HISTORY_FULL)
-                .setTransactionsExternallyManaged(true);
-        return customStandaloneProcessEngineConfiguration;
-    }
-
-    public ProcessEngine getProcessEngine(CustomStandaloneProcessEngineConfiguration customStandaloneProcessEngineConfiguration) {
-        return customStandaloneProcessEngineConfiguration.buildProcessEngine();
-    }
-
-    private DataSource getDataSourceWrapper(Session sess) {
-        return new DataSourceWrapper(sess);
+    private UserTransaction getUserTransaction() throws NamingException {
+        UserTransaction ut = userTransaction;
+        if (ut == null) {
+            try {
+                ut = (UserTransaction) new InitialContext().lookup("java:comp/UserTransaction");
+            } catch (Exception e) {
+                //it should work on jboss regardless. But it does not..
+                logger.warning("java:comp/UserTransaction not found, looking for UserTransaction");
+                ut = (UserTransaction) new InitialContext().lookup("UserTransaction");
+            }
+            userTransaction = ut;
+        }
+        return ut;
     }
 
     @Override
@@ -0,0 +1,77 @@
+package org.aperteworkflow.ext.activiti;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.aperteworkflow.ext.activiti.wrappers.DataSourceWrapper;
+import org.hibernate.Session;
+
+import java.util.logging.Logger;
+
+/**
+ * Holds the Activiti engine shared by all contexts.
+ *
+ * The engine is built on first use - this is the only moment the database schema is checked and
+ * the MyBatis mappings are parsed. Afterwards every context binds its own hibernate session
+ * to the shared data source for the duration of its transaction.
+ */
+public class ActivitiEngineHolder {
+    private static final Logger logger = Logger.getLogger(ActivitiEngineHolder.class.getName());
+
+    private final DataSourceWrapper dataSource = new DataSourceWrapper();
+    private ActivitiContextFactoryImpl.CustomStandaloneProcessEngineConfiguration configuration;
+    private volatile ProcessEngine processEngine;
+
+    /**
+     * Binds the session to the current thread. The returned value has to be passed
+     * to {@link #unbindSession(Session)} when the context is finished.
+     */
+    public Session bindSession(Session session) {
+        return dataSource.bindSession(session);
+    }
+
+    public void unbindSession(Session previous) {
+        dataSource.restoreSession(previous);
+    }
+
+    /**
+     * Must be called with a session bound, since the first call builds the engine and checks the schema.
+     */
+    public ProcessEngine getProcessEngine() {
+        ProcessEngine engine = processEngine;
+        if (engine == null) {
+            synchronized (this) {
+                engine = processEngine;
+                if (engine == null) {
+                    long time = System.currentTimeMillis();
+                    configuration = createConfiguration();
+                    engine = configuration.buildProcessEngine();
+                    processEngine = engine;
+                    logger.info("Built Activiti process engine in " + (System.currentTimeMillis() - time) + " ms");
+                }
+            }
+        }
+        return engine;
+    }
+
+    public ActivitiContextFactoryImpl.CustomStandaloneProcessEngineConfiguration getConfiguration() {
+        getProcessEngine();
+        return configuration;
+    }
+
+    public synchronized void close() {
+        if (processEngine != null) {
+            processEngine.close();
+            processEngine = null;
+            configuration = null;
+        }
+    }
+
+    private ActivitiContextFactoryImpl.CustomStandaloneProcessEngineConfiguration createConfiguration() {
+        ActivitiContextFactoryImpl.CustomStandaloneProcessEngineConfiguration cfg = new ActivitiContextFactoryImpl.CustomStandaloneProcessEngineConfiguration();
+        cfg.setDatabaseSchemaUpdate(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE)
+                .setDataSource(dataSource)
+                .setHistory(ProcessEngineConfiguration.HISTORY_FULL)
+                .setTransactionsExternallyManaged(true);
+        return cfg;
+    }
+}
@@ -10,7 +10,6 @@ import org.activiti.engine.delegate.DelegateExecution;
 import org.activiti.engine.delegate.Expression;
 import org.activiti.engine.delegate.JavaDelegate;
 import org.activiti.engine.runtime.Execution;
-import org.apache.commons.beanutils.BeanUtils;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.processtool.dao.ProcessInstanceDAO;
 import pl.net.bluesoft.rnd.processtool.model.BpmStep;
@@ -19,10 +18,8 @@ import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttribute;
 import pl.net.bluesoft.rnd.processtool.model.nonpersistent.MutableBpmStep;
 import pl.net.bluesoft.rnd.processtool.steps.ProcessToolProcessStep;
-import pl.net.bluesoft.rnd.processtool.ui.widgets.annotations.AutoWiredProperty;
+import pl.net.bluesoft.rnd.processtool.ui.widgets.annotations.AutowiringPlan;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -90,7 +87,9 @@ public class ActivitiStepAction implements JavaDelegate {
                 throw new IllegalArgumentException("No step defined by name: " + stepName);
             }
             processAutowiredProperties(stepInstance, params);
+            long start = System.nanoTime();
             res = stepInstance.invoke(prepareStep(pi, execution), params);
+            ptc.getRegistry().getStepLatencyHistogram().record(stepName, System.nanoTime() - start);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -120,28 +119,16 @@ public class ActivitiStepAction implements JavaDelegate {
         return step;
     }
     private void processAutowiredProperties(Object object, Map<String, String> m) {
-        Class cls = object.getClass();
-
-        for (Field f : cls.getDeclaredFields()) {
-            String autoName = null;
-            for (Annotation a : f.getAnnotations()) {
-                if (a instanceof AutoWiredProperty) {
-                    AutoWiredProperty awp = (AutoWiredProperty) a;
-                    if (AutoWiredProperty.DEFAULT.equals(awp.name())) {
-                        autoName = f.getName();
-                    } else {
-                        autoName = awp.name();
-                    }
-                }
-            }
+        for (AutowiringPlan.WiredProperty property : AutowiringPlan.forClass(object.getClass()).getProperties()) {
+            String autoName = property.getName();
             String value = nvl(
                     m.get(autoName),
                     ProcessToolContext.Util.getThreadProcessToolContext().getSetting("autowire." + autoName)
             );
-            if (autoName != null && value != null) {
+            if (value != null) {
                 try {
                     logger.fine("Setting attribute " + autoName + " to " + value);
-                    BeanUtils.setProperty(object, autoName, value);
+                    property.setValue(object, value);
                 } catch (Exception e) {
                     logger.log(Level.SEVERE, "Error setting attribute " + autoName + ": " + e.getMessage(), e);
                 }
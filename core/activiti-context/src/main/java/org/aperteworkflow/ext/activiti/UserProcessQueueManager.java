@@ -8,6 +8,11 @@ import pl.net.bluesoft.rnd.processtool.model.QueueType;
 import pl.net.bluesoft.rnd.processtool.model.UserProcessQueue;
 import pl.net.bluesoft.rnd.processtool.model.nonpersistent.MutableBpmTask;
 import pl.net.bluesoft.rnd.processtool.userqueues.IUserProcessQueueManager;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueDelta;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserProcessQueueProjection;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueDelta;
 
 import java.util.Collection;
 
@@ -21,37 +26,58 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 {
 	Session session;
 	UserProcessQueueDAO queueDao;
+	UserQueueCounters queueCounters;
+	ProcessQueueCounters processQueueCounters;
 	
-	public UserProcessQueueManager(Session session, UserProcessQueueDAO userProcessQueueDAO)
+	/** Queue length changes of the current transaction, applied to the counters after commit */
+	private UserQueueDelta queueDelta;
+	/** Tasks entering and leaving the process queues in the current transaction */
+	private ProcessQueueDelta processQueueDelta;
+	
+	public UserProcessQueueManager(Session session, UserProcessQueueDAO userProcessQueueDAO, UserQueueCounters queueCounters,
+			ProcessQueueCounters processQueueCounters)
 	{
 		this.session = session;
 		this.queueDao = userProcessQueueDAO;
+		this.queueCounters = queueCounters;
+		this.processQueueCounters = processQueueCounters;
 	}
 	
 
 	public void onTaskAssigne(BpmTask bpmTask)
 	{
 		processTaskAssigne(bpmTask);
+		
+		/* Claimed from a process queue */
+		if(bpmTask.getAssignee() != null)
+			recordTaskLeftQueues(bpmTask);
 	}
 	
 	@Override
 	public void onQueueAssigne(MutableBpmTask bpmTask) 
 	{
-		Long processId = bpmTask.getProcessInstance().getId();
-		String taskIdString = bpmTask.getInternalTaskId();
+		UserProcessQueueProjection projection = createProjection(bpmTask);
 		
 		/* There is at least one owner - creator by default */
 		for(String ownerLogin: bpmTask.getProcessInstance().getOwners())
-			updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.OWN_IN_QUEUE);
+			projection.put(ownerLogin, QueueType.OWN_IN_QUEUE);
+		
+		projection.write(queueDao, getQueueDelta());
+		
+		recordTaskEnteredQueues(bpmTask);
 	}
 	
 	@Override
 	public void onTaskFinished(BpmTask bpmTask) 
 	{
+		recordTaskLeftQueues(bpmTask);
+		
 		String taskIdString = bpmTask.getInternalTaskId();
 		Long taskId = Long.parseLong(taskIdString);
 		
 		Collection<UserProcessQueue> userProcessQueues = queueDao.getAllUserProcessQueueByTaskId(taskId);
+		for(UserProcessQueue userProcessQueue: userProcessQueues)
+			recordQueueChange(userProcessQueue.getLogin(), userProcessQueue.getQueueType(), -1);
 		
 		/* Delete all process user task with assigned task id. It will delete all user queues
 		 * for creator, assigne and owners
@@ -73,6 +99,7 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 		finishedProcess.setQueueType(QueueType.OWN_FINISHED);
 		finishedProcess.setTaskId(Long.parseLong(bpmTask.getInternalTaskId()));
 		queueDao.saveOrUpdate(finishedProcess);
+		recordQueueChange(creatorLogin, QueueType.OWN_FINISHED, 1);
 	}
 
 
@@ -87,8 +114,7 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 	private void processTaskAssigne(BpmTask bpmTask)
 	{
 		String assignee = bpmTask.getAssignee();
-		Long processId = bpmTask.getProcessInstance().getId();
-		String taskIdString = bpmTask.getInternalTaskId();
+		UserProcessQueueProjection projection = createProjection(bpmTask);
 		
 		/* Is task assigned to one of the owners? */
 		boolean taskAssignedToOneOfOwners = false;
@@ -99,8 +125,8 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 			/* Assign process to its owner queue */
 			if(ownerLogin.equals(assignee))
 			{
-				//updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.OWN_ASSIGNED);
-				updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.ASSIGNED_TO_CURRENT_USER);
+				//projection.put(ownerLogin, QueueType.OWN_ASSIGNED);
+				projection.put(ownerLogin, QueueType.ASSIGNED_TO_CURRENT_USER);
 				taskAssignedToOneOfOwners = true;
 			}
 			
@@ -113,36 +139,81 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 				boolean shouldAddToOthersAssignedQueue = !taskAssignedToOneOfOwners && assignee != null;
 				
 				if(shouldAddToOthersAssignedQueue) {
-					//updateUserProcessQueue(taskIdString, processId, assignee, QueueType.OTHERS_ASSIGNED);
-					updateUserProcessQueue(taskIdString, processId, assignee, QueueType.ASSIGNED_TO_CURRENT_USER);
+					//projection.put(assignee, QueueType.OTHERS_ASSIGNED);
+					projection.put(assignee, QueueType.ASSIGNED_TO_CURRENT_USER);
 				}
 				
-				updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.OWN_IN_PROGRESS); 
+				projection.put(ownerLogin, QueueType.OWN_IN_PROGRESS); 
 			}
 		}
+		
+		projection.write(queueDao, getQueueDelta());
 	}
 	
-	private void updateUserProcessQueue(String taskIdString, Long processId, String assigneLogin, QueueType type)
+	private UserProcessQueueProjection createProjection(BpmTask bpmTask)
 	{
-		Long taskId = Long.parseLong(taskIdString);
-		UserProcessQueue userProcessQueue = queueDao.getUserProcessQueueByTaskId(taskId, assigneLogin);
+		return new UserProcessQueueProjection(bpmTask.getProcessInstance().getId(), Long.parseLong(bpmTask.getInternalTaskId()));
+	}
+	
+	private void recordTaskEnteredQueues(BpmTask bpmTask)
+	{
+		ProcessQueueDelta delta = getProcessQueueDelta();
+		if(delta != null)
+			delta.entered(bpmTask.getInternalTaskId(), getOpenTaskQueues(bpmTask.getInternalTaskId()));
+	}
+	
+	private void recordTaskLeftQueues(BpmTask bpmTask)
+	{
+		ProcessQueueDelta delta = getProcessQueueDelta();
+		if(delta != null)
+			delta.left(bpmTask.getInternalTaskId());
+	}
+	
+	/** Process queues in which the task is open, that is candidate groups of the task if nobody is assigned to it */
+	@SuppressWarnings("unchecked")
+	private Collection<String> getOpenTaskQueues(String taskId)
+	{
+		/* the engine writes to the same connection and has flushed its changes by now */
+		return session.createSQLQuery(
+				"select link.group_id_ from act_ru_identitylink link join act_ru_task task on task.id_ = link.task_id_ " +
+				"where link.task_id_ = :taskId and link.type_ = 'candidate' and link.group_id_ is not null and task.assignee_ is null")
+				.setString("taskId", taskId)
+				.list();
+	}
+	
+	private void recordQueueChange(String login, QueueType type, int change)
+	{
+		UserQueueDelta delta = getQueueDelta();
+		if(delta != null)
+			delta.add(login, type, change);
+	}
+	
+	/** Changes of the current transaction, null if there are no counters to update */
+	private UserQueueDelta getQueueDelta()
+	{
+		if(queueCounters == null)
+			return null;
 		
-		/* The queue element for given process exists with type "mine assiegned to me". Change its type and save */
-		if(userProcessQueue != null)
+		if(queueDelta == null)
 		{
-			userProcessQueue.setQueueType(type);
+			queueDelta = new UserQueueDelta(queueCounters);
+			session.getTransaction().registerSynchronization(queueDelta);
 		}
-		/* Otherwise, create new process queue with correct type */
-		else 
+		return queueDelta;
+	}
+	
+	/** Process queue changes of the current transaction, null if there are no counters to update */
+	private ProcessQueueDelta getProcessQueueDelta()
+	{
+		if(processQueueCounters == null)
+			return null;
+		
+		if(processQueueDelta == null)
 		{
-			userProcessQueue = new UserProcessQueue();
-			userProcessQueue.setLogin(assigneLogin);
-			userProcessQueue.setProcessId(processId);
-			userProcessQueue.setTaskId(taskId);
-			userProcessQueue.setQueueType(type);
+			processQueueDelta = new ProcessQueueDelta(processQueueCounters);
+			session.getTransaction().registerSynchronization(processQueueDelta);
 		}
-		
-		queueDao.saveOrUpdate(userProcessQueue);
+		return processQueueDelta;
 	}
 
 }
@@ -8,6 +8,11 @@ import java.sql.Connection;
 import java.sql.SQLException;
 
 /**
+ * Exposes the connection of a hibernate session as a data source.
+ *
+ * The session is either fixed at construction time, or - for a data source shared by a long-lived
+ * engine - bound to the current thread for the duration of a transaction with {@link #bindSession(Session)}.
+ *
  * @author tlipski@bluesoft.net.pl
  */
 public class DataSourceWrapper implements DataSource {
@@ -15,14 +20,40 @@ public class DataSourceWrapper implements DataSource {
     private int loginTimeout = 60;
 
     private Session session;
+    private final ThreadLocal<Session> boundSession = new ThreadLocal<Session>();
+
+    public DataSourceWrapper() {
+    }
 
     public DataSourceWrapper(Session session) {
         this.session = session;
     }
 
+    /**
+     * @return session previously bound to the current thread, to be restored with {@link #restoreSession(Session)}
+     */
+    public Session bindSession(Session session) {
+        Session previous = boundSession.get();
+        boundSession.set(session);
+        return previous;
+    }
+
+    public void restoreSession(Session previous) {
+        if (previous != null) {
+            boundSession.set(previous);
+        }
+        else {
+            boundSession.remove();
+        }
+    }
+
     @Override
     public Connection getConnection() throws SQLException {
-        return new ConnectionWrapper(session.connection());
+        Session sess = session != null ? session : boundSession.get();
+        if (sess == null) {
+            throw new SQLException("No hibernate session bound to the current thread");
+        }
+        return new ConnectionWrapper(sess.connection());
     }
 
     @Override
@@ -32,6 +32,11 @@ public class ProcessToolRegistryContextLoader implements ServletContextListener
 
 	@Override
 	public void contextDestroyed(ServletContextEvent sce) {
+		ProcessToolRegistry toolRegistry = (ProcessToolRegistry) sce.getServletContext().getAttribute(ProcessToolRegistry.class.getName());
 		sce.getServletContext().removeAttribute(ProcessToolRegistry.class.getName());
+		if (toolRegistry != null && toolRegistry.getProcessToolContextFactory() != null) {
+			//closes the shared process engine
+			toolRegistry.unregisterProcessToolContextFactory(toolRegistry.getProcessToolContextFactory().getClass());
+		}
 	}
 }
@@ -0,0 +1,137 @@
+package pl.net.bluesoft.rnd.processtool.plugins;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig.Feature;
+import pl.net.bluesoft.rnd.processtool.plugins.osgi.SearchIndexRebuilder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Administration of the process search index.
+ *
+ * GET returns the progress of the last rebuild. POST with <code>action=rebuild</code> starts a full
+ * rebuild in the background (<code>resume=true</code> continues an interrupted one),
+ * <code>action=reindex&amp;fromId=..&amp;toId=..</code> reindexes a range of process ids in the live index
+ * and <code>action=cancel</code> stops the running rebuild.
+ */
+public class SearchIndexRebuildServlet extends HttpServlet
+{
+	private static Logger				logger	= Logger.getLogger(SearchIndexRebuildServlet.class.getName());
+	private static final ObjectMapper	mapper	= new ObjectMapper();
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		SearchIndexRebuilder rebuilder = getRebuilder(resp);
+		if (rebuilder != null)
+			writeStatus(resp, rebuilder, null);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		SearchIndexRebuilder rebuilder = getRebuilder(resp);
+		if (rebuilder == null)
+			return;
+
+		String action = req.getParameter("action");
+		String message;
+		try
+		{
+			if ("rebuild".equals(action))
+			{
+				rebuilder.start(Boolean.parseBoolean(req.getParameter("resume")));
+				message = "Rebuild started";
+			}
+			else if ("reindex".equals(action))
+			{
+				long fromId = Long.parseLong(req.getParameter("fromId"));
+				long toId = Long.parseLong(req.getParameter("toId"));
+				rebuilder.rebuildRange(fromId, toId);
+				message = "Reindexed processes with ids from " + fromId + " to " + toId;
+			}
+			else if ("cancel".equals(action))
+			{
+				rebuilder.cancel();
+				message = "Rebuild cancelled";
+			}
+			else
+			{
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action: " + action);
+				return;
+			}
+		}
+		catch (IllegalStateException e)
+		{
+			resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+			return;
+		}
+		catch (NumberFormatException e)
+		{
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid process id range: " + e.getMessage());
+			return;
+		}
+		logger.info(this.getClass().getSimpleName() + " POST " + action);
+		writeStatus(resp, rebuilder, message);
+	}
+
+	private SearchIndexRebuilder getRebuilder(HttpServletResponse resp) throws IOException
+	{
+		if (PluginServlet.pluginHelper == null)
+		{
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Plugin system is not initialized");
+			return null;
+		}
+		return PluginServlet.pluginHelper.getSearchIndexRebuilder();
+	}
+
+	private void writeStatus(HttpServletResponse resp, SearchIndexRebuilder rebuilder, String message) throws IOException
+	{
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		if (message != null)
+			status.put("message", message);
+		status.put("state", rebuilder.getState());
+		status.put("indexed", rebuilder.getIndexedCount());
+		status.put("doneUpToId", rebuilder.getDoneUpToId());
+		status.put("maxId", rebuilder.getMaxId());
+		status.put("error", rebuilder.getError());
+
+		resp.setContentType("application/json");
+		PrintWriter out = resp.getWriter();
+		try
+		{
+			mapper.configure(Feature.INDENT_OUTPUT, true);
+			mapper.writeValue(out, status);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.SEVERE, e.getMessage(), e);
+			throw e;
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		logger.info(this.getClass().getSimpleName() + " INITIALIZED: " + getServletContext().getContextPath());
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		logger.info(this.getClass().getSimpleName() + " DESTROYED");
+	}
+}
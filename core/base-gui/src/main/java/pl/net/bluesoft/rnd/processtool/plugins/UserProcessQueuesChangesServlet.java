@@ -0,0 +1,179 @@
+package pl.net.bluesoft.rnd.processtool.plugins;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+import pl.net.bluesoft.rnd.processtool.model.UserData;
+import pl.net.bluesoft.rnd.processtool.plugins.util.UserProcessQueuesSizeProvider;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueCounters;
+import pl.net.bluesoft.util.lang.DateUtil;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Servlet returning only the user task queues which changed since the version given by the client.
+ * The sizes come from the in-memory {@link UserQueueCounters}, so polling clients do not touch
+ * the database. The call never blocks, the client polls again with the returned version.
+ *
+ * Parameters: userLogin and since (version returned by the previous call, -1 for all queues).
+ *
+ * The process queues sizes are not included, they are still refreshed by {@link UserProcessQueuesServlet}.
+ */
+public class UserProcessQueuesChangesServlet extends HttpServlet
+{
+	private static final Logger logger = Logger.getLogger(UserProcessQueuesChangesServlet.class.getName());
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/** How long the list of substituted users is reused before loading it again */
+	private static final long SUBSTITUTIONS_CACHE_TIME = 60000;
+
+	/** Substituted users of the logins polling within the cache time, expired entries are swept on load */
+	private final Map<String, Substitutions> substitutionsCache = new ConcurrentHashMap<String, Substitutions>();
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		ProcessToolRegistry reg = (ProcessToolRegistry) getServletContext().getAttribute(ProcessToolRegistry.class.getName());
+		resp.setContentType("application/json");
+
+		PrintWriter out = resp.getWriter();
+
+		String userLogin = req.getParameter("userLogin");
+		if(userLogin == null)
+		{
+			out.write("No user login specified. Please run servlet with 'userLogin' parameter");
+			return;
+		}
+
+		long since = parseLong(req.getParameter("since"), -1);
+
+		Substitutions substitutions = getSubstitutions(reg, userLogin);
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		if(substitutions == null)
+		{
+			/* prevent null pointers during restart when old client instance is open in browser */
+			result.put("version", since);
+			result.put("queues", new HashMap<String, Object>());
+		}
+		else
+		{
+			UserQueueCounters.Changes changes = reg.getUserQueueCounters().getChangesSince(substitutions.users.keySet(), since);
+
+			Map<String, Map<String, Integer>> usersQueues = new HashMap<String, Map<String, Integer>>();
+			for(Map.Entry<String, Map<QueueType, Integer>> e: changes.getCounts().entrySet())
+			{
+				UserData user = substitutions.users.get(e.getKey());
+				boolean substituted = !userLogin.equals(e.getKey());
+				usersQueues.put(e.getKey(), UserProcessQueuesSizeProvider.getTaskQueuesSize(user, e.getValue(), substituted));
+			}
+			result.put("version", changes.getVersion());
+			result.put("queues", usersQueues);
+		}
+
+		mapper.writeValue(out, result);
+		out.close();
+	}
+
+	private Substitutions getSubstitutions(ProcessToolRegistry reg, final String userLogin)
+	{
+		Substitutions substitutions = substitutionsCache.get(userLogin);
+		if(substitutions != null && System.currentTimeMillis() - substitutions.loadTime < SUBSTITUTIONS_CACHE_TIME)
+			return substitutions;
+
+		substitutions = reg.withProcessToolContext(new ReturningProcessToolContextCallback<Substitutions>()
+		{
+			@Override
+			public Substitutions processWithContext(ProcessToolContext ctx)
+			{
+				UserData userData = ctx.getUserDataDAO().loadUserByLogin(userLogin);
+				if(userData == null)
+					return null;
+
+				List<UserData> substitutedUsers = ctx.getUserSubstitutionDAO().getSubstitutedUsers(userData, DateUtil.truncHours(new Date()));
+
+				Collection<UserData> users = new ArrayList<UserData>();
+				users.add(userData);
+				users.addAll(substitutedUsers);
+				return new Substitutions(users);
+			}
+		});
+
+		if(substitutions != null)
+			substitutionsCache.put(userLogin, substitutions);
+		else
+			substitutionsCache.remove(userLogin);
+		sweepSubstitutions();
+		return substitutions;
+	}
+
+	/** Forget the substitutions of logins which stopped polling, at most once per cache time */
+	private void sweepSubstitutions()
+	{
+		long now = System.currentTimeMillis();
+		if(now - lastSweep < SUBSTITUTIONS_CACHE_TIME)
+			return;
+		lastSweep = now;
+
+		for(Iterator<Substitutions> it = substitutionsCache.values().iterator(); it.hasNext(); )
+		{
+			if(now - it.next().loadTime >= SUBSTITUTIONS_CACHE_TIME)
+				it.remove();
+		}
+	}
+
+	private static long parseLong(String value, long defaultValue)
+	{
+		if(value == null)
+			return defaultValue;
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch(NumberFormatException e)
+		{
+			return defaultValue;
+		}
+	}
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		logger.info(this.getClass().getSimpleName() + " INITIALIZED: " + getServletContext().getContextPath());
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		logger.info(this.getClass().getSimpleName() + " DESTROYED");
+	}
+
+	private static class Substitutions
+	{
+		final long loadTime = System.currentTimeMillis();
+		/** The user and the users substituted by him, by login */
+		final Map<String, UserData> users = new LinkedHashMap<String, UserData>();
+
+		Substitutions(Collection<UserData> users)
+		{
+			for(UserData user: users)
+				this.users.put(user.getLogin(), user);
+		}
+	}
+}
@@ -12,6 +12,7 @@ import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.filters.factory.ProcessInstanceFilterFactory;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceFilter;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
 import pl.net.bluesoft.rnd.processtool.model.UserData;
 import pl.net.bluesoft.rnd.processtool.model.nonpersistent.ProcessQueue;
 import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
@@ -94,23 +95,11 @@ public class UserProcessQueuesSizeProvider
 		
 		UserData user = reg.getUserDataDAO(ctx.getHibernateSession()).loadUserByLogin(currentUserLogin);
 		
-		ProcessInstanceFilterFactory filterFactory = new ProcessInstanceFilterFactory();
-		Collection<ProcessInstanceFilter> queuesFilters = new ArrayList<ProcessInstanceFilter>();
-		
 		UsersQueuesSize userQueueSize = new UsersQueuesSize(currentUserLogin);
 		
-		/* Create organized tasks filters */
-		queuesFilters.add(filterFactory.createTaskAssignedToMeFilter(user));
-		queuesFilters.add(filterFactory.createMyTaskDoneByOthersFilter(user));
-		
-		for(ProcessInstanceFilter queueFilter: queuesFilters)
-		{
-			int filteredQueueSize = bpmSession.getTasksCount(ctx, queueFilter.getFilterOwner().getLogin(), queueFilter.getQueueTypes());
-			//int filteredQueueSize = session.getFilteredTasksCount(queueFilter, ctx);
-			
-			String queueId = QueuesPanelRefresherUtil.getQueueTaskId(queueFilter.getName());
-			userQueueSize.addProcessQueueSize(queueId, filteredQueueSize);
-		}
+		/* Task queues sizes are kept in memory, no need to query the database */
+		Map<QueueType, Integer> queueCounts = reg.getUserQueueCounters().getCounts(currentUserLogin);
+		userQueueSize.getUserProcessQueueSize().putAll(getTaskQueuesSize(user, queueCounts, false));
 		
 		/* Add queues */
 		List<ProcessQueue> userAvailableQueues = new ArrayList<ProcessQueue>(bpmSession.getUserAvailableQueues(ctx));
@@ -131,23 +120,10 @@ public class UserProcessQueuesSizeProvider
 		
 		UserData user = reg.getUserDataDAO(ctx.getHibernateSession()).loadUserByLogin(currentUserLogin);
 		
-		ProcessInstanceFilterFactory filterFactory = new ProcessInstanceFilterFactory();
-		Collection<ProcessInstanceFilter> queuesFilters = new ArrayList<ProcessInstanceFilter>();
-		
 		UsersQueuesSize userQueueSize = new UsersQueuesSize(currentUserLogin);
 		
-		queuesFilters.add(filterFactory.createTasksAssignedToSubstitutedUserFilter(user));
-//		queuesFilters.add(filterFactory.createSubstitutedOthersTaskAssignedToMeFilter(user));
-		
-		
-		for(ProcessInstanceFilter queueFilter: queuesFilters)
-		{
-			int filteredQueueSize = bpmSession.getTasksCount(ctx, queueFilter.getFilterOwner().getLogin(), queueFilter.getQueueTypes());
-			//int filteredQueueSize = session.getFilteredTasksCount(queueFilter, ctx);
-			
-			String queueId = QueuesPanelRefresherUtil.getSubstitutedQueueTaskId(queueFilter.getName(), currentUserLogin);
-			userQueueSize.addProcessQueueSize(queueId, filteredQueueSize);
-		}
+		Map<QueueType, Integer> queueCounts = reg.getUserQueueCounters().getCounts(currentUserLogin);
+		userQueueSize.getUserProcessQueueSize().putAll(getTaskQueuesSize(user, queueCounts, true));
 		
 		List<ProcessQueue> userAvailableQueues = new ArrayList<ProcessQueue>(bpmSession.getUserAvailableQueues(ctx));
 		for(ProcessQueue processQueue: userAvailableQueues)
@@ -161,6 +137,40 @@ public class UserProcessQueuesSizeProvider
 		usersQueuesSize.add(userQueueSize);
 	}
 
+	/** Sizes of the user task queues (queue id as key) computed from the queue counters of the user */
+	public static Map<String, Integer> getTaskQueuesSize(UserData user, Map<QueueType, Integer> queueCounts, boolean substituted)
+	{
+		ProcessInstanceFilterFactory filterFactory = new ProcessInstanceFilterFactory();
+		Collection<ProcessInstanceFilter> queuesFilters = new ArrayList<ProcessInstanceFilter>();
+		
+		if(substituted)
+		{
+			queuesFilters.add(filterFactory.createTasksAssignedToSubstitutedUserFilter(user));
+		}
+		else
+		{
+			queuesFilters.add(filterFactory.createTaskAssignedToMeFilter(user));
+			queuesFilters.add(filterFactory.createMyTaskDoneByOthersFilter(user));
+		}
+		
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for(ProcessInstanceFilter queueFilter: queuesFilters)
+		{
+			int filteredQueueSize = 0;
+			for(QueueType queueType: queueFilter.getQueueTypes())
+			{
+				Integer count = queueCounts.get(queueType);
+				filteredQueueSize += count != null ? count : 0;
+			}
+			
+			String queueId = substituted
+					? QueuesPanelRefresherUtil.getSubstitutedQueueTaskId(queueFilter.getName(), user.getLogin())
+					: QueuesPanelRefresherUtil.getQueueTaskId(queueFilter.getName());
+			result.put(queueId, filteredQueueSize);
+		}
+		return result;
+	}
+
 	public static class UsersQueuesSize 
 	{
 		private final String userLogin;
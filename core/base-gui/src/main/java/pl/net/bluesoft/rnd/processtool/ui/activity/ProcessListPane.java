@@ -6,6 +6,7 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.aperteworkflow.util.vaadin.VaadinUtility;
@@ -13,6 +14,7 @@ import org.aperteworkflow.util.vaadin.ui.AligningHorizontalLayout;
 import org.aperteworkflow.util.view.AbstractListPane;
 
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.bpm.BpmTaskPage;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.hibernate.ResultsPageWrapper;
 import pl.net.bluesoft.rnd.processtool.model.BpmTask;
@@ -46,6 +48,11 @@ public abstract class ProcessListPane extends AbstractListPane {
     protected int offset = 0;
     protected int totalResults = 0;
     
+    /** Cursors of the current page and the pages before it, empty on the first page */
+    private LinkedList<String> pageCursors = new LinkedList<String>();
+    /** Cursor of the page after the current one, null if it is the last page */
+    private String nextPageCursor;
+    
     private List<BpmTask> bpmTasks = Collections.synchronizedList(new ArrayList<BpmTask>());
     
     private TasksFilterBox filterBox;
@@ -77,6 +84,7 @@ public abstract class ProcessListPane extends AbstractListPane {
         limit = 10;
         offset = 0;
         totalResults = 0;
+        pageCursors.clear();
         
         filter = filter == null ? getDefaultFilter() : filter;
 
@@ -155,10 +163,17 @@ public abstract class ProcessListPane extends AbstractListPane {
 		
 		ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
 		
-		totalResults = getBpmSession().getFilteredTasksCount(filter, ctx);
-
-		/* Get tasks filtered by given filter */
-		bpmTasks = Collections.synchronizedList(getBpmSession().findFilteredTasks(filter, ctx, offset, limit));
+		/* The count is made for the first page only, next pages are read without it */
+		if(pageCursors.isEmpty())
+			totalResults = getBpmSession().getFilteredTasksCount(filter, ctx);
+
+		/* Get tasks filtered by given filter, continuing from the current page cursor */
+		BpmTaskPage page = getBpmSession().findFilteredTasksPage(filter, ctx, pageCursors.peek(), limit);
+		bpmTasks = Collections.synchronizedList(page.getTasks());
+		nextPageCursor = page.getNextCursor();
+		
+		/* The count is not refreshed on next pages, keep it consistent with what is shown */
+		totalResults = Math.max(totalResults, offset + bpmTasks.size());
     	
     }
     
@@ -188,8 +203,8 @@ public abstract class ProcessListPane extends AbstractListPane {
 		
 		public void refresh()
 		{
-			boolean privButtonEnabled = offset-limit >= 0;
-			boolean nextButtonEnabled = offset+limit <= totalResults - 1;
+			boolean privButtonEnabled = !pageCursors.isEmpty();
+			boolean nextButtonEnabled = nextPageCursor != null;
 			
             prevButton.setEnabled(privButtonEnabled);
             nextButton.setEnabled(nextButtonEnabled);
@@ -235,6 +250,7 @@ public abstract class ProcessListPane extends AbstractListPane {
 			if(event.getButton().equals(prevButton))
 			{
                 offset -= limit;
+                pageCursors.pop();
 
                 refreshData();
                 reloadView();
@@ -242,6 +258,7 @@ public abstract class ProcessListPane extends AbstractListPane {
 			else if(event.getButton().equals(nextButton))
 			{
                 offset += limit;
+                pageCursors.push(nextPageCursor);
                 
                 refreshData();
                 reloadView();
@@ -253,6 +270,7 @@ public abstract class ProcessListPane extends AbstractListPane {
 
     public void setNewSearch() {
         offset = 0;
+        pageCursors.clear();
         titleLabel.setValue(getMessage("activity.search.results"));
     }
 
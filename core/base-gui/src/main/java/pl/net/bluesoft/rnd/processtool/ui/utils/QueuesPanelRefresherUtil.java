@@ -74,11 +74,11 @@ public class QueuesPanelRefresherUtil
 	
 	public static void changeRefresherInterval(Window mainWindow)
 	{
-		String refreshInterval = ProcessToolContext.Util.getThreadProcessToolContext().getSetting(REFRESHER_INTERVAL_SETTINGS_KEY);
-		if(refreshInterval == null || refreshInterval.isEmpty())
+		int interval = ProcessToolContext.Util.getThreadProcessToolContext().getRegistry().getSettingsCache()
+				.getInt(REFRESHER_INTERVAL_SETTINGS_KEY, -1);
+		if(interval < 0)
 			return;
 		
-		Integer interval = Integer.parseInt(refreshInterval);
 		QueuesPanelRefresherUtil.changeRefreshInterval(mainWindow, interval);
 		
 	}
@@ -1,8 +1,14 @@
 // servlet address
 var servletAddress = "/aperteworkflow/osgiex/queues";
+// polled servlet address, returns only the task queues changed since the last poll
+var changesServletAddress = "/aperteworkflow/osgiex/queues/changes";
 // interval in miliseconds
 var interval = 30000;
 var auto_refresh;
+// last known queue sizes of every user, updated by both full refreshes and changes
+var userQueues = {};
+var changesVersion = -1;
+var changesUser = null;
 
 function setCurrentUser(user) {
     createCookie("apw_refresher_settings", user, 360);
@@ -24,88 +30,132 @@ function clearRefreshCurrentUser() {
     createCookie("apw_refresher_settings", null, 360);
 }
 
+function getAddress(path) {
+    if (window.location.origin) {
+        return window.location.origin + path;
+    } else if (window.location.host) {
+        return window.location.protocol + "//" + window.location.host + path + "?t=" + (Math.random() * 99999);
+    }
+}
+
 function refresh() {
     var currentUser = readCookie("apw_refresher_settings");
     if (!currentUser || currentUser == "null" || currentUser == "") {
         return 1;
     }
 
-    var address;
-    if (window.location.origin) {
-        address = window.location.origin + servletAddress;
-    } else if (window.location.host) {
-        address = window.location.protocol + "//" + window.location.host + servletAddress + "?t=" + (Math.random() * 99999);
-    }
-
     $.ajaxSetup({
         cache: false
     });
 
     $.ajax({
         type: "GET",
-        url: address,
+        url: getAddress(servletAddress),
         data: {
             userLogin: currentUser
         },
         success: function (data) {
             $.each(data, function (user, mainUserQueues) {
-                var totalTasks = 0;
-                var totalQueues = 0;
-
-                $.each(mainUserQueues, function (key, value) {
-                    if (key.indexOf("substituted-" != -1)) {
-                        if (key.indexOf("user-task-name") != -1) {
-                            totalTasks = totalTasks + value;
-                        }
-                        if (key.indexOf("user-queue-name") != -1) {
-                            totalQueues = totalQueues + value;
-                        }
-                    }
-
-                    var newQueueSize = value;
-                    var obj = $("div." + key + " span").last();
-
-                    if (!obj || obj.length == 0) {
-                        return true;
-                    }
-                    var innerText = obj.html();
-
-                    var index = innerText.indexOf("(");
-
-                    if (!index || index <= 0) {
-                        return true;
-                    }
-                    var caption = innerText.substring(0, index);
-                    obj.html(caption + "(" + newQueueSize + ")");
-
-                    var divObj = $("div." + key).last();
-                    if (newQueueSize > 0) {
-                        divObj.removeClass("v-disabled");
-                    } else {
-                        divObj.addClass("v-disabled");
-                    }
+                userQueues[user] = mainUserQueues;
+                updateUserQueues(user, mainUserQueues);
+            });
+        }
+    });
+
+}
+
+function pollChanges() {
+    var currentUser = readCookie("apw_refresher_settings");
+    if (!currentUser || currentUser == "null" || currentUser == "") {
+        setTimeout(pollChanges, interval);
+        return 1;
+    }
+    if (currentUser != changesUser) {
+        changesUser = currentUser;
+        changesVersion = -1;
+        userQueues = {};
+    }
+
+    $.ajax({
+        type: "GET",
+        url: getAddress(changesServletAddress),
+        cache: false,
+        timeout: 10000,
+        data: {
+            userLogin: currentUser,
+            since: changesVersion
+        },
+        success: function (data) {
+            if (currentUser == changesUser) {
+                changesVersion = data.version;
+                $.each(data.queues, function (user, changedQueues) {
+                    var queues = userQueues[user] || {};
+                    $.extend(queues, changedQueues);
+                    userQueues[user] = queues;
+                    updateUserQueues(user, queues);
                 });
+            }
+            setTimeout(pollChanges, interval);
+        },
+        error: function () {
+            setTimeout(pollChanges, interval);
+        }
+    });
+}
 
-                var nodeClass = "substituted-" + user + "-user-root-node";
-                var obj = $("div.v-tree-node-caption-" + nodeClass + " span").last();
+function updateUserQueues(user, mainUserQueues) {
+    var totalTasks = 0;
+    var totalQueues = 0;
+
+    $.each(mainUserQueues, function (key, value) {
+        if (key.indexOf("substituted-" != -1)) {
+            if (key.indexOf("user-task-name") != -1) {
+                totalTasks = totalTasks + value;
+            }
+            if (key.indexOf("user-queue-name") != -1) {
+                totalQueues = totalQueues + value;
+            }
+        }
 
-                if (!obj || obj.length == 0) {
-                    return true;
-                }
-                var innerText = obj.html();
+        var newQueueSize = value;
+        var obj = $("div." + key + " span").last();
 
-                var index = innerText.indexOf("(");
+        if (!obj || obj.length == 0) {
+            return true;
+        }
+        var innerText = obj.html();
 
-                if (!index || index <= 0) {
-                    return true;
-                }
-                var caption = innerText.substring(0, index);
-                obj.html(caption + "(" + totalTasks + "," + totalQueues + ")");
+        var index = innerText.indexOf("(");
 
-            });
+        if (!index || index <= 0) {
+            return true;
+        }
+        var caption = innerText.substring(0, index);
+        obj.html(caption + "(" + newQueueSize + ")");
+
+        var divObj = $("div." + key).last();
+        if (newQueueSize > 0) {
+            divObj.removeClass("v-disabled");
+        } else {
+            divObj.addClass("v-disabled");
         }
     });
 
+    var nodeClass = "substituted-" + user + "-user-root-node";
+    var obj = $("div.v-tree-node-caption-" + nodeClass + " span").last();
+
+    if (!obj || obj.length == 0) {
+        return true;
+    }
+    var innerText = obj.html();
+
+    var index = innerText.indexOf("(");
+
+    if (!index || index <= 0) {
+        return true;
+    }
+    var caption = innerText.substring(0, index);
+    obj.html(caption + "(" + totalTasks + "," + totalQueues + ")");
 }
 
 $(window).bind('unload', function () {
@@ -115,4 +165,5 @@ $(window).bind('unload', function () {
 $(document).ready(function () {
     var func = refresh;
     auto_refresh = setInterval(func, interval);
+    pollChanges();
 });
\ No newline at end of file
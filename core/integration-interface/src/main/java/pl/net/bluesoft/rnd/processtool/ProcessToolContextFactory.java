@@ -34,4 +34,7 @@ public interface ProcessToolContextFactory {
 //                                         InputStream logoStream);
 
 	void updateSessionFactory(SessionFactory sf);
+
+	/** Release the process engine held by the factory, called when the factory is replaced or unregistered */
+	void close();
 }
@@ -0,0 +1,39 @@
+package pl.net.bluesoft.rnd.processtool.bpm;
+
+import java.util.List;
+
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+
+/**
+ * One page of a task list read with a cursor. The cursor is opaque to the caller: it is taken
+ * from the previous page and passed back to
+ * {@link ProcessToolBpmSession#findFilteredTasksPage(pl.net.bluesoft.rnd.processtool.model.ProcessInstanceFilter, pl.net.bluesoft.rnd.processtool.ProcessToolContext, String, int)}
+ * to read the page following it.
+ */
+public class BpmTaskPage
+{
+	private final List<BpmTask> tasks;
+	private final String nextCursor;
+
+	public BpmTaskPage(List<BpmTask> tasks, String nextCursor)
+	{
+		this.tasks = tasks;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<BpmTask> getTasks()
+	{
+		return tasks;
+	}
+
+	/** Cursor of the next page, null if this is the last one */
+	public String getNextCursor()
+	{
+		return nextCursor;
+	}
+
+	public boolean hasNextPage()
+	{
+		return nextCursor != null;
+	}
+}
@@ -108,6 +108,12 @@ public interface ProcessToolBpmSession extends ProcessToolBpmConstants {
     /** Find tasks from user process queue with given queue type and login in filter instance with given max results limit */
     List<BpmTask> findFilteredTasks(ProcessInstanceFilter filter, ProcessToolContext ctx, int resultOffset, int maxResults);
 
+    /** Find a page of tasks like {@link #findFilteredTasks(ProcessInstanceFilter, ProcessToolContext, int, int)},
+     * but starting after the position given by the cursor instead of an offset, so deep pages
+     * cost the same as the first one. Pass null cursor for the first page. No count query is made.
+     */
+    BpmTaskPage findFilteredTasksPage(ProcessInstanceFilter filter, ProcessToolContext ctx, String cursor, int maxResults);
+
     List<BpmTask> findRecentTasks(Calendar minDate, Integer offset, Integer limit, ProcessToolContext ctx);
 
     Integer getRecentTasksCount(Calendar minDate, ProcessToolContext ctx);
@@ -7,6 +7,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -26,8 +27,6 @@ import pl.net.bluesoft.rnd.processtool.model.UserData;
 import pl.net.bluesoft.rnd.processtool.model.config.AbstractPermission;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionPermission;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueRight;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateAction;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateWidget;
 import pl.net.bluesoft.rnd.processtool.model.nonpersistent.MutableBpmTask;
@@ -35,7 +34,6 @@ import pl.net.bluesoft.rnd.processtool.model.nonpersistent.ProcessQueue;
 import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
 import pl.net.bluesoft.util.eventbus.EventBusManager;
 import pl.net.bluesoft.util.lang.Collections;
-import pl.net.bluesoft.util.lang.Mapcar;
 import pl.net.bluesoft.util.lang.Pair;
 import pl.net.bluesoft.util.lang.Predicate;
 
@@ -327,43 +325,24 @@ public abstract class AbstractProcessToolSession
     }
 
     protected Collection<ProcessQueue> getUserQueuesFromConfig(ProcessToolContext ctx) {
+        return ctx.getRegistry().getProcessQueueVisibility().getVisibleQueues(roleNames);
+    }
 
-        return new Mapcar<ProcessQueueConfig, ProcessQueue>(ctx.getProcessDefinitionDAO().getQueueConfigs()) {
-            @Override
-            public ProcessQueue lambda(ProcessQueueConfig x) {
-
-                if (x.getRights().isEmpty()) {
-                    return transform(x, false);
-                }
-                boolean found = false;
-                boolean browsable = false;
-                for (ProcessQueueRight r : x.getRights()) {
-                    String rn = r.getRoleName();
-                    if (rn == null) {
-                        continue;
-                    }
-
-                    if (hasMatchingRole(rn)) {
-                        found = true;
-                        browsable = browsable || r.isBrowseAllowed();
-                    }
-                }
-                if (found) {
-                    return transform(x, browsable);
-                }
-                return null;
-            }
-
-            ProcessQueue transform(ProcessQueueConfig x, boolean browsable) {
-                ProcessQueue pq = new ProcessQueue();
-                pq.setBrowsable(browsable);
-                pq.setName(x.getName());
-                pq.setDescription(x.getDescription());
-                pq.setProcessCount(0);
-                pq.setUserAdded(x.getUserAdded());
-                return pq;
-            }
-        }.go();
+    @Override
+    public Collection<ProcessQueue> getUserAvailableQueues(ProcessToolContext ctx) {
+        Collection<ProcessQueue> queues = getUserQueuesFromConfig(ctx);
+        if (queues.isEmpty()) {
+            return queues;
+        }
+        List<String> names = new ArrayList<String>();
+        for (ProcessQueue q : queues) {
+            names.add(q.getName());
+        }
+        Map<String, Integer> counts = ctx.getRegistry().getProcessQueueCounters().getCounts(names);
+        for (ProcessQueue q : queues) {
+            q.setProcessCount(counts.get(q.getName()));
+        }
+        return queues;
     }
 
     private boolean hasMatchingRole(String roleName) {
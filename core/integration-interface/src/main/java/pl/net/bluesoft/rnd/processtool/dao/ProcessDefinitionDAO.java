@@ -8,6 +8,7 @@ import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateConfiguration;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author tlipski@bluesoft.net.pl
@@ -22,6 +23,10 @@ public interface ProcessDefinitionDAO extends HibernateBean<ProcessDefinitionCon
 	Collection<ProcessQueueConfig> getQueueConfigs();
 	ProcessStateConfiguration getProcessStateConfiguration(BpmTask task);
 
+	/** Configurations of the given states of the definition, in one query, by state name */
+	Map<String, ProcessStateConfiguration> getProcessStateConfigurations(ProcessDefinitionConfig definition,
+																		 Collection<String> stateNames);
+
 	void updateOrCreateProcessDefinitionConfig(ProcessDefinitionConfig cfg);
 //	void updateOrCreateQueueConfigs(ProcessQueueConfig[] cfgs);
 
@@ -1,5 +1,7 @@
 package pl.net.bluesoft.rnd.processtool.dao;
 
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
 import pl.net.bluesoft.rnd.processtool.hibernate.HibernateBean;
 import pl.net.bluesoft.rnd.processtool.hibernate.ResultsPageWrapper;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
@@ -23,6 +25,9 @@ public interface ProcessInstanceDAO extends HibernateBean<ProcessInstance> {
 
     List<ProcessInstance> getProcessInstances(Collection<Long> ids);
 
+    /** Process instances in the order of the ids */
+    List<ProcessInstance> getProcessInstancesByIds(List<Long> ids);
+
     ProcessInstance getProcessInstanceByInternalId(String internalId);
 
     ProcessInstance getProcessInstanceByExternalId(String externalId);
@@ -40,6 +45,14 @@ public interface ProcessInstanceDAO extends HibernateBean<ProcessInstance> {
 
     Collection<ProcessInstance> searchProcesses(String filter, int offset, int limit, boolean onlyRunning, String[] userRoles, String assignee, String... queues);
 
+    /**
+     * Ids of a page of process instances found by the search, sorted by the index. Use
+     * {@link #getProcessInstancesByIds(List)} to load them.
+     */
+    ProcessInstanceSearchPage searchProcesses(String filter, ProcessInstanceSortField sortField, boolean descending,
+                                              String cursor, int limit, boolean onlyRunning, String[] userRoles,
+                                              String assignee, String... queues);
+
     Collection<ProcessInstance> getUserProcessesAfterDate(UserData userData, Calendar minDate);
 
     ResultsPageWrapper<ProcessInstance> getRecentProcesses(UserData userData, Calendar minDate, Integer offset, Integer limit);
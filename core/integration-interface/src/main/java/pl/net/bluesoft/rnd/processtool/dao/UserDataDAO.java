@@ -14,5 +14,6 @@ public interface UserDataDAO extends HibernateBean<UserData> {
 	UserData loadOrCreateUserByLogin(UserData ud);
 	UserData loadUserByLogin(String login);
     Map<String, UserData> loadUsersByLogin(Collection<String> logins);
+    Map<Long, UserData> loadUsersById(Collection<Long> ids);
 	UserData findOrCreateUser(UserData ud);
 }
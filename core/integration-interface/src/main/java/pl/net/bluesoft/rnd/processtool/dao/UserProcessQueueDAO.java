@@ -1,6 +1,7 @@
 package pl.net.bluesoft.rnd.processtool.dao;
 
 import java.util.Collection;
+import java.util.Map;
 
 import pl.net.bluesoft.rnd.processtool.hibernate.HibernateBean;
 import pl.net.bluesoft.rnd.processtool.model.QueueType;
@@ -42,4 +43,7 @@ public interface UserProcessQueueDAO extends HibernateBean<UserProcessQueue>
 	
 	/** Get the queue length for given user and selected type */
 	int getQueueLength(String userLogin, Collection<QueueType> queueTypes);
+
+	/** Get the lengths of all queue types for given users, in one query */
+	Map<String, Map<QueueType, Integer>> getQueueLengths(Collection<String> userLogins);
 }
@@ -0,0 +1,180 @@
+package pl.net.bluesoft.rnd.processtool.hibernate;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of entities matching a filter, read in up to three statements:
+ * <ul>
+ *     <li>the total, as a count of distinct ids - skipped when not needed or when the page tells it,</li>
+ *     <li>the ids of the page, ordered, with a limit and an offset or a keyset (the last row of the previous page),</li>
+ *     <li>the entities, with one <code>in</code> query, returned in the order of the ids.</li>
+ * </ul>
+ * The filter is applied to a fresh criteria for every statement, so it may join other entities,
+ * but it must not set projections or orders. Properties of the entity are referenced without an alias.
+ */
+public class PagedCriteriaQuery<T> {
+    /** Ids hydrated by a single statement */
+    private static final int MAX_IN_SIZE = 500;
+
+    private final Session session;
+    private final Class<T> entityClass;
+    private final CriteriaConfigurer filter;
+
+    private CriteriaConfigurer hydration;
+    private String orderProperty = "id";
+    private boolean descending = true;
+    private boolean countTotal = true;
+    private int offset;
+    private Integer limit;
+    private Object afterValue;
+    private Long afterId;
+
+    public PagedCriteriaQuery(Session session, Class<T> entityClass, CriteriaConfigurer filter) {
+        this.session = session;
+        this.entityClass = entityClass;
+        this.filter = filter;
+    }
+
+    /** Order of the results, the id is always the last order, so the order is stable */
+    public PagedCriteriaQuery<T> orderBy(String property, boolean descending) {
+        this.orderProperty = property;
+        this.descending = descending;
+        return this;
+    }
+
+    /** Page starting at the given offset, null or non-positive limit reads all results */
+    public PagedCriteriaQuery<T> page(Integer offset, Integer limit) {
+        this.offset = offset != null ? offset : 0;
+        this.limit = limit != null && limit > 0 ? limit : null;
+        return this;
+    }
+
+    /** Page following the row with the given order property value and id, instead of an offset */
+    public PagedCriteriaQuery<T> after(Object orderValue, Long id) {
+        this.afterValue = orderValue;
+        this.afterId = id;
+        return this;
+    }
+
+    /** Do not count the results, the total of the returned page is then the size of the page */
+    public PagedCriteriaQuery<T> withoutTotal() {
+        this.countTotal = false;
+        return this;
+    }
+
+    /** Fetch modes or aliases of the query loading the entities */
+    public PagedCriteriaQuery<T> hydrateWith(CriteriaConfigurer hydration) {
+        this.hydration = hydration;
+        return this;
+    }
+
+    public ResultsPageWrapper<T> list() {
+        List<Long> ids = listIds();
+        List<T> results = load(ids);
+
+        if (!countTotal) {
+            return new ResultsPageWrapper<T>(results);
+        }
+        boolean wholeResult = limit == null || ids.size() < limit;
+        if (wholeResult && afterId == null && (offset == 0 || !ids.isEmpty())) {
+            return new ResultsPageWrapper<T>(results, offset + ids.size());
+        }
+        return new ResultsPageWrapper<T>(results, count());
+    }
+
+    public int count() {
+        DetachedCriteria criteria = createFilteredCriteria();
+        criteria.setProjection(Projections.countDistinct("id"));
+        Number total = (Number) criteria.getExecutableCriteria(session).uniqueResult();
+        return total != null ? total.intValue() : 0;
+    }
+
+    public List<Long> listIds() {
+        DetachedCriteria criteria = createFilteredCriteria();
+        boolean orderById = "id".equals(orderProperty);
+        if (orderById) {
+            criteria.setProjection(Projections.distinct(Projections.id()));
+        }
+        else {
+            //the order property has to be selected along with the id for the distinct
+            criteria.setProjection(Projections.distinct(Projections.projectionList()
+                    .add(Projections.id())
+                    .add(Projections.property(orderProperty))));
+            criteria.addOrder(descending ? Order.desc(orderProperty) : Order.asc(orderProperty));
+        }
+        criteria.addOrder(descending ? Order.desc("id") : Order.asc("id"));
+
+        if (afterId != null) {
+            criteria.add(orderById || afterValue == null ? keysetRestriction("id", afterId) : Restrictions.or(
+                    keysetRestriction(orderProperty, afterValue),
+                    Restrictions.and(Restrictions.eq(orderProperty, afterValue), keysetRestriction("id", afterId))));
+        }
+
+        Criteria executable = criteria.getExecutableCriteria(session);
+        if (afterId == null && offset > 0) {
+            executable.setFirstResult(offset);
+        }
+        if (limit != null) {
+            executable.setMaxResults(limit);
+        }
+
+        List rows = executable.list();
+        List<Long> ids = new ArrayList<Long>(rows.size());
+        for (Object row : rows) {
+            ids.add(((Number) (orderById ? row : ((Object[]) row)[0])).longValue());
+        }
+        return ids;
+    }
+
+    /** Entities with the given ids, in the order of the ids */
+    public List<T> load(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, T> entities = new HashMap<Long, T>(ids.size() * 2);
+        for (int i = 0; i < ids.size(); i += MAX_IN_SIZE) {
+            DetachedCriteria criteria = DetachedCriteria.forClass(entityClass)
+                    .add(Restrictions.in("id", ids.subList(i, Math.min(i + MAX_IN_SIZE, ids.size()))))
+                    .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+            if (hydration != null) {
+                hydration.configure(criteria);
+            }
+            for (Object entity : criteria.getExecutableCriteria(session).list()) {
+                entities.put((Long) session.getIdentifier(entity), entityClass.cast(entity));
+            }
+        }
+
+        List<T> results = new ArrayList<T>(ids.size());
+        for (Long id : ids) {
+            T entity = entities.get(id);
+            if (entity != null) {
+                results.add(entity);
+            }
+        }
+        return results;
+    }
+
+    private DetachedCriteria createFilteredCriteria() {
+        DetachedCriteria criteria = DetachedCriteria.forClass(entityClass);
+        if (filter != null) {
+            filter.configure(criteria);
+        }
+        return criteria;
+    }
+
+    private Criterion keysetRestriction(String property, Object value) {
+        return descending ? Restrictions.lt(property, value) : Restrictions.gt(property, value);
+    }
+}
@@ -11,9 +11,15 @@ import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateAction;
 import pl.net.bluesoft.rnd.processtool.steps.ProcessToolProcessStep;
+import pl.net.bluesoft.rnd.processtool.sequences.SequenceAllocator;
+import pl.net.bluesoft.rnd.processtool.settings.SettingsCache;
+import pl.net.bluesoft.rnd.processtool.steps.StepLatencyHistogram;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.ProcessToolActionButton;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.ProcessToolWidget;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.taskitem.TaskItemProvider;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueVisibility;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueCounters;
 import pl.net.bluesoft.rnd.util.func.Func;
 import pl.net.bluesoft.rnd.util.i18n.I18NProvider;
 import pl.net.bluesoft.util.eventbus.EventBusManager;
@@ -170,6 +176,18 @@ public interface ProcessToolRegistry extends ProcessToolBpmConstants {
 
     ExecutorService getExecutorService();
 
+    UserQueueCounters getUserQueueCounters();
+
+    ProcessQueueCounters getProcessQueueCounters();
+
+    ProcessQueueVisibility getProcessQueueVisibility();
+
+    StepLatencyHistogram getStepLatencyHistogram();
+
+    SequenceAllocator getSequenceAllocator();
+
+    SettingsCache getSettingsCache();
+
     <K, V> void registerCache(String cacheName, Map<K, V> cache);
 
     <K, V> Map<K, V> getCache(String cacheName);
@@ -0,0 +1,232 @@
+package pl.net.bluesoft.rnd.processtool.sequences;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.transaction.IsolatedWork;
+import org.hibernate.engine.transaction.Isolater;
+
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolSequence;
+
+/**
+ * Hands out values of the named sequences (pt_sequence).
+ *
+ * Each node reserves a block of values at once, in a short transaction of its own, and serves
+ * the following values from memory. The sequence row is therefore locked only while a block
+ * is reserved, instead of until the end of every transaction taking a value. Values left in
+ * a block when the node stops, or taken by a transaction rolled back later, are lost, so
+ * the sequence may have gaps and values from different nodes are not ordered.
+ *
+ * Sequences marked as gapless are not pooled: every value is taken in the caller's transaction,
+ * with the row locked until it ends.
+ *
+ * The block size is read from the sequence row when a block is reserved. A block is reserved
+ * without waiting for the row lock: when the row is locked, possibly by the caller's own
+ * transaction, the value is taken in the caller's transaction instead, as for gapless sequences.
+ */
+public class SequenceAllocator
+{
+	private static final Logger logger = Logger.getLogger(SequenceAllocator.class.getName());
+
+	public static final int DEFAULT_BLOCK_SIZE = 20;
+
+	private final ConcurrentMap<SequenceKey, Block> blocks = new ConcurrentHashMap<SequenceKey, Block>();
+
+	/** Get the next value of the sequence, creating the sequence if it does not exist */
+	public long getNextValue(Session session, String processDefinitionName, String sequenceName)
+	{
+		SequenceKey key = new SequenceKey(processDefinitionName, sequenceName);
+
+		Block block = blocks.get(key);
+		if(block == null)
+		{
+			block = new Block();
+			Block existing = blocks.putIfAbsent(key, block);
+			if(existing != null)
+				block = existing;
+		}
+
+		if(!block.gapless)
+		{
+			/* one thread reserves a new block, the others wait for it instead of locking the row */
+			synchronized(block)
+			{
+				boolean reserved = block.next <= block.last || reserveBlock(session, key, block);
+
+				if(reserved && !block.gapless)
+					return block.next++;
+			}
+		}
+
+		/* outside of the block monitor, the row lock may be held until the end of the transaction */
+		return getNextValueInTransaction(session, key, block);
+	}
+
+	/** Forget reserved values, the following calls read the sequences again */
+	public void clear()
+	{
+		blocks.clear();
+	}
+
+	/**
+	 * Reserve a block of values in a transaction of its own
+	 *
+	 * @return false if the sequence row is locked by another transaction, which may be the caller's one
+	 */
+	private boolean reserveBlock(Session session, final SequenceKey key, final Block block)
+	{
+		final SessionImplementor sessionImplementor = (SessionImplementor)session;
+		try
+		{
+			doReserveBlock(sessionImplementor, key, block);
+		}
+		catch(JDBCException e)
+		{
+			/* waiting could deadlock on a row locked by the caller's transaction */
+			logger.log(Level.FINE, "Sequence " + key + " is locked, taking a value in the current transaction", e);
+			return false;
+		}
+
+		if(!block.gapless && logger.isLoggable(Level.FINE))
+			logger.fine("Reserved values " + block.next + " - " + block.last + " of sequence " + key);
+		return true;
+	}
+
+	private void doReserveBlock(final SessionImplementor sessionImplementor, final SequenceKey key, final Block block)
+	{
+		Isolater.doIsolatedWork(new IsolatedWork()
+		{
+			@Override
+			public void doWork(Connection connection) throws HibernateException
+			{
+				Session isolatedSession = sessionImplementor.getFactory().openSession(connection);
+				try
+				{
+					ProcessToolSequence seq = findSequence(isolatedSession, key, LockMode.UPGRADE_NOWAIT);
+					if(seq == null)
+						seq = createSequence(key);
+
+					if(seq.isGapless())
+					{
+						block.gapless = true;
+						return;
+					}
+
+					int blockSize = seq.getBlockSize() != null && seq.getBlockSize() > 0 ? seq.getBlockSize() : DEFAULT_BLOCK_SIZE;
+					long next = seq.getValue() + 1;
+					long last = seq.getValue() + blockSize;
+
+					seq.setValue(last);
+					isolatedSession.saveOrUpdate(seq);
+					isolatedSession.flush();
+
+					/* only values actually reserved are handed out */
+					block.next = next;
+					block.last = last;
+				}
+				finally
+				{
+					isolatedSession.close();
+				}
+			}
+		}, sessionImplementor);
+	}
+
+	/** Take a value in the caller's transaction, locking the row until it ends */
+	private long getNextValueInTransaction(Session session, SequenceKey key, Block block)
+	{
+		ProcessToolSequence seq = findSequence(session, key, LockMode.UPGRADE);
+		if(seq == null)
+			seq = createSequence(key);
+
+		/* The sequence is pooled, the following values come from a block. This one is still taken
+		 * here, as the row is already locked by the caller's transaction */
+		if(!seq.isGapless())
+			blocks.remove(key, block);
+
+		seq.setValue(seq.getValue() + 1);
+		session.saveOrUpdate(seq);
+		session.flush();
+		return seq.getValue();
+	}
+
+	/** Find the sequence row, locking it until the end of the session transaction */
+	@SuppressWarnings("unchecked")
+	private static ProcessToolSequence findSequence(Session session, SequenceKey key, LockMode lockMode)
+	{
+		Criteria criteria = session.createCriteria(ProcessToolSequence.class)
+				.add(key.processDefinitionName != null
+						? Restrictions.eq("processDefinitionName", key.processDefinitionName)
+						: Restrictions.isNull("processDefinitionName"))
+				.add(Restrictions.eq("name", key.sequenceName))
+				.setLockMode(lockMode);
+
+		List<ProcessToolSequence> seqList = criteria.list();
+		return seqList.isEmpty() ? null : seqList.get(0);
+	}
+
+	private static ProcessToolSequence createSequence(SequenceKey key)
+	{
+		ProcessToolSequence seq = new ProcessToolSequence();
+		seq.setProcessDefinitionName(key.processDefinitionName);
+		seq.setName(key.sequenceName);
+		seq.setValue(0);
+		return seq;
+	}
+
+	/** Reserved values of a sequence, guarded by its monitor */
+	private static class Block
+	{
+		private long next = 1;
+		private long last = 0;
+		private volatile boolean gapless;
+	}
+
+	private static class SequenceKey
+	{
+		private final String processDefinitionName;
+		private final String sequenceName;
+
+		private SequenceKey(String processDefinitionName, String sequenceName)
+		{
+			this.processDefinitionName = processDefinitionName;
+			this.sequenceName = sequenceName;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(this == o)
+				return true;
+			if(!(o instanceof SequenceKey))
+				return false;
+
+			SequenceKey other = (SequenceKey)o;
+			return sequenceName.equals(other.sequenceName) &&
+					(processDefinitionName != null ? processDefinitionName.equals(other.processDefinitionName) : other.processDefinitionName == null);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * sequenceName.hashCode() + (processDefinitionName != null ? processDefinitionName.hashCode() : 0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return processDefinitionName != null ? processDefinitionName + "." + sequenceName : sequenceName;
+		}
+	}
+}
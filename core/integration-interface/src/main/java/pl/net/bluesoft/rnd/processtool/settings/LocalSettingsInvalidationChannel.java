@@ -0,0 +1,21 @@
+package pl.net.bluesoft.rnd.processtool.settings;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Invalidation channel of a single node */
+public class LocalSettingsInvalidationChannel implements SettingsInvalidationChannel
+{
+	private final AtomicLong version = new AtomicLong();
+
+	@Override
+	public void publish(String key)
+	{
+		version.incrementAndGet();
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return version.get();
+	}
+}
@@ -0,0 +1,35 @@
+package pl.net.bluesoft.rnd.processtool.settings;
+
+/**
+ * Invalidation channel reading the version of the settings from the database.
+ *
+ * The version is read on every {@link #getVersion()}, which the cache calls at most once per
+ * check interval, so changes saved on other nodes or edited directly in the database are seen
+ * within that interval. Publishing does nothing, a committed change is already in the database.
+ */
+public class PollingSettingsInvalidationChannel implements SettingsInvalidationChannel
+{
+	/** Reads a stamp of the settings from the database, which changes whenever any of them changes */
+	public interface VersionReader
+	{
+		long readVersion();
+	}
+
+	private final VersionReader reader;
+
+	public PollingSettingsInvalidationChannel(VersionReader reader)
+	{
+		this.reader = reader;
+	}
+
+	@Override
+	public void publish(String key)
+	{
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return reader.readVersion();
+	}
+}
@@ -0,0 +1,218 @@
+package pl.net.bluesoft.rnd.processtool.settings;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory snapshot of the settings (pt_setting).
+ *
+ * All settings are loaded at once on first access. Committed changes are written through to the
+ * snapshot and published to the {@link SettingsInvalidationChannel}; the channel version is
+ * checked at most once per check interval and the snapshot is reloaded when it differs.
+ * Whether changes made by other nodes or directly in the database are seen depends on the
+ * channel: {@link PollingSettingsInvalidationChannel} reads a version from the database and sees
+ * them, {@link LocalSettingsInvalidationChannel} only sees the changes of its own node.
+ *
+ * Typed values are parsed once per snapshot, values which cannot be parsed are logged and
+ * replaced by the given default.
+ */
+public class SettingsCache
+{
+	private static final Logger logger = Logger.getLogger(SettingsCache.class.getName());
+
+	private static final long DEFAULT_CHECK_INTERVAL = 10 * 1000;
+
+	/** Duration: a number with an optional unit, milliseconds by default */
+	private static final Pattern DURATION_PATTERN = Pattern.compile("\\s*(\\d+)\\s*(ms|s|m|h|d)?\\s*", Pattern.CASE_INSENSITIVE);
+
+	/** Marker of values which are missing or cannot be parsed */
+	private static final Object INVALID = new Object();
+
+	/** Loads all settings from the database */
+	public interface SettingsLoader
+	{
+		Map<String, String> loadSettings();
+	}
+
+	private final SettingsLoader loader;
+	private final SettingsInvalidationChannel channel;
+
+	private volatile Snapshot snapshot;
+	private volatile long lastCheck;
+	private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+	public SettingsCache(SettingsLoader loader, SettingsInvalidationChannel channel)
+	{
+		this.loader = loader;
+		this.channel = channel;
+	}
+
+	public String getSetting(String key)
+	{
+		return getSnapshot().values.get(key);
+	}
+
+	public int getInt(String key, int defaultValue)
+	{
+		Object value = getParsedValue(key, ValueType.INT);
+		return value != null ? (Integer)value : defaultValue;
+	}
+
+	public long getLong(String key, long defaultValue)
+	{
+		Object value = getParsedValue(key, ValueType.LONG);
+		return value != null ? (Long)value : defaultValue;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue)
+	{
+		Object value = getParsedValue(key, ValueType.BOOLEAN);
+		return value != null ? (Boolean)value : defaultValue;
+	}
+
+	/** Duration in milliseconds, the value may have a unit suffix: ms, s, m, h or d */
+	public long getDurationMillis(String key, long defaultValue)
+	{
+		Object value = getParsedValue(key, ValueType.DURATION);
+		return value != null ? (Long)value : defaultValue;
+	}
+
+	/** Apply a committed change of the setting and tell the other caches about it */
+	public void settingChanged(String key, String value)
+	{
+		Snapshot current = snapshot;
+		if(current != null)
+		{
+			Map<String, String> values = new HashMap<String, String>(current.values);
+			values.put(key, value);
+			/* the version stays, so the next check reloads changes published in the meantime */
+			snapshot = new Snapshot(values, current.version);
+		}
+		channel.publish(key);
+	}
+
+	/** Drop the snapshot, the settings are loaded again on next access */
+	public void invalidate()
+	{
+		snapshot = null;
+	}
+
+	public void setCheckInterval(long checkInterval)
+	{
+		this.checkInterval = checkInterval;
+	}
+
+	private Snapshot getSnapshot()
+	{
+		Snapshot current = snapshot;
+		if(current == null)
+			return reload(null);
+
+		long now = System.currentTimeMillis();
+		if(now - lastCheck >= checkInterval)
+		{
+			lastCheck = now;
+			if(channel.getVersion() != current.version)
+				return reload(current);
+		}
+		return current;
+	}
+
+	private synchronized Snapshot reload(Snapshot expected)
+	{
+		/* another thread could have reloaded it while this one was waiting */
+		Snapshot current = snapshot;
+		if(current != null && current != expected)
+			return current;
+
+		long version = channel.getVersion();
+		Map<String, String> values = loader.loadSettings();
+		current = new Snapshot(values, version);
+		snapshot = current;
+		lastCheck = System.currentTimeMillis();
+
+		logger.fine("Loaded " + values.size() + " settings");
+		return current;
+	}
+
+	private Object getParsedValue(String key, ValueType type)
+	{
+		Snapshot current = getSnapshot();
+		String cacheKey = type.name() + ':' + key;
+
+		Object value = current.parsedValues.get(cacheKey);
+		if(value == null)
+		{
+			value = parse(key, current.values.get(key), type);
+			current.parsedValues.put(cacheKey, value);
+		}
+		return value != INVALID ? value : null;
+	}
+
+	private static Object parse(String key, String value, ValueType type)
+	{
+		if(value == null || value.trim().length() == 0)
+			return INVALID;
+
+		try
+		{
+			switch(type)
+			{
+				case INT: return Integer.valueOf(value.trim());
+				case LONG: return Long.valueOf(value.trim());
+				case BOOLEAN: return Boolean.valueOf(value.trim());
+				case DURATION: return parseDuration(value);
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			// logged below
+		}
+		logger.log(Level.WARNING, "Invalid value of setting " + key + ": " + value);
+		return INVALID;
+	}
+
+	private static Long parseDuration(String value)
+	{
+		Matcher matcher = DURATION_PATTERN.matcher(value);
+		if(!matcher.matches())
+			throw new NumberFormatException(value);
+
+		long amount = Long.parseLong(matcher.group(1));
+		String unit = matcher.group(2) != null ? matcher.group(2).toLowerCase() : "ms";
+		if("s".equals(unit))
+			return amount * 1000;
+		if("m".equals(unit))
+			return amount * 60 * 1000;
+		if("h".equals(unit))
+			return amount * 60 * 60 * 1000;
+		if("d".equals(unit))
+			return amount * 24 * 60 * 60 * 1000;
+		return amount;
+	}
+
+	private enum ValueType
+	{
+		INT, LONG, BOOLEAN, DURATION
+	}
+
+	private static class Snapshot
+	{
+		private final Map<String, String> values;
+		private final long version;
+		private final ConcurrentMap<String, Object> parsedValues = new ConcurrentHashMap<String, Object>();
+
+		private Snapshot(Map<String, String> values, long version)
+		{
+			this.values = Collections.unmodifiableMap(values);
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package pl.net.bluesoft.rnd.processtool.settings;
+
+/**
+ * Tells the settings caches that settings changed.
+ *
+ * Every change made through {@link SettingsCache#settingChanged(String, String)} is published to
+ * the channel, and the caches compare the channel version with the one of their snapshot to find
+ * changes made elsewhere. The local implementation covers a single node, the polling one reads
+ * the version from the database shared by the nodes.
+ */
+public interface SettingsInvalidationChannel
+{
+	/** Announce that the setting was changed and committed */
+	void publish(String key);
+
+	/** Current version of the settings, changed by every publication */
+	long getVersion();
+}
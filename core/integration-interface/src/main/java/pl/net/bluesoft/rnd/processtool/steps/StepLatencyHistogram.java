@@ -0,0 +1,142 @@
+package pl.net.bluesoft.rnd.processtool.steps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latency histograms of process step executions, one per step name.
+ *
+ * Recording is lock free, so it can be called on every step invocation instead of logging
+ * a timing summary each time. A summary of all steps is logged at INFO level at most once
+ * per report interval.
+ */
+public class StepLatencyHistogram {
+    private static final Logger logger = Logger.getLogger(StepLatencyHistogram.class.getName());
+
+    private static final long DEFAULT_REPORT_INTERVAL = 15 * 60 * 1000;
+
+    /** Upper bounds of the buckets in milliseconds, the last bucket has no bound */
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+    private volatile long reportInterval = DEFAULT_REPORT_INTERVAL;
+
+    /** Record one execution of the given step */
+    public void record(String stepName, long durationNanos) {
+        Histogram histogram = histograms.get(stepName);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(stepName, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(durationNanos / 1000000);
+        reportIfNecessary();
+    }
+
+    public Histogram getHistogram(String stepName) {
+        return histograms.get(stepName);
+    }
+
+    public List<String> getStepNames() {
+        List<String> names = new ArrayList<String>(histograms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    public void reset() {
+        histograms.clear();
+    }
+
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    private void reportIfNecessary() {
+        long last = lastReport.get();
+        long now = System.currentTimeMillis();
+        /* only the thread winning the update writes the report */
+        if (now - last >= reportInterval && lastReport.compareAndSet(last, now) && logger.isLoggable(Level.INFO)) {
+            logger.info(printSummary());
+        }
+    }
+
+    public String printSummary() {
+        StringBuilder sb = new StringBuilder("Step execution times [ms]:");
+        for (String name : getStepNames()) {
+            sb.append("\n  ").append(name).append(": ").append(histograms.get(name));
+        }
+        return sb.toString();
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis) {
+            buckets.incrementAndGet(getBucket(millis));
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max = maxMillis.get();
+            while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+                max = maxMillis.get();
+            }
+        }
+
+        private static int getBucket(long millis) {
+            for (int i = 0; i < BUCKET_BOUNDS.length; ++i) {
+                if (millis <= BUCKET_BOUNDS[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_BOUNDS.length;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        public long getAverageMillis() {
+            long n = count.get();
+            return n > 0 ? totalMillis.get() / n : 0;
+        }
+
+        /** Estimated percentile (0-100) - the upper bound of the bucket holding it */
+        public long getPercentileMillis(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+            return maxMillis.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", avg=" + getAverageMillis() + ", p50<=" + getPercentileMillis(50)
+                    + ", p95<=" + getPercentileMillis(95) + ", p99<=" + getPercentileMillis(99) + ", max=" + getMaxMillis();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pl.net.bluesoft.rnd.processtool.ui.widgets.annotations;
+
+import org.apache.commons.beanutils.ConvertUtils;
+import org.apache.commons.beanutils.Converter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Autowiring plan of a class: the fields annotated with {@link AutoWiredProperty}, with their
+ * property names, setters and value converters resolved once. Plans are cached per class,
+ * so autowiring an instance does no reflective lookups.
+ *
+ * Converters are resolved with {@link ConvertUtils#lookup(Class)} when the plan is built,
+ * converters registered later are not used by existing plans.
+ */
+public class AutowiringPlan {
+    private static final ConcurrentMap<Class<?>, AutowiringPlan> plans = new ConcurrentHashMap<Class<?>, AutowiringPlan>();
+
+    private final List<WiredProperty> properties;
+
+    private AutowiringPlan(Class<?> cls) {
+        List<WiredProperty> list = new ArrayList<WiredProperty>();
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                AutoWiredProperty awp = field.getAnnotation(AutoWiredProperty.class);
+                if (awp != null && !Modifier.isStatic(field.getModifiers())) {
+                    String name = AutoWiredProperty.DEFAULT.equals(awp.name()) ? field.getName() : awp.name();
+                    list.add(new WiredProperty(name, field, findSetter(cls, field)));
+                }
+            }
+        }
+        this.properties = Collections.unmodifiableList(list);
+    }
+
+    public static AutowiringPlan forClass(Class<?> cls) {
+        AutowiringPlan plan = plans.get(cls);
+        if (plan == null) {
+            plan = new AutowiringPlan(cls);
+            AutowiringPlan existing = plans.putIfAbsent(cls, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /** Forget the plans of classes from an unloaded plugin */
+    public static void clear() {
+        plans.clear();
+    }
+
+    public List<WiredProperty> getProperties() {
+        return properties;
+    }
+
+    private static Method findSetter(Class<?> cls, Field field) {
+        String name = "set" + Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+        try {
+            Method setter = cls.getMethod(name, field.getType());
+            return Modifier.isStatic(setter.getModifiers()) ? null : setter;
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static class WiredProperty {
+        private final String name;
+        private final Field field;
+        private final Method setter;
+        private final Converter converter;
+
+        private WiredProperty(String name, Field field, Method setter) {
+            this.name = name;
+            this.field = field;
+            this.setter = setter;
+            if (setter == null) {
+                field.setAccessible(true);
+            }
+            /* the same converter choice as ConvertUtils.convert(String, Class) */
+            Converter typeConverter = ConvertUtils.lookup(field.getType());
+            this.converter = typeConverter != null ? typeConverter : ConvertUtils.lookup(String.class);
+        }
+
+        /** Property name, used to find the value in the attributes */
+        public String getName() {
+            return name;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        /** Convert the value to the field type and set it with the setter, or directly if there is no setter */
+        public void setValue(Object target, String value) throws Exception {
+            Object converted = converter != null ? converter.convert(field.getType(), value) : value;
+            if (setter != null) {
+                setter.invoke(target, converted);
+            }
+            else {
+                field.set(target, converted);
+            }
+        }
+    }
+}
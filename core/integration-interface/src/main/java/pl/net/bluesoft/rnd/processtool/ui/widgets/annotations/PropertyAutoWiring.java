@@ -1,10 +1,7 @@
 package pl.net.bluesoft.rnd.processtool.ui.widgets.annotations;
 
-import org.apache.commons.beanutils.ConvertUtils;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
-import pl.net.bluesoft.util.lang.Classes;
 
-import java.lang.reflect.Field;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,19 +14,15 @@ public class PropertyAutoWiring {
     public static void autowire(Object obj, Map<String, String> attributes) {
         ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
         Class clazz = obj.getClass();
-        for (Field f : Classes.getDeclaredFields(clazz)) {
-            String autoName = null;
-            AutoWiredProperty awp = f.getAnnotation(AutoWiredProperty.class);
-            if (awp != null) {
-                autoName = AutoWiredProperty.DEFAULT.equals(awp.name()) ? f.getName() : awp.name();
-            }
+        for (AutowiringPlan.WiredProperty property : AutowiringPlan.forClass(clazz).getProperties()) {
+            String autoName = property.getName();
             String v = nvl(attributes.get(autoName), ctx.getAutowiredProperty("autowire." + autoName));
-            if (autoName != null && v != null) {
+            if (v != null) {
                 try {
-                	logger.finer("Setting class " + clazz.getSimpleName() + " attribute " + autoName + " to " + v);
-
-					Object value = ConvertUtils.convert(v, f.getType());
-					Classes.setFieldValue(obj, f, value);
+                    if (logger.isLoggable(Level.FINER)) {
+                        logger.finer("Setting class " + clazz.getSimpleName() + " attribute " + autoName + " to " + v);
+                    }
+                    property.setValue(obj, v);
                 }
                 catch (Exception e) {
                     logger.log(Level.SEVERE, e.getMessage(), e);
@@ -0,0 +1,277 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory counts of the open tasks of the process queues - the tasks nobody is assigned to yet,
+ * with the queue as one of their candidate groups.
+ *
+ * The open tasks of all queues are loaded on first access with a single query and afterwards
+ * kept up to date with the changes recorded by {@link IUserProcessQueueManager} implementations
+ * when a task enters a queue, is claimed or is completed, applied after their transaction commits.
+ * Tasks are tracked by id, so a change recorded twice is harmless.
+ *
+ * Tasks put into queues without the queue manager knowing, or changes racing with a load,
+ * may leave the counts slightly off - all queues are therefore periodically reloaded
+ * from the database.
+ */
+public class ProcessQueueCounters
+{
+	private static final Logger logger = Logger.getLogger(ProcessQueueCounters.class.getName());
+
+	private static final long DEFAULT_RECONCILE_INTERVAL = 5 * 60 * 1000;
+
+	/** Loads the open tasks of all queues from the database */
+	public interface TasksLoader
+	{
+		/** Ids of the open tasks, by queue name */
+		Map<String, Collection<String>> loadQueueTasks();
+	}
+
+	private final TasksLoader loader;
+	private final Executor executor;
+
+	private final Map<String, Set<String>> tasksByQueue = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> queuesByTask = new HashMap<String, Set<String>>();
+	private boolean loaded;
+
+	private boolean loading;
+	/** Changes committed during a load, applied again to the loaded tasks */
+	private List<ProcessQueueDelta> appliedWhileLoading;
+
+	private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+	private long lastReconcile = System.currentTimeMillis();
+	private boolean reconcileScheduled;
+
+	public ProcessQueueCounters(TasksLoader loader, Executor executor)
+	{
+		this.loader = loader;
+		this.executor = executor;
+	}
+
+	/** Get the number of open tasks of the given queue */
+	public int getCount(String queueName)
+	{
+		return getCounts(Collections.singleton(queueName)).get(queueName);
+	}
+
+	/** Get the numbers of open tasks of the given queues, loading all queues on first access */
+	public Map<String, Integer> getCounts(Collection<String> queueNames)
+	{
+		boolean load;
+		synchronized (this)
+		{
+			load = !loaded;
+		}
+		if(load)
+			load();
+		else
+			maybeReconcile();
+
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		synchronized (this)
+		{
+			for(String queueName: queueNames)
+			{
+				Set<String> tasks = tasksByQueue.get(queueName);
+				result.put(queueName, tasks != null ? tasks.size() : 0);
+			}
+		}
+		return result;
+	}
+
+	/** Apply changes of a committed transaction */
+	public synchronized void apply(ProcessQueueDelta delta)
+	{
+		if(delta.isEmpty())
+			return;
+
+		if(appliedWhileLoading != null)
+			appliedWhileLoading.add(delta);
+		if(loaded)
+			applyTasks(delta);
+	}
+
+	/** Reload the open tasks of all queues from the database */
+	public void reconcile()
+	{
+		synchronized (this)
+		{
+			/* nobody asked for the counts yet */
+			if(!loaded)
+				return;
+		}
+		load();
+	}
+
+	private void load()
+	{
+		synchronized (this)
+		{
+			if(loading)
+			{
+				waitForLoad();
+				return;
+			}
+			loading = true;
+			appliedWhileLoading = new ArrayList<ProcessQueueDelta>();
+		}
+
+		Map<String, Collection<String>> tasks = null;
+		try
+		{
+			tasks = loader.loadQueueTasks();
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				if(tasks != null)
+					setTasks(tasks);
+				appliedWhileLoading = null;
+				loading = false;
+				lastReconcile = System.currentTimeMillis();
+				notifyAll();
+			}
+		}
+	}
+
+	private void setTasks(Map<String, Collection<String>> tasks)
+	{
+		Map<String, Integer> previousCounts = loaded ? getAllCounts() : null;
+
+		tasksByQueue.clear();
+		queuesByTask.clear();
+		for(Map.Entry<String, Collection<String>> e: tasks.entrySet())
+		{
+			for(String taskId: e.getValue())
+				addTask(taskId, e.getKey());
+		}
+		for(ProcessQueueDelta delta: appliedWhileLoading)
+			applyTasks(delta);
+		loaded = true;
+
+		if(previousCounts != null && !previousCounts.equals(getAllCounts()))
+			logger.info("Process queue counters corrected during reconciliation");
+	}
+
+	private void applyTasks(ProcessQueueDelta delta)
+	{
+		for(String taskId: delta.getLeftTasks())
+			removeTask(taskId);
+		for(Map.Entry<String, Collection<String>> e: delta.getEnteredTasks().entrySet())
+		{
+			removeTask(e.getKey());
+			for(String queueName: e.getValue())
+				addTask(e.getKey(), queueName);
+		}
+	}
+
+	private void addTask(String taskId, String queueName)
+	{
+		Set<String> tasks = tasksByQueue.get(queueName);
+		if(tasks == null)
+		{
+			tasks = new HashSet<String>();
+			tasksByQueue.put(queueName, tasks);
+		}
+		tasks.add(taskId);
+
+		Set<String> queues = queuesByTask.get(taskId);
+		if(queues == null)
+		{
+			queues = new HashSet<String>(2);
+			queuesByTask.put(taskId, queues);
+		}
+		queues.add(queueName);
+	}
+
+	private void removeTask(String taskId)
+	{
+		Set<String> queues = queuesByTask.remove(taskId);
+		if(queues == null)
+			return;
+
+		for(String queueName: queues)
+		{
+			Set<String> tasks = tasksByQueue.get(queueName);
+			tasks.remove(taskId);
+			if(tasks.isEmpty())
+				tasksByQueue.remove(queueName);
+		}
+	}
+
+	private Map<String, Integer> getAllCounts()
+	{
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(Map.Entry<String, Set<String>> e: tasksByQueue.entrySet())
+			counts.put(e.getKey(), e.getValue().size());
+		return counts;
+	}
+
+	/** Wait for the load started by another thread, the caller holds the lock */
+	private void waitForLoad()
+	{
+		boolean interrupted = false;
+		while(loading)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void maybeReconcile()
+	{
+		synchronized (this)
+		{
+			if(loading || reconcileScheduled || System.currentTimeMillis() - lastReconcile < reconcileInterval)
+				return;
+			reconcileScheduled = true;
+		}
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					reconcile();
+				}
+				catch(Exception e)
+				{
+					logger.log(Level.SEVERE, "Failed to reconcile process queue counters", e);
+				}
+				finally
+				{
+					synchronized (ProcessQueueCounters.this)
+					{
+						reconcileScheduled = false;
+					}
+				}
+			}
+		});
+	}
+
+	public void setReconcileInterval(long reconcileInterval)
+	{
+		this.reconcileInterval = reconcileInterval;
+	}
+}
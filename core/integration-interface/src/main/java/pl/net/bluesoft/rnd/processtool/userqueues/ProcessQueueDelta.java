@@ -0,0 +1,67 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pl.net.bluesoft.rnd.processtool.hibernate.HibernateTransactionCallback;
+
+/**
+ * Tasks entering and leaving the process queues in one transaction. Registered as a transaction
+ * callback, it applies the changes to the {@link ProcessQueueCounters} only after the commit.
+ */
+public class ProcessQueueDelta extends HibernateTransactionCallback
+{
+	private final ProcessQueueCounters counters;
+	private final Map<String, Collection<String>> enteredTasks = new HashMap<String, Collection<String>>();
+	private final Set<String> leftTasks = new HashSet<String>();
+
+	public ProcessQueueDelta(ProcessQueueCounters counters)
+	{
+		this.counters = counters;
+	}
+
+	/** The task is open in the given queues */
+	public void entered(String taskId, Collection<String> queueNames)
+	{
+		leftTasks.remove(taskId);
+		enteredTasks.put(taskId, new ArrayList<String>(queueNames));
+	}
+
+	/** The task was claimed or completed, it is not open in any queue */
+	public void left(String taskId)
+	{
+		enteredTasks.remove(taskId);
+		leftTasks.add(taskId);
+	}
+
+	public boolean isEmpty()
+	{
+		return enteredTasks.isEmpty() && leftTasks.isEmpty();
+	}
+
+	public Map<String, Collection<String>> getEnteredTasks()
+	{
+		return enteredTasks;
+	}
+
+	public Set<String> getLeftTasks()
+	{
+		return leftTasks;
+	}
+
+	@Override
+	public void onCommit()
+	{
+		counters.apply(this);
+	}
+
+	@Override
+	public void onRollback()
+	{
+		/* the counters are untouched until commit */
+	}
+}
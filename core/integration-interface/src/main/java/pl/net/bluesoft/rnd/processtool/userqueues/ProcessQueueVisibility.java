@@ -0,0 +1,237 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.hibernate.Session;
+
+import pl.net.bluesoft.rnd.processtool.hibernate.HibernateTransactionCallback;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueRight;
+import pl.net.bluesoft.rnd.processtool.model.nonpersistent.ProcessQueue;
+
+/**
+ * Process queues visible to the users of given roles, computed from the queue configurations.
+ *
+ * The role patterns of the queue rights are compiled once per load of the configurations and
+ * the queues visible to a set of roles are resolved on first use of that set, so the roles
+ * of a user are not matched against every queue right on every refresh of the queues.
+ * The configurations are loaded again after a deployment invalidates them, and periodically,
+ * to see the deployments made on other nodes.
+ */
+public class ProcessQueueVisibility
+{
+	private static final Logger logger = Logger.getLogger(ProcessQueueVisibility.class.getName());
+
+	private static final long DEFAULT_REFRESH_INTERVAL = 5 * 60 * 1000;
+
+	/** Loads the queue configurations from the database */
+	public interface QueueConfigsLoader
+	{
+		/** Queue configurations, with their rights initialized */
+		Collection<ProcessQueueConfig> loadQueueConfigs();
+	}
+
+	private final QueueConfigsLoader loader;
+
+	private Snapshot snapshot;
+	/** Bumped by every invalidation, a load started before it is not kept */
+	private long generation;
+
+	private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+	public ProcessQueueVisibility(QueueConfigsLoader loader)
+	{
+		this.loader = loader;
+	}
+
+	/** Get the queues visible to a user of the given roles, without the process counts */
+	public List<ProcessQueue> getVisibleQueues(Collection<String> roleNames)
+	{
+		List<ProcessQueue> result = new ArrayList<ProcessQueue>();
+		for(VisibleQueue queue: getSnapshot().getVisibleQueues(roleNames))
+			result.add(queue.toProcessQueue());
+		return result;
+	}
+
+	/** Forget the configurations, they are loaded again on next use */
+	public synchronized void invalidate()
+	{
+		++generation;
+		snapshot = null;
+	}
+
+	/** Invalidate the configurations after the current transaction commits */
+	public void invalidateAfterCommit(Session session)
+	{
+		session.getTransaction().registerSynchronization(new HibernateTransactionCallback()
+		{
+			@Override
+			public void onCommit()
+			{
+				invalidate();
+			}
+
+			@Override
+			public void onRollback()
+			{
+			}
+		});
+	}
+
+	private Snapshot getSnapshot()
+	{
+		long loadGeneration;
+		synchronized (this)
+		{
+			if(snapshot != null && System.currentTimeMillis() - snapshot.loadTime < refreshInterval)
+				return snapshot;
+			loadGeneration = generation;
+		}
+
+		Snapshot loaded = new Snapshot(loader.loadQueueConfigs());
+
+		synchronized (this)
+		{
+			/* invalidated while loading, the next call loads again */
+			if(generation == loadGeneration)
+				snapshot = loaded;
+			return loaded;
+		}
+	}
+
+	public void setRefreshInterval(long refreshInterval)
+	{
+		this.refreshInterval = refreshInterval;
+	}
+
+	/** Queue configurations of one load, with the visible queues of the role sets seen so far */
+	private static class Snapshot
+	{
+		final long loadTime = System.currentTimeMillis();
+		final List<QueueEntry> queues = new ArrayList<QueueEntry>();
+		final Map<Set<String>, List<VisibleQueue>> visibleQueues = new ConcurrentHashMap<Set<String>, List<VisibleQueue>>();
+
+		Snapshot(Collection<ProcessQueueConfig> configs)
+		{
+			for(ProcessQueueConfig config: configs)
+				queues.add(new QueueEntry(config));
+		}
+
+		List<VisibleQueue> getVisibleQueues(Collection<String> roleNames)
+		{
+			Set<String> roles = new HashSet<String>(roleNames);
+			List<VisibleQueue> result = visibleQueues.get(roles);
+			if(result == null)
+			{
+				result = new ArrayList<VisibleQueue>();
+				for(QueueEntry queue: queues)
+				{
+					VisibleQueue visible = queue.getVisibleQueue(roles);
+					if(visible != null)
+						result.add(visible);
+				}
+				visibleQueues.put(roles, result);
+			}
+			return result;
+		}
+	}
+
+	private static class QueueEntry
+	{
+		final String name;
+		final String description;
+		final Boolean userAdded;
+		final List<Pattern> rolePatterns = new ArrayList<Pattern>();
+		final List<Boolean> browseAllowed = new ArrayList<Boolean>();
+		final boolean unrestricted;
+
+		QueueEntry(ProcessQueueConfig config)
+		{
+			this.name = config.getName();
+			this.description = config.getDescription();
+			this.userAdded = config.getUserAdded();
+			this.unrestricted = config.getRights().isEmpty();
+			for(ProcessQueueRight right: config.getRights())
+			{
+				if(right.getRoleName() == null)
+					continue;
+				rolePatterns.add(compile(right.getRoleName()));
+				browseAllowed.add(right.isBrowseAllowed());
+			}
+		}
+
+		/** Same rules as the matching of every right on every request used to apply */
+		VisibleQueue getVisibleQueue(Set<String> roles)
+		{
+			if(unrestricted)
+				return new VisibleQueue(this, false);
+
+			boolean found = false;
+			boolean browsable = false;
+			for(int i = 0; i < rolePatterns.size(); ++i)
+			{
+				if(matchesAny(rolePatterns.get(i), roles))
+				{
+					found = true;
+					browsable = browsable || browseAllowed.get(i);
+				}
+			}
+			return found ? new VisibleQueue(this, browsable) : null;
+		}
+
+		private static boolean matchesAny(Pattern pattern, Set<String> roles)
+		{
+			for(String role: roles)
+			{
+				if(role != null && pattern.matcher(role).matches())
+					return true;
+			}
+			return false;
+		}
+
+		private Pattern compile(String roleName)
+		{
+			try
+			{
+				return Pattern.compile(roleName);
+			}
+			catch(PatternSyntaxException e)
+			{
+				logger.warning("Role name " + roleName + " of queue " + name + " is not a valid pattern, matched literally");
+				return Pattern.compile(Pattern.quote(roleName));
+			}
+		}
+	}
+
+	private static class VisibleQueue
+	{
+		final QueueEntry queue;
+		final boolean browsable;
+
+		VisibleQueue(QueueEntry queue, boolean browsable)
+		{
+			this.queue = queue;
+			this.browsable = browsable;
+		}
+
+		ProcessQueue toProcessQueue()
+		{
+			ProcessQueue pq = new ProcessQueue();
+			pq.setBrowsable(browsable);
+			pq.setName(queue.name);
+			pq.setDescription(queue.description);
+			pq.setProcessCount(0);
+			pq.setUserAdded(queue.userAdded);
+			return pq;
+		}
+	}
+}
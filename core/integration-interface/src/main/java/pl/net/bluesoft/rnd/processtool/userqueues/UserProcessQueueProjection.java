@@ -0,0 +1,111 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.net.bluesoft.rnd.processtool.dao.UserProcessQueueDAO;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+import pl.net.bluesoft.rnd.processtool.model.UserProcessQueue;
+
+/**
+ * Queue elements of one task, as they should be after a transition: a queue type per user login.
+ *
+ * The elements are collected first and written at once. The existing elements of the task are read
+ * with a single query and compared with the collected ones: new elements are saved, changed ones
+ * updated and duplicates of a user deleted. The writes are sent in JDBC batches when the session
+ * is flushed. Elements of users not collected are left as they are.
+ */
+public class UserProcessQueueProjection
+{
+	private final Long processId;
+	private final Long taskId;
+	private final Map<String, QueueType> queueTypes = new LinkedHashMap<String, QueueType>();
+
+	public UserProcessQueueProjection(Long processId, Long taskId)
+	{
+		this.processId = processId;
+		this.taskId = taskId;
+	}
+
+	/** Put the task into the given queue of the user, replacing the queue put before */
+	public void put(String login, QueueType type)
+	{
+		queueTypes.put(login, type);
+	}
+
+	public boolean isEmpty()
+	{
+		return queueTypes.isEmpty();
+	}
+
+	/**
+	 * Write the collected elements
+	 *
+	 * @param delta changes of the queue lengths are added to it, may be null
+	 */
+	public void write(UserProcessQueueDAO queueDao, UserQueueDelta delta)
+	{
+		if(queueTypes.isEmpty())
+			return;
+
+		Map<String, List<UserProcessQueue>> existing = new HashMap<String, List<UserProcessQueue>>();
+		for(UserProcessQueue element: queueDao.getAllUserProcessQueueByTaskId(taskId))
+		{
+			List<UserProcessQueue> elements = existing.get(element.getLogin());
+			if(elements == null)
+			{
+				elements = new ArrayList<UserProcessQueue>(1);
+				existing.put(element.getLogin(), elements);
+			}
+			elements.add(element);
+		}
+
+		List<UserProcessQueue> toSave = new ArrayList<UserProcessQueue>();
+		List<UserProcessQueue> toDelete = new ArrayList<UserProcessQueue>();
+		for(Map.Entry<String, QueueType> entry: queueTypes.entrySet())
+		{
+			String login = entry.getKey();
+			QueueType type = entry.getValue();
+			List<UserProcessQueue> elements = existing.get(login);
+
+			if(elements == null)
+			{
+				UserProcessQueue element = new UserProcessQueue();
+				element.setLogin(login);
+				element.setProcessId(processId);
+				element.setTaskId(taskId);
+				element.setQueueType(type);
+				toSave.add(element);
+				addChange(delta, login, type, 1);
+				continue;
+			}
+
+			UserProcessQueue element = elements.get(0);
+			if(element.getQueueType() != type)
+			{
+				addChange(delta, login, element.getQueueType(), -1);
+				addChange(delta, login, type, 1);
+				element.setQueueType(type);
+				toSave.add(element);
+			}
+			/* Only one element of a task per user is expected */
+			for(UserProcessQueue duplicate: elements.subList(1, elements.size()))
+			{
+				addChange(delta, login, duplicate.getQueueType(), -1);
+				toDelete.add(duplicate);
+			}
+		}
+
+		queueDao.saveOrUpdate(toSave);
+		queueDao.delete(toDelete);
+	}
+
+	private static void addChange(UserQueueDelta delta, String login, QueueType type, int change)
+	{
+		if(delta != null)
+			delta.add(login, type, change);
+	}
+}
@@ -0,0 +1,340 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+
+/**
+ * In-memory counters of the user process queues (pt_user_process_queue).
+ *
+ * Counts of a user are loaded on first access and afterwards kept up to date with the deltas
+ * recorded by {@link IUserProcessQueueManager} implementations and applied after their
+ * transaction commits. Every change bumps a global version, which lets clients ask only
+ * for the users changed since their last call instead of reading the database.
+ *
+ * Deltas racing with a load of the same user, or changes made outside of the queue managers,
+ * may leave the counts slightly off - all tracked users are therefore periodically reloaded
+ * from the database.
+ * Users not read for a while are dropped from memory during this reconciliation.
+ */
+public class UserQueueCounters
+{
+	private static final Logger logger = Logger.getLogger(UserQueueCounters.class.getName());
+
+	private static final long DEFAULT_RECONCILE_INTERVAL = 5 * 60 * 1000;
+	private static final long DEFAULT_IDLE_TIMEOUT = 30 * 60 * 1000;
+
+	/** Loads the current queue lengths of the given users from the database */
+	public interface CountsLoader
+	{
+		Map<String, Map<QueueType, Integer>> loadCounts(Collection<String> logins);
+	}
+
+	private final CountsLoader loader;
+	private final Executor executor;
+
+	private final Map<String, UserCounts> users = new HashMap<String, UserCounts>();
+	private long version;
+
+	private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long lastReconcile = System.currentTimeMillis();
+	private boolean reconciling;
+
+	public UserQueueCounters(CountsLoader loader, Executor executor)
+	{
+		this.loader = loader;
+		this.executor = executor;
+	}
+
+	/** Get the queue length for given user and selected types */
+	public int getCount(String login, QueueType ... queueTypes)
+	{
+		Map<QueueType, Integer> counts = getCounts(login);
+		int result = 0;
+		for(QueueType type: queueTypes)
+			result += counts.get(type);
+		return result;
+	}
+
+	/** Get the queue length for given user and selected types */
+	public int getCount(String login, Collection<QueueType> queueTypes)
+	{
+		return getCount(login, queueTypes.toArray(new QueueType[queueTypes.size()]));
+	}
+
+	/** Get the lengths of all queues of the given user, loading them if the user is not tracked yet */
+	public Map<QueueType, Integer> getCounts(String login)
+	{
+		maybeReconcile();
+
+		long loadVersion;
+		synchronized (this)
+		{
+			UserCounts userCounts = users.get(login);
+			if(userCounts != null && userCounts.loaded)
+				return userCounts.read();
+
+			if(userCounts == null)
+			{
+				userCounts = new UserCounts();
+				users.put(login, userCounts);
+			}
+			loadVersion = userCounts.version;
+		}
+
+		Map<QueueType, Integer> loaded = load(Collections.singleton(login)).get(login);
+
+		synchronized (this)
+		{
+			UserCounts userCounts = users.get(login);
+			if(userCounts == null)
+			{
+				userCounts = new UserCounts();
+				users.put(login, userCounts);
+			}
+			/* a delta committed while loading may or may not be included, the reconciliation corrects that */
+			if(userCounts.version != loadVersion)
+				logger.fine("Queue counts of " + login + " changed while loading");
+			userCounts.set(loaded);
+			return userCounts.read();
+		}
+	}
+
+	/** Current version of the counters, to be passed to {@link #getChangesSince(Collection, long)} */
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+
+	/** Apply deltas of a committed transaction */
+	public synchronized void apply(UserQueueDelta delta)
+	{
+		if(delta.isEmpty())
+			return;
+
+		++version;
+		for(Map.Entry<String, Map<QueueType, Integer>> userDelta: delta.getDeltas().entrySet())
+		{
+			UserCounts userCounts = users.get(userDelta.getKey());
+			if(userCounts == null)
+				continue;
+
+			userCounts.version = version;
+			if(!userCounts.loaded)
+				continue;
+
+			for(Map.Entry<QueueType, Integer> e: userDelta.getValue().entrySet())
+			{
+				int value = userCounts.counts.get(e.getKey()) + e.getValue();
+				userCounts.counts.put(e.getKey(), Math.max(0, value));
+			}
+		}
+	}
+
+	/**
+	 * Get the counts of the given users changed after version <code>since</code>. Returns at once,
+	 * clients poll again with the returned version.
+	 *
+	 * @return the current version and the counts of the users changed since the given version,
+	 * the map is empty if none of them changed
+	 */
+	public Changes getChangesSince(Collection<String> logins, long since)
+	{
+		maybeReconcile();
+
+		boolean loadNeeded = false;
+		synchronized (this)
+		{
+			/* version from before a restart, report everything */
+			if(since > version)
+				since = -1;
+
+			Map<String, Map<QueueType, Integer>> changed = new HashMap<String, Map<QueueType, Integer>>();
+			for(String login: logins)
+			{
+				UserCounts userCounts = users.get(login);
+				if(userCounts == null || !userCounts.loaded)
+				{
+					loadNeeded = true;
+					break;
+				}
+				if(userCounts.version > since)
+					changed.put(login, userCounts.read());
+			}
+			if(!loadNeeded)
+				return new Changes(version, changed);
+		}
+
+		/* users not tracked yet, reported with their fresh counts */
+		Map<String, Map<QueueType, Integer>> changed = new HashMap<String, Map<QueueType, Integer>>();
+		long currentVersion = getVersion();
+		for(String login: logins)
+			changed.put(login, getCounts(login));
+		return new Changes(currentVersion, changed);
+	}
+
+	/** Reload all tracked users from the database and forget the ones not read recently */
+	public void reconcile()
+	{
+		Map<String, Long> versions = new HashMap<String, Long>();
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			for(Iterator<Map.Entry<String, UserCounts>> it = users.entrySet().iterator(); it.hasNext(); )
+			{
+				Map.Entry<String, UserCounts> e = it.next();
+				if(now - e.getValue().lastAccess > idleTimeout)
+					it.remove();
+				else if(e.getValue().loaded)
+					versions.put(e.getKey(), e.getValue().version);
+			}
+		}
+
+		if(versions.isEmpty())
+			return;
+
+		Map<String, Map<QueueType, Integer>> loaded = load(versions.keySet());
+
+		synchronized (this)
+		{
+			boolean changed = false;
+			for(Map.Entry<String, Long> e: versions.entrySet())
+			{
+				UserCounts userCounts = users.get(e.getKey());
+				if(userCounts == null || !userCounts.loaded)
+					continue;
+
+				Map<QueueType, Integer> counts = loaded.get(e.getKey());
+				/* changed meanwhile, check again on next reconciliation */
+				if(userCounts.version != e.getValue())
+					continue;
+
+				if(!userCounts.sameAs(counts))
+				{
+					if(!changed)
+						++version;
+					changed = true;
+					userCounts.set(counts);
+					userCounts.version = version;
+				}
+			}
+			if(changed)
+				logger.info("Queue counters corrected during reconciliation");
+		}
+	}
+
+	private void maybeReconcile()
+	{
+		synchronized (this)
+		{
+			if(reconciling || System.currentTimeMillis() - lastReconcile < reconcileInterval)
+				return;
+			reconciling = true;
+		}
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					reconcile();
+				}
+				catch(Exception e)
+				{
+					logger.log(Level.SEVERE, "Failed to reconcile user queue counters", e);
+				}
+				finally
+				{
+					synchronized (UserQueueCounters.this)
+					{
+						reconciling = false;
+						lastReconcile = System.currentTimeMillis();
+					}
+				}
+			}
+		});
+	}
+
+	private Map<String, Map<QueueType, Integer>> load(Collection<String> logins)
+	{
+		Map<String, Map<QueueType, Integer>> result = loader.loadCounts(logins);
+		return result != null ? result : Collections.<String, Map<QueueType, Integer>>emptyMap();
+	}
+
+	public void setReconcileInterval(long reconcileInterval)
+	{
+		this.reconcileInterval = reconcileInterval;
+	}
+
+	public void setIdleTimeout(long idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+	}
+
+	/** Result of {@link UserQueueCounters#getChangesSince(Collection, long)} */
+	public static class Changes
+	{
+		private final long version;
+		private final Map<String, Map<QueueType, Integer>> counts;
+
+		public Changes(long version, Map<String, Map<QueueType, Integer>> counts)
+		{
+			this.version = version;
+			this.counts = counts;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public Map<String, Map<QueueType, Integer>> getCounts() {
+			return counts;
+		}
+	}
+
+	private static class UserCounts
+	{
+		final Map<QueueType, Integer> counts = new EnumMap<QueueType, Integer>(QueueType.class);
+		boolean loaded;
+		long version;
+		long lastAccess = System.currentTimeMillis();
+
+		Map<QueueType, Integer> read()
+		{
+			lastAccess = System.currentTimeMillis();
+			return new EnumMap<QueueType, Integer>(counts);
+		}
+
+		void set(Map<QueueType, Integer> values)
+		{
+			for(QueueType type: QueueType.values())
+			{
+				Integer value = values != null ? values.get(type) : null;
+				counts.put(type, value != null ? value : 0);
+			}
+			loaded = true;
+		}
+
+		boolean sameAs(Map<QueueType, Integer> values)
+		{
+			for(QueueType type: QueueType.values())
+			{
+				Integer value = values != null ? values.get(type) : null;
+				if(!counts.get(type).equals(value != null ? value : 0))
+					return false;
+			}
+			return true;
+		}
+	}
+}
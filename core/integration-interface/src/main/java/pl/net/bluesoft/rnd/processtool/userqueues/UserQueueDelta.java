@@ -0,0 +1,60 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.net.bluesoft.rnd.processtool.hibernate.HibernateTransactionCallback;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+
+/**
+ * Changes of the user queue lengths made in one transaction. Registered as a transaction
+ * callback, it applies the changes to the {@link UserQueueCounters} only after the commit.
+ */
+public class UserQueueDelta extends HibernateTransactionCallback
+{
+	private final UserQueueCounters counters;
+	private final Map<String, Map<QueueType, Integer>> deltas = new HashMap<String, Map<QueueType, Integer>>();
+
+	public UserQueueDelta(UserQueueCounters counters)
+	{
+		this.counters = counters;
+	}
+
+	public void add(String login, QueueType type, int delta)
+	{
+		if(login == null || type == null || delta == 0)
+			return;
+
+		Map<QueueType, Integer> userDeltas = deltas.get(login);
+		if(userDeltas == null)
+		{
+			userDeltas = new EnumMap<QueueType, Integer>(QueueType.class);
+			deltas.put(login, userDeltas);
+		}
+		Integer value = userDeltas.get(type);
+		userDeltas.put(type, value != null ? value + delta : delta);
+	}
+
+	public boolean isEmpty()
+	{
+		return deltas.isEmpty();
+	}
+
+	public Map<String, Map<QueueType, Integer>> getDeltas()
+	{
+		return deltas;
+	}
+
+	@Override
+	public void onCommit()
+	{
+		counters.apply(this);
+	}
+
+	@Override
+	public void onRollback()
+	{
+		/* the counters are untouched until commit */
+	}
+}
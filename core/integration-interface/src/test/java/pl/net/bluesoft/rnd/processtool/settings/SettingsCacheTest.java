@@ -0,0 +1,101 @@
+package pl.net.bluesoft.rnd.processtool.settings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class SettingsCacheTest
+{
+	private static class TestLoader implements SettingsCache.SettingsLoader
+	{
+		private final Map<String, String> settings = new HashMap<String, String>();
+		private int loadCount;
+
+		@Override
+		public Map<String, String> loadSettings()
+		{
+			++loadCount;
+			return new HashMap<String, String>(settings);
+		}
+	}
+
+	@Test
+	public void testSettingsLoadedOnce()
+	{
+		TestLoader loader = new TestLoader();
+		loader.settings.put("a", "1");
+		SettingsCache cache = new SettingsCache(loader, new LocalSettingsInvalidationChannel());
+
+		for(int i = 0; i < 100; ++i)
+			Assert.assertEquals("1", cache.getSetting("a"));
+		Assert.assertNull(cache.getSetting("b"));
+		Assert.assertEquals(1, loader.loadCount);
+	}
+
+	@Test
+	public void testChangesWrittenThroughAndPublished()
+	{
+		TestLoader loader = new TestLoader();
+		loader.settings.put("a", "1");
+		LocalSettingsInvalidationChannel channel = new LocalSettingsInvalidationChannel();
+		SettingsCache cache = new SettingsCache(loader, channel);
+		cache.setCheckInterval(0);
+		Assert.assertEquals("1", cache.getSetting("a"));
+
+		loader.settings.put("a", "2");
+		cache.settingChanged("a", "2");
+		Assert.assertEquals(1, channel.getVersion());
+		Assert.assertEquals("2", cache.getSetting("a"));
+
+		/* a change published by another cache sharing the channel */
+		loader.settings.put("b", "3");
+		channel.publish("b");
+		Assert.assertEquals("3", cache.getSetting("b"));
+	}
+
+	@Test
+	public void testDatabaseChangesSeenByPollingChannel()
+	{
+		final TestLoader loader = new TestLoader();
+		loader.settings.put("a", "1");
+		SettingsCache cache = new SettingsCache(loader, new PollingSettingsInvalidationChannel(
+				new PollingSettingsInvalidationChannel.VersionReader()
+				{
+					@Override
+					public long readVersion()
+					{
+						return loader.settings.hashCode();
+					}
+				}));
+		cache.setCheckInterval(0);
+		Assert.assertEquals("1", cache.getSetting("a"));
+		Assert.assertEquals("1", cache.getSetting("a"));
+		Assert.assertEquals(1, loader.loadCount);
+
+		/* a row edited directly in the database */
+		loader.settings.put("a", "2");
+		Assert.assertEquals("2", cache.getSetting("a"));
+	}
+
+	@Test
+	public void testTypedValues()
+	{
+		TestLoader loader = new TestLoader();
+		loader.settings.put("int", " 42 ");
+		loader.settings.put("bool", "true");
+		loader.settings.put("duration", "5m");
+		loader.settings.put("plain.duration", "1500");
+		loader.settings.put("invalid", "abc");
+		SettingsCache cache = new SettingsCache(loader, new LocalSettingsInvalidationChannel());
+
+		Assert.assertEquals(42, cache.getInt("int", 0));
+		Assert.assertEquals(42L, cache.getLong("int", 0));
+		Assert.assertTrue(cache.getBoolean("bool", false));
+		Assert.assertEquals(5 * 60 * 1000L, cache.getDurationMillis("duration", 0));
+		Assert.assertEquals(1500L, cache.getDurationMillis("plain.duration", 0));
+		Assert.assertEquals(7, cache.getInt("invalid", 7));
+		Assert.assertEquals(8, cache.getInt("missing", 8));
+	}
+}
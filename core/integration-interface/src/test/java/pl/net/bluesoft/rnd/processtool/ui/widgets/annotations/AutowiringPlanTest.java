@@ -0,0 +1,71 @@
+package pl.net.bluesoft.rnd.processtool.ui.widgets.annotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class AutowiringPlanTest {
+    public static class BaseStep {
+        @AutoWiredProperty
+        private String inherited;
+
+        public String getInherited() {
+            return inherited;
+        }
+    }
+
+    public static class Step extends BaseStep {
+        @AutoWiredProperty(name = "retries")
+        private int retryCount;
+
+        @AutoWiredProperty
+        private Boolean enabled;
+
+        private String notWired;
+
+        private boolean setterCalled;
+
+        public void setEnabled(Boolean enabled) {
+            this.enabled = enabled;
+            this.setterCalled = true;
+        }
+    }
+
+    @Test
+    public void testPlanContainsAnnotatedFieldsOnly() {
+        AutowiringPlan plan = AutowiringPlan.forClass(Step.class);
+
+        List<String> names = new ArrayList<String>();
+        for (AutowiringPlan.WiredProperty property : plan.getProperties()) {
+            names.add(property.getName());
+        }
+        Assert.assertEquals(3, names.size());
+        Assert.assertTrue(names.contains("retries"));
+        Assert.assertTrue(names.contains("enabled"));
+        Assert.assertTrue(names.contains("inherited"));
+        Assert.assertSame(plan, AutowiringPlan.forClass(Step.class));
+    }
+
+    @Test
+    public void testValuesAreConvertedAndSet() throws Exception {
+        Step step = new Step();
+        for (AutowiringPlan.WiredProperty property : AutowiringPlan.forClass(Step.class).getProperties()) {
+            if ("retries".equals(property.getName())) {
+                property.setValue(step, "3");
+            }
+            else if ("enabled".equals(property.getName())) {
+                property.setValue(step, "true");
+            }
+            else {
+                property.setValue(step, "value");
+            }
+        }
+        Assert.assertEquals(3, step.retryCount);
+        Assert.assertEquals(Boolean.TRUE, step.enabled);
+        Assert.assertTrue(step.setterCalled);
+        Assert.assertEquals("value", step.getInherited());
+        Assert.assertNull(step.notWired);
+    }
+}
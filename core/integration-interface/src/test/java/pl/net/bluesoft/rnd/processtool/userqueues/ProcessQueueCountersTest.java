@@ -0,0 +1,144 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueRight;
+import pl.net.bluesoft.rnd.processtool.model.nonpersistent.ProcessQueue;
+
+public class ProcessQueueCountersTest
+{
+	private static final Executor SAME_THREAD = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	private static class TestTasksLoader implements ProcessQueueCounters.TasksLoader
+	{
+		private final Map<String, Collection<String>> tasks = new HashMap<String, Collection<String>>();
+		private int loadCount;
+
+		@Override
+		public Map<String, Collection<String>> loadQueueTasks()
+		{
+			++loadCount;
+			return new HashMap<String, Collection<String>>(tasks);
+		}
+	}
+
+	private static class TestConfigsLoader implements ProcessQueueVisibility.QueueConfigsLoader
+	{
+		private final List<ProcessQueueConfig> configs = new ArrayList<ProcessQueueConfig>();
+		private int loadCount;
+
+		@Override
+		public Collection<ProcessQueueConfig> loadQueueConfigs()
+		{
+			++loadCount;
+			return configs;
+		}
+	}
+
+	@Test
+	public void testCountsLoadedOnceAndFollowChanges()
+	{
+		TestTasksLoader loader = new TestTasksLoader();
+		loader.tasks.put("sales", Arrays.asList("1", "2"));
+		loader.tasks.put("support", Arrays.asList("2", "3"));
+		ProcessQueueCounters counters = new ProcessQueueCounters(loader, SAME_THREAD);
+
+		for(int i = 0; i < 100; ++i)
+			Assert.assertEquals(2, counters.getCount("sales"));
+		Assert.assertEquals(0, counters.getCount("unknown"));
+		Assert.assertEquals(1, loader.loadCount);
+
+		/* a new task, entering twice changes nothing */
+		ProcessQueueDelta delta = new ProcessQueueDelta(counters);
+		delta.entered("4", Arrays.asList("sales"));
+		delta.entered("4", Arrays.asList("sales"));
+		counters.apply(delta);
+		counters.apply(delta);
+		Assert.assertEquals(3, counters.getCount("sales"));
+
+		/* claimed task leaves all of its queues */
+		delta = new ProcessQueueDelta(counters);
+		delta.left("2");
+		counters.apply(delta);
+		Map<String, Integer> counts = counters.getCounts(Arrays.asList("sales", "support"));
+		Assert.assertEquals(Integer.valueOf(2), counts.get("sales"));
+		Assert.assertEquals(Integer.valueOf(1), counts.get("support"));
+	}
+
+	@Test
+	public void testReconciliationCorrectsDrift()
+	{
+		TestTasksLoader loader = new TestTasksLoader();
+		loader.tasks.put("sales", Arrays.asList("1"));
+		ProcessQueueCounters counters = new ProcessQueueCounters(loader, SAME_THREAD);
+		counters.setReconcileInterval(0);
+		Assert.assertEquals(1, counters.getCount("sales"));
+
+		/* task created without the queue manager knowing */
+		loader.tasks.put("sales", Arrays.asList("1", "5"));
+		counters.getCount("sales");
+		Assert.assertEquals(2, counters.getCount("sales"));
+	}
+
+	@Test
+	public void testVisibleQueuesResolvedOncePerRoles()
+	{
+		TestConfigsLoader loader = new TestConfigsLoader();
+		loader.configs.add(createQueue("public", null, false));
+		loader.configs.add(createQueue("sales", "SALES_.*", true));
+		loader.configs.add(createQueue("support", "SUPPORT", false));
+		ProcessQueueVisibility visibility = new ProcessQueueVisibility(loader);
+
+		List<ProcessQueue> queues = visibility.getVisibleQueues(Arrays.asList("SALES_EAST"));
+		Assert.assertEquals(2, queues.size());
+		Assert.assertEquals("public", queues.get(0).getName());
+		Assert.assertFalse(queues.get(0).isBrowsable());
+		Assert.assertEquals("sales", queues.get(1).getName());
+		Assert.assertTrue(queues.get(1).isBrowsable());
+
+		/* the queues are copies, counts set by the caller do not leak */
+		queues.get(1).setProcessCount(10);
+		Assert.assertEquals(0, visibility.getVisibleQueues(Arrays.asList("SALES_EAST")).get(1).getProcessCount());
+
+		Assert.assertEquals(2, visibility.getVisibleQueues(Arrays.asList("SUPPORT")).size());
+		Assert.assertEquals(1, loader.loadCount);
+
+		/* a deployment */
+		loader.configs.add(createQueue("sales-east", "SALES_EAST", false));
+		visibility.invalidate();
+		Assert.assertEquals(3, visibility.getVisibleQueues(Arrays.asList("SALES_EAST")).size());
+		Assert.assertEquals(2, loader.loadCount);
+	}
+
+	private static ProcessQueueConfig createQueue(String name, String roleName, boolean browseAllowed)
+	{
+		ProcessQueueConfig config = new ProcessQueueConfig();
+		config.setName(name);
+		if(roleName != null)
+		{
+			ProcessQueueRight right = new ProcessQueueRight();
+			right.setRoleName(roleName);
+			right.setBrowseAllowed(browseAllowed);
+			right.setQueue(config);
+			config.getRights().add(right);
+		}
+		return config;
+	}
+}
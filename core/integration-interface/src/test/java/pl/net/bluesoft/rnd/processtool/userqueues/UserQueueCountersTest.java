@@ -0,0 +1,146 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+
+public class UserQueueCountersTest
+{
+	private static final Executor SAME_THREAD = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	private static class TestCountsLoader implements UserQueueCounters.CountsLoader
+	{
+		private final Map<String, Integer> inQueue = new HashMap<String, Integer>();
+		private int loadCount;
+		/** Run while loading, as a transaction committed meanwhile */
+		private Runnable duringLoad;
+
+		@Override
+		public Map<String, Map<QueueType, Integer>> loadCounts(Collection<String> logins)
+		{
+			++loadCount;
+			Map<String, Map<QueueType, Integer>> result = new HashMap<String, Map<QueueType, Integer>>();
+			for(String login: logins)
+			{
+				Map<QueueType, Integer> counts = new EnumMap<QueueType, Integer>(QueueType.class);
+				Integer value = inQueue.get(login);
+				counts.put(QueueType.OWN_IN_QUEUE, value != null ? value : 0);
+				result.put(login, counts);
+			}
+			if(duringLoad != null)
+			{
+				Runnable r = duringLoad;
+				duringLoad = null;
+				r.run();
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void testChangesSinceVersion()
+	{
+		TestCountsLoader loader = new TestCountsLoader();
+		loader.inQueue.put("john", 2);
+		loader.inQueue.put("anna", 5);
+		UserQueueCounters counters = new UserQueueCounters(loader, SAME_THREAD);
+
+		/* users not tracked yet are all reported */
+		UserQueueCounters.Changes changes = counters.getChangesSince(Arrays.asList("john", "anna"), -1);
+		Assert.assertEquals(2, changes.getCounts().size());
+		long version = changes.getVersion();
+
+		Assert.assertTrue(counters.getChangesSince(Arrays.asList("john", "anna"), version).getCounts().isEmpty());
+
+		UserQueueDelta delta = new UserQueueDelta(counters);
+		delta.add("john", QueueType.OWN_IN_QUEUE, 1);
+		counters.apply(delta);
+
+		changes = counters.getChangesSince(Arrays.asList("john", "anna"), version);
+		Assert.assertTrue(changes.getVersion() > version);
+		Assert.assertEquals(1, changes.getCounts().size());
+		Assert.assertEquals(Integer.valueOf(3), changes.getCounts().get("john").get(QueueType.OWN_IN_QUEUE));
+		Assert.assertTrue(counters.getChangesSince(Arrays.asList("john", "anna"), changes.getVersion()).getCounts().isEmpty());
+		Assert.assertEquals(2, loader.loadCount);
+	}
+
+	@Test
+	public void testVersionFromBeforeRestartReportsAll()
+	{
+		TestCountsLoader loader = new TestCountsLoader();
+		UserQueueCounters counters = new UserQueueCounters(loader, SAME_THREAD);
+		counters.getChangesSince(Arrays.asList("john", "anna"), -1);
+
+		UserQueueCounters.Changes changes = counters.getChangesSince(Arrays.asList("john", "anna"), counters.getVersion() + 100);
+		Assert.assertEquals(2, changes.getCounts().size());
+		Assert.assertEquals(counters.getVersion(), changes.getVersion());
+	}
+
+	@Test
+	public void testReconcileCorrectsAndEvictsIdleUsers()
+	{
+		TestCountsLoader loader = new TestCountsLoader();
+		loader.inQueue.put("john", 2);
+		UserQueueCounters counters = new UserQueueCounters(loader, SAME_THREAD);
+		Assert.assertEquals(2, counters.getCount("john", QueueType.OWN_IN_QUEUE));
+		long version = counters.getVersion();
+
+		/* changed outside of the queue managers */
+		loader.inQueue.put("john", 4);
+		counters.reconcile();
+		Assert.assertEquals(4, counters.getCount("john", QueueType.OWN_IN_QUEUE));
+		Assert.assertTrue(counters.getChangesSince(Arrays.asList("john"), version).getCounts().containsKey("john"));
+		Assert.assertEquals(2, loader.loadCount);
+
+		/* an idle user is forgotten and loaded again on next access */
+		counters.setIdleTimeout(-1);
+		counters.reconcile();
+		Assert.assertEquals(2, loader.loadCount);
+		loader.inQueue.put("john", 7);
+		Assert.assertEquals(7, counters.getCount("john", QueueType.OWN_IN_QUEUE));
+		Assert.assertEquals(3, loader.loadCount);
+	}
+
+	@Test
+	public void testDeltaRacingWithLoadCorrectedByReconcile()
+	{
+		final TestCountsLoader loader = new TestCountsLoader();
+		loader.inQueue.put("john", 2);
+		final UserQueueCounters counters = new UserQueueCounters(loader, SAME_THREAD);
+
+		/* the load read 2, a task entered the queue and committed before the loaded counts were stored */
+		loader.duringLoad = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				loader.inQueue.put("john", 3);
+				UserQueueDelta delta = new UserQueueDelta(counters);
+				delta.add("john", QueueType.OWN_IN_QUEUE, 1);
+				counters.apply(delta);
+			}
+		};
+		Assert.assertEquals(2, counters.getCount("john", QueueType.OWN_IN_QUEUE));
+		long version = counters.getVersion();
+
+		counters.reconcile();
+		Assert.assertEquals(3, counters.getCount("john", QueueType.OWN_IN_QUEUE));
+		Assert.assertEquals(Integer.valueOf(3),
+				counters.getChangesSince(Arrays.asList("john"), version).getCounts().get("john").get(QueueType.OWN_IN_QUEUE));
+	}
+}
@@ -13,4 +13,12 @@ public interface SearchProvider {
 	List<Long> searchProcesses(String query, Integer offset, Integer limit,
 			boolean onlyRunning, String[] userRoles, String assignee,
 			String[] queues);
+
+	/**
+	 * A page of results sorted by the given field, starting after the cursor of the previous page
+	 * (null for the first page).
+	 */
+	ProcessInstanceSearchPage searchProcesses(String query, ProcessInstanceSortField sortField, boolean descending,
+			String cursor, int limit, boolean onlyRunning, String[] userRoles, String assignee,
+			String[] queues);
 }
@@ -0,0 +1,291 @@
+package org.aperteworkflow.util;
+
+import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
+import org.hibernate.Hibernate;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.proxy.HibernateProxy;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates a detached deep copy of a graph of hibernate entities.
+ *
+ * Hibernate proxies are replaced with their initialized implementations and persistent
+ * collections with plain java collections. Objects referenced more than once (including cycles)
+ * are copied once. Copy plans, that is the copied fields and the constructor, are computed once
+ * per class. Like XStream, transient fields are not copied.
+ *
+ * Sets and maps are filled after the whole graph is copied, so the hash codes of their elements
+ * are computed on fully populated objects.
+ *
+ * A copier instance is not thread safe, use a new one for every copy.
+ */
+public class HibernateGraphCopier {
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+    private static final Map<Class<?>, CopyPlan> plans = new ConcurrentHashMap<Class<?>, CopyPlan>();
+    private static final Sun14ReflectionProvider reflectionProvider = new Sun14ReflectionProvider();
+
+    private static final Set<Class<?>> immutableTypes = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigDecimal.class, BigInteger.class, Class.class, Locale.class, UUID.class));
+
+    private final int maxDepth;
+    private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+    private final List<Runnable> pendingFills = new ArrayList<Runnable>();
+
+    public HibernateGraphCopier() {
+        this(UNLIMITED_DEPTH);
+    }
+
+    /**
+     * @param maxDepth number of object references followed from the root, objects deeper
+     *                 in the graph are replaced with nulls and dropped from collections
+     */
+    public HibernateGraphCopier(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public <T> T copy(T root) {
+        T result = (T) copy(root, 0);
+        for (Runnable fill : pendingFills) {
+            fill.run();
+        }
+        pendingFills.clear();
+        return result;
+    }
+
+    private Object copy(Object source, int depth) {
+        if (source == null || isImmutable(source.getClass())) {
+            return source;
+        }
+        Object existing = copies.get(source);
+        if (existing != null) {
+            return existing;
+        }
+        if (depth > maxDepth) {
+            return null;
+        }
+
+        Object value = source;
+        if (value instanceof HibernateProxy) {
+            value = ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+            if (value == null) {
+                return null;
+            }
+            existing = copies.get(value);
+            if (existing != null) {
+                copies.put(source, existing);
+                return existing;
+            }
+        }
+        if (value instanceof PersistentCollection && !Hibernate.isInitialized(value)) {
+            Hibernate.initialize(value);
+        }
+
+        Object result;
+        if (value instanceof Collection) {
+            result = copyCollection(source, (Collection) value, depth);
+        }
+        else if (value instanceof Map) {
+            result = copyMap(source, (Map) value, depth);
+        }
+        else if (value.getClass().isArray()) {
+            result = copyArray(source, value, depth);
+        }
+        else if (value instanceof Date) {
+            result = ((Date) value).clone();
+            register(source, value, result);
+        }
+        else if (value instanceof Calendar) {
+            result = ((Calendar) value).clone();
+            register(source, value, result);
+        }
+        else {
+            result = copyObject(source, value, depth);
+        }
+        return result;
+    }
+
+    private Object copyObject(Object source, Object value, int depth) {
+        CopyPlan plan = getPlan(value.getClass());
+        Object result = plan.newInstance();
+        register(source, value, result);
+        try {
+            for (Field field : plan.primitiveFields) {
+                field.set(result, field.get(value));
+            }
+            for (Field field : plan.referenceFields) {
+                field.set(result, copy(field.get(value), depth + 1));
+            }
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    private Object copyCollection(Object source, Collection<?> value, int depth) {
+        final Collection<Object> result;
+        if (value instanceof SortedSet) {
+            result = new TreeSet<Object>(((SortedSet) value).comparator());
+        }
+        else if (value instanceof Set) {
+            result = value instanceof LinkedHashSet ? new LinkedHashSet<Object>() : new HashSet<Object>();
+        }
+        else {
+            result = new ArrayList<Object>(value.size());
+        }
+        register(source, value, result);
+
+        final List<Object> elements = new ArrayList<Object>(value.size());
+        for (Object element : value) {
+            Object copy = copy(element, depth + 1);
+            if (copy != null || element == null) {
+                elements.add(copy);
+            }
+        }
+        if (result instanceof Set) {
+            pendingFills.add(new Runnable() {
+                @Override
+                public void run() {
+                    result.addAll(elements);
+                }
+            });
+        }
+        else {
+            result.addAll(elements);
+        }
+        return result;
+    }
+
+    private Object copyMap(Object source, Map<?, ?> value, int depth) {
+        final Map<Object, Object> result;
+        if (value instanceof SortedMap) {
+            result = new TreeMap<Object, Object>(((SortedMap) value).comparator());
+        }
+        else {
+            result = value instanceof LinkedHashMap ? new LinkedHashMap<Object, Object>() : new HashMap<Object, Object>();
+        }
+        register(source, value, result);
+
+        final List<Object[]> entries = new ArrayList<Object[]>(value.size());
+        for (Map.Entry<?, ?> e : value.entrySet()) {
+            Object key = copy(e.getKey(), depth + 1);
+            if (key != null || e.getKey() == null) {
+                entries.add(new Object[] { key, copy(e.getValue(), depth + 1) });
+            }
+        }
+        pendingFills.add(new Runnable() {
+            @Override
+            public void run() {
+                for (Object[] entry : entries) {
+                    result.put(entry[0], entry[1]);
+                }
+            }
+        });
+        return result;
+    }
+
+    private Object copyArray(Object source, Object value, int depth) {
+        int length = Array.getLength(value);
+        Class<?> componentType = value.getClass().getComponentType();
+        Object result = Array.newInstance(componentType, length);
+        register(source, value, result);
+        if (componentType.isPrimitive() || isImmutable(componentType)) {
+            System.arraycopy(value, 0, result, 0, length);
+        }
+        else {
+            for (int i = 0; i < length; ++i) {
+                Array.set(result, i, copy(Array.get(value, i), depth + 1));
+            }
+        }
+        return result;
+    }
+
+    private void register(Object source, Object value, Object copy) {
+        copies.put(source, copy);
+        if (value != source) {
+            copies.put(value, copy);
+        }
+    }
+
+    /** Forget the plans of classes from an unloaded plugin */
+    public static void clear() {
+        plans.clear();
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive() || type.isEnum() || immutableTypes.contains(type)
+                || (type.getSuperclass() != null && type.getSuperclass().isEnum());
+    }
+
+    private static CopyPlan getPlan(Class<?> type) {
+        CopyPlan plan = plans.get(type);
+        if (plan == null) {
+            plan = new CopyPlan(type);
+            plans.put(type, plan);
+        }
+        return plan;
+    }
+
+    private static class CopyPlan {
+        final Class<?> type;
+        final Constructor<?> constructor;
+        final Field[] primitiveFields;
+        final Field[] referenceFields;
+
+        CopyPlan(Class<?> type) {
+            this.type = type;
+
+            Constructor<?> noArgConstructor;
+            try {
+                noArgConstructor = type.getDeclaredConstructor();
+                noArgConstructor.setAccessible(true);
+            }
+            catch (NoSuchMethodException e) {
+                noArgConstructor = null;
+            }
+            this.constructor = noArgConstructor;
+
+            List<Field> primitives = new ArrayList<Field>();
+            List<Field> references = new ArrayList<Field>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    if (field.getType().isPrimitive() || isImmutable(field.getType())) {
+                        primitives.add(field);
+                    }
+                    else {
+                        references.add(field);
+                    }
+                }
+            }
+            this.primitiveFields = primitives.toArray(new Field[primitives.size()]);
+            this.referenceFields = references.toArray(new Field[references.size()]);
+        }
+
+        Object newInstance() {
+            if (constructor != null) {
+                try {
+                    return constructor.newInstance();
+                }
+                catch (Exception e) {
+                    //fall back to instantiation without constructor, as XStream does
+                }
+            }
+            return reflectionProvider.newInstance(type);
+        }
+    }
+}
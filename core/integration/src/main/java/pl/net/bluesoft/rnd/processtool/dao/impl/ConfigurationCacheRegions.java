@@ -0,0 +1,128 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.persistence.ManyToMany;
+import javax.persistence.OneToMany;
+
+import org.hibernate.Cache;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import pl.net.bluesoft.rnd.processtool.hibernate.HibernateTransactionCallback;
+import pl.net.bluesoft.rnd.processtool.model.config.AbstractPermission;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueRight;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateAction;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateActionAttribute;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateConfiguration;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateWidget;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateWidgetAttribute;
+
+/**
+ * Second-level cache regions of the process configuration entities: definitions, states, widgets,
+ * actions, permissions and queues. They change only when processes are deployed or enabled, so
+ * they are cached together with the queries looking them up.
+ *
+ * The regions use the nonstrict read-write strategy, as deployments do update the previous
+ * versions (the latest flag). Every change made by {@link ProcessDefinitionDAOImpl} evicts all
+ * regions after its transaction commits.
+ *
+ * The caches are turned on only when a cache is configured, either in the Hibernate configuration
+ * or with the <code>org.aperteworkflow.hibernate.cache.region.factory_class</code> system property.
+ * Without one, the configuration is read from the database as before. The eviction only reaches
+ * the caches of the node making the change, so a cluster has to configure a region factory which
+ * replicates or invalidates across the nodes, or bounded regions with a short expiry.
+ */
+public class ConfigurationCacheRegions {
+    private static final Logger logger = Logger.getLogger(ConfigurationCacheRegions.class.getName());
+
+    /** Region of the cached configuration queries */
+    public static final String QUERY_REGION = "pl.net.bluesoft.rnd.processtool.model.config.queries";
+
+    private static final String CONCURRENCY_STRATEGY = "nonstrict-read-write";
+
+    /** Cached entities - roots of their hierarchies, as only those can have a cache */
+    private static final Class<?>[] CACHED_ENTITIES = {
+            ProcessDefinitionConfig.class,
+            ProcessStateConfiguration.class,
+            ProcessStateWidget.class,
+            ProcessStateWidgetAttribute.class,
+            ProcessStateAction.class,
+            ProcessStateActionAttribute.class,
+            AbstractPermission.class,
+            ProcessQueueConfig.class,
+            ProcessQueueRight.class
+    };
+
+    private ConfigurationCacheRegions() {
+    }
+
+    /** Turn on the caches of the configuration entities, their collections and queries, if a cache is configured */
+    public static void configure(Configuration configuration) {
+        if (configuration.getProperty("hibernate.cache.region.factory_class") == null
+                && configuration.getProperty("hibernate.cache.provider_class") == null) {
+            String regionFactory = System.getProperty("org.aperteworkflow.hibernate.cache.region.factory_class");
+            if (regionFactory == null) {
+                logger.info("No second-level cache configured, process configuration is not cached");
+                return;
+            }
+            configuration.setProperty("hibernate.cache.region.factory_class", regionFactory);
+        }
+        if ("false".equals(configuration.getProperty("hibernate.cache.use_second_level_cache"))) {
+            return;
+        }
+        configuration.setProperty("hibernate.cache.use_second_level_cache", "true");
+        if (configuration.getProperty("hibernate.cache.use_query_cache") == null) {
+            configuration.setProperty("hibernate.cache.use_query_cache", "true");
+        }
+
+        for (Class<?> cls : CACHED_ENTITIES) {
+            configuration.setCacheConcurrencyStrategy(cls.getName(), CONCURRENCY_STRATEGY);
+            for (String role : getCollectionRoles(cls)) {
+                configuration.setCollectionCacheConcurrencyStrategy(role, CONCURRENCY_STRATEGY);
+            }
+        }
+    }
+
+    /** Evict the configuration regions after the current transaction commits */
+    public static void evictAfterCommit(final Session session) {
+        session.getTransaction().registerSynchronization(new HibernateTransactionCallback() {
+            @Override
+            public void onCommit() {
+                evict(session.getSessionFactory());
+            }
+
+            @Override
+            public void onRollback() {
+            }
+        });
+    }
+
+    public static void evict(SessionFactory sessionFactory) {
+        Cache cache = sessionFactory.getCache();
+        for (Class<?> cls : CACHED_ENTITIES) {
+            cache.evictEntityRegion(cls);
+            for (String role : getCollectionRoles(cls)) {
+                cache.evictCollectionRegion(role);
+            }
+        }
+        cache.evictQueryRegion(QUERY_REGION);
+        logger.fine("Evicted process configuration caches");
+    }
+
+    private static String[] getCollectionRoles(Class<?> cls) {
+        List<String> roles = new ArrayList<String>();
+        for (Field field : cls.getDeclaredFields()) {
+            if (field.isAnnotationPresent(OneToMany.class) || field.isAnnotationPresent(ManyToMany.class)) {
+                roles.add(cls.getName() + '.' + field.getName());
+            }
+        }
+        return roles.toArray(new String[roles.size()]);
+    }
+}
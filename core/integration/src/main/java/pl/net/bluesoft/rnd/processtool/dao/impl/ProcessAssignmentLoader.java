@@ -0,0 +1,130 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+
+/**
+ * Reads the active tasks, assignees and queues of many process instances at once,
+ * straight from the tables of the BPM engine.
+ *
+ * The BPM sessions fill these transient properties one process at a time through the engine API,
+ * which is far too slow when the whole search index is rebuilt. The data is the same: every active
+ * task, its assignee, and the candidate groups of the tasks nobody is assigned to.
+ */
+public class ProcessAssignmentLoader {
+    private static final String JBPM_QUERY =
+            "select exec.id_, task.dbid_, task.name_, task.assignee_, part.groupid_" +
+            " from jbpm4_task task" +
+            " join jbpm4_execution exec on exec.dbid_ = task.procinst_" +
+            " left join jbpm4_participation part on part.task_ = task.dbid_ and part.type_ = 'candidate'" +
+            " where exec.id_ in (:internalIds)";
+
+    private static final String ACTIVITI_QUERY =
+            "select task.proc_inst_id_, task.id_, task.name_, task.assignee_, link.group_id_" +
+            " from act_ru_task task" +
+            " left join act_ru_identitylink link on link.task_id_ = task.id_ and link.type_ = 'candidate'" +
+            " where task.proc_inst_id_ in (:internalIds)";
+
+    /** Internal ids bound to a single statement */
+    private static final int MAX_IN_SIZE = 500;
+
+    private final String query;
+
+    private ProcessAssignmentLoader(String query) {
+        this.query = query;
+    }
+
+    /**
+     * Loader for the BPM engine of the given definition language, as told by
+     * {@link pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry#getBpmDefinitionLanguage()}
+     */
+    public static ProcessAssignmentLoader forDefinitionLanguage(String bpmDefinitionLanguage) {
+        if ("jpdl".equals(bpmDefinitionLanguage)) {
+            return new ProcessAssignmentLoader(JBPM_QUERY);
+        }
+        if ("bpmn20".equals(bpmDefinitionLanguage)) {
+            return new ProcessAssignmentLoader(ACTIVITI_QUERY);
+        }
+        throw new IllegalArgumentException("Unsupported BPM definition language: " + bpmDefinitionLanguage);
+    }
+
+    /** Set the active tasks, assignees and queues of the given process instances */
+    public void load(Session session, Collection<ProcessInstance> processInstances) {
+        Map<String, Assignments> byInternalId = new LinkedHashMap<String, Assignments>();
+        for (ProcessInstance pi : processInstances) {
+            if (pi.getInternalId() != null) {
+                byInternalId.put(pi.getInternalId(), new Assignments(pi));
+            }
+        }
+
+        List<String> internalIds = new ArrayList<String>(byInternalId.keySet());
+        for (int i = 0; i < internalIds.size(); i += MAX_IN_SIZE) {
+            List rows = session.createSQLQuery(query)
+                    .setParameterList("internalIds", internalIds.subList(i, Math.min(i + MAX_IN_SIZE, internalIds.size())))
+                    .list();
+            for (Object row : rows) {
+                Object[] columns = (Object[]) row;
+                byInternalId.get(String.valueOf(columns[0])).add(String.valueOf(columns[1]),
+                        (String) columns[2], (String) columns[3], (String) columns[4]);
+            }
+        }
+
+        for (ProcessInstance pi : processInstances) {
+            Assignments assignments = byInternalId.get(pi.getInternalId());
+            if (assignments != null) {
+                assignments.apply();
+            }
+            else {
+                pi.setActiveTasks(new BpmTask[0]);
+                pi.setAssignees();
+                pi.setTaskQueues();
+            }
+        }
+    }
+
+    private static class Assignments {
+        private final ProcessInstance processInstance;
+        /** Tasks by id, the query returns a row per candidate group of a task */
+        private final Map<String, BpmTask> tasks = new HashMap<String, BpmTask>();
+        private final Set<String> assignees = new LinkedHashSet<String>();
+        private final Set<String> queues = new LinkedHashSet<String>();
+
+        private Assignments(ProcessInstance processInstance) {
+            this.processInstance = processInstance;
+        }
+
+        private void add(String taskId, String taskName, String assignee, String candidateGroup) {
+            if (!tasks.containsKey(taskId)) {
+                BpmTask task = new BpmTask();
+                task.setInternalTaskId(taskId);
+                task.setProcessInstance(processInstance);
+                task.setTaskName(taskName);
+                task.setAssignee(assignee);
+                tasks.put(taskId, task);
+            }
+            if (assignee != null) {
+                assignees.add(assignee);
+            }
+            else if (candidateGroup != null) {
+                queues.add(candidateGroup);
+            }
+        }
+
+        private void apply() {
+            processInstance.setActiveTasks(tasks.values().toArray(new BpmTask[tasks.size()]));
+            processInstance.setAssignees(assignees.toArray(new String[assignees.size()]));
+            processInstance.setTaskQueues(queues.toArray(new String[queues.size()]));
+        }
+    }
+}
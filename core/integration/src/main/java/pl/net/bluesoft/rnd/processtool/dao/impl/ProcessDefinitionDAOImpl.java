@@ -1,6 +1,8 @@
 package pl.net.bluesoft.rnd.processtool.dao.impl;
 
+import org.hibernate.FetchMode;
 import org.hibernate.Session;
+import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
 import pl.net.bluesoft.rnd.processtool.dao.ProcessDefinitionDAO;
@@ -8,6 +10,7 @@ import pl.net.bluesoft.rnd.processtool.hibernate.SimpleHibernateBean;
 import pl.net.bluesoft.rnd.processtool.model.BpmTask;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.config.*;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueVisibility;
 import pl.net.bluesoft.util.lang.Lang;
 
 import java.util.*;
@@ -23,10 +26,17 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
 
 	private Logger logger = Logger.getLogger(ProcessDefinitionDAOImpl.class.getName());
 
+	private ProcessQueueVisibility queueVisibility;
+
 	public ProcessDefinitionDAOImpl(Session session) {
 		super(session);
 	}
 
+	public ProcessDefinitionDAOImpl(Session session, ProcessQueueVisibility queueVisibility) {
+		super(session);
+		this.queueVisibility = queueVisibility;
+	}
+
 	public Collection<ProcessDefinitionConfig> getAllConfigurations() {
 		return getSession().createCriteria(ProcessDefinitionConfig.class).addOrder(Order.desc("processName")).list();
 	}
@@ -37,6 +47,7 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
 		List list = getSession().createCriteria(ProcessDefinitionConfig.class).addOrder(Order.desc("processName"))
 						.add(Restrictions.eq("latest", Boolean.TRUE))
 						.add(Restrictions.or(Restrictions.eq("enabled", Boolean.TRUE), Restrictions.isNull("enabled")))
+						.setCacheable(true).setCacheRegion(ConfigurationCacheRegions.QUERY_REGION)
                 .list();
 		 
 		 
@@ -49,24 +60,51 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
 	public ProcessDefinitionConfig getActiveConfigurationByKey(String key) {
 		return (ProcessDefinitionConfig) getSession().createCriteria(ProcessDefinitionConfig.class)
 				.add(Restrictions.eq("latest", Boolean.TRUE))
-				.add(Restrictions.eq("bpmDefinitionKey", key)).uniqueResult();
+				.add(Restrictions.eq("bpmDefinitionKey", key))
+				.setCacheable(true).setCacheRegion(ConfigurationCacheRegions.QUERY_REGION)
+				.uniqueResult();
 	}
 
 	@Override
 	public Collection<ProcessQueueConfig> getQueueConfigs() {
-		return getSession().createCriteria(ProcessQueueConfig.class).list();
+		return getSession().createCriteria(ProcessQueueConfig.class)
+				.setCacheable(true).setCacheRegion(ConfigurationCacheRegions.QUERY_REGION)
+				.list();
 	}
 
 	public ProcessStateConfiguration getProcessStateConfiguration(BpmTask task) {
 //		HibernateTemplate ht = getHibernateTemplate();
         List res = getSession().createCriteria(ProcessStateConfiguration.class)
 				.add(Restrictions.eq("definition", task.getProcessInstance().getDefinition()))
-				.add(Restrictions.eq("name", task.getTaskName())).list();
+				.add(Restrictions.eq("name", task.getTaskName()))
+				.setCacheable(true).setCacheRegion(ConfigurationCacheRegions.QUERY_REGION)
+				.list();
 		if (res.isEmpty())
 			return null;
 		return (ProcessStateConfiguration) res.get(0);
 
 	}
+
+	@Override
+	public Map<String, ProcessStateConfiguration> getProcessStateConfigurations(ProcessDefinitionConfig definition,
+																				Collection<String> stateNames) {
+		Map<String, ProcessStateConfiguration> result = new HashMap<String, ProcessStateConfiguration>();
+		if (stateNames.isEmpty())
+			return result;
+		List<ProcessStateConfiguration> res = getSession().createCriteria(ProcessStateConfiguration.class)
+				.setFetchMode("permissions", FetchMode.JOIN)
+				.setResultTransformer(CriteriaSpecification.DISTINCT_ROOT_ENTITY)
+				.add(Restrictions.eq("definition", definition))
+				.add(Restrictions.in("name", stateNames))
+				.addOrder(Order.asc("id"))
+				.list();
+		for (ProcessStateConfiguration psc : res) {
+			//the same as getProcessStateConfiguration - the first one wins
+			if (!result.containsKey(psc.getName()))
+				result.put(psc.getName(), psc);
+		}
+		return result;
+	}
 	
 	@Override
 	public void updateOrCreateProcessDefinitionConfig(ProcessDefinitionConfig cfg) {
@@ -104,6 +142,7 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
 		}
 		
 		session.saveOrUpdate(cfg);
+		ConfigurationCacheRegions.evictAfterCommit(session);
 	}
 
 	private boolean compareDefinitions(ProcessDefinitionConfig cfg, ProcessDefinitionConfig c) {
@@ -270,6 +309,8 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
 			//session.merge(q);
 			session.save(q);
 		}
+		ConfigurationCacheRegions.evictAfterCommit(session);
+		invalidateQueueVisibility(session);
 	}
 
     @Override
@@ -282,8 +323,16 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
                session.delete(o);
            }
        }
+       ConfigurationCacheRegions.evictAfterCommit(session);
+       invalidateQueueVisibility(session);
    }
 
+    private void invalidateQueueVisibility(Session session) {
+        if (queueVisibility != null) {
+            queueVisibility.invalidateAfterCommit(session);
+        }
+    }
+
     @Override
     public Collection<ProcessDefinitionConfig> getConfigurationVersions(ProcessDefinitionConfig cfg) {
         return session.createCriteria(ProcessDefinitionConfig.class)
@@ -297,5 +346,6 @@ public class ProcessDefinitionDAOImpl extends SimpleHibernateBean<ProcessDefinit
         cfg = (ProcessDefinitionConfig) session.get(ProcessDefinitionConfig.class, cfg.getId());
         cfg.setEnabled(enabled);
         session.save(cfg);
+        ConfigurationCacheRegions.evictAfterCommit(session);
     }
 }
@@ -5,23 +5,20 @@ import static org.hibernate.criterion.Restrictions.in;
 import static pl.net.bluesoft.util.lang.DateUtil.addDays;
 import static pl.net.bluesoft.util.lang.DateUtil.asCalendar;
 import static pl.net.bluesoft.util.lang.DateUtil.truncHours;
-import static pl.net.bluesoft.util.lang.FormatUtil.formatShortDate;
-import static pl.net.bluesoft.util.lang.FormatUtil.nvl;
 
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.aperteworkflow.search.ProcessInstanceSearchAttribute;
 import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
 import org.aperteworkflow.search.SearchProvider; 
-import org.aperteworkflow.search.Searchable;
 import org.hibernate.Criteria;
 import org.hibernate.FetchMode;
 import org.hibernate.Session;
@@ -30,25 +27,21 @@ import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
-import org.hibernate.criterion.Property;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.criterion.Subqueries;
 
 import pl.net.bluesoft.rnd.processtool.dao.ProcessInstanceDAO;
+import pl.net.bluesoft.rnd.processtool.hibernate.CriteriaConfigurer;
+import pl.net.bluesoft.rnd.processtool.hibernate.PagedCriteriaQuery;
 import pl.net.bluesoft.rnd.processtool.hibernate.ResultsPageWrapper;
 import pl.net.bluesoft.rnd.processtool.hibernate.SimpleHibernateBean;
 import pl.net.bluesoft.rnd.processtool.hibernate.transform.NestedAliasToBeanResultTransformer;
-import pl.net.bluesoft.rnd.processtool.model.BpmTask;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttachmentAttribute;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttribute;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceFilter;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceLog;
 import pl.net.bluesoft.rnd.processtool.model.UserData;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionPermission;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateConfiguration;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessStatePermission;
 import pl.net.bluesoft.util.lang.Collections;
 import pl.net.bluesoft.util.lang.Transformer;
 
@@ -60,9 +53,12 @@ import pl.net.bluesoft.util.lang.Transformer;
 public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance> implements ProcessInstanceDAO {
     private SearchProvider searchProvider;
 
+    private final ProcessInstanceSearchDataBuilder searchDataBuilder;
+
     public ProcessInstanceDAOImpl(Session session, SearchProvider searchProvider) {
 		super(session);
         this.searchProvider = searchProvider;
+        this.searchDataBuilder = new ProcessInstanceSearchDataBuilder(session);
 	}
 
 	public long saveProcessInstance(ProcessInstance processInstance) {
@@ -95,83 +91,7 @@ public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance>
         session.flush();
         long time = System.currentTimeMillis();
         //update search indexes
-        ProcessInstanceSearchData searchData = new ProcessInstanceSearchData(processInstance.getId());
-        //put some default search attributes
-        if (creator != null) {
-            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_login", creator.getLogin()));
-            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_email", creator.getEmail()));
-            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_realname", creator.getRealName()));
-        }
-        searchData.addSearchAttributes(new String[][]{
-                {"instance_key", processInstance.getExternalKey()},
-                {"definition_name", processInstance.getDefinitionName()},
-                {"instance_description", processInstance.getDescription()},
-                {"instance_internal_id", processInstance.getInternalId()},
-                {"instance_keyword", processInstance.getKeyword()},
-                {"instance_state", processInstance.getState()},//TODO remember about multiple states (when BpmTask is merged)
-                {"instance_create_date", formatShortDate(processInstance.getCreateDate())},
-        });
-        ProcessDefinitionConfig def = processInstance.getDefinition();
-        searchData.addSearchAttributes(new String[][]{
-                {"definition_key", def.getBpmDefinitionKey()},
-                {"definition_description", def.getDescription()},
-                {"definition_comment", def.getComment()},
-                {"definition_processname", def.getProcessName()},
-        });
-        for (ProcessDefinitionPermission perm : def.getPermissions()) {
-            if ("SEARCH".equals(perm.getPrivilegeName())) {
-                String roleName = perm.getRoleName();
-                if (roleName.equals(".*"))
-                    roleName = "__AWF__ROLE_ALL";
-                roleName = roleName.replace(' ', '_');
-                searchData.addSearchAttribute("__AWF__ROLE", roleName, true);
-            }
-        }
-        //lookup process state configuration
-
-        for (BpmTask t : nvl(processInstance.getActiveTasks(), new BpmTask[0])) {
-            ProcessStateConfiguration psc
-                    = new ProcessDefinitionDAOImpl(session).getProcessStateConfiguration(t);
-            if (psc != null) {
-                searchData.addSearchAttributes(new String[][]{
-                                {"state_commentary", psc.getCommentary()},
-                                {"state_description", psc.getDescription()},
-                                {"state_name", psc.getName()},
-                        });
-                for (ProcessStatePermission perm : psc.getPermissions()) {
-                    if ("SEARCH".equals(perm.getPrivilegeName())) {
-                        String roleName = perm.getRoleName();
-                        if (roleName.equals(".*"))
-                            roleName = "__AWF__ROLE_ALL";
-                        roleName = roleName.replace(' ', '_');
-                        searchData.addSearchAttribute("__AWF__ROLE", roleName, true);
-                    }
-                }
-            }
-        }
-        for (ProcessInstanceAttribute attr : processInstance.getProcessAttributes()) {
-            if (attr instanceof Searchable) {
-                Collection<ProcessInstanceSearchAttribute> attributes = ((Searchable) attr).getAttributes();
-                for (ProcessInstanceSearchAttribute pisa : attributes) {
-                    if (pisa.getName().startsWith("__AWF__")) { //no cheating please!
-                        String newName = pisa.getName().replace("__AWF__", "");
-                        logger.severe("Renaming process provided attribute " + pisa.getName() + " to " + newName +
-                                " as it may clash with internal search attributes. PLEASE CORRECT PROCESS DEFINITION.");
-                        pisa.setName(newName);
-                    }
-                }
-                searchData.addSearchAttributes(attributes);
-            }
-        }
-        for (String assignee : processInstance.getAssignees()) {
-            searchData.addSearchAttribute("__AWF__assignee", assignee, true);
-            logger.info("__AWF__assignee: "+ assignee);
-        }
-        for (String queue : processInstance.getTaskQueues()) {
-            searchData.addSearchAttribute("__AWF__queue", queue, true);
-            logger.info("__AWF__queue: "+ queue);
-        }
-        searchData.addSearchAttribute("__AWF__running", String.valueOf(processInstance.getRunning()), true);
+        ProcessInstanceSearchData searchData = searchDataBuilder.build(processInstance);
 
         logger.finest("Prepare data for Lucene index update for" + processInstance + " took "
                 + (System.currentTimeMillis()-time) + " ms");
@@ -258,8 +178,9 @@ public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance>
          });
 	}
 
+	@Override
 	public List<ProcessInstance> getProcessInstancesByIds(List<Long> ids) {
-		return getProcessInstances(ids);
+		return new PagedCriteriaQuery<ProcessInstance>(getSession(), ProcessInstance.class, null).load(ids);
 	}
 	
 
@@ -389,36 +310,21 @@ public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance>
     
 
         @Override
-        public ResultsPageWrapper<ProcessInstance> getRecentProcesses(UserData userData, Calendar minDate, Integer offset, Integer limit) {
-            Session session = getSession();
-            List<ProcessInstance> instances = null;
+        public ResultsPageWrapper<ProcessInstance> getRecentProcesses(final UserData userData, final Calendar minDate, Integer offset, Integer limit) {
+            PagedCriteriaQuery<ProcessInstance> query = new PagedCriteriaQuery<ProcessInstance>(getSession(), ProcessInstance.class,
+                    new CriteriaConfigurer() {
+                        @Override
+                        public void configure(DetachedCriteria criteria) {
+                            criteria.createAlias("processLogs", "log")
+                                    .createAlias("log.user", "u")
+                                    .add(Restrictions.gt("log.entryDate", minDate))
+                                    .add(Restrictions.eq("u.id", userData.getId()));
+                        }
+                    });
             if (offset != null && limit != null) {
-                List<Long> list = session.createCriteria(ProcessInstance.class)
-                        .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY)
-                        .setProjection(Projections.distinct(Projections.property("id")))
-                        .addOrder(Order.desc("id"))
-                        .setFirstResult(offset)
-                        .setMaxResults(limit)
-                        .createCriteria("processLogs")
-                        .add(Restrictions.gt("entryDate", minDate))
-                        .createAlias("user", "u")
-                        .add(Restrictions.eq("u.id", userData.getId()))
-                        .list();
-                instances = getProcessInstancesByIds(list);
+                return query.page(offset, limit).list();
             }
-
-            Number total = (Number) session.createCriteria(ProcessInstance.class)
-                    .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY)
-                    .setProjection(Projections.countDistinct("id"))
-                    .createCriteria("processLogs")
-                    .add(Restrictions.gt("entryDate", minDate))
-                    .createAlias("user", "u")
-                    .add(Restrictions.eq("u.id", userData.getId())).uniqueResult();
-            
-            ResultsPageWrapper<ProcessInstance> resultsPageWrapper = new ResultsPageWrapper<ProcessInstance>(instances != null ? instances : new ArrayList<ProcessInstance>(),
-                    total == null ? 0 : total.intValue());
-
-            return resultsPageWrapper;
+            return new ResultsPageWrapper<ProcessInstance>(new ArrayList<ProcessInstance>(), query.count());
         }
 
         @Override
@@ -427,87 +333,53 @@ public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance>
             if (internalIds.isEmpty()) {
                 return new ResultsPageWrapper<ProcessInstance>();
             }
-            Session session = getSession();
-
-            DetachedCriteria detachedCriteriaForIds = buildhibernateQuery(internalIds, session, filter, offset, limit);
-
-            Criteria criteria = detachedCriteriaForIds.getExecutableCriteria(session);
-            criteria.setFetchMode("definition",FetchMode.SELECT);
-            criteria.setFetchMode("creator",FetchMode.SELECT);
-            criteria.setFetchMode("parent",FetchMode.SELECT);
-
-            List<ProcessInstance> result = (List<ProcessInstance>)criteria.list();
-            int resultsCount = result.size();
-
-            List<ProcessInstance> list;
-            /* If limit is zero or null, return results */
-            if(limit == null || limit <= 0) 
-            {
-                list = new ArrayList<ProcessInstance>(result);
-            }
-            else 
-            {
-                criteria.setFirstResult(offset);
-                criteria.setMaxResults(limit);
-                criteria.addOrder(Order.desc("createDate"));
-                criteria.setProjection(Projections.id());//null).setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
-                List ids = criteria.list();
-
-                if (ids != null && !ids.isEmpty()) {
-                    DetachedCriteria detachedCriteriaForData = DetachedCriteria.forClass(ProcessInstance.class, "data");
-                    detachedCriteriaForData.addOrder(Order.desc("createDate"));
-                    detachedCriteriaForData.add(Property.forName("id").in(ids));
-                    detachedCriteriaForData.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
-                    
-                    Criteria criteria2 = detachedCriteriaForData.getExecutableCriteria(session);
-                    criteria2.setFetchMode("definition",FetchMode.SELECT);
-		            criteria2.setFetchMode("creator",FetchMode.SELECT);
-		            criteria2.setFetchMode("parent",FetchMode.SELECT);
- 
-                    list = criteria2.list();
-                }
-                else {
-                    list = new ArrayList<ProcessInstance>(0);
-                }
-            }
-
-            return new ResultsPageWrapper<ProcessInstance>(list, resultsCount);
+            return new PagedCriteriaQuery<ProcessInstance>(getSession(), ProcessInstance.class,
+                    new CriteriaConfigurer() {
+                        @Override
+                        public void configure(DetachedCriteria criteria) {
+                            applyFilter(criteria, internalIds, filter);
+                        }
+                    })
+                    .orderBy("createDate", true)
+                    .page(offset, limit)
+                    .hydrateWith(new CriteriaConfigurer() {
+                        @Override
+                        public void configure(DetachedCriteria criteria) {
+                            criteria.setFetchMode("definition", FetchMode.SELECT);
+                            criteria.setFetchMode("creator", FetchMode.SELECT);
+                            criteria.setFetchMode("parent", FetchMode.SELECT);
+                        }
+                    })
+                    .list();
         }
 
-        private DetachedCriteria buildhibernateQuery(Collection<String> internalIds, Session session, ProcessInstanceFilter filter, Integer offset, Integer limit) {
-            DetachedCriteria criteria = DetachedCriteria.forClass(ProcessInstance.class, "ids");
-
-            criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
-            //criteria.setProjection(Projections.distinct(Projections.property("id")));
-
-            criteria = criteria.add(Restrictions.in("internalId", internalIds));
+        private void applyFilter(DetachedCriteria criteria, Collection<String> internalIds, ProcessInstanceFilter filter) {
+            criteria.add(Restrictions.in("internalId", internalIds));
 
             if (filter.getCreatedAfter() != null) {
-                criteria = criteria.add(Restrictions.gt("createDate", filter.getCreatedAfter()));
+                criteria.add(Restrictions.gt("createDate", filter.getCreatedAfter()));
             }
 
             if (filter.getCreatedBefore() != null) {
-                criteria = criteria.add(Restrictions.lt("createDate", filter.getCreatedBefore()));
+                criteria.add(Restrictions.lt("createDate", filter.getCreatedBefore()));
             }
 
             if (filter.getCreators() != null && !filter.getCreators().isEmpty()) {
-                criteria = criteria.add(Restrictions.in("creator", filter.getCreators()));
+                criteria.add(Restrictions.in("creator", filter.getCreators()));
+            }
+
+            if (filter.getUpdatedAfter() != null || filter.getNotUpdatedAfter() != null) {
+                criteria.createAlias("processLogs", "log");
             }
 
             if (filter.getUpdatedAfter() != null) {
-                criteria = criteria
-                        .createCriteria("processLogs")
-                        .add(Restrictions.gt("entryDate", filter.getUpdatedAfterCalendar()));
+                criteria.add(Restrictions.gt("log.entryDate", filter.getUpdatedAfterCalendar()));
             }
 
             if (filter.getNotUpdatedAfter() != null) {
                 DetachedCriteria entryDateCriteria = DetachedCriteria.forClass(ProcessInstanceLog.class).add(Restrictions.gt("entryDate", filter.getNotUpdatedAfterCalendar()));
-                criteria = criteria
-                        .createCriteria("processLogs")
-                        .add(Restrictions.not(Subqueries.exists(entryDateCriteria)));
+                criteria.add(Restrictions.not(Subqueries.exists(entryDateCriteria)));
             }
-
-            return criteria;
         }
 
 
@@ -515,19 +387,15 @@ public class ProcessInstanceDAOImpl extends SimpleHibernateBean<ProcessInstance>
     public Collection<ProcessInstance> searchProcesses(String filter, int offset, int limit,
                                                        boolean onlyRunning, String[] userRoles,
                                                        String assignee, String... queues) {
-    	
-    	 long start = System.currentTimeMillis();
+        //the ids are sorted by the index, only the page is loaded
         List<Long> processIds = searchProvider.searchProcesses(filter, offset, limit, onlyRunning, userRoles, assignee, queues);
-        List<ProcessInstance> processInstancesByIds = getProcessInstancesByIds(processIds);
-        java.util.Collections.sort(processInstancesByIds, new Comparator<ProcessInstance>() {
-            @Override
-            public int compare(ProcessInstance o1, ProcessInstance o2) {
-                return o2.getId().compareTo(o1.getId());
-            }
-        });
-        
-        long duration = System.currentTimeMillis() - start;
-		logger.severe("searchProcesses: " +  duration);
-        return processInstancesByIds;
+        return getProcessInstancesByIds(processIds);
+    }
+
+    @Override
+    public ProcessInstanceSearchPage searchProcesses(String filter, ProcessInstanceSortField sortField, boolean descending,
+                                                     String cursor, int limit, boolean onlyRunning, String[] userRoles,
+                                                     String assignee, String... queues) {
+        return searchProvider.searchProcesses(filter, sortField, descending, cursor, limit, onlyRunning, userRoles, assignee, queues);
     }
 }
@@ -0,0 +1,164 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import static pl.net.bluesoft.util.lang.FormatUtil.formatShortDate;
+import static pl.net.bluesoft.util.lang.FormatUtil.nvl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.aperteworkflow.search.ProcessInstanceSearchAttribute;
+import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSortField;
+import org.aperteworkflow.search.Searchable;
+import org.hibernate.Session;
+
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttribute;
+import pl.net.bluesoft.rnd.processtool.model.UserData;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionPermission;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateConfiguration;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStatePermission;
+
+/**
+ * Builds the search index data of process instances: the instance, its definition, the states
+ * of its active tasks, searchable attributes, assignees and queues.
+ *
+ * Used when a process instance is saved and when the whole index is rebuilt. The active tasks,
+ * assignees and queues are not persistent, they have to be set on the instance beforehand.
+ */
+public class ProcessInstanceSearchDataBuilder {
+    private static final Logger logger = Logger.getLogger(ProcessInstanceSearchDataBuilder.class.getName());
+
+    private final Session session;
+
+    /** State configurations resolved in this session, by definition id and state name */
+    private final Map<String, ProcessStateConfiguration> stateConfigurations = new HashMap<String, ProcessStateConfiguration>();
+
+    public ProcessInstanceSearchDataBuilder(Session session) {
+        this.session = session;
+    }
+
+    public ProcessInstanceSearchData build(ProcessInstance processInstance) {
+        UserData creator = processInstance.getCreator();
+        ProcessInstanceSearchData searchData = new ProcessInstanceSearchData(processInstance.getId());
+        //put some default search attributes
+        if (creator != null) {
+            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_login", creator.getLogin()));
+            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_email", creator.getEmail()));
+            searchData.addSearchAttribute(new ProcessInstanceSearchAttribute("creator_realname", creator.getRealName()));
+        }
+        searchData.addSearchAttributes(new String[][]{
+                {"instance_key", processInstance.getExternalKey()},
+                {"definition_name", processInstance.getDefinitionName()},
+                {"instance_description", processInstance.getDescription()},
+                {"instance_internal_id", processInstance.getInternalId()},
+                {"instance_keyword", processInstance.getKeyword()},
+                {"instance_state", processInstance.getState()},//TODO remember about multiple states (when BpmTask is merged)
+                {"instance_create_date", formatShortDate(processInstance.getCreateDate())},
+        });
+        searchData.setSortValue(ProcessInstanceSortField.CREATE_DATE, processInstance.getCreateDate());
+        searchData.setSortValue(ProcessInstanceSortField.STATE, processInstance.getState());
+        searchData.setSortValue(ProcessInstanceSortField.KEY, processInstance.getExternalKey());
+        ProcessDefinitionConfig def = processInstance.getDefinition();
+        searchData.addSearchAttributes(new String[][]{
+                {"definition_key", def.getBpmDefinitionKey()},
+                {"definition_description", def.getDescription()},
+                {"definition_comment", def.getComment()},
+                {"definition_processname", def.getProcessName()},
+        });
+        for (ProcessDefinitionPermission perm : def.getPermissions()) {
+            if ("SEARCH".equals(perm.getPrivilegeName())) {
+                String roleName = perm.getRoleName();
+                if (roleName.equals(".*"))
+                    roleName = "__AWF__ROLE_ALL";
+                roleName = roleName.replace(' ', '_');
+                searchData.addSearchAttribute("__AWF__ROLE", roleName, true);
+            }
+        }
+        //lookup process state configuration
+        for (ProcessStateConfiguration psc : getStateConfigurations(def, nvl(processInstance.getActiveTasks(), new BpmTask[0]))) {
+            searchData.addSearchAttributes(new String[][]{
+                            {"state_commentary", psc.getCommentary()},
+                            {"state_description", psc.getDescription()},
+                            {"state_name", psc.getName()},
+                    });
+            for (ProcessStatePermission perm : psc.getPermissions()) {
+                if ("SEARCH".equals(perm.getPrivilegeName())) {
+                    String roleName = perm.getRoleName();
+                    if (roleName.equals(".*"))
+                        roleName = "__AWF__ROLE_ALL";
+                    roleName = roleName.replace(' ', '_');
+                    searchData.addSearchAttribute("__AWF__ROLE", roleName, true);
+                }
+            }
+        }
+        for (ProcessInstanceAttribute attr : processInstance.getProcessAttributes()) {
+            if (attr instanceof Searchable) {
+                Collection<ProcessInstanceSearchAttribute> attributes = ((Searchable) attr).getAttributes();
+                for (ProcessInstanceSearchAttribute pisa : attributes) {
+                    if (pisa.getName().startsWith("__AWF__")) { //no cheating please!
+                        String newName = pisa.getName().replace("__AWF__", "");
+                        logger.severe("Renaming process provided attribute " + pisa.getName() + " to " + newName +
+                                " as it may clash with internal search attributes. PLEASE CORRECT PROCESS DEFINITION.");
+                        pisa.setName(newName);
+                    }
+                }
+                searchData.addSearchAttributes(attributes);
+            }
+        }
+        for (String assignee : processInstance.getAssignees()) {
+            searchData.addSearchAttribute("__AWF__assignee", assignee, true);
+            logger.finest("__AWF__assignee: "+ assignee);
+        }
+        for (String queue : processInstance.getTaskQueues()) {
+            searchData.addSearchAttribute("__AWF__queue", queue, true);
+            logger.finest("__AWF__queue: "+ queue);
+        }
+        searchData.addSearchAttribute("__AWF__running", String.valueOf(processInstance.getRunning()), true);
+        return searchData;
+    }
+
+    /**
+     * State configurations of the active tasks, one per task which has a configuration.
+     * States not resolved earlier in this session are looked up in a single query.
+     */
+    private List<ProcessStateConfiguration> getStateConfigurations(ProcessDefinitionConfig def, BpmTask[] tasks) {
+        Set<String> missingStates = new HashSet<String>();
+        for (BpmTask t : tasks) {
+            String key = getStateConfigurationKey(def, t.getTaskName());
+            ProcessStateConfiguration psc = stateConfigurations.get(key);
+            //entities evicted from the session have to be loaded again
+            if (psc != null ? !session.contains(psc) : !stateConfigurations.containsKey(key)) {
+                missingStates.add(t.getTaskName());
+            }
+        }
+        if (!missingStates.isEmpty()) {
+            Map<String, ProcessStateConfiguration> loaded
+                    = new ProcessDefinitionDAOImpl(session).getProcessStateConfigurations(def, missingStates);
+            for (String state : missingStates) {
+                stateConfigurations.put(getStateConfigurationKey(def, state), loaded.get(state));
+            }
+        }
+
+        List<ProcessStateConfiguration> result = new ArrayList<ProcessStateConfiguration>(tasks.length);
+        for (BpmTask t : tasks) {
+            ProcessStateConfiguration psc = stateConfigurations.get(getStateConfigurationKey(def, t.getTaskName()));
+            if (psc != null) {
+                result.add(psc);
+            }
+        }
+        return result;
+    }
+
+    private static String getStateConfigurationKey(ProcessDefinitionConfig def, String stateName) {
+        return def.getId() + ":" + stateName;
+    }
+}
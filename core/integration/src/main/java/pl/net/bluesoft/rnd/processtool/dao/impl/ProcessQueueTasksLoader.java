@@ -0,0 +1,63 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.Session;
+
+/**
+ * Reads the open tasks of all process queues - unassigned tasks by candidate group -
+ * straight from the tables of the BPM engine, for
+ * {@link pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueCounters}.
+ */
+public class ProcessQueueTasksLoader {
+    private static final String JBPM_QUERY =
+            "select part.groupid_, task.dbid_" +
+            " from jbpm4_participation part" +
+            " join jbpm4_task task on task.dbid_ = part.task_" +
+            " where part.type_ = 'candidate' and part.groupid_ is not null and task.assignee_ is null";
+
+    private static final String ACTIVITI_QUERY =
+            "select link.group_id_, task.id_" +
+            " from act_ru_identitylink link" +
+            " join act_ru_task task on task.id_ = link.task_id_" +
+            " where link.type_ = 'candidate' and link.group_id_ is not null and task.assignee_ is null";
+
+    private final String query;
+
+    private ProcessQueueTasksLoader(String query) {
+        this.query = query;
+    }
+
+    /**
+     * Loader for the BPM engine of the given definition language, as told by
+     * {@link pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry#getBpmDefinitionLanguage()}
+     */
+    public static ProcessQueueTasksLoader forDefinitionLanguage(String bpmDefinitionLanguage) {
+        if ("jpdl".equals(bpmDefinitionLanguage)) {
+            return new ProcessQueueTasksLoader(JBPM_QUERY);
+        }
+        if ("bpmn20".equals(bpmDefinitionLanguage)) {
+            return new ProcessQueueTasksLoader(ACTIVITI_QUERY);
+        }
+        throw new IllegalArgumentException("Unsupported BPM definition language: " + bpmDefinitionLanguage);
+    }
+
+    /** Ids of the open tasks, by queue name */
+    public Map<String, Collection<String>> load(Session session) {
+        Map<String, Collection<String>> result = new HashMap<String, Collection<String>>();
+        for (Object row : session.createSQLQuery(query).list()) {
+            Object[] columns = (Object[]) row;
+            String queueName = (String) columns[0];
+            Collection<String> tasks = result.get(queueName);
+            if (tasks == null) {
+                tasks = new ArrayList<String>();
+                result.put(queueName, tasks);
+            }
+            tasks.add(String.valueOf(columns[1]));
+        }
+        return result;
+    }
+}
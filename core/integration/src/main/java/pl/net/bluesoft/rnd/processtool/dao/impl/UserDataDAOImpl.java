@@ -97,4 +97,16 @@ public class UserDataDAOImpl extends SimpleHibernateBean<UserData> implements Us
               }
           }};
       }
+
+      @Override
+      public Map<Long, UserData> loadUsersById(Collection<Long> ids) {
+          final List<UserData> users = findByCriteria(getDetachedCriteria()
+                  .add(Restrictions.in("id", ids))
+                  .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY));
+          return new HashMap<Long, UserData>(users.size()) {{
+              for (UserData user : users) {
+                  put(user.getId(), user);
+              }
+          }};
+      }
 }
@@ -2,6 +2,10 @@ package pl.net.bluesoft.rnd.processtool.dao.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.hibernate.Criteria;
@@ -98,6 +102,34 @@ public class UserProcessQueueDAOImpl extends SimpleHibernateBean<UserProcessQueu
 		return taskCount.intValue();
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, Map<QueueType, Integer>> getQueueLengths(Collection<String> userLogins) 
+	{
+		Map<String, Map<QueueType, Integer>> result = new HashMap<String, Map<QueueType, Integer>>();
+		if(userLogins.isEmpty())
+			return result;
+		
+		for(String userLogin: userLogins)
+			result.put(userLogin, new EnumMap<QueueType, Integer>(QueueType.class));
+		
+		List<Object[]> rows = session.createCriteria(UserProcessQueue.class)
+                .add(Restrictions.in("login", userLogins))
+                .setProjection(Projections.projectionList()
+                		.add(Projections.groupProperty("login"))
+                		.add(Projections.groupProperty("queueType"))
+                		.add(Projections.rowCount()))
+                .list();
+		
+		for(Object[] row: rows)
+		{
+			Map<QueueType, Integer> userQueues = result.get((String)row[0]);
+			if(userQueues != null)
+				userQueues.put((QueueType)row[1], ((Long)row[2]).intValue());
+		}
+		return result;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public Collection<UserProcessQueue> getAllUserProcessQueueByTaskId(Long taskId) 
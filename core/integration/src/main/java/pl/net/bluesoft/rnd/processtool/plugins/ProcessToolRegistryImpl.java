@@ -17,6 +17,8 @@ import javax.sql.DataSource;
 import javax.transaction.UserTransaction;
 
 import org.aperteworkflow.search.SearchProvider;
+import org.aperteworkflow.util.HibernateGraphCopier;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -36,11 +38,13 @@ import pl.net.bluesoft.rnd.processtool.dao.ProcessStateActionDAO;
 import pl.net.bluesoft.rnd.processtool.dao.UserDataDAO;
 import pl.net.bluesoft.rnd.processtool.dao.UserProcessQueueDAO;
 import pl.net.bluesoft.rnd.processtool.dao.UserSubstitutionDAO;
+import pl.net.bluesoft.rnd.processtool.dao.impl.ConfigurationCacheRegions;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessDefinitionDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessDictionaryDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessInstanceDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessInstanceFilterDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessInstanceSimpleAttributeDAOImpl;
+import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessQueueTasksLoader;
 import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessStateActionDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.UserDataDAOImpl;
 import pl.net.bluesoft.rnd.processtool.dao.impl.UserProcessQueueDAOImpl;
@@ -50,17 +54,27 @@ import pl.net.bluesoft.rnd.processtool.dict.exception.DictionaryLoadingException
 import pl.net.bluesoft.rnd.processtool.dict.xml.ProcessDictionaries;
 import pl.net.bluesoft.rnd.processtool.event.ProcessToolEventBusManager;
 import pl.net.bluesoft.rnd.processtool.model.Cacheable;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessQueueConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateAction;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolAutowire;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolSetting;
 import pl.net.bluesoft.rnd.processtool.model.dict.db.ProcessDBDictionary;
 import pl.net.bluesoft.rnd.processtool.model.dict.db.ProcessDBDictionaryPermission;
+import pl.net.bluesoft.rnd.processtool.sequences.SequenceAllocator;
+import pl.net.bluesoft.rnd.processtool.settings.PollingSettingsInvalidationChannel;
+import pl.net.bluesoft.rnd.processtool.settings.SettingsCache;
 import pl.net.bluesoft.rnd.processtool.steps.ProcessToolProcessStep;
+import pl.net.bluesoft.rnd.processtool.steps.StepLatencyHistogram;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.ProcessToolActionButton;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.ProcessToolWidget;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.annotations.AliasName;
+import pl.net.bluesoft.rnd.processtool.ui.widgets.annotations.AutowiringPlan;
 import pl.net.bluesoft.rnd.processtool.ui.widgets.taskitem.TaskItemProvider;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueVisibility;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueCounters;
 import pl.net.bluesoft.rnd.util.func.Func;
 import pl.net.bluesoft.rnd.util.i18n.I18NProvider;
 import pl.net.bluesoft.rnd.util.i18n.I18NSourceFactory;
@@ -80,6 +94,8 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
 	private static final Logger logger = Logger.getLogger(ProcessToolRegistryImpl.class.getName());
 
+    private static final int QUEUE_COUNTS_BATCH_SIZE = 500;
+
     private final List<ProcessToolServiceBridge> SERVICE_BRIDGE_REGISTRY = new LinkedList<ProcessToolServiceBridge>();
 
 	private final Map<String, Class<? extends ProcessToolWidget>> WIDGET_REGISTRY = new HashMap<String, Class<? extends ProcessToolWidget>>();
@@ -91,6 +107,65 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
     private ExecutorService executorService = Executors.newCachedThreadPool();
 	private EventBusManager eventBusManager = new ProcessToolEventBusManager(this, executorService);
+    private StepLatencyHistogram stepLatencyHistogram = new StepLatencyHistogram();
+    private SequenceAllocator sequenceAllocator = new SequenceAllocator();
+    private SettingsCache settingsCache = new SettingsCache(new SettingsCache.SettingsLoader() {
+        @Override
+        public Map<String, String> loadSettings() {
+            return loadSettingsFromDatabase();
+        }
+    }, new PollingSettingsInvalidationChannel(new PollingSettingsInvalidationChannel.VersionReader() {
+        @Override
+        public long readVersion() {
+            //pt_setting is small, a hash of its contents catches every change, also the ones made directly in the database
+            return loadSettingsFromDatabase().hashCode();
+        }
+    }));
+    private UserQueueCounters userQueueCounters = new UserQueueCounters(new UserQueueCounters.CountsLoader() {
+        @Override
+        public Map<String, Map<QueueType, Integer>> loadCounts(final Collection<String> logins) {
+            return withExistingOrNewContext(new ReturningProcessToolContextCallback<Map<String, Map<QueueType, Integer>>>() {
+                @Override
+                public Map<String, Map<QueueType, Integer>> processWithContext(ProcessToolContext ctx) {
+                    Map<String, Map<QueueType, Integer>> result = new HashMap<String, Map<QueueType, Integer>>();
+                    List<String> loginList = new ArrayList<String>(logins);
+                    //keep the IN list short enough for every database
+                    for (int i = 0; i < loginList.size(); i += QUEUE_COUNTS_BATCH_SIZE) {
+                        List<String> batch = loginList.subList(i, Math.min(i + QUEUE_COUNTS_BATCH_SIZE, loginList.size()));
+                        result.putAll(getUserProcessQueueDAO(ctx.getHibernateSession()).getQueueLengths(batch));
+                    }
+                    return result;
+                }
+            });
+        }
+    }, executorService);
+    private ProcessQueueCounters processQueueCounters = new ProcessQueueCounters(new ProcessQueueCounters.TasksLoader() {
+        @Override
+        public Map<String, Collection<String>> loadQueueTasks() {
+            return withExistingOrNewContext(new ReturningProcessToolContextCallback<Map<String, Collection<String>>>() {
+                @Override
+                public Map<String, Collection<String>> processWithContext(ProcessToolContext ctx) {
+                    return ProcessQueueTasksLoader.forDefinitionLanguage(getBpmDefinitionLanguage())
+                            .load(ctx.getHibernateSession());
+                }
+            });
+        }
+    }, executorService);
+    private ProcessQueueVisibility processQueueVisibility = new ProcessQueueVisibility(new ProcessQueueVisibility.QueueConfigsLoader() {
+        @Override
+        public Collection<ProcessQueueConfig> loadQueueConfigs() {
+            return withExistingOrNewContext(new ReturningProcessToolContextCallback<Collection<ProcessQueueConfig>>() {
+                @Override
+                public Collection<ProcessQueueConfig> processWithContext(ProcessToolContext ctx) {
+                    Collection<ProcessQueueConfig> configs = ctx.getProcessDefinitionDAO().getQueueConfigs();
+                    for (ProcessQueueConfig config : configs) {
+                        Hibernate.initialize(config.getRights());
+                    }
+                    return configs;
+                }
+            });
+        }
+    });
 
     private Map<String, Class> annotatedClasses = new HashMap<String, Class>();
     private Map<String, byte[]> hibernateResources = new HashMap<String, byte[]>();
@@ -197,6 +272,36 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
         return executorService;
     }
 
+    @Override
+    public UserQueueCounters getUserQueueCounters() {
+        return userQueueCounters;
+    }
+
+    @Override
+    public ProcessQueueCounters getProcessQueueCounters() {
+        return processQueueCounters;
+    }
+
+    @Override
+    public ProcessQueueVisibility getProcessQueueVisibility() {
+        return processQueueVisibility;
+    }
+
+    @Override
+    public StepLatencyHistogram getStepLatencyHistogram() {
+        return stepLatencyHistogram;
+    }
+
+    @Override
+    public SequenceAllocator getSequenceAllocator() {
+        return sequenceAllocator;
+    }
+
+    @Override
+    public SettingsCache getSettingsCache() {
+        return settingsCache;
+    }
+
     @Override
     public PluginManager getPluginManager() {
         return pluginManager;
@@ -333,6 +438,8 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
                 throw new RuntimeException(e);
             }
         }
+        ConfigurationCacheRegions.configure(configuration);
+
         ClassLoader cl = Thread.currentThread().getContextClassLoader();
 		try {
 			Thread.currentThread().setContextClassLoader(new ExtClassLoader(cl));
@@ -477,7 +584,7 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
 	@Override
 	public ProcessDefinitionDAO getProcessDefinitionDAO(Session hibernateSession) {
-		return new ProcessDefinitionDAOImpl(hibernateSession);
+		return new ProcessDefinitionDAOImpl(hibernateSession, processQueueVisibility);
 	}
 	
 	@Override
@@ -502,14 +609,21 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 	}
 
 	public void setProcessToolContextFactory(ProcessToolContextFactory processToolContextFactory) {
+		ProcessToolContextFactory previous = this.processToolContextFactory;
 		this.processToolContextFactory = processToolContextFactory;
+		if (previous != null && previous != processToolContextFactory) {
+			previous.close();
+		}
 	}
 
 	@Override
 	public void unregisterProcessToolContextFactory(Class<?> cls) {
-		if (processToolContextFactory == null ||
-				processToolContextFactory.getClass().getName().equals(cls.getName())) {
+		ProcessToolContextFactory previous = processToolContextFactory;
+		if (previous == null || previous.getClass().getName().equals(cls.getName())) {
 			processToolContextFactory = null;
+			if (previous != null) {
+				previous.close();
+			}
 		}
 	}
 
@@ -521,6 +635,7 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
     @Override
 	public boolean unregisterModelExtension(Class<?>... cls) {
         logger.warning("Unregistered model extensions: " + FormatUtil.joinClassNames(cls));
+        HibernateGraphCopier.clear();
         return removeAnnotatedClass(cls);
 	}
 
@@ -543,6 +658,8 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
 	@Override
 	public void unregisterWidget(Class<?> cls) {
+		AutowiringPlan.clear();
+		HibernateGraphCopier.clear();
 		unregisterWidget(cls.getName());
         logger.info("Unregistered widget extension: " + cls.getName());
 		AliasName annotation = (AliasName) cls.getAnnotation(AliasName.class);
@@ -564,6 +681,8 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
 	@Override
 	public void unregisterButton(Class<?> cls) {
+		AutowiringPlan.clear();
+		HibernateGraphCopier.clear();
         AliasName annotation = cls.getAnnotation(AliasName.class);
 		if (annotation != null) {
 			BUTTON_REGISTRY.remove(annotation.name());
@@ -610,6 +729,8 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
 
 	public void unregisterStep(String name) {
         STEP_REGISTRY.remove(name);
+        AutowiringPlan.clear();
+        HibernateGraphCopier.clear();
         logger.info("Unregistered step extension: " + name);
     }
 
@@ -904,6 +1025,23 @@ public class ProcessToolRegistryImpl implements ProcessToolRegistry {
             }
         }
 
+        private Map<String, String> loadSettingsFromDatabase() {
+            Session session = sessionFactory.openSession();
+            try {
+                Transaction tx = session.beginTransaction();
+                Map<String, String> settings = new HashMap<String, String>();
+                List<ProcessToolSetting> list = session.createCriteria(ProcessToolSetting.class).list();
+                for (ProcessToolSetting setting : list) {
+                    settings.put(setting.getKey(), setting.getValue());
+                }
+                tx.commit();
+                return settings;
+            }
+            finally {
+                session.close();
+            }
+        }
+
         @Override
         public <K, V> Map<K, V> getCache(String cacheName) {
             return caches.get(cacheName);
@@ -0,0 +1,206 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background writer for the process search index.
+ *
+ * Documents are put into a bounded pending map keyed by process instance id, so repeated updates
+ * of the same process waiting for the writer are coalesced into one. A single daemon thread
+ * drains the map in batches, applies them to the shared IndexWriter and refreshes the
+ * near-real-time searcher. Producers block only when the pending map is full.
+ */
+class LuceneIndexUpdater {
+	private static final int DEFAULT_CAPACITY = 10000;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final long DEFAULT_COMMIT_INTERVAL = 5000;
+
+	private final String idField;
+	private final IndexWriter indexWriter;
+	private final LuceneSearcherManager searcherManager;
+	private final Logger logger;
+
+	private final Map<String, Document> pending = new LinkedHashMap<String, Document>();
+	private int capacity = DEFAULT_CAPACITY;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long commitInterval = DEFAULT_COMMIT_INTERVAL;
+
+	private Thread worker;
+	private volatile boolean running;
+	private boolean processing;
+	private long lastCommit = System.currentTimeMillis();
+	private boolean uncommitted;
+
+	public LuceneIndexUpdater(String idField, IndexWriter indexWriter, LuceneSearcherManager searcherManager, Logger logger) {
+		this.idField = idField;
+		this.indexWriter = indexWriter;
+		this.searcherManager = searcherManager;
+		this.logger = logger;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processLoop();
+			}
+		}, "aperte-lucene-index-updater");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			thread = worker;
+			worker = null;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized void enqueue(String id, Document doc) {
+		if (!running) {
+			throw new IllegalStateException("Index updater is not running");
+		}
+		while (running && pending.size() >= capacity && !pending.containsKey(id)) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		pending.remove(id);
+		pending.put(id, doc);
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until every document enqueued before this call is visible to searchers.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (running && (!pending.isEmpty() || processing)) {
+			wait();
+		}
+	}
+
+	private void processLoop() {
+		while (true) {
+			List<Map.Entry<String, Document>> batch = takeBatch();
+			if (batch == null) {
+				break;
+			}
+			try {
+				if (!batch.isEmpty()) {
+					for (Map.Entry<String, Document> e : batch) {
+						indexWriter.updateDocument(new Term(idField, e.getKey()), e.getValue());
+					}
+					uncommitted = true;
+					searcherManager.maybeRefresh();
+					logger.fine("Indexed batch of " + batch.size() + " documents");
+				}
+			}
+			catch (Throwable e) {
+				logger.log(Level.SEVERE, "Failed to update search index", e);
+			}
+			try {
+				if (uncommitted && (isIdle() || System.currentTimeMillis() - lastCommit >= commitInterval)) {
+					// a failed commit is not retried on its own, the next one includes all pending changes anyway
+					uncommitted = false;
+					lastCommit = System.currentTimeMillis();
+					indexWriter.commit();
+				}
+			}
+			catch (Throwable e) {
+				logger.log(Level.SEVERE, "Failed to commit search index", e);
+			}
+			finally {
+				batchDone();
+			}
+		}
+		try {
+			if (uncommitted) {
+				indexWriter.commit();
+			}
+		}
+		catch (Throwable e) {
+			logger.log(Level.SEVERE, "Failed to commit search index", e);
+		}
+	}
+
+	private synchronized List<Map.Entry<String, Document>> takeBatch() {
+		while (running && pending.isEmpty()) {
+			if (uncommitted) {
+				processing = true;
+				return new ArrayList<Map.Entry<String, Document>>(0);
+			}
+			try {
+				wait(commitInterval);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		if (pending.isEmpty()) {
+			return null;
+		}
+		List<Map.Entry<String, Document>> batch = new ArrayList<Map.Entry<String, Document>>(Math.min(batchSize, pending.size()));
+		Iterator<Map.Entry<String, Document>> it = pending.entrySet().iterator();
+		while (it.hasNext() && batch.size() < batchSize) {
+			Map.Entry<String, Document> e = it.next();
+			batch.add(new AbstractMap.SimpleEntry<String, Document>(e.getKey(), e.getValue()));
+			it.remove();
+		}
+		processing = true;
+		notifyAll();
+		return batch;
+	}
+
+	private synchronized boolean isIdle() {
+		return pending.isEmpty();
+	}
+
+	private synchronized void batchDone() {
+		processing = false;
+		notifyAll();
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setCommitInterval(long commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+}
@@ -0,0 +1,238 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.KeywordTokenizer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.ReusableAnalyzerBase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Analyzers and query parsing of the process search index.
+ *
+ * Every field is either a keyword field, indexed as a single lower case term (ids, logins, queues
+ * and attributes marked as keywords), or a text field analyzed by the standard analyzer. The
+ * analyzers are stateless and shared by the index writer and all searches.
+ *
+ * A free text query is parsed against every searchable field known to the index, with the
+ * analyzer of that field. The known fields are kept in a catalog document stored in the index
+ * itself, so they survive restarts. Indexes written before the catalog existed have a synthetic
+ * "all" field instead, it is searched as well until the index is rebuilt. They also hold the fields
+ * now indexed as keywords (logins, keys) as analyzed text, such fields stay text fields, both for
+ * parsing and for new documents, until the index is rebuilt.
+ */
+class LuceneQueryBuilder {
+	static final Version VERSION = Version.LUCENE_35;
+
+	/** Id and type of the catalog document */
+	static final String CATALOG_ID = "__AWF__FIELDS";
+	static final String CATALOG_TYPE = "FIELD_CATALOG";
+
+	private static final String CATALOG_KEYWORD_FIELD = "__AWF__keyword_field";
+	private static final String CATALOG_TEXT_FIELD = "__AWF__text_field";
+
+	/** Field of the documents indexed before the catalog */
+	static final String LEGACY_ALL_FIELD = "all";
+
+	private static final String INTERNAL_FIELD_PREFIX = "__AWF__";
+
+	/** Fields always indexed as keywords */
+	private static final Set<String> KEYWORD_FIELDS = new HashSet<String>(Arrays.asList(
+			"creator_login", "creator_email", "instance_internal_id", "instance_key", "definition_key"));
+
+	/** Fields searched even before anything is indexed */
+	private static final List<String> DEFAULT_TEXT_FIELDS = Arrays.asList(
+			"instance_description", "instance_keyword", "definition_description", "state_description");
+
+	private final Analyzer textAnalyzer = new StandardAnalyzer(VERSION);
+	private final Analyzer keywordAnalyzer = new LowerCaseKeywordAnalyzer();
+	private final Analyzer analyzer = new FieldAnalyzer();
+
+	/** Known fields, true for keyword fields */
+	private final Map<String, Boolean> fields = new ConcurrentHashMap<String, Boolean>();
+	private volatile String[] searchableFields;
+	private volatile boolean legacyIndex;
+	/** Keyword fields held as analyzed text by an index written before the catalog */
+	private volatile Set<String> legacyTextFields = new HashSet<String>();
+
+	LuceneQueryBuilder() {
+		for (String field : DEFAULT_TEXT_FIELDS) {
+			fields.put(field, false);
+		}
+		for (String field : KEYWORD_FIELDS) {
+			fields.put(field, true);
+		}
+	}
+
+	/** Analyzer choosing the analyzer of the field, for both indexing and parsing */
+	public Analyzer getAnalyzer() {
+		return analyzer;
+	}
+
+	public boolean isKeyword(String field) {
+		return field.startsWith(INTERNAL_FIELD_PREFIX) || Boolean.TRUE.equals(fields.get(field));
+	}
+
+	/** Whether a value of the field is indexed as a keyword, when the attribute asks for it or not */
+	public boolean isKeyword(String field, boolean requested) {
+		return !legacyTextFields.contains(field) && (requested || isKeyword(field));
+	}
+
+	/**
+	 * Remember a field of an indexed document.
+	 *
+	 * @return true if the field was not known yet and the catalog has to be stored again
+	 */
+	public boolean registerField(String field, boolean keyword) {
+		if (field.startsWith(INTERNAL_FIELD_PREFIX)) {
+			return false;
+		}
+		Boolean known = fields.get(field);
+		if (known != null && (known || !keyword)) {
+			return false;
+		}
+		// a field used as a keyword once stays a keyword
+		fields.put(field, keyword);
+		searchableFields = null;
+		return true;
+	}
+
+	/** Read the known fields from the catalog document and the fields of the index */
+	public void load(Document catalog, Collection<String> indexedFields) {
+		Set<String> textFields = new HashSet<String>();
+		if (catalog != null) {
+			// the catalog tells how the index holds the fields, even the ones which are keywords by default
+			for (String field : catalog.getValues(CATALOG_TEXT_FIELD)) {
+				fields.put(field, false);
+				textFields.add(field);
+			}
+			for (String field : catalog.getValues(CATALOG_KEYWORD_FIELD)) {
+				fields.put(field, true);
+				textFields.remove(field);
+			}
+		}
+		else {
+			for (String field : KEYWORD_FIELDS) {
+				if (indexedFields.contains(field)) {
+					textFields.add(field);
+				}
+			}
+		}
+		textFields.retainAll(KEYWORD_FIELDS);
+		for (String field : textFields) {
+			fields.put(field, false);
+		}
+		legacyTextFields = textFields;
+		legacyIndex = indexedFields.contains(LEGACY_ALL_FIELD);
+		searchableFields = null;
+	}
+
+	/** Whether the index has documents written before the catalog, which should be rebuilt */
+	public boolean isLegacyIndex() {
+		return legacyIndex;
+	}
+
+	/** Whether the index holds fields in an older way and should be rebuilt */
+	public boolean isRebuildNeeded() {
+		return legacyIndex || !legacyTextFields.isEmpty();
+	}
+
+	/** Builder of a new index, with the fields known to this one, in the current way */
+	public LuceneQueryBuilder createRebuildBuilder() {
+		LuceneQueryBuilder builder = new LuceneQueryBuilder();
+		for (Map.Entry<String, Boolean> entry : fields.entrySet()) {
+			builder.registerField(entry.getKey(), entry.getValue());
+		}
+		return builder;
+	}
+
+	public Document createCatalogDocument(String idField, String typeField) {
+		Document doc = new Document();
+		doc.add(new Field(idField, CATALOG_ID, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field(typeField, CATALOG_TYPE, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		for (Map.Entry<String, Boolean> entry : fields.entrySet()) {
+			doc.add(new Field(entry.getValue() ? CATALOG_KEYWORD_FIELD : CATALOG_TEXT_FIELD, entry.getKey(),
+					Field.Store.YES, Field.Index.NO));
+		}
+		return doc;
+	}
+
+	/** Parse a free text query against all searchable fields */
+	public Query parse(String query) throws ParseException {
+		// the parser is not thread safe, but cheap - the analyzers are shared
+		MultiFieldQueryParser parser = new MultiFieldQueryParser(VERSION, getSearchableFields(), analyzer);
+		return parser.parse(query);
+	}
+
+	/** Value of a keyword field as it is indexed */
+	public static String toKeyword(String value) {
+		return value.toLowerCase();
+	}
+
+	private String[] getSearchableFields() {
+		String[] result = searchableFields;
+		if (result == null) {
+			List<String> list = new ArrayList<String>(fields.keySet());
+			if (legacyIndex) {
+				list.add(LEGACY_ALL_FIELD);
+			}
+			result = list.toArray(new String[list.size()]);
+			searchableFields = result;
+		}
+		return result;
+	}
+
+	/** Whole value as one lower case term */
+	private static final class LowerCaseKeywordAnalyzer extends ReusableAnalyzerBase {
+		@Override
+		protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+			Tokenizer tokenizer = new KeywordTokenizer(reader);
+			return new TokenStreamComponents(tokenizer, new LowerCaseFilter(VERSION, tokenizer));
+		}
+	}
+
+	private final class FieldAnalyzer extends Analyzer {
+		@Override
+		public final TokenStream tokenStream(String fieldName, Reader reader) {
+			return getFieldAnalyzer(fieldName).tokenStream(fieldName, reader);
+		}
+
+		@Override
+		public final TokenStream reusableTokenStream(String fieldName, Reader reader) throws IOException {
+			return getFieldAnalyzer(fieldName).reusableTokenStream(fieldName, reader);
+		}
+
+		@Override
+		public final int getPositionIncrementGap(String fieldName) {
+			return getFieldAnalyzer(fieldName).getPositionIncrementGap(fieldName);
+		}
+
+		@Override
+		public final int getOffsetGap(Fieldable field) {
+			return getFieldAnalyzer(field.name()).getOffsetGap(field);
+		}
+
+		private Analyzer getFieldAnalyzer(String fieldName) {
+			return isKeyword(fieldName) ? keywordAnalyzer : textAnalyzer;
+		}
+	}
+}
@@ -1,28 +1,29 @@
 package pl.net.bluesoft.rnd.processtool.plugins.osgi;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 import org.aperteworkflow.search.ProcessInstanceSearchAttribute;
 import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
 import org.aperteworkflow.search.SearchProvider;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +33,7 @@ import java.util.logging.Logger;
  * Time: 16:39
  */
 class LuceneSearchService implements SearchProvider {
-	private static final String AWF__ID = "__AWF__ID";
+	static final String AWF__ID = "__AWF__ID";
 	private static final String AWF__TYPE = "__AWF__TYPE";
 	private static final String AWF__ROLE = "__AWF__ROLE";
 	private static final String AWF_RUNNING = "__AWF__running";
@@ -41,12 +42,32 @@ class LuceneSearchService implements SearchProvider {
 
 	private static final String PROCESS_INSTANCE = "PROCESS_INSTANCE";
 
+	private static final String AWF__SORT_ID = ProcessInstanceSortField.ID.getIndexFieldName();
+
+	/** Default number of results, when no limit is given */
 	private static final int SEARCH_LIMIT = 1000;
 
+	/** Length of the id at the start of a cursor, the sort value follows it */
+	private static final int CURSOR_ID_LENGTH = ProcessInstanceSearchData.formatSortValue(0).length();
+
+	/** Prefix of the cursors holding an offset, used until an index without the sort fields is rebuilt */
+	private static final String OFFSET_CURSOR_PREFIX = "@";
+
 	private String luceneDir;
 	private Directory index;
-	private IndexSearcher indexSearcher;
-	private IndexReader indexReader;
+	private IndexWriter indexWriter;
+	private LuceneSearcherManager searcherManager;
+	private LuceneIndexUpdater indexUpdater;
+	private LuceneQueryBuilder queryBuilder;
+
+	/** Searches and updates share the lock, replacing the whole index takes it exclusively */
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+	/** Documents updated while a new index is being built, they are applied to it before the swap */
+	private Map<String, Document> rebuildUpdates;
+	/** Fields of the new index being built, written as its catalog by the swap */
+	private LuceneQueryBuilder rebuildQueryBuilder;
+	/** Some documents were indexed before the sort fields, they cannot be found after a cursor */
+	private volatile boolean sortFieldsIncomplete;
 
 	private Logger LOGGER;
 
@@ -65,58 +86,188 @@ class LuceneSearchService implements SearchProvider {
 					LOGGER.severe("Created Default lucene index directory: " + luceneDir);
 				}
 			}
-			try { if (indexSearcher != null) {
-				indexSearcher.close();
-			} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
-			try { if (indexReader != null) {
-				indexReader.close();
-			} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
-			try { if (index != null) {
-				index.close();
-			} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
+			close();
 			index = FSDirectory.open(path);
-			indexReader = IndexReader.open(index);
-			indexSearcher = new IndexSearcher(indexReader);
-
+			queryBuilder = new LuceneQueryBuilder();
+			//how awesome to force programmer to hardcode library version with no reasonable default
+			IndexWriterConfig cfg = new IndexWriterConfig(LuceneQueryBuilder.VERSION, queryBuilder.getAnalyzer());
+			indexWriter = new IndexWriter(index, cfg);
+			searcherManager = new LuceneSearcherManager(indexWriter);
+			loadFieldCatalog();
+			indexUpdater = new LuceneIndexUpdater(AWF__ID, indexWriter, searcherManager, LOGGER);
+			indexUpdater.start();
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 			throw new RuntimeException(e);
 		}
 	}
 
+	private void loadFieldCatalog() throws IOException {
+		IndexSearcher indexSearcher = searcherManager.acquire();
+		boolean catalogMissing;
+		try {
+			TopDocs catalog = indexSearcher.search(new TermQuery(new Term(AWF__ID, LuceneQueryBuilder.CATALOG_ID)), 1);
+			catalogMissing = catalog.scoreDocs.length == 0;
+			queryBuilder.load(catalogMissing ? null : indexSearcher.doc(catalog.scoreDocs[0].doc),
+					indexSearcher.getIndexReader().getFieldNames(IndexReader.FieldOption.INDEXED));
+
+			Query processes = new TermQuery(new Term(AWF__TYPE, PROCESS_INSTANCE));
+			BooleanQuery sortable = new BooleanQuery();
+			sortable.add(processes, BooleanClause.Occur.MUST);
+			sortable.add(new TermRangeQuery(AWF__SORT_ID, null, null, true, true), BooleanClause.Occur.MUST);
+			sortFieldsIncomplete = indexSearcher.search(processes, 1).totalHits != indexSearcher.search(sortable, 1).totalHits;
+		}
+		finally {
+			searcherManager.release(indexSearcher);
+		}
+		if (catalogMissing) {
+			// without a catalog the keyword fields of the index could not be told from the ones of an old one
+			indexWriter.updateDocument(new Term(AWF__ID, LuceneQueryBuilder.CATALOG_ID),
+					queryBuilder.createCatalogDocument(AWF__ID, AWF__TYPE));
+			indexWriter.commit();
+		}
+		if (queryBuilder.isLegacyIndex()) {
+			LOGGER.warning("Lucene index in " + luceneDir + " contains documents with the obsolete \"all\" field, " +
+					"it is searched until the index is rebuilt");
+		}
+		if (sortFieldsIncomplete) {
+			LOGGER.warning("Lucene index in " + luceneDir + " contains documents without the sort fields, " +
+					"sorted results are paged by offset until the index is rebuilt");
+		}
+		if (queryBuilder.isRebuildNeeded() && !queryBuilder.isLegacyIndex()) {
+			LOGGER.warning("Lucene index in " + luceneDir + " holds keyword fields as text, " +
+					"they are searched as text until the index is rebuilt");
+		}
+	}
+
+	/** Whether the index has documents written by an older version, which should be rebuilt */
+	public boolean isRebuildNeeded() {
+		return sortFieldsIncomplete || queryBuilder.isRebuildNeeded();
+	}
+
 	@Override
 	public void updateIndex(ProcessInstanceSearchData processInstanceSearchData) {
+		IndexDocument doc = createDocument(processInstanceSearchData, queryBuilder);
+		Document rebuildDoc = null;
+		synchronized (this) {
+			if (rebuildQueryBuilder != null) {
+				rebuildDoc = createDocument(processInstanceSearchData, rebuildQueryBuilder).document;
+			}
+		}
+		swapLock.readLock().lock();
+		try {
+			if (doc.newFields) {
+				// the catalog of a new index is written by the swap
+				enqueue(queryBuilder.createCatalogDocument(AWF__ID, AWF__TYPE), null);
+			}
+			enqueue(doc.document, rebuildDoc);
+		}
+		finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/** Index document of a process instance for the new index being built */
+	public synchronized Document createRebuildDocument(ProcessInstanceSearchData processInstanceSearchData) {
+		if (rebuildQueryBuilder == null) {
+			throw new IllegalStateException("No search index is being built");
+		}
+		return createDocument(processInstanceSearchData, rebuildQueryBuilder).document;
+	}
+
+	/** Index document of a process instance, with the fields known to the given builder */
+	private IndexDocument createDocument(ProcessInstanceSearchData processInstanceSearchData, LuceneQueryBuilder builder) {
 		Document doc = new Document();
 		doc.add(new Field(AWF__ID,
 				String.valueOf(processInstanceSearchData.getProcessInstanceId()),
 				Field.Store.YES,Field.Index.NOT_ANALYZED));
 		doc.add(new Field(AWF__TYPE, PROCESS_INSTANCE, Field.Store.YES, Field.Index.NOT_ANALYZED));
+		boolean newFields = false;
 		for (ProcessInstanceSearchAttribute attr : processInstanceSearchData.getSearchAttributes()) {
 			if (attr.getValue() != null && !attr.getValue().trim().isEmpty()) {
+				boolean keyword = builder.isKeyword(attr.getName(), attr.isKeyword());
 				Field field = new Field(attr.getName(),
-						attr.isKeyword() ? attr.getValue().toLowerCase() : attr.getValue(),
+						keyword ? LuceneQueryBuilder.toKeyword(attr.getValue()) : attr.getValue(),
 						Field.Store.YES,
-						attr.isKeyword() ? Field.Index.NOT_ANALYZED : Field.Index.ANALYZED);
+						keyword ? Field.Index.NOT_ANALYZED : Field.Index.ANALYZED);
 				doc.add(field);
+				newFields |= builder.registerField(attr.getName(), keyword);
 			}
 		}
-		updateIndex(doc);
+		for (ProcessInstanceSortField sortField : ProcessInstanceSortField.values()) {
+			String value = processInstanceSearchData.getSortValue(sortField);
+			// every document has a value, so it can be found after a cursor
+			doc.add(new Field(sortField.getIndexFieldName(), value != null ? value : "",
+					Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+		}
+		return new IndexDocument(doc, newFields);
 	}
 
 	@Override
 	public List<Long> searchProcesses(String query, Integer offset,
 									  Integer limit, boolean onlyRunning, String[] userRoles,
 									  String assignee, String... queues) {
-
-		List<Document> results;
-		List<Query> addQueries = new ArrayList<Query>();
 		if (offset == null) {
-			offset = null; // ROFL!!!
+			offset = 0;
 		}
 		if (limit == null) {
 			limit = SEARCH_LIMIT;
 		}
+		Query q = buildQuery(query, getFilterQueries(onlyRunning, userRoles, assignee, queues));
+		List<Long> res = new ArrayList<Long>(limit);
+		for (Hit hit : searchSorted(q, getSort(ProcessInstanceSortField.ID, true), offset, limit)) {
+			res.add(hit.processInstanceId);
+		}
+		return res;
+	}
+
+	@Override
+	public ProcessInstanceSearchPage searchProcesses(String query, ProcessInstanceSortField sortField, boolean descending,
+													 String cursor, int limit, boolean onlyRunning, String[] userRoles,
+													 String assignee, String[] queues) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Search limit must be positive: " + limit);
+		}
+		List<Query> addQueries = getFilterQueries(onlyRunning, userRoles, assignee, queues);
+		// documents without the sort fields would be skipped by a cursor query, they are paged by offset
+		boolean byOffset = cursor != null ? cursor.startsWith(OFFSET_CURSOR_PREFIX) : sortFieldsIncomplete;
+		int offset = 0;
+		if (byOffset) {
+			offset = cursor != null ? parseOffsetCursor(cursor) : 0;
+		}
+		else if (cursor != null) {
+			addQueries.add(getCursorQuery(sortField, descending, cursor));
+		}
+		Query q = buildQuery(query, addQueries);
+
+		// one hit more tells whether there is a next page
+		List<Hit> hits = searchSorted(q, getSort(sortField, descending), offset, limit + 1);
+		List<Long> res = new ArrayList<Long>(limit);
+		for (int i = 0; i < hits.size() && i < limit; i++) {
+			res.add(hits.get(i).processInstanceId);
+		}
+		String nextCursor = null;
+		if (hits.size() > limit) {
+			nextCursor = byOffset ? OFFSET_CURSOR_PREFIX + (offset + limit) : hits.get(limit - 1).getCursor();
+		}
+		return new ProcessInstanceSearchPage(res, nextCursor);
+	}
+
+	private static int parseOffsetCursor(String cursor) {
+		try {
+			int offset = Integer.parseInt(cursor.substring(OFFSET_CURSOR_PREFIX.length()));
+			if (offset >= 0) {
+				return offset;
+			}
+		}
+		catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+	}
 
+	private List<Query> getFilterQueries(boolean onlyRunning, String[] userRoles, String assignee, String[] queues) {
+		List<Query> addQueries = new ArrayList<Query>();
 		if (assignee != null) {
 			addQueries.add(new TermQuery(new Term(AWF__ASSIGNEE, assignee)));
 		}
@@ -139,49 +290,128 @@ class LuceneSearchService implements SearchProvider {
 			}
 			addQueries.add(bq);
 		}
-		results = search(query, 0, SEARCH_LIMIT,
-				addQueries.toArray(new Query[addQueries.size()]));
-		// always check 1000 first results - larger limit means no sense and
-		// Lucene provides the results
-		// with no sort guarantees
-
-		List<Long> res = new ArrayList<Long>(results.size());
-		for (Document doc : results) {
-			Fieldable fieldable = doc.getFieldable(AWF__ID);
-			if (fieldable != null) {
-				String s = fieldable.stringValue();
-				if (s != null) {
-					res.add(Long.parseLong(s));
+		return addQueries;
+	}
+
+	private static Sort getSort(ProcessInstanceSortField sortField, boolean descending) {
+		SortField byId = new SortField(AWF__SORT_ID, SortField.STRING, descending);
+		if (sortField == ProcessInstanceSortField.ID) {
+			return new Sort(byId);
+		}
+		return new Sort(new SortField(sortField.getIndexFieldName(), SortField.STRING, descending), byId);
+	}
+
+	/** Documents following the last hit of the previous page, in the order of the sort */
+	private static Query getCursorQuery(ProcessInstanceSortField sortField, boolean descending, String cursor) {
+		if (cursor.length() < CURSOR_ID_LENGTH || !isDigits(cursor.substring(0, CURSOR_ID_LENGTH))) {
+			throw new IllegalArgumentException("Invalid search cursor: " + cursor);
+		}
+		String id = cursor.substring(0, CURSOR_ID_LENGTH);
+		Query afterId = descending
+				? new TermRangeQuery(AWF__SORT_ID, null, id, false, false)
+				: new TermRangeQuery(AWF__SORT_ID, id, null, false, false);
+		if (sortField == ProcessInstanceSortField.ID) {
+			return afterId;
+		}
+
+		String field = sortField.getIndexFieldName();
+		String value = cursor.substring(CURSOR_ID_LENGTH);
+		BooleanQuery sameValue = new BooleanQuery();
+		sameValue.add(new TermQuery(new Term(field, value)), BooleanClause.Occur.MUST);
+		sameValue.add(afterId, BooleanClause.Occur.MUST);
+
+		BooleanQuery bq = new BooleanQuery();
+		bq.add(descending
+				? new TermRangeQuery(field, null, value, false, false)
+				: new TermRangeQuery(field, value, null, false, false), BooleanClause.Occur.SHOULD);
+		bq.add(sameValue, BooleanClause.Occur.SHOULD);
+		return bq;
+	}
+
+	private static boolean isDigits(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<Hit> searchSorted(Query query, Sort sort, int offset, int limit) {
+		try {
+			LOGGER.fine("Searching lucene index with query: " + query + ", sort: " + sort);
+			swapLock.readLock().lock();
+			IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				TopFieldDocs search = indexSearcher.search(query, null, offset + limit, sort);
+				LOGGER.fine("Total result count for query: " + query + " is " + search.totalHits);
+
+				List<Hit> results = new ArrayList<Hit>(limit);
+				for (int i = offset; i < search.scoreDocs.length; i++) {
+					FieldDoc fieldDoc = (FieldDoc) search.scoreDocs[i];
+					String id = (String) fieldDoc.fields[fieldDoc.fields.length - 1];
+					String value = fieldDoc.fields.length > 1 ? (String) fieldDoc.fields[0] : null;
+					if (id == null) {
+						// indexed before the sort fields were introduced
+						id = indexSearcher.doc(fieldDoc.doc).get(AWF__ID);
+						if (id == null) {
+							continue;
+						}
+						id = ProcessInstanceSearchData.formatSortValue(Long.parseLong(id));
+					}
+					results.add(new Hit(id, value));
 				}
+				return results;
+			}
+			finally {
+				searcherManager.release(indexSearcher);
+				swapLock.readLock().unlock();
 			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			throw new RuntimeException(e);
 		}
-		Collections.sort(res);
-		Collections.reverse(res);
-		return res.subList(offset, Math.min(offset + limit, res.size()));
 	}
 
-	public List<Document> search(String query, int offset, int limit, Query... addQueries) {
+	private Query buildQuery(String query, List<Query> addQueries) {
 		try {
 			LOGGER.fine("Parsing lucene search query: " + query);
-			QueryParser qp = new QueryParser(Version.LUCENE_35, "all", new StandardAnalyzer(Version.LUCENE_35));
-			Query q = qp.parse(query);
+			Query q = queryBuilder.parse(query);
 			BooleanQuery bq = new BooleanQuery();
 			bq.add(new TermQuery(new Term(AWF__TYPE, PROCESS_INSTANCE)), BooleanClause.Occur.MUST);
 			for (Query qq : addQueries) {
 				bq.add(qq, BooleanClause.Occur.MUST);
 			}
 			bq.add(q, BooleanClause.Occur.MUST);
+			return bq;
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	public List<Document> search(String query, int offset, int limit, Query... addQueries) {
+		try {
+			Query bq = buildQuery(query, Arrays.asList(addQueries));
 
 			LOGGER.fine("Searching lucene index with query: " + bq.toString());
-			TopDocs search = indexSearcher.search(bq, offset + limit);
+			swapLock.readLock().lock();
+			IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				TopDocs search = indexSearcher.search(bq, offset + limit);
 
-			List<Document> results = new ArrayList<Document>(limit);
-			LOGGER.fine("Total result count for query: " + bq.toString() + " is " + search.totalHits);
-			for (int i = offset; i < offset+limit && i < search.totalHits; i++) {
-				ScoreDoc scoreDoc = search.scoreDocs[i];
-				results.add(indexSearcher.doc(scoreDoc.doc));
+				List<Document> results = new ArrayList<Document>(limit);
+				LOGGER.fine("Total result count for query: " + bq.toString() + " is " + search.totalHits);
+				for (int i = offset; i < offset+limit && i < search.totalHits; i++) {
+					ScoreDoc scoreDoc = search.scoreDocs[i];
+					results.add(indexSearcher.doc(scoreDoc.doc));
+				}
+				return results;
+			}
+			finally {
+				searcherManager.release(indexSearcher);
+				swapLock.readLock().unlock();
 			}
-			return results;
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 			throw new RuntimeException(e);
@@ -189,45 +419,182 @@ class LuceneSearchService implements SearchProvider {
 		}
 	}
 
-	public synchronized void updateIndex(Document... docs) {
+	/** Document of a process instance and whether it introduced fields the catalog does not know yet */
+	private static class IndexDocument {
+		private final Document document;
+		private final boolean newFields;
+
+		private IndexDocument(Document document, boolean newFields) {
+			this.document = document;
+			this.newFields = newFields;
+		}
+	}
+
+	/** A search result: the process instance and its sort value */
+	private static class Hit {
+		private final String id;
+		private final String sortValue;
+		private final long processInstanceId;
+
+		private Hit(String id, String sortValue) {
+			this.id = id;
+			this.sortValue = sortValue;
+			this.processInstanceId = Long.parseLong(id);
+		}
+
+		private String getCursor() {
+			return id + (sortValue != null ? sortValue : "");
+		}
+	}
+
+	/**
+	 * Queues documents for the background index updater. Changes become visible to searches
+	 * after the next refresh, use {@link #flush()} to wait for them.
+	 */
+	public void updateIndex(Document... docs) {
+		swapLock.readLock().lock();
 		try {
-			//how awesome to force programmer to hardcode library version with no reasonable default
-			IndexWriterConfig cfg = new IndexWriterConfig(Version.LUCENE_35, new StandardAnalyzer(Version.LUCENE_35));
-			IndexWriter indexWriter = new IndexWriter(index, cfg);
 			for (Document doc : docs) {
-				LOGGER.fine("Updating index for document: " + doc.getFieldable(AWF__ID));
-				indexWriter.deleteDocuments(new Term(AWF__ID, doc.getFieldable(AWF__ID).stringValue()));
-				StringBuilder all = new StringBuilder();
-				for (Fieldable f : doc.getFields()) {
-					all.append(f.stringValue());
-					all.append(' ');
+				enqueue(doc, doc);
+			}
+		}
+		finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/** Queue a document for the live index, and remember the one for the new index being built if any */
+	private void enqueue(Document doc, Document rebuildDoc) {
+		String id = doc.getFieldable(AWF__ID).stringValue();
+		LOGGER.fine("Updating index for document: " + id);
+		indexUpdater.enqueue(id, doc);
+		if (rebuildDoc != null) {
+			synchronized (this) {
+				if (rebuildUpdates != null) {
+					rebuildUpdates.put(id, rebuildDoc);
 				}
-				LOGGER.fine("Updated field all for "+ doc.getFieldable(AWF__ID) + " with value: " + all);
-				doc.add(new Field("all", all.toString(), Field.Store.NO, Field.Index.ANALYZED));
 			}
-			indexWriter.addDocuments(Arrays.asList(docs));
-			LOGGER.fine("reindexing Lucene...");
-			indexWriter.commit();
-			indexWriter.close();
-			LOGGER.fine("reindexing Lucene... DONE!");
+		}
+	}
 
-			try { if (indexSearcher != null) {
-				indexSearcher.close();
-			} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
-			try { if (indexReader != null) {
-				indexReader.close();
-			} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
+	/** Directory a new index is built in, next to the live one */
+	public File getShadowDir() {
+		return new File(luceneDir + ".rebuild");
+	}
 
-			indexReader = IndexReader.open(index);
-			indexSearcher = new IndexSearcher(indexReader);
-			LOGGER.fine("reopened Lucene index handles");
+	/**
+	 * Writer of a new index in the given directory. Until it replaces the live index or the rebuild
+	 * is cancelled, the updates of the live index are remembered, so they are not lost by the swap.
+	 *
+	 * @param append continue an index built before, instead of starting an empty one
+	 */
+	public IndexWriter createShadowWriter(File shadowDir, boolean append) throws IOException {
+		// the new index holds every field in the current way, whatever the live one does
+		LuceneQueryBuilder builder = queryBuilder.createRebuildBuilder();
+		IndexWriterConfig cfg = new IndexWriterConfig(LuceneQueryBuilder.VERSION, builder.getAnalyzer());
+		cfg.setOpenMode(append ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+		IndexWriter writer = new IndexWriter(FSDirectory.open(shadowDir), cfg);
+		synchronized (this) {
+			rebuildUpdates = new LinkedHashMap<String, Document>();
+			rebuildQueryBuilder = builder;
+		}
+		return writer;
+	}
 
-		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+	/** Forget the updates remembered for a new index which is not going to be used */
+	public synchronized void cancelShadowIndex() {
+		rebuildUpdates = null;
+		rebuildQueryBuilder = null;
+	}
+
+	/**
+	 * Replace the live index with a new one. Searches and updates wait until the new index is open.
+	 * Updates made while the new index was built are applied to it first, the writer is closed.
+	 */
+	public void replaceIndex(IndexWriter shadowWriter, File shadowDir) throws IOException {
+		swapLock.writeLock().lock();
+		try {
+			flush();
+			Map<String, Document> updates;
+			LuceneQueryBuilder builder;
+			synchronized (this) {
+				updates = rebuildUpdates;
+				builder = rebuildQueryBuilder != null ? rebuildQueryBuilder : queryBuilder;
+				rebuildUpdates = null;
+				rebuildQueryBuilder = null;
+			}
+			if (updates != null) {
+				for (Map.Entry<String, Document> e : updates.entrySet()) {
+					shadowWriter.updateDocument(new Term(AWF__ID, e.getKey()), e.getValue());
+				}
+			}
+			shadowWriter.updateDocument(new Term(AWF__ID, LuceneQueryBuilder.CATALOG_ID),
+					builder.createCatalogDocument(AWF__ID, AWF__TYPE));
+			shadowWriter.commit();
+			shadowWriter.close();
+			close();
+
+			File live = new File(luceneDir);
+			File old = new File(live.getPath() + ".old-" + System.currentTimeMillis());
+			if (live.exists() && !live.renameTo(old)) {
+				initialize();
+				throw new IOException("Failed to move " + live + " to " + old);
+			}
+			if (!shadowDir.renameTo(live)) {
+				old.renameTo(live);
+				initialize();
+				throw new IOException("Failed to move " + shadowDir + " to " + live);
+			}
+			initialize();
+			LOGGER.info("Replaced lucene index in " + luceneDir + " with a rebuilt one");
+			deleteRecursively(old);
+		}
+		finally {
+			swapLock.writeLock().unlock();
+		}
+	}
+
+	private void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			LOGGER.warning("Failed to delete " + file);
+		}
+	}
+
+	public void flush() {
+		try {
+			indexUpdater.flush();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			throw new RuntimeException(e);
 		}
 	}
 
+	public void close() {
+		if (indexUpdater != null) {
+			indexUpdater.stop();
+			indexUpdater = null;
+		}
+		try { if (searcherManager != null) {
+			searcherManager.close();
+		} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
+		searcherManager = null;
+		try { if (indexWriter != null) {
+			indexWriter.close();
+		} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
+		indexWriter = null;
+		try { if (index != null) {
+			index.close();
+		} } catch (Exception e) { LOGGER.log(Level.SEVERE, e.getMessage(), e); }
+		index = null;
+	}
+
 	public void setLuceneDir(String luceneDir) {
 		this.luceneDir = luceneDir;
 	}
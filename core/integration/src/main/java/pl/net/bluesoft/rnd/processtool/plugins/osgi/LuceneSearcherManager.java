@@ -0,0 +1,72 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.io.IOException;
+
+/**
+ * Keeps a near-real-time searcher over a long-lived IndexWriter.
+ *
+ * Searchers are reference counted: every {@link #acquire()} must be paired with
+ * a {@link #release(IndexSearcher)}. {@link #maybeRefresh()} swaps in a new reader
+ * only if the writer has pending changes, the old one is closed when the last
+ * user releases it.
+ */
+class LuceneSearcherManager {
+	private final IndexWriter indexWriter;
+	private final Object refreshLock = new Object();
+
+	private IndexSearcher currentSearcher;
+
+	public LuceneSearcherManager(IndexWriter indexWriter) throws IOException {
+		this.indexWriter = indexWriter;
+		this.currentSearcher = new IndexSearcher(IndexReader.open(indexWriter, true));
+	}
+
+	public synchronized IndexSearcher acquire() {
+		if (currentSearcher == null) {
+			throw new IllegalStateException("Searcher manager already closed");
+		}
+		currentSearcher.getIndexReader().incRef();
+		return currentSearcher;
+	}
+
+	public void release(IndexSearcher searcher) throws IOException {
+		searcher.getIndexReader().decRef();
+	}
+
+	public boolean maybeRefresh() throws IOException {
+		synchronized (refreshLock) {
+			IndexSearcher searcher = acquire();
+			IndexReader newReader;
+			try {
+				newReader = IndexReader.openIfChanged(searcher.getIndexReader(), indexWriter, true);
+			}
+			finally {
+				release(searcher);
+			}
+			if (newReader == null) {
+				return false;
+			}
+			swap(new IndexSearcher(newReader));
+			return true;
+		}
+	}
+
+	public void close() throws IOException {
+		swap(null);
+	}
+
+	private void swap(IndexSearcher newSearcher) throws IOException {
+		IndexSearcher oldSearcher;
+		synchronized (this) {
+			oldSearcher = currentSearcher;
+			currentSearcher = newSearcher;
+		}
+		if (oldSearcher != null) {
+			release(oldSearcher);
+		}
+	}
+}
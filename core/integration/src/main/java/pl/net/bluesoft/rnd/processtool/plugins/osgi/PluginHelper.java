@@ -3,6 +3,8 @@ package pl.net.bluesoft.rnd.processtool.plugins.osgi;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Query;
 import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
 import org.aperteworkflow.search.SearchProvider;
 import org.osgi.framework.BundleException;
 import pl.net.bluesoft.rnd.processtool.plugins.PluginManager;
@@ -36,6 +38,8 @@ public class PluginHelper implements PluginManager, SearchProvider {
 	private FelixBundleService felixService;
 
 	private LuceneSearchService searchService = new LuceneSearchService(LOGGER);
+	private SearchIndexRebuilder searchIndexRebuilder;
+	private ProcessToolRegistryImpl registry;
 
 	public synchronized void initialize(String pluginsDir,
                                         String felixDir,
@@ -44,6 +48,7 @@ public class PluginHelper implements PluginManager, SearchProvider {
 		felixService = createFelixBundleService(pluginsDir);
 		felixService.setPluginsDir(pluginsDir.replace('/', File.separatorChar));
 		searchService.setLuceneDir(luceneDir.replace('/', File.separatorChar));
+		this.registry = registry;
 
 		registry.setPluginManager(this);
         registry.setSearchProvider(this);
@@ -118,12 +123,28 @@ public class PluginHelper implements PluginManager, SearchProvider {
 
 	private void initializeSearchService() {
 		searchService.initialize();
+		if (searchService.isRebuildNeeded()) {
+			LOGGER.warning("Search index was written by an older version, rebuilding it in the background");
+			getSearchIndexRebuilder().start(true);
+		}
+	}
+
+	public synchronized SearchIndexRebuilder getSearchIndexRebuilder() {
+		if (searchIndexRebuilder == null) {
+			searchIndexRebuilder = new SearchIndexRebuilder(registry.getSessionFactory(), searchService,
+					registry.getBpmDefinitionLanguage());
+		}
+		return searchIndexRebuilder;
 	}
 
 	public synchronized void stopPluginSystem() throws BundleException {
         state = State.STOPPED;
         shutdownExecutor();
+        if (searchIndexRebuilder != null) {
+            searchIndexRebuilder.cancel();
+        }
         felixService.stopFelix();
+        searchService.close();
     }
 
     public State getState() {
@@ -167,6 +188,13 @@ public class PluginHelper implements PluginManager, SearchProvider {
 		return searchService.searchProcesses(query, offset, limit, onlyRunning, userRoles, assignee, queues);
 	}
 
+	@Override
+	public ProcessInstanceSearchPage searchProcesses(String query, ProcessInstanceSortField sortField, boolean descending,
+			String cursor, int limit, boolean onlyRunning, String[] userRoles,
+			String assignee, String[] queues) {
+		return searchService.searchProcesses(query, sortField, descending, cursor, limit, onlyRunning, userRoles, assignee, queues);
+	}
+
     public List<Document> search(String query, int offset, int limit, Query... addQueries) {
         return searchService.search(query, offset, limit, addQueries);
     }
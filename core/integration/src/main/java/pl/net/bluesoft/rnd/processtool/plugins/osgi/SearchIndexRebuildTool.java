@@ -0,0 +1,89 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static pl.net.bluesoft.util.lang.FormatUtil.nvl;
+
+/**
+ * Command line rebuild of the process search index, for an application which is not running -
+ * the live index must not be open by anyone else. A running application is rebuilt with the
+ * search index administration servlet instead.
+ *
+ * <pre>
+ * java pl.net.bluesoft.rnd.processtool.plugins.osgi.SearchIndexRebuildTool
+ *     --index-dir DIR --url JDBC_URL --driver CLASS [--user USER] [--password PASSWORD]
+ *     [--language jpdl|bpmn20] [--threads N] [--model-classes CLASS,CLASS...] [--resume]
+ * </pre>
+ *
+ * The classpath has to contain the hibernate configuration of the BPM engine and the model
+ * extensions of the installed plugins, listed with <code>--model-classes</code>.
+ */
+public class SearchIndexRebuildTool {
+	private static final Logger LOGGER = Logger.getLogger(SearchIndexRebuildTool.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		if (!options.containsKey("index-dir") || !options.containsKey("url") || !options.containsKey("driver")) {
+			System.err.println("Usage: SearchIndexRebuildTool --index-dir DIR --url JDBC_URL --driver CLASS" +
+					" [--user USER] [--password PASSWORD] [--language jpdl|bpmn20] [--threads N]" +
+					" [--model-classes CLASS,CLASS...] [--resume]");
+			System.exit(1);
+		}
+
+		Configuration configuration = new Configuration().configure();
+		configuration.setProperty("hibernate.connection.driver_class", options.get("driver"));
+		configuration.setProperty("hibernate.connection.url", options.get("url"));
+		configuration.setProperty("hibernate.connection.username", nvl(options.get("user"), ""));
+		configuration.setProperty("hibernate.connection.password", nvl(options.get("password"), ""));
+		// the schema belongs to the application, the rebuild only reads it
+		configuration.setProperty("hibernate.hbm2ddl.auto", "none");
+		if (options.containsKey("model-classes")) {
+			for (String className : options.get("model-classes").split(",")) {
+				configuration.addAnnotatedClass(Class.forName(className.trim()));
+			}
+		}
+		SessionFactory sessionFactory = configuration.buildSessionFactory();
+
+		LuceneSearchService searchService = new LuceneSearchService(LOGGER);
+		searchService.setLuceneDir(options.get("index-dir"));
+		searchService.initialize();
+		try {
+			SearchIndexRebuilder rebuilder = new SearchIndexRebuilder(sessionFactory, searchService,
+					nvl(options.get("language"), "jpdl"));
+			if (options.containsKey("threads")) {
+				rebuilder.setThreads(Integer.parseInt(options.get("threads")));
+			}
+			rebuilder.rebuild(options.containsKey("resume"));
+			System.out.println("Indexed " + rebuilder.getIndexedCount() + " processes, state: " + rebuilder.getState());
+		}
+		finally {
+			searchService.close();
+			sessionFactory.close();
+		}
+	}
+
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+			String name = args[i].substring(2);
+			if ("resume".equals(name)) {
+				options.put(name, "true");
+			}
+			else if (i + 1 < args.length) {
+				options.put(name, args[++i]);
+			}
+			else {
+				throw new IllegalArgumentException("Missing value of " + args[i]);
+			}
+		}
+		return options;
+	}
+}
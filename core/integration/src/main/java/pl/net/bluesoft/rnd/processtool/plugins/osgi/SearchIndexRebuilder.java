@@ -0,0 +1,407 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.hibernate.FlushMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessAssignmentLoader;
+import pl.net.bluesoft.rnd.processtool.dao.impl.ProcessInstanceSearchDataBuilder;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the process search index from the database.
+ *
+ * A full rebuild writes a new index next to the live one, which keeps serving searches and updates
+ * meanwhile. The process instances are read in ranges of ids by parallel workers, each with its own
+ * session scrolling over the ids of its range and loading them in batches. When all ranges are done,
+ * the new index replaces the live one, with the updates made in the meantime applied to it.
+ *
+ * Progress is checkpointed in the new index directory: the ranges done without a gap and the time
+ * since when the live updates are remembered. A resumed rebuild continues after the last checkpoint
+ * and reindexes the processes logged since that time, as the remembered updates are lost with a restart.
+ *
+ * A partial rebuild reindexes a range of ids directly in the live index.
+ */
+public class SearchIndexRebuilder {
+	public enum State {
+		IDLE, RUNNING, CANCELLED, FAILED, DONE
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(SearchIndexRebuilder.class.getName());
+
+	private static final String CHECKPOINT_FILE = "rebuild.properties";
+	private static final String CHECKPOINT_DONE_UP_TO_ID = "doneUpToId";
+	private static final String CHECKPOINT_UPDATES_SINCE = "updatesSince";
+
+	private final SessionFactory sessionFactory;
+	private final LuceneSearchService searchService;
+	private final ProcessAssignmentLoader assignmentLoader;
+
+	private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private long rangeSize = 10000;
+	private int batchSize = 100;
+
+	private volatile State state = State.IDLE;
+	private volatile boolean cancelled;
+	private volatile String error;
+	private volatile long maxId;
+	private volatile long doneUpToId;
+	private final AtomicLong indexedCount = new AtomicLong();
+	private Thread thread;
+
+	/** Ranges done, waiting for the ranges before them */
+	private final TreeSet<Long> doneRanges = new TreeSet<Long>();
+
+	SearchIndexRebuilder(SessionFactory sessionFactory, LuceneSearchService searchService, String bpmDefinitionLanguage) {
+		this.sessionFactory = sessionFactory;
+		this.searchService = searchService;
+		this.assignmentLoader = ProcessAssignmentLoader.forDefinitionLanguage(bpmDefinitionLanguage);
+	}
+
+	/** Run a full rebuild in the background */
+	public synchronized void start(final boolean resume) {
+		if (state == State.RUNNING) {
+			throw new IllegalStateException("Search index rebuild is already running");
+		}
+		state = State.RUNNING;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rebuild(resume);
+				}
+				catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Search index rebuild failed", e);
+				}
+			}
+		}, "aperte-search-index-rebuild");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stop the running rebuild at the next batch, it may be resumed later */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Rebuild the whole index and replace the live one with it.
+	 *
+	 * @param resume continue the rebuild interrupted before, if there is one
+	 */
+	public void rebuild(boolean resume) throws IOException {
+		synchronized (this) {
+			state = State.RUNNING;
+			cancelled = false;
+			error = null;
+			indexedCount.set(0);
+			doneRanges.clear();
+		}
+		File shadowDir = searchService.getShadowDir();
+		Properties checkpoint = resume ? readCheckpoint(shadowDir) : null;
+		long fromId = checkpoint != null ? Long.parseLong(checkpoint.getProperty(CHECKPOINT_DONE_UP_TO_ID)) + 1 : 0;
+		long updatesSince = checkpoint != null ? Long.parseLong(checkpoint.getProperty(CHECKPOINT_UPDATES_SINCE)) : 0;
+		long started = System.currentTimeMillis();
+		doneUpToId = fromId - 1;
+		maxId = readMaxId();
+		LOGGER.info("Rebuilding search index in " + shadowDir + " from process id " + fromId + " to " + maxId);
+
+		IndexWriter writer = searchService.createShadowWriter(shadowDir, checkpoint != null);
+		boolean replaced = false;
+		try {
+			if (checkpoint != null) {
+				indexLoggedSince(writer, updatesSince, fromId);
+			}
+			indexRanges(writer, shadowDir, fromId, started);
+			if (cancelled) {
+				state = State.CANCELLED;
+				LOGGER.info("Search index rebuild cancelled after process id " + doneUpToId);
+				return;
+			}
+			new File(shadowDir, CHECKPOINT_FILE).delete();
+			searchService.replaceIndex(writer, shadowDir);
+			replaced = true;
+			state = State.DONE;
+			LOGGER.info("Search index rebuilt, " + indexedCount.get() + " processes indexed in "
+					+ (System.currentTimeMillis() - started) + " ms");
+		}
+		catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			fail(e);
+			throw e;
+		}
+		finally {
+			if (!replaced) {
+				searchService.cancelShadowIndex();
+				try {
+					writer.close();
+				}
+				catch (IOException e) {
+					LOGGER.log(Level.SEVERE, e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/** Reindex the processes with ids in the given range, in the live index */
+	public void rebuildRange(long fromId, long toId) {
+		LOGGER.info("Reindexing processes with ids from " + fromId + " to " + toId);
+		indexRange(null, fromId, toId);
+		searchService.flush();
+	}
+
+	private void indexRanges(final IndexWriter writer, final File shadowDir, long fromId, final long started) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "aperte-search-index-rebuild-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (long from = fromId; from <= maxId; from += rangeSize) {
+				final long rangeFrom = from;
+				final long rangeTo = Math.min(from + rangeSize - 1, maxId);
+				results.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						if (cancelled) {
+							return;
+						}
+						indexRange(writer, rangeFrom, rangeTo);
+						if (!cancelled) {
+							rangeDone(writer, shadowDir, rangeFrom, rangeTo, started);
+						}
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				}
+				catch (Exception e) {
+					// the other workers stop at their next batch
+					cancelled = true;
+					throw new IOException("Failed to index a range of processes", e);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void indexRange(IndexWriter writer, long fromId, long toId) {
+		Session session = sessionFactory.openSession();
+		session.setFlushMode(FlushMode.MANUAL);
+		session.setDefaultReadOnly(true);
+		Transaction tx = session.beginTransaction();
+		try {
+			ProcessInstanceSearchDataBuilder builder = new ProcessInstanceSearchDataBuilder(session);
+			ScrollableResults ids = session
+					.createQuery("select pi.id from ProcessInstance pi where pi.id between :fromId and :toId order by pi.id")
+					.setLong("fromId", fromId)
+					.setLong("toId", toId)
+					.setFetchSize(batchSize)
+					.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				List<Long> batch = new ArrayList<Long>(batchSize);
+				while (!cancelled && ids.next()) {
+					batch.add(ids.getLong(0));
+					if (batch.size() == batchSize) {
+						indexBatch(session, builder, writer, batch);
+						batch.clear();
+					}
+				}
+				if (!cancelled && !batch.isEmpty()) {
+					indexBatch(session, builder, writer, batch);
+				}
+			}
+			finally {
+				ids.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			tx.rollback();
+			session.close();
+		}
+	}
+
+	private void indexBatch(Session session, ProcessInstanceSearchDataBuilder builder, IndexWriter writer,
+							List<Long> ids) throws IOException {
+		List<ProcessInstance> processInstances = session.createQuery("select distinct pi from ProcessInstance pi" +
+				" left join fetch pi.processAttributes left join fetch pi.creator left join fetch pi.definition" +
+				" where pi.id in (:ids)")
+				.setParameterList("ids", ids)
+				.list();
+		assignmentLoader.load(session, processInstances);
+		for (ProcessInstance processInstance : processInstances) {
+			if (writer != null) {
+				writer.updateDocument(new Term(LuceneSearchService.AWF__ID, String.valueOf(processInstance.getId())),
+						searchService.createRebuildDocument(builder.build(processInstance)));
+			}
+			else {
+				searchService.updateIndex(builder.build(processInstance));
+			}
+		}
+		indexedCount.addAndGet(processInstances.size());
+		session.clear();
+	}
+
+	/** Processes before the resumed range, changed while the rebuild was not running */
+	private void indexLoggedSince(IndexWriter writer, long since, long beforeId) throws IOException {
+		Calendar sinceDate = Calendar.getInstance();
+		sinceDate.setTimeInMillis(since);
+		Session session = sessionFactory.openSession();
+		session.setFlushMode(FlushMode.MANUAL);
+		session.setDefaultReadOnly(true);
+		Transaction tx = session.beginTransaction();
+		try {
+			List<Long> ids = session.createQuery("select distinct log.processInstance.id from ProcessInstanceLog log" +
+					" where log.entryDate >= :since and log.processInstance.id < :beforeId")
+					.setCalendar("since", sinceDate)
+					.setLong("beforeId", beforeId)
+					.list();
+			LOGGER.info("Reindexing " + ids.size() + " processes changed since the last checkpoint");
+			ProcessInstanceSearchDataBuilder builder = new ProcessInstanceSearchDataBuilder(session);
+			for (int i = 0; i < ids.size() && !cancelled; i += batchSize) {
+				indexBatch(session, builder, writer, ids.subList(i, Math.min(i + batchSize, ids.size())));
+			}
+		}
+		finally {
+			tx.rollback();
+			session.close();
+		}
+	}
+
+	private synchronized void rangeDone(IndexWriter writer, File shadowDir, long fromId, long toId, long started) {
+		doneRanges.add(fromId);
+		long newDoneUpToId = doneUpToId;
+		while (!doneRanges.isEmpty() && doneRanges.first() == newDoneUpToId + 1) {
+			doneRanges.pollFirst();
+			newDoneUpToId = Math.min(newDoneUpToId + rangeSize, maxId);
+		}
+		if (newDoneUpToId == doneUpToId) {
+			return;
+		}
+		try {
+			writer.commit();
+			Properties checkpoint = new Properties();
+			checkpoint.setProperty(CHECKPOINT_DONE_UP_TO_ID, String.valueOf(newDoneUpToId));
+			checkpoint.setProperty(CHECKPOINT_UPDATES_SINCE, String.valueOf(started));
+			OutputStream out = new FileOutputStream(new File(shadowDir, CHECKPOINT_FILE));
+			try {
+				checkpoint.store(out, "Search index rebuild checkpoint");
+			}
+			finally {
+				out.close();
+			}
+			doneUpToId = newDoneUpToId;
+			LOGGER.info("Search index rebuild checkpoint: processes up to id " + doneUpToId + " of " + maxId
+					+ " indexed, " + indexedCount.get() + " in total");
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Properties readCheckpoint(File shadowDir) throws IOException {
+		File file = new File(shadowDir, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			LOGGER.info("No search index rebuild to resume in " + shadowDir + ", starting a new one");
+			return null;
+		}
+		Properties checkpoint = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			checkpoint.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return checkpoint;
+	}
+
+	private long readMaxId() {
+		Session session = sessionFactory.openSession();
+		try {
+			Number max = (Number) session.createQuery("select max(pi.id) from ProcessInstance pi").uniqueResult();
+			return max != null ? max.longValue() : 0;
+		}
+		finally {
+			session.close();
+		}
+	}
+
+	private void fail(Exception e) {
+		error = e.getMessage();
+		state = State.FAILED;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public long getIndexedCount() {
+		return indexedCount.get();
+	}
+
+	/** Processes with ids up to this one are in the new index */
+	public long getDoneUpToId() {
+		return doneUpToId;
+	}
+
+	public long getMaxId() {
+		return maxId;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setRangeSize(long rangeSize) {
+		this.rangeSize = rangeSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+}
@@ -0,0 +1,42 @@
+package org.aperteworkflow.util;
+
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceLog;
+import pl.net.bluesoft.rnd.processtool.model.ProcessStatus;
+import pl.net.bluesoft.rnd.processtool.model.UserData;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Synthetic process instance graphs for {@link HibernateGraphCopierTest} and {@link HibernateGraphCopierBenchmark}.
+ */
+class GraphFixtures {
+	static ProcessInstance createProcessInstance(int attributes, int logs) {
+		UserData creator = new UserData("creator", "John Smith", "john.smith@example.com");
+		creator.setId(1L);
+
+		ProcessInstance pi = new ProcessInstance("external-key", creator, "definition");
+		pi.setId(1L);
+		pi.setInternalId("internal-1");
+		pi.setDescription("Synthetic process instance");
+		pi.setCreateDate(new Date());
+		pi.setStatus(ProcessStatus.RUNNING);
+		pi.setAssignees("creator", "assignee");
+		pi.addOwner("creator");
+
+		for (int i = 0; i < attributes; ++i) {
+			pi.setSimpleAttribute("key" + i, "value" + i);
+		}
+		for (int i = 0; i < logs; ++i) {
+			ProcessInstanceLog log = new ProcessInstanceLog();
+			log.setId((long)i);
+			log.setEntryDate(Calendar.getInstance());
+			log.setEventI18NKey("process.log.event" + i);
+			log.setLogValue("Log value " + i);
+			log.setUser(creator);
+			pi.addProcessLog(log);
+		}
+		return pi;
+	}
+}
@@ -0,0 +1,65 @@
+package org.aperteworkflow.util;
+
+import com.thoughtworks.xstream.XStream;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+
+/**
+ * Compares the graph copier with the XStream round trip previously used by
+ * {@link HibernateBeanUtil#fetchHibernateData(Object)}, on a large synthetic process instance.
+ * Each approach gets warmup iterations before the measured ones.
+ *
+ * Not a unit test, timings depend on the machine. Run the main method to compare the two.
+ */
+public class HibernateGraphCopierBenchmark {
+	private static final int ATTRIBUTES = 500;
+	private static final int LOGS = 500;
+	private static final int WARMUP_ITERATIONS = 20;
+	private static final int MEASURED_ITERATIONS = 50;
+
+	private interface Copier {
+		ProcessInstance copy(ProcessInstance pi);
+	}
+
+	public static void main(String[] args) {
+		final ProcessInstance pi = GraphFixtures.createProcessInstance(ATTRIBUTES, LOGS);
+		final XStream xs = new XStream();
+
+		System.out.println("XStream document size: " + xs.toXML(pi).length() / 1024 + " kB");
+
+		long xstream = measure(new Copier() {
+			@Override
+			public ProcessInstance copy(ProcessInstance pi) {
+				String s = xs.toXML(pi);
+				s = s.replace("class=\"org.hibernate.collection.PersistentSet\"", "class=\"java.util.HashSet\"");
+				s = s.replaceAll("class=\"(.*?)_\\$\\$_javassist[^\"]*\"", "class=\"$1\"");
+				return (ProcessInstance)xs.fromXML(s);
+			}
+		}, pi);
+
+		long copier = measure(new Copier() {
+			@Override
+			public ProcessInstance copy(ProcessInstance pi) {
+				return HibernateBeanUtil.fetchHibernateData(pi);
+			}
+		}, pi);
+
+		System.out.println("XStream round trip: " + xstream / 1000 + " us/op, graph copier: " + copier / 1000 + " us/op");
+	}
+
+	private static long measure(Copier copier, ProcessInstance pi) {
+		for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+			check(copier.copy(pi));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; ++i) {
+			check(copier.copy(pi));
+		}
+		return (System.nanoTime() - start) / MEASURED_ITERATIONS;
+	}
+
+	private static void check(ProcessInstance copy) {
+		if (copy.getProcessAttributes().size() != ATTRIBUTES) {
+			throw new IllegalStateException("Incomplete copy: " + copy.getProcessAttributes().size() + " attributes");
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.aperteworkflow.util;
+
+import com.thoughtworks.xstream.XStream;
+import junit.framework.Assert;
+import org.junit.Test;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttribute;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceLog;
+import pl.net.bluesoft.rnd.processtool.model.UserData;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+public class HibernateGraphCopierTest {
+	@Test
+	public void testCopyPreservesSharedReferencesAndCycles() {
+		ProcessInstance pi = GraphFixtures.createProcessInstance(10, 5);
+
+		ProcessInstance copy = HibernateBeanUtil.fetchHibernateData(pi);
+
+		Assert.assertNotSame(pi, copy);
+		Assert.assertEquals(pi.getInternalId(), copy.getInternalId());
+		Assert.assertEquals(pi.getProcessAttributes().size(), copy.getProcessAttributes().size());
+		Assert.assertEquals(pi.getProcessLogs().size(), copy.getProcessLogs().size());
+		Assert.assertEquals("value3", copy.getSimpleAttributeValue("key3"));
+		Assert.assertNotSame(pi.getCreateDate(), copy.getCreateDate());
+		Assert.assertEquals(pi.getCreateDate(), copy.getCreateDate());
+
+		for (ProcessInstanceAttribute attribute : copy.getProcessAttributes()) {
+			Assert.assertSame(copy, attribute.getProcessInstance());
+		}
+		for (ProcessInstanceLog log : copy.getProcessLogs()) {
+			Assert.assertSame(copy, log.getProcessInstance());
+			Assert.assertSame(copy.getCreator(), log.getUser());
+			Assert.assertNotSame(pi.getCreator(), log.getUser());
+		}
+	}
+
+	@Test
+	public void testCopyOfLargeGraphMatchesXStreamRoundTrip() {
+		ProcessInstance pi = GraphFixtures.createProcessInstance(500, 500);
+		XStream xs = new XStream();
+
+		ProcessInstance copy = HibernateBeanUtil.fetchHibernateData(pi);
+		ProcessInstance roundTrip = (ProcessInstance)xs.fromXML(xs.toXML(pi));
+
+		Assert.assertEquals(roundTrip.getProcessAttributes().size(), copy.getProcessAttributes().size());
+		Assert.assertEquals(roundTrip.getProcessLogs().size(), copy.getProcessLogs().size());
+		Assert.assertEquals(roundTrip.getSimpleAttributeValue("key499"), copy.getSimpleAttributeValue("key499"));
+		Assert.assertEquals(roundTrip.getCreator().getLogin(), copy.getCreator().getLogin());
+	}
+
+	@Test
+	public void testDepthLimit() {
+		ProcessInstance pi = GraphFixtures.createProcessInstance(3, 3);
+
+		ProcessInstance copy = new HibernateGraphCopier(1).copy(pi);
+
+		Assert.assertEquals(pi.getInternalId(), copy.getInternalId());
+		Assert.assertNotNull(copy.getCreator());
+		Assert.assertEquals(pi.getCreator().getLogin(), copy.getCreator().getLogin());
+		// attribute objects are two references away from the root
+		Assert.assertTrue(copy.getProcessAttributes().isEmpty());
+	}
+
+	@Test
+	public void testCopyOfCollectionRoot() {
+		List<Object> list = new ArrayList<Object>();
+		UserData user = new UserData("login", "John Smith", "john@example.com");
+		list.add(user);
+		list.add(user);
+		list.add(Calendar.getInstance());
+		list.add(new Date());
+
+		List<Object> copy = HibernateBeanUtil.fetchHibernateData(list);
+
+		Assert.assertEquals(4, copy.size());
+		Assert.assertNotSame(user, copy.get(0));
+		Assert.assertSame(copy.get(0), copy.get(1));
+		Assert.assertEquals("Smith", ((UserData)copy.get(0)).getLastName());
+	}
+}
@@ -0,0 +1,287 @@
+package pl.net.bluesoft.rnd.processtool.plugins.osgi;
+
+import junit.framework.Assert;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+public class LuceneSearchServiceTest {
+	private static final Logger logger = Logger.getLogger(LuceneSearchServiceTest.class.getName());
+
+	private static final int THREADS = 8;
+	private static final int PROCESSES_PER_THREAD = 50;
+	private static final int UPDATES_PER_PROCESS = 3;
+
+	private File luceneDir;
+	private LuceneSearchService searchService;
+
+	@Before
+	public void setUp() throws Exception {
+		luceneDir = File.createTempFile("aperte-lucene", "");
+		luceneDir.delete();
+		searchService = new LuceneSearchService(logger);
+		searchService.setLuceneDir(luceneDir.getAbsolutePath());
+		searchService.initialize();
+	}
+
+	@After
+	public void tearDown() {
+		searchService.close();
+		delete(luceneDir);
+		delete(searchService.getShadowDir());
+	}
+
+	@Test
+	public void testConcurrentSavesBecomeSearchable() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; ++t) {
+			final int threadNo = t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					for (int update = 0; update < UPDATES_PER_PROCESS; ++update) {
+						for (int i = 0; i < PROCESSES_PER_THREAD; ++i) {
+							long id = threadNo * PROCESSES_PER_THREAD + i + 1;
+							searchService.updateIndex(searchData(id, "revision" + update));
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int expected = THREADS * PROCESSES_PER_THREAD;
+		List<Long> found = waitForResults("revision" + (UPDATES_PER_PROCESS - 1), expected, 10000);
+		Assert.assertEquals(expected, found.size());
+		Assert.assertEquals(expected, new HashSet<Long>(found).size());
+
+		// every process was coalesced into a single, most recent document
+		Assert.assertTrue(search("revision0").isEmpty());
+		Assert.assertEquals(expected, search("marker").size());
+	}
+
+	@Test
+	public void testFlushMakesUpdatesVisible() {
+		searchService.updateIndex(searchData(1, "first"));
+		searchService.flush();
+		Assert.assertEquals(1, search("first").size());
+
+		searchService.updateIndex(searchData(1, "second"));
+		searchService.flush();
+		Assert.assertTrue(search("first").isEmpty());
+		Assert.assertEquals(1, search("second").size());
+	}
+
+	@Test
+	public void testIndexSurvivesReopen() {
+		searchService.updateIndex(searchData(42, "persistent"));
+		searchService.close();
+
+		searchService.initialize();
+		Assert.assertEquals(1, search("persistent").size());
+	}
+
+	@Test
+	public void testPagesBeyondFirstThousandResults() {
+		for (long id = 1; id <= 1200; ++id) {
+			searchService.updateIndex(searchData(id, "many"));
+		}
+		searchService.flush();
+
+		List<Long> page = searchService.searchProcesses("many", 1100, 50, false, null, null);
+		Assert.assertEquals(50, page.size());
+		Assert.assertEquals(Long.valueOf(100), page.get(0));
+		Assert.assertEquals(Long.valueOf(51), page.get(49));
+	}
+
+	@Test
+	public void testSortedPagesWithCursor() {
+		for (long id = 1; id <= 23; ++id) {
+			ProcessInstanceSearchData data = searchData(id, "sorted");
+			data.setSortValue(ProcessInstanceSortField.STATE, "state" + (id % 4));
+			searchService.updateIndex(data);
+		}
+		searchService.flush();
+
+		List<Long> found = new ArrayList<Long>();
+		String cursor = null;
+		do {
+			ProcessInstanceSearchPage page = searchService.searchProcesses("sorted", ProcessInstanceSortField.STATE, false,
+					cursor, 5, false, null, null, null);
+			found.addAll(page.getProcessInstanceIds());
+			cursor = page.getNextCursor();
+		}
+		while (cursor != null);
+
+		Assert.assertEquals(23, found.size());
+		for (int i = 1; i < found.size(); ++i) {
+			long previous = found.get(i - 1), current = found.get(i);
+			Assert.assertTrue(previous % 4 < current % 4 || previous % 4 == current % 4 && previous < current);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroLimitRejected() {
+		searchService.updateIndex(searchData(1, "limited"));
+		searchService.flush();
+		searchService.searchProcesses("limited", ProcessInstanceSortField.ID, false, null, 0, false, null, null, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruncatedCursorRejected() {
+		searchService.searchProcesses("any", ProcessInstanceSortField.ID, false, "0001", 5, false, null, null, null);
+	}
+
+	@Test
+	public void testDocumentsWithoutSortFieldsPagedByOffset() {
+		// written before the sort fields existed
+		for (long id = 1; id <= 7; ++id) {
+			Document doc = new Document();
+			doc.add(new Field(LuceneSearchService.AWF__ID, String.valueOf(id), Field.Store.YES, Field.Index.NOT_ANALYZED));
+			doc.add(new Field("__AWF__TYPE", "PROCESS_INSTANCE", Field.Store.YES, Field.Index.NOT_ANALYZED));
+			doc.add(new Field("instance_description", "legacy", Field.Store.YES, Field.Index.ANALYZED));
+			searchService.updateIndex(doc);
+		}
+		searchService.updateIndex(searchData(8, "legacy"));
+		searchService.close();
+
+		searchService.initialize();
+		Assert.assertTrue(searchService.isRebuildNeeded());
+
+		Set<Long> found = new HashSet<Long>();
+		String cursor = null;
+		do {
+			ProcessInstanceSearchPage page = searchService.searchProcesses("legacy", ProcessInstanceSortField.ID, false,
+					cursor, 3, false, null, null, null);
+			found.addAll(page.getProcessInstanceIds());
+			cursor = page.getNextCursor();
+		}
+		while (cursor != null);
+		Assert.assertEquals(8, found.size());
+	}
+
+	@Test
+	public void testKeywordFieldsKnownAfterReopen() {
+		ProcessInstanceSearchData data = searchData(7, "keywords");
+		data.addSearchAttribute("creator_login", "John.Smith-1", true);
+		data.addSearchAttribute("custom_number", "ABC-7/2012", true);
+		searchService.updateIndex(data);
+		searchService.close();
+
+		searchService.initialize();
+		Assert.assertEquals(1, search("\"John.Smith-1\"").size());
+		Assert.assertEquals(1, search("\"abc-7/2012\"").size());
+		Assert.assertEquals(1, search("custom_number:\"ABC-7/2012\"").size());
+		Assert.assertEquals(1, search("keywords").size());
+	}
+
+	@Test
+	public void testKeywordFieldsOfOldIndexSearchedAsText() throws Exception {
+		searchService.close();
+		delete(luceneDir);
+		// written before the catalog and the keyword fields existed
+		IndexWriter writer = new IndexWriter(FSDirectory.open(luceneDir),
+				new IndexWriterConfig(LuceneQueryBuilder.VERSION, new StandardAnalyzer(LuceneQueryBuilder.VERSION)));
+		Document doc = new Document();
+		doc.add(new Field(LuceneSearchService.AWF__ID, "1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("__AWF__TYPE", "PROCESS_INSTANCE", Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("creator_login", "John.Smith", Field.Store.YES, Field.Index.ANALYZED));
+		writer.addDocument(doc);
+		writer.close();
+
+		searchService.initialize();
+		Assert.assertTrue(searchService.isRebuildNeeded());
+		ProcessInstanceSearchData data = searchData(2, "new");
+		data.addSearchAttribute("creator_login", "Anna.Nowak", true);
+		searchService.updateIndex(data);
+		searchService.flush();
+		Assert.assertEquals(1, search("creator_login:\"John.Smith\"").size());
+		Assert.assertEquals(1, search("creator_login:\"Anna.Nowak\"").size());
+
+		// still known as text after a restart
+		searchService.close();
+		searchService.initialize();
+		Assert.assertEquals(1, search("creator_login:\"John.Smith\"").size());
+	}
+
+	@Test
+	public void testReplaceIndexKeepsUpdatesMadeDuringRebuild() throws Exception {
+		searchService.updateIndex(searchData(1, "stale"));
+		searchService.flush();
+
+		File shadowDir = searchService.getShadowDir();
+		IndexWriter shadowWriter = searchService.createShadowWriter(shadowDir, false);
+		shadowWriter.updateDocument(new Term(LuceneSearchService.AWF__ID, "1"),
+				searchService.createRebuildDocument(searchData(1, "rebuilt")));
+		// saved while the rebuild runs, searchable in the live index at once and kept by the swap
+		searchService.updateIndex(searchData(2, "rebuilt"));
+		searchService.flush();
+		Assert.assertEquals(1, search("rebuilt").size());
+
+		searchService.replaceIndex(shadowWriter, shadowDir);
+		Assert.assertFalse(shadowDir.exists());
+		Assert.assertTrue(search("stale").isEmpty());
+		Assert.assertEquals(2, search("rebuilt").size());
+	}
+
+	private List<Long> waitForResults(String query, int expected, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		List<Long> result = search(query);
+		while (result.size() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			result = search(query);
+		}
+		return result;
+	}
+
+	private List<Long> search(String query) {
+		return searchService.searchProcesses(query, 0, 1000, false, null, null);
+	}
+
+	private static ProcessInstanceSearchData searchData(long id, String revision) {
+		ProcessInstanceSearchData data = new ProcessInstanceSearchData(id);
+		data.addSearchAttribute("instance_description", "marker " + revision);
+		data.addSearchAttribute("__AWF__running", "true", true);
+		return data;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
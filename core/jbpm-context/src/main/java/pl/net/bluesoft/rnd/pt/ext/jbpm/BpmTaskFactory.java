@@ -1,5 +1,17 @@
 package pl.net.bluesoft.rnd.pt.ext.jbpm;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.jbpm.pvm.internal.history.model.HistoryTaskImpl;
 import org.jbpm.pvm.internal.history.model.HistoryTaskInstanceImpl;
 import org.jbpm.pvm.internal.task.TaskImpl;
 
@@ -12,50 +24,120 @@ import pl.net.bluesoft.rnd.processtool.model.nonpersistent.MutableBpmTask;
 /**
  * 
  * Bpm task factory
+ *
+ * Users are resolved through an identity map living as long as the factory. A whole page
+ * of tasks should be built with {@link #createTasks(List, List)} or {@link #createHistoryTasks(List, List)},
+ * which resolve the users of all tasks first, with one query instead of one per task.
+ *
  * @author mpawlak@bluesoft.net.pl
  *
  */
 public class BpmTaskFactory
 {
 	ProcessToolContext ctx;
-	
+
+	/** Users resolved so far by login, null values stand for logins without a user */
+	private final Map<String, UserData> users = new HashMap<String, UserData>();
+
 	public BpmTaskFactory(ProcessToolContext ctx)
 	{
 		this.ctx = ctx;
 	}
-	
+
+	/** Create tasks of a whole page. Tasks and process instances are given in matching order */
+	public List<BpmTask> createTasks(List<TaskImpl> tasks, List<ProcessInstance> processInstances)
+	{
+		Collection<String> assignees = new ArrayList<String>(tasks.size());
+		for(TaskImpl task: tasks)
+			assignees.add(task.getAssignee());
+
+		prefetchUsers(assignees, processInstances);
+
+		List<BpmTask> result = new ArrayList<BpmTask>(tasks.size());
+		for(int i = 0; i < tasks.size(); ++i)
+			result.add(create(tasks.get(i), processInstances.get(i)));
+		return result;
+	}
+
+	/** Create finished or pending tasks of a whole page. Tasks and process instances are given in matching order */
+	public List<BpmTask> createHistoryTasks(List<HistoryTaskInstanceImpl> tasks, List<ProcessInstance> processInstances)
+	{
+		/* History tasks are lazy as well, load them into the session at once */
+		Set<Long> historyTaskIds = new HashSet<Long>();
+		for(HistoryTaskInstanceImpl task: tasks)
+			addUninitializedId(historyTaskIds, task.getHistoryTask());
+
+		if(!historyTaskIds.isEmpty())
+		{
+			ctx.getHibernateSession().createCriteria(HistoryTaskImpl.class)
+					.add(Restrictions.in("dbid", historyTaskIds))
+					.list();
+		}
+
+		Collection<String> assignees = new ArrayList<String>(tasks.size());
+		for(HistoryTaskInstanceImpl task: tasks)
+			assignees.add(task.getHistoryTask().getAssignee());
+
+		prefetchUsers(assignees, processInstances);
+
+		List<BpmTask> result = new ArrayList<BpmTask>(tasks.size());
+		for(int i = 0; i < tasks.size(); ++i)
+			result.add(create(tasks.get(i), processInstances.get(i)));
+		return result;
+	}
+
+	/** Load the assignees and process creators of a page of tasks in one query each */
+	public void prefetchUsers(Collection<String> assigneeLogins, Collection<ProcessInstance> processInstances)
+	{
+		Set<String> logins = new HashSet<String>();
+		for(String login: assigneeLogins)
+			if(login != null && !users.containsKey(login))
+				logins.add(login);
+
+		if(!logins.isEmpty())
+		{
+			users.putAll(ctx.getUserDataDAO().loadUsersByLogin(logins));
+			for(String login: logins)
+				if(!users.containsKey(login))
+					users.put(login, null);
+		}
+
+		/* Creators are lazy proxies. Once loaded into the session, they are initialized without a query */
+		Set<Long> creatorIds = new HashSet<Long>();
+		for(ProcessInstance pi: processInstances)
+			if(pi != null)
+				addUninitializedId(creatorIds, pi.getCreator());
+
+		if(!creatorIds.isEmpty())
+		{
+			for(UserData creator: ctx.getUserDataDAO().loadUsersById(creatorIds).values())
+				if(!users.containsKey(creator.getLogin()))
+					users.put(creator.getLogin(), creator);
+		}
+	}
+
    	public BpmTask create(TaskImpl task, ProcessInstance pi) 
    	{
    		MutableBpmTask t = new MutableBpmTask();
    		t.setProcessInstance(pi);
    		t.setAssignee(task.getAssignee());
-   		UserData ud = ctx.getUserDataDAO().loadUserByLogin(task.getAssignee());
-   		if (ud == null) {
-   			ud = new UserData();
-   			ud.setLogin(task.getAssignee());
-   		}
-   		t.setOwner(ud);
+   		t.setOwner(getUser(task.getAssignee()));
    		t.setTaskName(task.getActivityName());
    		t.setInternalTaskId(task.getId());
    		t.setExecutionId(task.getExecutionId());
    		t.setCreateDate(task.getCreateTime());
    		t.setFinishDate(task.getDuedate());
    		t.setFinished(false);
-   		
+
    		return t;
    	}
-   	
+
    	public BpmTask create(HistoryTaskInstanceImpl task, ProcessInstance pi) 
    	{
    		MutableBpmTask t = new MutableBpmTask();
    		t.setProcessInstance(pi);
    		t.setAssignee(task.getHistoryTask().getAssignee());
-   		UserData ud = ctx.getUserDataDAO().loadUserByLogin(task.getHistoryTask().getAssignee());
-   		if (ud == null) {
-   			ud = new UserData();
-   			ud.setLogin(task.getHistoryTask().getAssignee());
-   		}
-   		t.setOwner(ud);
+   		t.setOwner(getUser(task.getHistoryTask().getAssignee()));
    		t.setTaskName(task.getActivityName());
    		t.setInternalTaskId(task.getHistoryTask().getId());
    		t.setExecutionId(task.getExecutionId());
@@ -64,6 +146,35 @@ public class BpmTaskFactory
    		t.setFinished(false);
    		return t;
    	}
-   	
-   	
+
+	private static void addUninitializedId(Set<Long> ids, Object entity)
+	{
+		if(entity instanceof HibernateProxy)
+		{
+			LazyInitializer initializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+			if(initializer.isUninitialized())
+				ids.add((Long)initializer.getIdentifier());
+		}
+	}
+
+   	/** Get the user with the given login, prefetched or loaded now, a bare user with the login if there is none */
+   	public UserData getUser(String login)
+   	{
+   		UserData ud;
+   		if(users.containsKey(login))
+   		{
+   			ud = users.get(login);
+   		}
+   		else
+   		{
+   			ud = ctx.getUserDataDAO().loadUserByLogin(login);
+   			users.put(login, ud);
+   		}
+
+   		if (ud == null) {
+   			ud = new UserData();
+   			ud.setLogin(login);
+   		}
+   		return ud;
+   	}
 }
@@ -29,6 +29,7 @@ public class JbpmStepAction {
     private static final Logger logger = Logger.getLogger(JbpmStepAction.class.getName());
 
     public String invoke() throws Exception {
+    	long start = System.nanoTime();
     	final TaskWatch watch = new TaskWatch(this.getClass().getSimpleName() + ": " + stepName);
     	String res = watch.watchTask("total step processing", new Callable<String>() {
 			@Override
@@ -39,7 +40,11 @@ public class JbpmStepAction {
 		});
     	
     	watch.stopAll();
-    	logger.log(Level.INFO, watch.printSummary());
+    	ProcessToolContext.Util.getThreadProcessToolContext().getRegistry().getStepLatencyHistogram()
+    			.record(stepName + " (total)", System.nanoTime() - start);
+    	if (logger.isLoggable(Level.FINE)) {
+    		logger.log(Level.FINE, watch.printSummary());
+    	}
 
         return res;
     }
@@ -75,12 +80,14 @@ public class JbpmStepAction {
 		try {
 		    PropertyAutoWiring.autowire(stepInstance, params);
 		    final BpmStep step = prepareStep(pi);
+		    long start = System.nanoTime();
 		    res = watch.watchTask("actual step execution", new Callable<String>() {
 				@Override
 				public String call() throws Exception {
 					return stepInstance.invoke(step, params);
 				}
 		    });
+		    ctx.getRegistry().getStepLatencyHistogram().record(stepName, System.nanoTime() - start);
 		} catch (Exception e) {
 		    throw new RuntimeException(e);
 		}
@@ -0,0 +1,311 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.aperteworkflow.bpm.graph.GraphElement;
+import org.aperteworkflow.bpm.graph.StateNode;
+import org.aperteworkflow.bpm.graph.TransitionArc;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Graphs of deployed process definitions - nodes and transitions with their coordinates,
+ * as drawn by the process history view.
+ *
+ * The definition of a deployment never changes, so its graph is parsed once and shared by all
+ * sessions. The graph of a deployment is parsed by the first thread asking for it, others wait
+ * for it instead of parsing it again. Graphs of older deployments of a process are dropped when
+ * a new version of the process is deployed.
+ *
+ * The returned graphs are read only and shared - their elements must be cloned before any change.
+ */
+public class ProcessDefinitionGraphCache {
+    private static final Logger logger = Logger.getLogger(ProcessDefinitionGraphCache.class.getName());
+
+    /** Reads the definition XML of a deployment */
+    public interface DefinitionLoader {
+        byte[] loadDefinition();
+    }
+
+    private final ConcurrentMap<String, CachedGraph> graphs = new ConcurrentHashMap<String, CachedGraph>();
+
+    /**
+     * Get the graph of the given deployment, parsing its definition if it has not been parsed yet
+     *
+     * @return graph elements by node name, transitions by <code>node_transition</code>, and the
+     * <code>__AWF__</code> entries for the start node and the default transitions
+     */
+    public Map<String, GraphElement> getGraph(String deploymentId, String processName, final DefinitionLoader loader) {
+        CachedGraph graph = graphs.get(deploymentId);
+        if (graph == null) {
+            CachedGraph parsing = new CachedGraph(processName, new FutureTask<Map<String, GraphElement>>(
+                    new Callable<Map<String, GraphElement>>() {
+                        @Override
+                        public Map<String, GraphElement> call() throws Exception {
+                            byte[] definition = loader.loadDefinition();
+                            if (definition == null) {
+                                throw new IllegalStateException("No process definition found");
+                            }
+                            return Collections.unmodifiableMap(parse(definition));
+                        }
+                    }));
+            graph = graphs.putIfAbsent(deploymentId, parsing);
+            if (graph == null) {
+                graph = parsing;
+                parsing.task.run();
+            }
+        }
+
+        try {
+            return graph.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            /* let the next call try again */
+            graphs.remove(deploymentId, graph);
+            throw new RuntimeException("Failed to parse definition of deployment " + deploymentId, e.getCause());
+        }
+    }
+
+    /** Drop the graphs of all deployments of the given process */
+    public void evictProcess(String processName) {
+        for (Map.Entry<String, CachedGraph> e : graphs.entrySet()) {
+            if (e.getValue().processName.equals(processName)) {
+                graphs.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static class CachedGraph {
+        private final String processName;
+        private final FutureTask<Map<String, GraphElement>> task;
+
+        private CachedGraph(String processName, FutureTask<Map<String, GraphElement>> task) {
+            this.processName = processName;
+            this.task = task;
+        }
+    }
+
+    static Map<String, GraphElement> parse(byte[] processDefinition) {
+        HashMap<String, GraphElement> res = new HashMap<String, GraphElement>();
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+
+        try {
+
+            //Using factory get an instance of document builder
+            DocumentBuilder db = dbf.newDocumentBuilder();
+            //parse using builder to get DOM representation of the XML file
+            Document dom = db.parse(new ByteArrayInputStream(processDefinition));
+            Element documentElement = dom.getDocumentElement();
+            String[] nodeTypes = new String[]{"start", "end", "java", "task", "decision","join","fork"};
+            for (String nodeType : nodeTypes) {
+                NodeList nodes = documentElement.getElementsByTagName(nodeType);
+                for (int i = 0; i < nodes.getLength(); i++) {
+                    Element node = (Element) nodes.item(i);
+                    try {
+                        StateNode sn = new StateNode();
+                        String gval = node.getAttribute("g");
+                        String[] vals = gval.split(",", 4);
+                        int x = Integer.parseInt(vals[0]);
+                        int y = Integer.parseInt(vals[1]);
+                        int w = Integer.parseInt(vals[2]);
+                        int h = Integer.parseInt(vals[3]);
+                        sn.setX(x);
+                        sn.setY(y);
+                        sn.setWidth(w);
+                        sn.setHeight(h);
+                        sn.setNodeType(nodeType);
+                        String name = node.getAttribute("name"); 
+                        sn.setLabel(name);
+                        res.put(name, sn);
+                        if ("start".equals(nodeType)) {
+                            res.put("__AWF__start_node", sn);
+                        }
+                        logger.fine("Found node" + name + ": " + x + "," + y + "," + w + "," + h);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, e.getMessage(), e);
+                    }
+                }
+            }
+                //once again - for transitions
+            for (String nodeType : nodeTypes) {
+                NodeList nodes = documentElement.getElementsByTagName(nodeType);
+                for (int i = 0; i < nodes.getLength(); i++) {
+                    Element node = (Element) nodes.item(i);
+                    try {
+                        String startNodeName = node.getAttribute("name");
+                        StateNode startNode = (StateNode) res.get(startNodeName);
+                        if (startNode == null) {
+                            logger.severe("Start node " + startNodeName +
+                                    " has not been localized, skipping transition drawing too.");
+                            continue;
+                        }
+                        NodeList transitions = node.getElementsByTagName("transition");
+                        for (int j=0; j < transitions.getLength(); j++) {
+                            Element transitionEl = (Element) transitions.item(j);
+                            String name = transitionEl.getAttribute("name");
+                            String to = transitionEl.getAttribute("to") ;
+                            StateNode endNode = (StateNode) res.get(to);
+                            if (endNode == null) {
+                                logger.severe("End node " + to + " has not been localized for transition " + name +
+                                        " of node " + startNodeName + ", skipping transition drawing.");
+                                continue;
+                            }
+                            String g = transitionEl.getAttribute("g");
+                            if (g != null) {
+                                String[] dockersAndDistances = g.split(":");
+                                String[] dockers = new String[0];
+                                if (dockersAndDistances.length == 2) {
+                                    dockers = dockersAndDistances[0].split(";");//what the other numbers mean - I have no idea...
+                                }
+                                //calculate line start node which is a center of the start node
+                                int startX = startNode.getX() + startNode.getWidth()/2;
+                                int startY = startNode.getY() + startNode.getHeight()/2;
+                                //and the same for end node
+                                int endX   = endNode.getX() + endNode.getWidth()/2;
+                                int endY   = endNode.getY() + endNode.getHeight()/2;
+
+                                TransitionArc arc = new TransitionArc();
+                                arc.setName(name);
+                                arc.addPoint(startX, startY);
+                                for (String docker : dockers) {
+                                    String[] split = docker.split(",",2);
+                                    arc.addPoint(Integer.parseInt(split[0]), Integer.parseInt(split[1]));
+                                }
+                                arc.addPoint(endX, endY);
+
+                                double a;//remember about vertical line
+                                double b;
+
+                                endX = arc.getPath().get(1).getX();
+                                endY = arc.getPath().get(1).getY();
+                                if (startX - endX == 0) { //whoa - vertical line - simple case, but requires special approach
+                                    if (endY > startNode.getY()+startNode.getHeight()) { //below
+                                        startY = startNode.getY()+startNode.getHeight();
+                                    } else {
+                                        startY = startNode.getY();
+                                    }
+                                } else {
+                                    a = ((double)(startY-endY))/((double)(startX - endX));
+                                    b = (double)startY - (double)startX*a;
+                                    for (int x = startX; x <= endX; x++) {
+                                        int y = (int) Math.round(a*x+b);
+                                        boolean inside = false;
+                                        if (x >= startNode.getX() && x <= startNode.getX() + startNode.getWidth()) {
+                                            if (y >= startNode.getY() && y <= startNode.getY() + startNode.getHeight()) {
+                                                inside = true;
+                                            }
+                                        }
+                                        if (!inside) {
+                                            startX = x;
+                                            startY = y;
+                                            break;
+                                        }
+                                    }
+                                    for (int x = startX; x > endX; x--) {
+                                        int y = (int) Math.round(a*x+b);
+                                        boolean inside = false;
+                                        if (x >= startNode.getX() && x <= startNode.getX() + startNode.getWidth()) {
+                                            if (y >= startNode.getY() && y <= startNode.getY() + startNode.getHeight()) {
+                                                inside = true;
+                                            }
+                                        }
+                                        if (!inside) {
+                                            startX = x;
+                                            startY = y;
+                                            break;
+                                        }
+                                    }
+                                }
+                                arc.getPath().get(0).setX(startX);
+                                arc.getPath().get(0).setY(startY);
+
+                                endX = arc.getPath().get(arc.getPath().size()-1).getX();
+                                endY = arc.getPath().get(arc.getPath().size()-1).getY();
+                                startX = arc.getPath().get(arc.getPath().size()-2).getX();
+                                startY = arc.getPath().get(arc.getPath().size()-2).getY();
+                                if (startX - endX == 0) { //whoa - vertical line - simple case, but requires special approach
+                                   if (startY > endNode.getY()+endNode.getHeight()) { //below
+                                       endY = endNode.getY()+endNode.getHeight();
+                                   } else {
+                                       endY = endNode.getY();
+                                   }
+                                } else {
+                                    a = ((double)(startY-endY))/((double)(startX - endX));//remember about vertical line
+                                    //startY = startX*a+b
+                                    b = (double)startY - (double)startX*a;
+                                    for (int x = endX; x <= startX; x++) {
+                                        int y = (int) Math.round(a*x+b);
+                                        boolean inside = false;
+                                        if (x >= endNode.getX() && x <= endNode.getX() + endNode.getWidth()) {
+                                            if (y >= endNode.getY() && y <= endNode.getY() + endNode.getHeight()) {
+                                                inside = true;
+                                            }
+                                        }
+                                        if (!inside) {
+                                            endX = x;
+                                            endY = y;
+                                            break;
+                                        }
+                                    }
+                                    for (int x = endX; x > startX; x--) {
+                                        int y = (int) Math.round(a*x+b);
+                                        boolean inside = false;
+                                        if (x >= endNode.getX() && x <= endNode.getX() + endNode.getWidth()) {
+                                            if (y >= endNode.getY() && y <= endNode.getY() + endNode.getHeight()) {
+                                                inside = true;
+                                            }
+                                        }
+                                        if (!inside) {
+                                            endX = x;
+                                            endY = y;
+                                            break;
+                                        }
+                                    }
+                                }
+                                arc.getPath().get(arc.getPath().size()-1).setX(endX);
+                                arc.getPath().get(arc.getPath().size()-1).setY(endY);
+                                arc.setDestination(to);
+                                arc.setSource(startNodeName);
+
+                                res.put(startNodeName + "_" + name,arc);
+                                if ("start".equals(nodeType)) {
+                                    res.put("__AWF__start_transition_to_" + to, arc);
+                                }
+                                if (transitions.getLength() == 1) {
+                                    res.put("__AWF__default_transition_" + startNodeName, arc);
+                                }
+                            } else {
+                                logger.severe("No 'g' attribute for transition "+ name +
+                                               " of node " + startNodeName + ", skipping transition drawing.");
+                            }
+                        }
+
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, e.getMessage(), e);
+                    }
+                }
+            }
+
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return res;
+    }
+}
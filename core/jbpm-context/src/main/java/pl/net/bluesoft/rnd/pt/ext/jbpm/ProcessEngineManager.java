@@ -0,0 +1,97 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import org.jbpm.api.Configuration;
+import org.jbpm.api.ProcessEngine;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the jBPM process engine shared by all contexts.
+ *
+ * The engine is built lazily on first use and reused until {@link #invalidate()} is called
+ * (a new process definition was deployed or the hibernate model was extended). Engines are
+ * reference counted, so an invalidated engine is closed only after the last context using it
+ * has released it.
+ */
+public class ProcessEngineManager {
+    private static final Logger logger = Logger.getLogger(ProcessEngineManager.class.getName());
+
+    private final Map<ProcessEngine, Integer> usages = new IdentityHashMap<ProcessEngine, Integer>();
+    private Configuration configuration;
+    private ProcessEngine current;
+
+    public ProcessEngineManager(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    public synchronized ProcessEngine acquire() {
+        if (current == null) {
+            long time = System.currentTimeMillis();
+            current = buildProcessEngine();
+            logger.info("Built jBPM process engine in " + (System.currentTimeMillis() - time) + " ms");
+        }
+        Integer count = usages.get(current);
+        usages.put(current, count != null ? count + 1 : 1);
+        return current;
+    }
+
+    public synchronized void release(ProcessEngine engine) {
+        Integer count = usages.get(engine);
+        if (count == null) {
+            logger.warning("Releasing unknown process engine");
+            return;
+        }
+        if (count > 1) {
+            usages.put(engine, count - 1);
+        }
+        else {
+            usages.remove(engine);
+            if (engine != current) {
+                closeEngine(engine);
+            }
+        }
+    }
+
+    /**
+     * Forces the next {@link #acquire()} to build a fresh engine.
+     */
+    public synchronized void invalidate() {
+        ProcessEngine engine = current;
+        current = null;
+        if (engine != null && !usages.containsKey(engine)) {
+            closeEngine(engine);
+        }
+    }
+
+    public synchronized void setConfiguration(Configuration configuration) {
+        this.configuration = configuration;
+        invalidate();
+    }
+
+    public synchronized void close() {
+        invalidate();
+    }
+
+    protected ProcessEngine buildProcessEngine() {
+        Thread t = Thread.currentThread();
+        ClassLoader previousLoader = t.getContextClassLoader();
+        try {
+            ClassLoader newClassLoader = getClass().getClassLoader();
+            t.setContextClassLoader(newClassLoader);
+            return configuration.buildProcessEngine();
+        } finally {
+            t.setContextClassLoader(previousLoader);
+        }
+    }
+
+    private void closeEngine(ProcessEngine engine) {
+        try {
+            engine.close();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to close process engine", e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.jbpm.pvm.internal.model.ExecutionImpl;
+
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+
+/**
+ * Loads the process instances of a whole page of tasks at once.
+ *
+ * The executions of the tasks are resolved to their process instances with one query, and the
+ * process instances are read with one <code>in</code> query together with what a task list shows:
+ * the definition and the attributes. Parent processes, needed for the root process of a task,
+ * are read the same way, one query per level of nesting.
+ *
+ * Process instances are kept in an identity map living as long as the loader, so pages loaded
+ * with the same loader share their instances and do not read them again.
+ */
+public class ProcessInstanceBatchLoader
+{
+	/** Ids bound to a single statement */
+	private static final int MAX_IN_SIZE = 500;
+
+	private final Session session;
+
+	/** Internal ids of the process instances of the executions resolved so far */
+	private final Map<String, String> processIdsByExecution = new HashMap<String, String>();
+
+	/** Process instances loaded so far, by internal id */
+	private final Map<String, ProcessInstance> processInstances = new HashMap<String, ProcessInstance>();
+
+	public ProcessInstanceBatchLoader(Session session)
+	{
+		this.session = session;
+	}
+
+	/**
+	 * Get the process instances of the given executions
+	 *
+	 * @return process instances by execution id, executions without a process instance are left out
+	 */
+	public Map<String, ProcessInstance> getProcessInstancesByExecution(Collection<String> executionIds)
+	{
+		resolveExecutions(executionIds);
+
+		Set<String> processIds = new HashSet<String>();
+		for(String executionId: executionIds)
+		{
+			String processId = processIdsByExecution.get(executionId);
+			if(processId != null)
+				processIds.add(processId);
+		}
+		loadProcessInstances(processIds);
+
+		Map<String, ProcessInstance> result = new HashMap<String, ProcessInstance>();
+		for(String executionId: executionIds)
+		{
+			ProcessInstance processInstance = processInstances.get(processIdsByExecution.get(executionId));
+			if(processInstance != null)
+				result.put(executionId, processInstance);
+		}
+		return result;
+	}
+
+	/** Internal id of the process instance of the given execution, null if there is none */
+	public String getProcessId(String executionId)
+	{
+		return processIdsByExecution.get(executionId);
+	}
+
+	/** Get the process instances loaded so far, by internal id */
+	public Map<String, ProcessInstance> getProcessInstances()
+	{
+		return processInstances;
+	}
+
+	private void resolveExecutions(Collection<String> executionIds)
+	{
+		List<String> unresolved = new ArrayList<String>();
+		for(String executionId: new HashSet<String>(executionIds))
+			if(executionId != null && !processIdsByExecution.containsKey(executionId))
+				unresolved.add(executionId);
+
+		for(int i = 0; i < unresolved.size(); i += MAX_IN_SIZE)
+		{
+			List rows = session.createQuery(
+					"select execution.id, execution.processInstance.id from " + ExecutionImpl.class.getName() + " execution " +
+					"where execution.id in (:executionIds)")
+					.setParameterList("executionIds", unresolved.subList(i, Math.min(i + MAX_IN_SIZE, unresolved.size())))
+					.list();
+			for(Object row: rows)
+			{
+				Object[] columns = (Object[])row;
+				processIdsByExecution.put((String)columns[0], (String)columns[1]);
+			}
+		}
+	}
+
+	private void loadProcessInstances(Set<String> processIds)
+	{
+		List<String> unloaded = new ArrayList<String>();
+		for(String processId: processIds)
+			if(!processInstances.containsKey(processId))
+				unloaded.add(processId);
+
+		List<ProcessInstance> loaded = new ArrayList<ProcessInstance>();
+		for(int i = 0; i < unloaded.size(); i += MAX_IN_SIZE)
+		{
+			loaded.addAll(createHydratingCriteria()
+					.add(Restrictions.in("internalId", unloaded.subList(i, Math.min(i + MAX_IN_SIZE, unloaded.size()))))
+					.list());
+		}
+
+		for(ProcessInstance processInstance: loaded)
+			processInstances.put(processInstance.getInternalId(), processInstance);
+
+		loadParents(loaded);
+	}
+
+	/** Initialize the parent proxies of the given processes, level by level up to the roots */
+	private void loadParents(List<ProcessInstance> children)
+	{
+		while(!children.isEmpty())
+		{
+			Set<Long> parentIds = new HashSet<Long>();
+			for(ProcessInstance child: children)
+				addUninitializedId(parentIds, child.getParent());
+
+			List<Long> ids = new ArrayList<Long>(parentIds);
+			List<ProcessInstance> parents = new ArrayList<ProcessInstance>();
+			for(int i = 0; i < ids.size(); i += MAX_IN_SIZE)
+			{
+				parents.addAll(createHydratingCriteria()
+						.add(Restrictions.in("id", ids.subList(i, Math.min(i + MAX_IN_SIZE, ids.size()))))
+						.list());
+			}
+			for(ProcessInstance parent: parents)
+				processInstances.put(parent.getInternalId(), parent);
+
+			children = parents;
+		}
+	}
+
+	private Criteria createHydratingCriteria()
+	{
+		return session.createCriteria(ProcessInstance.class)
+				.setFetchMode("definition", FetchMode.JOIN)
+				.setFetchMode("processAttributes", FetchMode.JOIN)
+				.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+	}
+
+	private static void addUninitializedId(Set<Long> ids, Object entity)
+	{
+		if(entity instanceof HibernateProxy)
+		{
+			LazyInitializer initializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+			if(initializer.isUninitialized())
+				ids.add((Long)initializer.getIdentifier());
+		}
+	}
+}
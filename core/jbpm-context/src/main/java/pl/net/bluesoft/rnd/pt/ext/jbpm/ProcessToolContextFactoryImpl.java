@@ -4,6 +4,7 @@ import com.thoughtworks.xstream.XStream;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.context.ThreadLocalSessionContext;
 import org.jbpm.api.Configuration;
 import org.jbpm.api.ProcessEngine;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
@@ -13,6 +14,7 @@ import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmConstants;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.dao.ProcessDefinitionDAO;
+import pl.net.bluesoft.rnd.processtool.hibernate.HibernateTransactionCallback;
 import pl.net.bluesoft.rnd.processtool.model.UserData;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionPermission;
@@ -21,6 +23,7 @@ import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
 import pl.net.bluesoft.util.lang.Strings;
 
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.transaction.Status;
 import javax.transaction.UserTransaction;
 import java.io.ByteArrayInputStream;
@@ -39,7 +42,9 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
 
     private static Logger logger = Logger.getLogger(ProcessToolContextFactoryImpl.class.getName());
     private Configuration configuration;
+    private ProcessEngineManager processEngineManager;
     private ProcessToolRegistry registry;
+    private volatile UserTransaction userTransaction;
 
     public ProcessToolContextFactoryImpl(ProcessToolRegistry registry) {
         this.registry = registry;
@@ -65,8 +70,11 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
         T result = null;
 
 		Session session = registry.getSessionFactory().openSession();
+		/* the shared engine reads the current session of the thread, see hibernate-session in jbpm.cfg.xml */
+		Session previousSession = ThreadLocalSessionContext.unbind(registry.getSessionFactory());
+		ThreadLocalSessionContext.bind(session);
 		try {
-			ProcessEngine pi = getProcessEngine();
+			ProcessEngine pi = processEngineManager.acquire();
 			try {
 				Transaction tx = session.beginTransaction();
 				try {
@@ -84,9 +92,13 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
 				tx.commit();
 			}
 			finally {
-				pi.close();
+				processEngineManager.release(pi);
 			}
 		} finally {
+			ThreadLocalSessionContext.unbind(registry.getSessionFactory());
+			if (previousSession != null) {
+				ThreadLocalSessionContext.bind(previousSession);
+			}
 			session.close();
 		}
         return result;
@@ -96,14 +108,7 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
         T result = null;
 
         try {
-            UserTransaction ut=null;
-            try {
-                ut = (UserTransaction) new InitialContext().lookup("java:comp/UserTransaction");
-            } catch (Exception e) {
-                //it should work on jboss regardless. But it does not..
-                logger.warning("java:comp/UserTransaction not found, looking for UserTransaction");
-                ut = (UserTransaction) new InitialContext().lookup("UserTransaction");
-            }
+            UserTransaction ut = getUserTransaction();
 
             logger.fine("ut.getStatus() = " + ut.getStatus());
             if (ut.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
@@ -113,7 +118,7 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
                 ut.begin();
             Session session = registry.getSessionFactory().getCurrentSession();
             try {
-                ProcessEngine pi = getProcessEngine();
+                ProcessEngine pi = processEngineManager.acquire();
                 try {
                     try {
                         ProcessToolContextImpl ctx = new ProcessToolContextImpl(session, this, pi);
@@ -128,7 +133,7 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
                         throw e;
                     }
                 } finally {
-                    pi.close();
+                    processEngineManager.release(pi);
                 }
             } finally {
                 session.flush();
@@ -142,16 +147,19 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
 
     }
 
-    private ProcessEngine getProcessEngine() {
-        Thread t = Thread.currentThread();
-        ClassLoader previousLoader = t.getContextClassLoader();
-        try {
-            ClassLoader newClassLoader = getClass().getClassLoader();
-            t.setContextClassLoader(newClassLoader);
-            return configuration.buildProcessEngine();
-        } finally {
-            t.setContextClassLoader(previousLoader);
+    private UserTransaction getUserTransaction() throws NamingException {
+        UserTransaction ut = userTransaction;
+        if (ut == null) {
+            try {
+                ut = (UserTransaction) new InitialContext().lookup("java:comp/UserTransaction");
+            } catch (Exception e) {
+                //it should work on jboss regardless. But it does not..
+                logger.warning("java:comp/UserTransaction not found, looking for UserTransaction");
+                ut = (UserTransaction) new InitialContext().lookup("UserTransaction");
+            }
+            userTransaction = ut;
         }
+        return ut;
     }
 
     @Override
@@ -200,6 +208,18 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
                     if (!skipJbpm) {
                         String deploymentId = session.deployProcessDefinition(cfg.getProcessName(), is, imageStream);
                         logger.log(Level.INFO, "deployed new BPM Engine definition with id: " + deploymentId);
+                        processToolContext.addTransactionCallback(new HibernateTransactionCallback() {
+                            @Override
+                            public void onCommit() {
+                                processEngineManager.invalidate();
+                            }
+
+                            @Override
+                            public void onRollback() {
+                                //the engine may have cached the rolled back deployment
+                                processEngineManager.invalidate();
+                            }
+                        });
                     }
 
                     ProcessDefinitionDAO processDefinitionDAO = processToolContext.getProcessDefinitionDAO();
@@ -265,6 +285,14 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
     public void updateSessionFactory(SessionFactory sf) {
         if (configuration != null) {
             configuration.setHibernateSessionFactory(sf);
+            processEngineManager.invalidate();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (processEngineManager != null) {
+            processEngineManager.close();
         }
     }
 
@@ -276,6 +304,11 @@ public class ProcessToolContextFactoryImpl implements ProcessToolContextFactory,
             t.setContextClassLoader(newClassLoader);
             configuration = new Configuration();
             configuration.setHibernateSessionFactory(registry.getSessionFactory());
+            if (processEngineManager == null) {
+                processEngineManager = new ProcessEngineManager(configuration);
+            } else {
+                processEngineManager.setConfiguration(configuration);
+            }
         } finally {
             t.setContextClassLoader(previousLoader);
         }
@@ -35,7 +35,6 @@ import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstanceAttribute;
 import pl.net.bluesoft.rnd.processtool.model.UserData;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolAutowire;
-import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolSequence;
 import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolSetting;
 import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
 import pl.net.bluesoft.rnd.processtool.userqueues.IUserProcessQueueManager;
@@ -58,6 +57,8 @@ public class ProcessToolContextImpl implements ProcessToolContext {
 
     private Map<String, String> autowiringCache;
     private Map<Class<? extends HibernateBean>, HibernateBean> daoCache = new HashMap<Class<? extends HibernateBean>, HibernateBean>();
+    /** Settings changed in this transaction, published to the settings cache after commit */
+    private Map<String, String> pendingSettings;
 
     private Boolean closed = false;
 
@@ -68,8 +69,10 @@ public class ProcessToolContextImpl implements ProcessToolContext {
         this.factory = factory;
         this.processEngine = processEngine;
         this.autowiringCache = getRegistry().getCache(ProcessToolAutowire.class.getName());
-        this.userProcessQueueManager = new UserProcessQueueManager(hibernateSession, getUserProcessQueueDAO());
-        processEngine.setHibernateSession(hibernateSession);
+        this.userProcessQueueManager = new UserProcessQueueManager(hibernateSession, getUserProcessQueueDAO(), getRegistry().getUserQueueCounters(),
+                getRegistry().getProcessQueueCounters());
+        //the engine is shared by all threads, it gets the session of the thread as the current one
+        //bound by the context factory, instead of a session set on the engine itself
 
         transaction = hibernateSession.beginTransaction();
     }
@@ -84,15 +87,12 @@ public class ProcessToolContextImpl implements ProcessToolContext {
     }
 
     public synchronized void close() {
+        //process engine is shared and released by the context factory
         try {
-            processEngine.close();
+            commit();
         } finally {
-            try {
-                commit();
-            } finally {
-                hibernateSession.close();
-                closed = true;
-            }
+            hibernateSession.close();
+            closed = true;
         }
     }
 
@@ -229,9 +229,10 @@ public class ProcessToolContextImpl implements ProcessToolContext {
     @Override
     public String getSetting(String key) {
         verifyContextOpen();
-        ProcessToolSetting setting = (ProcessToolSetting) hibernateSession.createCriteria(ProcessToolSetting.class)
-                .add(Restrictions.eq("key", key)).uniqueResult();
-        return setting != null ? setting.getValue() : null;
+        if (pendingSettings != null && pendingSettings.containsKey(key)) {
+            return pendingSettings.get(key);
+        }
+        return getRegistry().getSettingsCache().getSetting(key);
     }
 
     @Override
@@ -247,6 +248,26 @@ public class ProcessToolContextImpl implements ProcessToolContext {
         }
         setting.setValue(value);
         hibernateSession.saveOrUpdate(setting);
+        recordSettingChange(key, value);
+    }
+
+    private void recordSettingChange(String key, String value) {
+        if (pendingSettings == null) {
+            pendingSettings = new HashMap<String, String>();
+            hibernateSession.getTransaction().registerSynchronization(new HibernateTransactionCallback() {
+                @Override
+                public void onCommit() {
+                    for (Map.Entry<String, String> entry : pendingSettings.entrySet()) {
+                        getRegistry().getSettingsCache().settingChanged(entry.getKey(), entry.getValue());
+                    }
+                }
+
+                @Override
+                public void onRollback() {
+                }
+            });
+        }
+        pendingSettings.put(key, value);
     }
 
     @Override
@@ -274,25 +295,7 @@ public class ProcessToolContextImpl implements ProcessToolContext {
     @Override
     public long getNextValue(String processDefinitionName, String sequenceName) {
         verifyContextOpen();
-        List<ProcessToolSequence> seqList = hibernateSession.createCriteria(ProcessToolSequence.class)
-                .add(Restrictions.eq("processDefinitionName", processDefinitionName))
-                .add(Restrictions.eq("name", sequenceName))
-                .list();
-
-        ProcessToolSequence seq;
-
-        if (seqList.isEmpty()) {
-            seq = new ProcessToolSequence();
-            seq.setProcessDefinitionName(processDefinitionName);
-            seq.setName(sequenceName);
-            seq.setValue(1);
-        } else {
-            seq = seqList.get(0);
-            seq.setValue(seq.getValue() + 1);
-        }
-        hibernateSession.saveOrUpdate(seq);
-        hibernateSession.flush();
-        return seq.getValue();
+        return getRegistry().getSequenceAllocator().getNextValue(hibernateSession, processDefinitionName, sequenceName);
     }
 
     @Override
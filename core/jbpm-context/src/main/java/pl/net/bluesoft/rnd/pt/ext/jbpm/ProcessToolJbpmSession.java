@@ -3,7 +3,6 @@ package pl.net.bluesoft.rnd.pt.ext.jbpm;
 import static pl.net.bluesoft.util.lang.FormatUtil.nvl;
 import static pl.net.bluesoft.util.lang.Lang.keyFilter;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -16,12 +15,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import org.aperteworkflow.bpm.graph.GraphElement;
 import org.aperteworkflow.bpm.graph.StateNode;
 import org.aperteworkflow.bpm.graph.TransitionArc;
@@ -57,14 +52,12 @@ import org.jbpm.pvm.internal.model.ExecutionImpl;
 import org.jbpm.pvm.internal.query.AbstractQuery;
 import org.jbpm.pvm.internal.task.ParticipationImpl;
 import org.jbpm.pvm.internal.task.TaskImpl;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import com.sun.org.apache.bcel.internal.generic.ISTORE;
 
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.processtool.bpm.BpmEvent;
+import pl.net.bluesoft.rnd.processtool.bpm.BpmTaskPage;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.bpm.exception.ProcessToolSecurityException;
 import pl.net.bluesoft.rnd.processtool.bpm.impl.AbstractProcessToolSession;
@@ -100,6 +93,8 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
 	private static final String AUTO_SKIP_ACTION_NAME = "AUTO_SKIP";
 	private static final String JOIN_NODE_NAME = "join";
 	private static final String FORK_NODE_NAME = "fork";
+	/** Graphs of the deployed definitions, shared by all sessions */
+	private static final ProcessDefinitionGraphCache GRAPH_CACHE = new ProcessDefinitionGraphCache();
 	protected Logger log = Logger.getLogger(ProcessToolJbpmSession.class.getName());
 
     private static final Integer DEFAULT_OFFSET_VALUE = 0;
@@ -376,17 +371,7 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
 	public int getFilteredTasksCount(ProcessInstanceFilter filter, ProcessToolContext ctx) 
 	{
    		/* Initialize query */
-   		BpmTaskFilterQuery taskFilterQuery = new BpmTaskFilterQuery(ctx);
-   		
-   		/* Queues filter do not have owner */
-   		if(filter.getFilterOwner() != null)
-   			taskFilterQuery.addUserLoginCondition(filter.getFilterOwner().getLogin());
-   		
-   		if(!filter.getQueueTypes().isEmpty())
-   			taskFilterQuery.addQueueTypeCondition(filter.getQueueTypes());
-   		
-   		/* Add external conditions for process instance filter */
-   		addExternalConditions(taskFilterQuery, filter);
+   		BpmTaskFilterQuery taskFilterQuery = createFilterQuery(filter, ctx);
    		
    		/* Get results count. No entities are loaded to memory using this */
    		return taskFilterQuery.getBpmTaskCount();
@@ -401,6 +386,34 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
 	public List<BpmTask> findFilteredTasks(ProcessInstanceFilter filter, ProcessToolContext ctx, int offset, int maxResults)
    	{
    		/* Initialize query */
+   		BpmTaskFilterQuery taskFilterQuery = createFilterQuery(filter, ctx);
+   		
+   		/* Set limit for max results count */
+   		taskFilterQuery.setMaxResultsLimit(maxResults);
+   		taskFilterQuery.setResultsOffset(offset);
+   		
+		/* BpmTasks */
+		List<BpmTask> result = taskFilterQuery.getBpmTasks();
+   		
+   		return result;
+   	}
+	
+	@Override
+	public BpmTaskPage findFilteredTasksPage(ProcessInstanceFilter filter, ProcessToolContext ctx, String cursor, int maxResults)
+	{
+   		/* Initialize query */
+   		BpmTaskFilterQuery taskFilterQuery = createFilterQuery(filter, ctx);
+   		
+   		/* Continue after the last task of the previous page */
+   		taskFilterQuery.addCursorCondition(cursor);
+   		taskFilterQuery.setMaxResultsLimit(maxResults);
+   		
+   		return taskFilterQuery.getBpmTasksPage();
+	}
+	
+	/** Create query with the conditions of given process instance filter */
+	private BpmTaskFilterQuery createFilterQuery(ProcessInstanceFilter filter, ProcessToolContext ctx)
+	{
    		BpmTaskFilterQuery taskFilterQuery = new BpmTaskFilterQuery(ctx);
    		
    		/* Queues filter do not have owner */
@@ -410,17 +423,11 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
    		if(!filter.getQueueTypes().isEmpty())
    			taskFilterQuery.addQueueTypeCondition(filter.getQueueTypes());
    		
-   		/* Set limit for max results count */
-   		taskFilterQuery.setMaxResultsLimit(maxResults);
-   		taskFilterQuery.setResultsOffset(offset);
    		/* Add external conditions for process instance filter */
    		addExternalConditions(taskFilterQuery, filter);
    		
-		/* BpmTasks */
-		List<BpmTask> result = taskFilterQuery.getBpmTasks();
-   		
-   		return result;
-   	}
+   		return taskFilterQuery;
+	}
    	
    	/** Add additional conditions to query from process instance filter */
    	private void addExternalConditions(BpmTaskFilterQuery taskFilterQuery,ProcessInstanceFilter filter)
@@ -532,63 +539,12 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
    		}
    	}
 
-   	@Override
-   	public Collection<ProcessQueue> getUserAvailableQueues(ProcessToolContext ctx) {  
-   		Collection<ProcessQueue> configs = getUserQueuesFromConfig(ctx);  
-   		final List<String> names = keyFilter("name", configs);
-   		if (names.isEmpty()) {
-   			return new ArrayList<ProcessQueue>();  
-   		}
-   		Command<List<Map>> cmd = new Command<List<Map>>() {
-   			@Override
-   			public List<Map> execute(Environment environment) throws Exception {
-   				return (List<Map>) new AbstractQuery() {
-   					@Override
-   					protected void applyParameters(Query query) {
-   						query.setParameterList("groupIds", names);
-   					}
-
-   					@Override
-   					public String hql() {
-   						return new StringBuilder()
-   						.append("select new map(participant.groupId as groupId, count(task) as taskCount) ")
-   						.append("from ")
-   						.append(TaskImpl.class.getName())
-   						.append(" as task ")
-   						.append(", ")
-   						.append(ParticipationImpl.class.getName())
-   						.append(" as participant ")
-   						.append("where participant.task=task ")
-   						.append("and participant.type = 'candidate' ")
-   						.append("and participant.groupId IN (:groupIds) ")
-   						.append("and task.assignee is null ")
-   						.append("group by participant.groupId")
-   						.toString();
-   					}
-   				}.execute(environment);
-   			}
-   		};
-
-   		List<Map> maps = getProcessEngine(ctx).execute(cmd);
-   		Map<String, Long> counts = new HashMap<String, Long>();
-   		for (Map m : maps) {
-   			counts.put((String) m.get("groupId"), (Long) m.get("taskCount"));
-   		}
-
-   		for (ProcessQueue q : configs) {
-   			q.setProcessCount(nvl(counts.get(q.getName()), (long) 0));
-   		}
-   		return configs;
-   	}
-   	
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<BpmTask> getQueueTasks(ProcessToolContext ctx, String queueName)
 	{
-		SQLQuery query = ctx.getHibernateSession().createSQLQuery(
-				"select task.*, process.*, part.* from jbpm4_task task, pt_process_instance process, jbpm4_participation part " +
-				"where process.internalid = task.execution_id_ and part.task_ = task.dbid_ " +
-				"and part.groupid_ = '"+queueName+"'");
+		SQLQuery query = ctx.getHibernateSession().createSQLQuery(QueueTaskSql.getSql(QueueTaskSql.Shape.queueTasks()));
+		query.setString(QueueTaskSql.QUEUE_NAME, queueName);
 		
 		query.addEntity("task", TaskImpl.class);
 		query.addEntity("process", ProcessInstance.class);
@@ -597,24 +553,18 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
 		/* Get query results */
 		List<Object[]> queueResults = query.list();
 		
-		List<BpmTask> result = new ArrayList<BpmTask>();
-		
-		BpmTaskFactory taskFactory = new BpmTaskFactory(ctx);
+		List<TaskImpl> taskInstances = new ArrayList<TaskImpl>(queueResults.size());
+		List<ProcessInstance> processInstances = new ArrayList<ProcessInstance>(queueResults.size());
 		
 		/* Every row is one queue element with jbpm task as first column and process instance as second */
    		for(Object[] resultRow: queueResults)
    		{
-   			
-   			TaskImpl taskInstance = (TaskImpl)resultRow[0];
-   			ProcessInstance processInstance = (ProcessInstance)resultRow[1];
-   			
-   			/* Map process and jbpm task to system's bpm task */
-   			BpmTask task = taskFactory.create(taskInstance, processInstance);
-   			
-   			result.add(task);
+   			taskInstances.add((TaskImpl)resultRow[0]);
+   			processInstances.add((ProcessInstance)resultRow[1]);
    		}
    		
-   		return result;
+   		/* Map process and jbpm task to system's bpm task */
+   		return new BpmTaskFactory(ctx).createTasks(taskInstances, processInstances);
 	}
 	
 
@@ -633,54 +583,16 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
 
         ProcessEngine processEngine = getProcessEngine(ctx);
 
-        final String taskId = bpmTask != null ? bpmTask.getInternalTaskId() : null;
-        Command<List<Task>> cmd = new Command<List<Task>>() {
-            @Override
-            public List<Task> execute(Environment environment) throws Exception {
-                AbstractQuery q = new AbstractQuery() {
-                    @Override
-                    protected void applyPage(Query query) {
-                        query.setFirstResult(0);
-                        query.setFetchSize(1);
-                    }
-
-                    @Override
-                    protected void applyParameters(Query query) {
-                        query.setParameterList("groupIds", java.util.Collections.singleton(pq.getName()));
-                        if (taskId != null) {
-                            query.setParameter("taskId", new Long(taskId));
-                        }
-                    }
+        Long taskId = bpmTask != null ? new Long(bpmTask.getInternalTaskId()) : null;
+        QueueTaskClaimer claimer = new QueueTaskClaimer(ctx.getHibernateSession());
+        claimer.setShuffleCandidates(Boolean.parseBoolean(ctx.getSetting(QueueTaskClaimer.SHUFFLE_CANDIDATES_SETTING)));
 
-                    @Override
-                    public String hql() {
-                        StringBuilder hql = new StringBuilder();
-                        hql.append("select task ");
-                        hql.append("from ");
-                        hql.append(TaskImpl.class.getName());
-                        hql.append(" as task ");
-                        hql.append(", ");
-                        hql.append(ParticipationImpl.class.getName());
-                        hql.append(" as participant ");
-                        hql.append("where participant.task=task ");
-                        hql.append("and participant.type = 'candidate' ");
-                        hql.append("and participant.groupId IN (:groupIds) ");
-                        hql.append("and task.assignee is null ");
-                        if (taskId != null) {
-                            hql.append("and task.id = :taskId");
-                        }
-                        return hql.toString();
-                    }
-                };
-                return (List<Task>) q.execute(environment);
-            }
-        };
-        List<Task> taskList = processEngine.execute(cmd);
-        if (taskList.isEmpty()) {
+        Long claimedTaskId = claimer.claimTask(pq.getName(), taskId, user.getLogin());
+        if (claimedTaskId == null) {
             loger.warning("No tasks found in queue: " + pq.getName());
             return null;
         }
-        Task task = taskList.get(0);
+        Task task = processEngine.getTaskService().getTask(String.valueOf(claimedTaskId));
         Execution exec = processEngine.getExecutionService().findExecutionById(task.getExecutionId());
         String internalId = exec.getProcessInstance().getId();
         ProcessInstance pi = getProcessData(internalId, ctx);
@@ -784,14 +696,18 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
     }
 
     private MutableBpmTask collectTask(Task task, ProcessInstance pi, ProcessToolContext ctx) {
-   		MutableBpmTask t = new MutableBpmTask();
-   		t.setProcessInstance(pi);
-   		t.setAssignee(task.getAssignee());
    		UserData ud = ctx.getUserDataDAO().loadUserByLogin(task.getAssignee());
    		if (ud == null) {
    			ud = new UserData();
    			ud.setLogin(task.getAssignee());
    		}
+   		return collectTask(task, pi, ud);
+   	}
+
+    private MutableBpmTask collectTask(Task task, ProcessInstance pi, UserData ud) {
+   		MutableBpmTask t = new MutableBpmTask();
+   		t.setProcessInstance(pi);
+   		t.setAssignee(task.getAssignee());
    		t.setOwner(ud);
    		t.setTaskName(task.getActivityName());
    		t.setInternalTaskId(task.getId());
@@ -1005,31 +921,28 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
    		 return processInstancesForTasks;
    	}
 
+   	/** Tasks of a whole page with their process instances and owners, read with a constant number of queries */
    	private List<BpmTask> findProcessInstancesForTasks(List<Task> tasks, final ProcessToolContext ctx) {
-   		Map<String, List<Task>> tasksByProcessId = pl.net.bluesoft.util.lang.Collections.group(tasks, new Transformer<Task, String>() {
-               @Override
-               public String transform(Task task) {
-                   Execution exec = getProcessEngine(ctx).getExecutionService().findExecutionById(task.getExecutionId());
-                   return exec.getProcessInstance().getId();
-               }
-           });
-   		final Map<String, ProcessInstance> instances = ctx.getProcessInstanceDAO().getProcessInstanceByInternalIdMap(tasksByProcessId.keySet());
-   		final List<BpmTask> result = new ArrayList<BpmTask>();
-		for (Map.Entry<String, List<Task>> entry : tasksByProcessId.entrySet()) {
-			final String processId = entry.getKey();
-			List<Task> processTasks = entry.getValue();
-
-   			result.addAll(new Mapcar<Task, BpmTask>(processTasks) {
-   				@Override
-   				public BpmTask lambda(Task task) {
-   					ProcessInstance pi = instances.get(processId);
-   					if (pi == null) {
-   						loger.warning("process " + processId + " not found");
-   						return null;
-   					}
-   					return collectTask(task, pi, ctx);
-   				}
-   			}.go());
+   		Collection<String> executionIds = new ArrayList<String>(tasks.size());
+   		Collection<String> assignees = new ArrayList<String>(tasks.size());
+   		for (Task task : tasks) {
+   			executionIds.add(task.getExecutionId());
+   			assignees.add(task.getAssignee());
+   		}
+   		Map<String, ProcessInstance> instances = new ProcessInstanceBatchLoader(ctx.getHibernateSession())
+   				.getProcessInstancesByExecution(executionIds);
+
+   		BpmTaskFactory users = new BpmTaskFactory(ctx);
+   		users.prefetchUsers(assignees, instances.values());
+
+   		List<BpmTask> result = new ArrayList<BpmTask>(tasks.size());
+   		for (Task task : tasks) {
+   			ProcessInstance pi = instances.get(task.getExecutionId());
+   			if (pi == null) {
+   				loger.warning("process of execution " + task.getExecutionId() + " not found");
+   				continue;
+   			}
+   			result.add(collectTask(task, pi, users.getUser(task.getAssignee())));
    		}
    		java.util.Collections.sort(result, new Comparator<BpmTask>() {
                @Override
@@ -1596,11 +1509,11 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
                     if (res.isEmpty()) { //initialize start node and its transition
                         GraphElement startNode = processGraphElements.get("__AWF__start_node");
                         if (startNode != null) {
-                            res.add(startNode);
+                            res.add(((StateNode) startNode).cloneNode());
                         }
                         GraphElement firstTransition = processGraphElements.get("__AWF__start_transition_to_" + activityName);
                         if (firstTransition != null) {
-                            res.add(firstTransition);
+                            res.add(((TransitionArc) firstTransition).cloneNode());
                         }
                     }
                    
@@ -1671,213 +1584,19 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
         
         
 
-        private HashMap<String, GraphElement> parseProcessDefinition(ProcessInstance pi) {
-            HashMap<String, GraphElement> res = new HashMap<String, GraphElement>();
-            byte[] processDefinition = getProcessDefinition(pi);
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-
-            try {
-
-                //Using factory get an instance of document builder
-                DocumentBuilder db = dbf.newDocumentBuilder();
-                //parse using builder to get DOM representation of the XML file
-                Document dom = db.parse(new ByteArrayInputStream(processDefinition));
-                Element documentElement = dom.getDocumentElement();
-                String[] nodeTypes = new String[]{"start", "end", "java", "task", "decision","join","fork"};
-                for (String nodeType : nodeTypes) {
-                    NodeList nodes = documentElement.getElementsByTagName(nodeType);
-                    for (int i = 0; i < nodes.getLength(); i++) {
-                        Element node = (Element) nodes.item(i);
-                        try {
-                            StateNode sn = new StateNode();
-                            String gval = node.getAttribute("g");
-                            String[] vals = gval.split(",", 4);
-                            int x = Integer.parseInt(vals[0]);
-                            int y = Integer.parseInt(vals[1]);
-                            int w = Integer.parseInt(vals[2]);
-                            int h = Integer.parseInt(vals[3]);
-                            sn.setX(x);
-                            sn.setY(y);
-                            sn.setWidth(w);
-                            sn.setHeight(h);
-                            sn.setNodeType(nodeType);
-                            String name = node.getAttribute("name"); 
-                            sn.setLabel(name);
-                            res.put(name, sn);
-                            if ("start".equals(nodeType)) {
-                                res.put("__AWF__start_node", sn);
-                            }
-                            loger.fine("Found node" + name + ": " + x + "," + y + "," + w + "," + h);
-                        } catch (Exception e) {
-                            loger.log(Level.SEVERE, e.getMessage(), e);
-                        }
-                    }
-                }
-                    //once again - for transitions
-                for (String nodeType : nodeTypes) {
-                    NodeList nodes = documentElement.getElementsByTagName(nodeType);
-                    for (int i = 0; i < nodes.getLength(); i++) {
-                        Element node = (Element) nodes.item(i);
-                        try {
-                            String startNodeName = node.getAttribute("name");
-                            StateNode startNode = (StateNode) res.get(startNodeName);
-                            if (startNode == null) {
-                                loger.severe("Start node " + startNodeName +
-                                        " has not been localized, skipping transition drawing too.");
-                                continue;
-                            }
-                            NodeList transitions = node.getElementsByTagName("transition");
-                            for (int j=0; j < transitions.getLength(); j++) {
-                                Element transitionEl = (Element) transitions.item(j);
-                                String name = transitionEl.getAttribute("name");
-                                String to = transitionEl.getAttribute("to") ;
-                                StateNode endNode = (StateNode) res.get(to);
-                                if (endNode == null) {
-                                    loger.severe("End node " + to + " has not been localized for transition " + name +
-                                            " of node " + startNodeName + ", skipping transition drawing.");
-                                    continue;
-                                }
-                                String g = transitionEl.getAttribute("g");
-                                if (g != null) {
-                                    String[] dockersAndDistances = g.split(":");
-                                    String[] dockers = new String[0];
-                                    if (dockersAndDistances.length == 2) {
-                                        dockers = dockersAndDistances[0].split(";");//what the other numbers mean - I have no idea...
-                                    }
-                                    //calculate line start node which is a center of the start node
-                                    int startX = startNode.getX() + startNode.getWidth()/2;
-                                    int startY = startNode.getY() + startNode.getHeight()/2;
-                                    //and the same for end node
-                                    int endX   = endNode.getX() + endNode.getWidth()/2;
-                                    int endY   = endNode.getY() + endNode.getHeight()/2;
-
-                                    TransitionArc arc = new TransitionArc();
-                                    arc.setName(name);
-                                    arc.addPoint(startX, startY);
-                                    for (String docker : dockers) {
-                                        String[] split = docker.split(",",2);
-                                        arc.addPoint(Integer.parseInt(split[0]), Integer.parseInt(split[1]));
-                                    }
-                                    arc.addPoint(endX, endY);
-
-                                    double a;//remember about vertical line
-                                    double b;
-
-                                    endX = arc.getPath().get(1).getX();
-                                    endY = arc.getPath().get(1).getY();
-                                    if (startX - endX == 0) { //whoa - vertical line - simple case, but requires special approach
-                                        if (endY > startNode.getY()+startNode.getHeight()) { //below
-                                            startY = startNode.getY()+startNode.getHeight();
-                                        } else {
-                                            startY = startNode.getY();
-                                        }
-                                    } else {
-                                        a = ((double)(startY-endY))/((double)(startX - endX));
-                                        b = (double)startY - (double)startX*a;
-                                        for (int x = startX; x <= endX; x++) {
-                                            int y = (int) Math.round(a*x+b);
-                                            boolean inside = false;
-                                            if (x >= startNode.getX() && x <= startNode.getX() + startNode.getWidth()) {
-                                                if (y >= startNode.getY() && y <= startNode.getY() + startNode.getHeight()) {
-                                                    inside = true;
-                                                }
-                                            }
-                                            if (!inside) {
-                                                startX = x;
-                                                startY = y;
-                                                break;
-                                            }
-                                        }
-                                        for (int x = startX; x > endX; x--) {
-                                            int y = (int) Math.round(a*x+b);
-                                            boolean inside = false;
-                                            if (x >= startNode.getX() && x <= startNode.getX() + startNode.getWidth()) {
-                                                if (y >= startNode.getY() && y <= startNode.getY() + startNode.getHeight()) {
-                                                    inside = true;
-                                                }
-                                            }
-                                            if (!inside) {
-                                                startX = x;
-                                                startY = y;
-                                                break;
-                                            }
-                                        }
-                                    }
-                                    arc.getPath().get(0).setX(startX);
-                                    arc.getPath().get(0).setY(startY);
-
-                                    endX = arc.getPath().get(arc.getPath().size()-1).getX();
-                                    endY = arc.getPath().get(arc.getPath().size()-1).getY();
-                                    startX = arc.getPath().get(arc.getPath().size()-2).getX();
-                                    startY = arc.getPath().get(arc.getPath().size()-2).getY();
-                                    if (startX - endX == 0) { //whoa - vertical line - simple case, but requires special approach
-                                       if (startY > endNode.getY()+endNode.getHeight()) { //below
-                                           endY = endNode.getY()+endNode.getHeight();
-                                       } else {
-                                           endY = endNode.getY();
-                                       }
-                                    } else {
-                                        a = ((double)(startY-endY))/((double)(startX - endX));//remember about vertical line
-                                        //startY = startX*a+b
-                                        b = (double)startY - (double)startX*a;
-                                        for (int x = endX; x <= startX; x++) {
-                                            int y = (int) Math.round(a*x+b);
-                                            boolean inside = false;
-                                            if (x >= endNode.getX() && x <= endNode.getX() + endNode.getWidth()) {
-                                                if (y >= endNode.getY() && y <= endNode.getY() + endNode.getHeight()) {
-                                                    inside = true;
-                                                }
-                                            }
-                                            if (!inside) {
-                                                endX = x;
-                                                endY = y;
-                                                break;
-                                            }
-                                        }
-                                        for (int x = endX; x > startX; x--) {
-                                            int y = (int) Math.round(a*x+b);
-                                            boolean inside = false;
-                                            if (x >= endNode.getX() && x <= endNode.getX() + endNode.getWidth()) {
-                                                if (y >= endNode.getY() && y <= endNode.getY() + endNode.getHeight()) {
-                                                    inside = true;
-                                                }
-                                            }
-                                            if (!inside) {
-                                                endX = x;
-                                                endY = y;
-                                                break;
-                                            }
-                                        }
-                                    }
-                                    arc.getPath().get(arc.getPath().size()-1).setX(endX);
-                                    arc.getPath().get(arc.getPath().size()-1).setY(endY);
-                                    arc.setDestination(to);
-                                    arc.setSource(startNodeName);
-
-                                    res.put(startNodeName + "_" + name,arc);
-                                    if ("start".equals(nodeType)) {
-                                        res.put("__AWF__start_transition_to_" + to, arc);
-                                    }
-                                    if (transitions.getLength() == 1) {
-                                        res.put("__AWF__default_transition_" + startNodeName, arc);
-                                    }
-                                } else {
-                                    loger.severe("No 'g' attribute for transition "+ name +
-                                                   " of node " + startNodeName + ", skipping transition drawing.");
-                                }
-                            }
-
-                        } catch (Exception e) {
-                            loger.log(Level.SEVERE, e.getMessage(), e);
-                        }
-                    }
-                }
-
-
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        private Map<String, GraphElement> parseProcessDefinition(ProcessInstance pi) {
+            final String deploymentId = getDeploymentId(pi);
+            if (deploymentId == null) {
+                throw new RuntimeException("No deployment found for process " + pi.getInternalId());
             }
-            return res;
+            final String resourceName = pi.getDefinition().getProcessName() + ".jpdl.xml";
+            return GRAPH_CACHE.getGraph(deploymentId, pi.getDefinition().getProcessName(),
+                    new ProcessDefinitionGraphCache.DefinitionLoader() {
+                        @Override
+                        public byte[] loadDefinition() {
+                            return getDeploymentResource(resourceName, deploymentId);
+                        }
+                    });
         }
         
         
@@ -1921,8 +1640,10 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
     						.get(fork);
     				if (isForkOutgoingsExistsInHistoryGraph(forkTransitions, fork,
     						tasksNamesFromHistoryAsArray)) {
-    					historyGraph.addAll(forkTransitions);
-    					historyGraph.add(fork);
+    					for (TransitionArc forkTransition : forkTransitions) {
+    						historyGraph.add(forkTransition.cloneNode());
+    					}
+    					historyGraph.add(((StateNode) fork).cloneNode());
     				}
 
     			}
@@ -1932,7 +1653,7 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
     				List<TransitionArc> list = joinWithTransitions.get(join);
     				if (isJoinOutgoingWasMissingInHistoryGraph(list,
     						tasksNamesFromHistoryAsArray, historyGraph)) {
-    					historyGraph.add(join);
+    					historyGraph.add(((StateNode) join).cloneNode());
     				}
 
     			}
@@ -2048,7 +1769,7 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
     		for (TransitionArc transitionArc : list) {
     			if (tasksNamesFromHistoryAsArray.contains(transitionArc
     					.getDestination())) {
-    				historyGraph.add(transitionArc);
+    				historyGraph.add(transitionArc.cloneNode());
     				addedTransition = true;
     			}
     		}
@@ -2114,6 +1835,12 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
             return null;
         }
         private byte[] fetchProcessResource(ProcessInstance pi, String resourceName) {
+            String deploymentId = getDeploymentId(pi);
+            return deploymentId != null ? getDeploymentResource(resourceName, deploymentId) : null;
+        }
+
+        /** Id of the deployment of the process definition of the given process instance */
+        private String getDeploymentId(ProcessInstance pi) {
             ProcessEngine processEngine = getProcessEngine(ProcessToolContext.Util.getThreadProcessToolContext());
             RepositoryService service = processEngine.getRepositoryService();
 
@@ -2130,11 +1857,7 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
             }
             List<ProcessDefinition> latestList = service.createProcessDefinitionQuery()
                     .processDefinitionId(processDefinitionId).orderDesc("deployment.dbid").page(0, 1).list();
-            if (!latestList.isEmpty()) {
-                String oldDeploymentId = latestList.get(0).getDeploymentId();
-                return getDeploymentResource(resourceName, oldDeploymentId);
-            }
-            return null;
+            return latestList.isEmpty() ? null : latestList.get(0).getDeploymentId();
         }
 
         private byte[] getDeploymentResource(String resourceName, String oldDeploymentId) {
@@ -2168,7 +1891,10 @@ public class ProcessToolJbpmSession extends AbstractProcessToolSession
             deployment.addResourceFromInputStream(processName + ".jpdl.xml", definitionStream);
             if (processMapImageStream != null)
                 deployment.addResourceFromInputStream(processName + ".png", processMapImageStream);
-            return deployment.deploy();
+            String deploymentId = deployment.deploy();
+            /* older versions are rarely shown, their graphs are parsed again when needed */
+            GRAPH_CACHE.evictProcess(processName);
+            return deploymentId;
         }
 
     public String getProcessState(ProcessInstance pi, ProcessToolContext ctx) {
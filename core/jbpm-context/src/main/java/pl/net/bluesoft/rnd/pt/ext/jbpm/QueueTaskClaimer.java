@@ -0,0 +1,218 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hibernate.Hibernate;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.jbpm.pvm.internal.task.TaskImpl;
+
+/**
+ * Claims unassigned tasks from a queue for a user.
+ *
+ * On databases supporting it (PostgreSQL 9.5+, MySQL 8+) the candidate task row is locked with
+ * <code>select ... for update skip locked</code>, so concurrent claimers get different tasks without
+ * waiting for each other. Elsewhere a batch of candidates is read without locks and each one is
+ * claimed with a conditional update, which succeeds only if the task is still unassigned - a lost race
+ * simply moves on to the next candidate. Candidates of the same priority can be shuffled to make
+ * such races less likely when many users claim from one queue at once.
+ *
+ * The claim is made in the current transaction. The task row is updated directly, a task instance
+ * already loaded to the session is refreshed afterwards.
+ */
+public class QueueTaskClaimer
+{
+	private static final Logger logger = Logger.getLogger(QueueTaskClaimer.class.getName());
+
+	/** Setting enabling shuffling of candidates with the same priority */
+	public static final String SHUFFLE_CANDIDATES_SETTING = "queue.claim.shuffle.candidates";
+
+	/** Number of candidates read at once when claiming without locks */
+	private static final int CANDIDATES_BATCH_SIZE = 20;
+
+	/** Number of candidate batches tried before giving up */
+	private static final int MAX_CLAIM_ROUNDS = 5;
+
+	/** Conditional update assigning the task only if nobody did it before */
+	private static final String CLAIM_UPDATE =
+			"update jbpm4_task set assignee_ = :userLogin, dbversion_ = dbversion_ + 1 " +
+			"where dbid_ = :taskId and assignee_ is null";
+
+	/** Database support of skip locked, the same for every session */
+	private static volatile Boolean skipLockedSupported;
+
+	private final Session session;
+	private final boolean skipLocked;
+	private boolean shuffleCandidates;
+	private final Random random = new Random();
+
+	public QueueTaskClaimer(Session session)
+	{
+		this(session, isSkipLockedSupported(session));
+	}
+
+	public QueueTaskClaimer(Session session, boolean skipLocked)
+	{
+		this.session = session;
+		this.skipLocked = skipLocked;
+	}
+
+	/** Shuffle candidates of the same priority when claiming without locks */
+	public void setShuffleCandidates(boolean shuffleCandidates)
+	{
+		this.shuffleCandidates = shuffleCandidates;
+	}
+
+	public boolean isSkipLocked()
+	{
+		return skipLocked;
+	}
+
+	/**
+	 * Assign an unassigned task of the queue to the user
+	 *
+	 * @param queueName name of the queue (participation group)
+	 * @param taskId id of the task to claim, or null to claim the first available one
+	 * @param userLogin login of the new assignee
+	 * @return id of the claimed task, null if there is no task left to claim
+	 */
+	public Long claimTask(String queueName, Long taskId, String userLogin)
+	{
+		for(int round = 0; round < MAX_CLAIM_ROUNDS; ++round)
+		{
+			List<Candidate> candidates = findCandidates(queueName, taskId);
+			if(candidates.isEmpty())
+				return null;
+
+			for(Candidate candidate: candidates)
+			{
+				if(claim(candidate.taskId, userLogin))
+					return candidate.taskId;
+			}
+
+			/* The only requested task was claimed by someone else */
+			if(taskId != null)
+				return null;
+		}
+
+		logger.warning("Could not claim any task from queue " + queueName + " in " + MAX_CLAIM_ROUNDS + " rounds");
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Candidate> findCandidates(String queueName, Long taskId)
+	{
+		SQLQuery query = session.createSQLQuery(QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(taskId != null, skipLocked)));
+		query.setParameter(QueueTaskSql.QUEUE_NAME, queueName);
+		if(taskId != null)
+			query.setParameter(QueueTaskSql.TASK_ID, taskId);
+		if(!skipLocked)
+			query.setMaxResults(CANDIDATES_BATCH_SIZE);
+
+		List<Object[]> rows = query.list();
+		List<Candidate> candidates = new ArrayList<Candidate>(rows.size());
+		for(Object[] row: rows)
+			candidates.add(new Candidate(((Number)row[0]).longValue(), row[1] != null ? ((Number)row[1]).intValue() : 0));
+
+		if(shuffleCandidates && !skipLocked)
+			shuffleWithinPriorities(candidates);
+
+		return candidates;
+	}
+
+	private boolean claim(Long taskId, String userLogin)
+	{
+		int updated = session.createSQLQuery(CLAIM_UPDATE)
+				.setParameter("userLogin", userLogin)
+				.setParameter("taskId", taskId)
+				.executeUpdate();
+
+		if(updated != 1)
+			return false;
+
+		/* The task may be already loaded to the session with the old assignee and version */
+		Object task = session.load(TaskImpl.class, taskId);
+		if(Hibernate.isInitialized(task))
+			session.refresh(task);
+
+		return true;
+	}
+
+	/** Shuffle candidates inside groups of the same priority, the groups keep their order */
+	private void shuffleWithinPriorities(List<Candidate> candidates)
+	{
+		int groupStart = 0;
+		for(int i = 1; i <= candidates.size(); ++i)
+		{
+			if(i == candidates.size() || candidates.get(i).priority != candidates.get(groupStart).priority)
+			{
+				Collections.shuffle(candidates.subList(groupStart, i), random);
+				groupStart = i;
+			}
+		}
+	}
+
+	private static boolean isSkipLockedSupported(Session session)
+	{
+		Boolean supported = skipLockedSupported;
+		if(supported == null)
+		{
+			final boolean[] result = new boolean[1];
+			try
+			{
+				session.doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						result[0] = isSkipLockedSupported(connection.getMetaData());
+					}
+				});
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.WARNING, "Failed to check database version, tasks will be claimed without row locks", ex);
+			}
+			supported = result[0];
+			skipLockedSupported = supported;
+
+			logger.info("Queue tasks are claimed " + (supported ? "with skip locked" : "with conditional updates"));
+		}
+		return supported;
+	}
+
+	private static boolean isSkipLockedSupported(DatabaseMetaData metaData) throws SQLException
+	{
+		String databaseName = metaData.getDatabaseProductName();
+		int major = metaData.getDatabaseMajorVersion();
+		int minor = metaData.getDatabaseMinorVersion();
+
+		if("PostgreSQL".equals(databaseName))
+			return major > 9 || (major == 9 && minor >= 5);
+		if("MySQL".equals(databaseName))
+			return major >= 8;
+
+		return false;
+	}
+
+	private static class Candidate
+	{
+		private final Long taskId;
+		private final int priority;
+
+		private Candidate(Long taskId, int priority)
+		{
+			this.taskId = taskId;
+			this.priority = priority;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Native SQL of the queue task queries of the jBPM session layer.
+ *
+ * The text of a query depends only on its shape - which query it is and which conditions it has -
+ * never on the values, which are always bound as parameters. The text of every shape is built once
+ * and kept, so the same string is sent for the same shape: Hibernate finds its parsed query plan
+ * and the database can reuse the plan of the prepared statement.
+ */
+public final class QueueTaskSql
+{
+	/** Name of the queue (participation group) parameter */
+	public static final String QUEUE_NAME = "queueName";
+
+	/** Name of the task id parameter */
+	public static final String TASK_ID = "taskId";
+
+	/** Tasks of a queue with their process instances and participations */
+	private static final String QUEUE_TASKS_QUERY =
+			"select task.*, process.*, part.* from jbpm4_task task, pt_process_instance process, jbpm4_participation part " +
+			"where process.internalid = task.execution_id_ and part.task_ = task.dbid_ " +
+			"and part.groupid_ = :" + QUEUE_NAME;
+
+	/** Unassigned tasks of the queue, the best candidates first */
+	private static final String CANDIDATES_QUERY =
+			"select task.dbid_, task.priority_ from jbpm4_task task " +
+			"where task.assignee_ is null and exists (select 1 from jbpm4_participation part " +
+			"where part.task_ = task.dbid_ and part.type_ = 'candidate' and part.groupid_ = :" + QUEUE_NAME + ") ";
+
+	/** Additional condition to claim only the given task */
+	private static final String TASK_ID_CONDITION = " and task.dbid_ = :" + TASK_ID + " ";
+
+	private static final String CANDIDATES_ORDER = " order by task.priority_ desc, task.create_, task.dbid_";
+
+	private static final String SKIP_LOCKED_SUFFIX = " limit 1 for update skip locked";
+
+	private static final ConcurrentMap<Shape, String> TEMPLATES = new ConcurrentHashMap<Shape, String>();
+
+	private QueueTaskSql()
+	{
+	}
+
+	/** SQL text of the given shape, the same instance for equal shapes */
+	public static String getSql(Shape shape)
+	{
+		String sql = TEMPLATES.get(shape);
+		if(sql == null)
+		{
+			String previous = TEMPLATES.putIfAbsent(shape, sql = build(shape));
+			if(previous != null)
+				sql = previous;
+		}
+		return sql;
+	}
+
+	private static String build(Shape shape)
+	{
+		switch(shape.kind)
+		{
+			case QUEUE_TASKS:
+				return QUEUE_TASKS_QUERY;
+			case CLAIM_CANDIDATES:
+				StringBuilder sql = new StringBuilder(CANDIDATES_QUERY);
+				if(shape.byTaskId)
+					sql.append(TASK_ID_CONDITION);
+				sql.append(CANDIDATES_ORDER);
+				if(shape.skipLocked)
+					sql.append(SKIP_LOCKED_SUFFIX);
+				return sql.toString();
+			default:
+				throw new IllegalArgumentException("Unknown query: " + shape.kind);
+		}
+	}
+
+	private enum Kind
+	{
+		QUEUE_TASKS, CLAIM_CANDIDATES
+	}
+
+	/** Which query and which of its conditions, without any values */
+	public static final class Shape
+	{
+		private final Kind kind;
+		private final boolean byTaskId;
+		private final boolean skipLocked;
+
+		private Shape(Kind kind, boolean byTaskId, boolean skipLocked)
+		{
+			this.kind = kind;
+			this.byTaskId = byTaskId;
+			this.skipLocked = skipLocked;
+		}
+
+		/** Tasks of the queue bound to {@link QueueTaskSql#QUEUE_NAME} */
+		public static Shape queueTasks()
+		{
+			return new Shape(Kind.QUEUE_TASKS, false, false);
+		}
+
+		/**
+		 * Unassigned tasks of the queue bound to {@link QueueTaskSql#QUEUE_NAME} which can be claimed
+		 *
+		 * @param byTaskId only the task bound to {@link QueueTaskSql#TASK_ID}
+		 * @param skipLocked lock the first candidate, skipping the ones locked by others
+		 */
+		public static Shape claimCandidates(boolean byTaskId, boolean skipLocked)
+		{
+			return new Shape(Kind.CLAIM_CANDIDATES, byTaskId, skipLocked);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(this == o)
+				return true;
+			if(!(o instanceof Shape))
+				return false;
+			Shape other = (Shape)o;
+			return kind == other.kind && byTaskId == other.byTaskId && skipLocked == other.skipLocked;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (kind.hashCode() * 31 + (byTaskId ? 1 : 0)) * 31 + (skipLocked ? 1 : 0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return kind + (byTaskId ? " by task id" : "") + (skipLocked ? " skip locked" : "");
+		}
+	}
+}
@@ -3,6 +3,7 @@ package pl.net.bluesoft.rnd.pt.ext.jbpm;
 import java.util.Collection;
 
 import org.hibernate.Session;
+import org.jbpm.pvm.internal.task.ParticipationImpl;
 
 import pl.net.bluesoft.rnd.processtool.dao.UserProcessQueueDAO;
 import pl.net.bluesoft.rnd.processtool.model.BpmTask;
@@ -11,6 +12,11 @@ import pl.net.bluesoft.rnd.processtool.model.QueueType;
 import pl.net.bluesoft.rnd.processtool.model.UserProcessQueue;
 import pl.net.bluesoft.rnd.processtool.model.nonpersistent.MutableBpmTask;
 import pl.net.bluesoft.rnd.processtool.userqueues.IUserProcessQueueManager;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.ProcessQueueDelta;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserProcessQueueProjection;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueCounters;
+import pl.net.bluesoft.rnd.processtool.userqueues.UserQueueDelta;
 
 /**
  * Manager for the process instance queues
@@ -22,37 +28,58 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 {
 	Session session;
 	UserProcessQueueDAO queueDao;
+	UserQueueCounters queueCounters;
+	ProcessQueueCounters processQueueCounters;
 	
-	public UserProcessQueueManager(Session session, UserProcessQueueDAO userProcessQueueDAO)
+	/** Queue length changes of the current transaction, applied to the counters after commit */
+	private UserQueueDelta queueDelta;
+	/** Tasks entering and leaving the process queues in the current transaction */
+	private ProcessQueueDelta processQueueDelta;
+	
+	public UserProcessQueueManager(Session session, UserProcessQueueDAO userProcessQueueDAO, UserQueueCounters queueCounters,
+			ProcessQueueCounters processQueueCounters)
 	{
 		this.session = session;
 		this.queueDao = userProcessQueueDAO;
+		this.queueCounters = queueCounters;
+		this.processQueueCounters = processQueueCounters;
 	}
 	
 
 	public void onTaskAssigne(BpmTask bpmTask)
 	{
 		processTaskAssigne(bpmTask);
+		
+		/* Claimed from a process queue */
+		if(bpmTask.getAssignee() != null)
+			recordTaskLeftQueues(bpmTask);
 	}
 	
 	@Override
 	public void onQueueAssigne(MutableBpmTask bpmTask) 
 	{
-		Long processId = bpmTask.getProcessInstance().getId();
-		String taskIdString = bpmTask.getInternalTaskId();
+		UserProcessQueueProjection projection = createProjection(bpmTask);
 		
 		/* There is at least one owner - creator by default */
 		for(String ownerLogin: bpmTask.getProcessInstance().getOwners())
-			updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.OWN_IN_QUEUE);
+			projection.put(ownerLogin, QueueType.OWN_IN_QUEUE);
+		
+		projection.write(queueDao, getQueueDelta());
+		
+		recordTaskEnteredQueues(bpmTask);
 	}
 	
 	@Override
 	public void onTaskFinished(BpmTask bpmTask) 
 	{
+		recordTaskLeftQueues(bpmTask);
+		
 		String taskIdString = bpmTask.getInternalTaskId();
 		Long taskId = Long.parseLong(taskIdString);
 		
 		Collection<UserProcessQueue> userProcessQueues = queueDao.getAllUserProcessQueueByTaskId(taskId);
+		for(UserProcessQueue userProcessQueue: userProcessQueues)
+			recordQueueChange(userProcessQueue.getLogin(), userProcessQueue.getQueueType(), -1);
 		
 		/* Delete all process user task with assigned task id. It will delete all user queues
 		 * for creator, assigne and owners
@@ -74,6 +101,7 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 		finishedProcess.setQueueType(QueueType.OWN_FINISHED);
 		finishedProcess.setTaskId(Long.parseLong(bpmTask.getInternalTaskId()));
 		queueDao.saveOrUpdate(finishedProcess);
+		recordQueueChange(creatorLogin, QueueType.OWN_FINISHED, 1);
 	}
 
 
@@ -88,8 +116,7 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 	private void processTaskAssigne(BpmTask bpmTask)
 	{
 		String assignee = bpmTask.getAssignee();
-		Long processId = bpmTask.getProcessInstance().getId();
-		String taskIdString = bpmTask.getInternalTaskId();
+		UserProcessQueueProjection projection = createProjection(bpmTask);
 		
 		/* Is task assigned to one of the owners? */
 		boolean taskAssignedToOneOfOwners = false;
@@ -100,7 +127,7 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 			/* Assign process to its owner queue */
 			if(ownerLogin.equals(assignee))
 			{
-				updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.ASSIGNED_TO_CURRENT_USER);
+				projection.put(ownerLogin, QueueType.ASSIGNED_TO_CURRENT_USER);
 				taskAssignedToOneOfOwners = true;
 			}
 			
@@ -113,34 +140,79 @@ public class UserProcessQueueManager implements IUserProcessQueueManager
 				boolean shouldAddToOthersAssignedQueue = !taskAssignedToOneOfOwners && assignee != null;
 				
 				if(shouldAddToOthersAssignedQueue)
-					updateUserProcessQueue(taskIdString, processId, assignee, QueueType.ASSIGNED_TO_CURRENT_USER);
+					projection.put(assignee, QueueType.ASSIGNED_TO_CURRENT_USER);
 				
-				updateUserProcessQueue(taskIdString, processId, ownerLogin, QueueType.OWN_IN_PROGRESS); 
+				projection.put(ownerLogin, QueueType.OWN_IN_PROGRESS); 
 			}
 		}
+		
+		projection.write(queueDao, getQueueDelta());
 	}
 	
-	private void updateUserProcessQueue(String taskIdString, Long processId, String assigneLogin, QueueType type)
+	private UserProcessQueueProjection createProjection(BpmTask bpmTask)
 	{
-		Long taskId = Long.parseLong(taskIdString);
-		UserProcessQueue userProcessQueue = queueDao.getUserProcessQueueByTaskId(taskId, assigneLogin);
+		return new UserProcessQueueProjection(bpmTask.getProcessInstance().getId(), Long.parseLong(bpmTask.getInternalTaskId()));
+	}
+	
+	private void recordTaskEnteredQueues(BpmTask bpmTask)
+	{
+		ProcessQueueDelta delta = getProcessQueueDelta();
+		if(delta != null)
+			delta.entered(bpmTask.getInternalTaskId(), getOpenTaskQueues(bpmTask.getInternalTaskId()));
+	}
+	
+	private void recordTaskLeftQueues(BpmTask bpmTask)
+	{
+		ProcessQueueDelta delta = getProcessQueueDelta();
+		if(delta != null)
+			delta.left(bpmTask.getInternalTaskId());
+	}
+	
+	/** Process queues in which the task is open, that is candidate groups of the task if nobody is assigned to it */
+	@SuppressWarnings("unchecked")
+	private Collection<String> getOpenTaskQueues(String taskId)
+	{
+		return session.createQuery(
+				"select participant.groupId from " + ParticipationImpl.class.getName() + " participant " +
+				"where participant.task.dbid = :taskId and participant.type = 'candidate' " +
+				"and participant.groupId is not null and participant.task.assignee is null")
+				.setLong("taskId", Long.parseLong(taskId))
+				.list();
+	}
+	
+	private void recordQueueChange(String login, QueueType type, int change)
+	{
+		UserQueueDelta delta = getQueueDelta();
+		if(delta != null)
+			delta.add(login, type, change);
+	}
+	
+	/** Changes of the current transaction, null if there are no counters to update */
+	private UserQueueDelta getQueueDelta()
+	{
+		if(queueCounters == null)
+			return null;
 		
-		/* The queue element for given process exists with type "mine assiegned to me". Change its type and save */
-		if(userProcessQueue != null)
+		if(queueDelta == null)
 		{
-			userProcessQueue.setQueueType(type);
+			queueDelta = new UserQueueDelta(queueCounters);
+			session.getTransaction().registerSynchronization(queueDelta);
 		}
-		/* Otherwise, create new process queue with correct type */
-		else 
+		return queueDelta;
+	}
+	
+	/** Process queue changes of the current transaction, null if there are no counters to update */
+	private ProcessQueueDelta getProcessQueueDelta()
+	{
+		if(processQueueCounters == null)
+			return null;
+		
+		if(processQueueDelta == null)
 		{
-			userProcessQueue = new UserProcessQueue();
-			userProcessQueue.setLogin(assigneLogin);
-			userProcessQueue.setProcessId(processId);
-			userProcessQueue.setTaskId(taskId);
-			userProcessQueue.setQueueType(type);
+			processQueueDelta = new ProcessQueueDelta(processQueueCounters);
+			session.getTransaction().registerSynchronization(processQueueDelta);
 		}
-		
-		queueDao.saveOrUpdate(userProcessQueue);
+		return processQueueDelta;
 	}
 
 }
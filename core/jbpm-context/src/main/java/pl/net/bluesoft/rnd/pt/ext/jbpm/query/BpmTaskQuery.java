@@ -4,12 +4,14 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 import org.hibernate.SQLQuery;
 import org.jbpm.pvm.internal.history.model.HistoryTaskInstanceImpl;
 
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.bpm.BpmTaskPage;
 import pl.net.bluesoft.rnd.processtool.model.BpmTask;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.QueueType;
@@ -20,6 +22,10 @@ import pl.net.bluesoft.rnd.pt.ext.jbpm.BpmTaskFactory;
 /**
  * Class to build main query to get bpm tasks 
  * 
+ * Tasks are sorted from the newest, pages can be read with an offset or with a cursor.
+ * The cursor holds the start date and id of the last task of the previous page, so the next 
+ * page is read with an index seek instead of scanning and discarding the offset rows.
+ * 
  * @author Maciej Pawlak
  *
  */
@@ -42,8 +48,15 @@ public class BpmTaskQuery
 	/** Additional condition to main query to add filter for queue type */
 	private static final String QUEUE_TYPE_CONDITION = " and queue.queue_type in (:queueTypes) ";
 	
-	/** Resuls sort order */
-	private static final String SORY_BY_DATE_ORDER = " order by task.start_ desc";
+	/** Additional condition to main query to read only tasks after the cursor position, in the results order */
+	private static final String AFTER_CURSOR_CONDITION = 
+			" and (task.start_ < :cursorStart or (task.start_ = :cursorStart and task.dbid_ < :cursorDbid)) ";
+	
+	/** Resuls sort order, the id makes it unique for the cursor */
+	private static final String SORY_BY_DATE_ORDER = " order by task.start_ desc, task.dbid_ desc";
+	
+	/** Separator of cursor parts */
+	private static final String CURSOR_SEPARATOR = ".";
 	
 	/** String builder to build query */
 	private StringBuilder queryBuilder;
@@ -90,6 +103,31 @@ public class BpmTaskQuery
 		addParameter("queueTypes", queueTypesString);
 	}
 	
+	/** Read only tasks after the given cursor, returned by {@link #getBpmTasksPage()}. Null cursor stands for the first page */
+	public void addCursorCondition(String cursor)
+	{
+		if(cursor == null)
+			return;
+		
+		int separator = cursor.indexOf(CURSOR_SEPARATOR);
+		if(separator < 0)
+			throw new IllegalArgumentException("Invalid task list cursor: " + cursor);
+		
+		try
+		{
+			Date start = new Date(Long.parseLong(cursor.substring(0, separator), Character.MAX_RADIX));
+			long dbid = Long.parseLong(cursor.substring(separator + 1), Character.MAX_RADIX);
+			
+			addCondition(AFTER_CURSOR_CONDITION);
+			addParameter("cursorStart", start);
+			addParameter("cursorDbid", dbid);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid task list cursor: " + cursor, e);
+		}
+	}
+	
 	/** Get results count. No entities are loaded to memory using this */
 	public int getBpmTaskCount()
 	{
@@ -109,27 +147,52 @@ public class BpmTaskQuery
 		SQLQuery query = getQuery();
 		
 		/* Get query results */
+		return createBpmTasks(query.list());
+	}
+	
+	/** 
+	 * Get a page of bpm tasks with the cursor of the next page. The max results limit is the page size,
+	 * one more row is read to know if there is a next page. The results offset is ignored.
+	 */
+	@SuppressWarnings("unchecked")
+	public BpmTaskPage getBpmTasksPage()
+	{
+		if(getMaxResultsLimit() <= 0)
+			throw new IllegalStateException("Page size is not set");
+		
+		SQLQuery query = getQuery();
+		query.setFirstResult(0);
+		query.setMaxResults(getMaxResultsLimit() + 1);
+		
 		List<Object[]> queueResults = query.list();
 		
-		List<BpmTask> result = new ArrayList<BpmTask>();
+		String nextCursor = null;
+		if(queueResults.size() > getMaxResultsLimit())
+		{
+			queueResults = queueResults.subList(0, getMaxResultsLimit());
+			
+			HistoryTaskInstanceImpl lastTask = (HistoryTaskInstanceImpl)queueResults.get(queueResults.size() - 1)[0];
+			nextCursor = Long.toString(lastTask.getStartTime().getTime(), Character.MAX_RADIX) + CURSOR_SEPARATOR 
+					+ Long.toString(lastTask.getDbid(), Character.MAX_RADIX);
+		}
 		
-		BpmTaskFactory taskFactory = new BpmTaskFactory(ctx);
+		return new BpmTaskPage(createBpmTasks(queueResults), nextCursor);
+	}
+	
+	private List<BpmTask> createBpmTasks(List<Object[]> queueResults)
+	{
+		List<HistoryTaskInstanceImpl> taskInstances = new ArrayList<HistoryTaskInstanceImpl>(queueResults.size());
+		List<ProcessInstance> processInstances = new ArrayList<ProcessInstance>(queueResults.size());
 		
-   		
 		/* Every row is one queue element with jbpm task as first column and process instance as second */
    		for(Object[] resultRow: queueResults)
    		{
-   			
-   			HistoryTaskInstanceImpl taskInstance = (HistoryTaskInstanceImpl)resultRow[0];
-   			ProcessInstance processInstance = (ProcessInstance)resultRow[1];
-   			
-   			/* Map process and jbpm task to system's bpm task */
-   			BpmTask task = taskFactory.create(taskInstance, processInstance);
-   			
-   			result.add(task);
+   			taskInstances.add((HistoryTaskInstanceImpl)resultRow[0]);
+   			processInstances.add((ProcessInstance)resultRow[1]);
    		}
    		
-   		return result;
+   		/* Map process and jbpm task to system's bpm task, users of the whole page are resolved at once */
+   		return new BpmTaskFactory(ctx).createHistoryTasks(taskInstances, processInstances);
 	}
 	
 	protected void addCondition(String conditionString)
@@ -0,0 +1,75 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.aperteworkflow.bpm.graph.GraphElement;
+import org.aperteworkflow.bpm.graph.StateNode;
+import org.aperteworkflow.bpm.graph.TransitionArc;
+import org.junit.Test;
+
+public class ProcessDefinitionGraphCacheTest
+{
+	private static final String DEFINITION =
+			"<process name=\"order\" xmlns=\"http://jbpm.org/4.4/jpdl\">" +
+			"<start name=\"start\" g=\"10,10,48,48\"><transition name=\"to accept\" to=\"accept\" g=\"34,100:-50,-20\"/></start>" +
+			"<task name=\"accept\" g=\"10,200,100,50\"><transition name=\"done\" to=\"end\"/></task>" +
+			"<end name=\"end\" g=\"10,300,48,48\"/>" +
+			"</process>";
+
+	private static class CountingLoader implements ProcessDefinitionGraphCache.DefinitionLoader
+	{
+		private int loadCount;
+
+		@Override
+		public byte[] loadDefinition()
+		{
+			++loadCount;
+			return DEFINITION.getBytes();
+		}
+	}
+
+	@Test
+	public void testParsedOncePerDeployment()
+	{
+		ProcessDefinitionGraphCache cache = new ProcessDefinitionGraphCache();
+		CountingLoader loader = new CountingLoader();
+
+		Map<String, GraphElement> graph = cache.getGraph("1", "order", loader);
+		for(int i = 0; i < 100; ++i)
+			Assert.assertSame(graph, cache.getGraph("1", "order", loader));
+		Assert.assertEquals(1, loader.loadCount);
+
+		/* another version of the process */
+		cache.getGraph("2", "order", loader);
+		cache.getGraph("2", "order", loader);
+		Assert.assertEquals(2, loader.loadCount);
+
+		/* a new deployment drops the graphs of the process */
+		cache.evictProcess("order");
+		cache.getGraph("1", "order", loader);
+		Assert.assertEquals(3, loader.loadCount);
+	}
+
+	@Test
+	public void testGraphOfDefinition()
+	{
+		Map<String, GraphElement> graph = new ProcessDefinitionGraphCache().getGraph("1", "order", new CountingLoader());
+
+		StateNode accept = (StateNode)graph.get("accept");
+		Assert.assertEquals("task", accept.getNodeType());
+		Assert.assertEquals(200, accept.getY());
+		Assert.assertSame(graph.get("start"), graph.get("__AWF__start_node"));
+
+		TransitionArc toAccept = (TransitionArc)graph.get("__AWF__start_transition_to_accept");
+		Assert.assertEquals("accept", toAccept.getDestination());
+		Assert.assertEquals(3, toAccept.getPath().size());
+		Assert.assertSame(graph.get("accept_done"), graph.get("__AWF__default_transition_accept"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testGraphIsReadOnly()
+	{
+		new ProcessDefinitionGraphCache().getGraph("1", "order", new CountingLoader()).remove("accept");
+	}
+}
@@ -0,0 +1,45 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class QueueTaskSqlTest
+{
+	@Test
+	public void testSameShapeReusesSql()
+	{
+		Assert.assertSame(QueueTaskSql.getSql(QueueTaskSql.Shape.queueTasks()),
+				QueueTaskSql.getSql(QueueTaskSql.Shape.queueTasks()));
+
+		for(boolean byTaskId: new boolean[] { false, true })
+		{
+			for(boolean skipLocked: new boolean[] { false, true })
+			{
+				Assert.assertSame(QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(byTaskId, skipLocked)),
+						QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(byTaskId, skipLocked)));
+			}
+		}
+	}
+
+	@Test
+	public void testShapesDiffer()
+	{
+		String candidates = QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(false, false));
+		String oneTask = QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(true, false));
+		String skipLocked = QueueTaskSql.getSql(QueueTaskSql.Shape.claimCandidates(false, true));
+
+		Assert.assertFalse(candidates.equals(oneTask));
+		Assert.assertFalse(candidates.equals(skipLocked));
+		Assert.assertTrue(oneTask.contains(":" + QueueTaskSql.TASK_ID));
+		Assert.assertTrue(skipLocked.endsWith("skip locked"));
+	}
+
+	@Test
+	public void testValuesAreParameters()
+	{
+		String sql = QueueTaskSql.getSql(QueueTaskSql.Shape.queueTasks());
+
+		Assert.assertTrue(sql.contains(":" + QueueTaskSql.QUEUE_NAME));
+		Assert.assertFalse(sql.contains("'"));
+	}
+}
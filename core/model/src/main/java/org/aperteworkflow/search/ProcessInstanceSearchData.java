@@ -3,7 +3,10 @@ package org.aperteworkflow.search;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author tlipski@bluesoft.net.pl
@@ -14,6 +17,8 @@ public class ProcessInstanceSearchData {
 
     private List<ProcessInstanceSearchAttribute> searchAttributes = new ArrayList();
 
+    private Map<ProcessInstanceSortField, String> sortValues = new EnumMap<ProcessInstanceSortField, String>(ProcessInstanceSortField.class);
+
     public ProcessInstanceSearchData() {
     }
 
@@ -56,4 +61,25 @@ public class ProcessInstanceSearchData {
     public void setSearchAttributes(List<ProcessInstanceSearchAttribute> searchAttributes) {
         this.searchAttributes = searchAttributes;
     }
+
+    /** Value the results are sorted by, compared as text, case insensitive */
+    public void setSortValue(ProcessInstanceSortField field, String value) {
+        sortValues.put(field, value != null ? value.toLowerCase() : null);
+    }
+
+    public void setSortValue(ProcessInstanceSortField field, Date value) {
+        sortValues.put(field, value != null ? formatSortValue(value.getTime()) : null);
+    }
+
+    public String getSortValue(ProcessInstanceSortField field) {
+        if (field == ProcessInstanceSortField.ID) {
+            return formatSortValue(processInstanceId);
+        }
+        return sortValues.get(field);
+    }
+
+    /** Numbers padded with zeros, so they are in the same order as text */
+    public static String formatSortValue(long value) {
+        return String.format("%019d", value);
+    }
 }
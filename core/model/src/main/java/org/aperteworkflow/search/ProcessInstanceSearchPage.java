@@ -0,0 +1,31 @@
+package org.aperteworkflow.search;
+
+import java.util.List;
+
+/**
+ * One page of sorted search results. The cursor is opaque to the caller: it is taken from the
+ * previous page and passed back to the search to read the page following it.
+ */
+public class ProcessInstanceSearchPage {
+    private final List<Long> processInstanceIds;
+    private final String nextCursor;
+
+    public ProcessInstanceSearchPage(List<Long> processInstanceIds, String nextCursor) {
+        this.processInstanceIds = processInstanceIds;
+        this.nextCursor = nextCursor;
+    }
+
+    /** Ids of the process instances in the order of the search */
+    public List<Long> getProcessInstanceIds() {
+        return processInstanceIds;
+    }
+
+    /** Cursor of the next page, null if this is the last one */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNextPage() {
+        return nextCursor != null;
+    }
+}
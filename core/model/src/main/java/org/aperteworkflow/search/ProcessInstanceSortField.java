@@ -0,0 +1,14 @@
+package org.aperteworkflow.search;
+
+/**
+ * Fields the search results can be sorted by. Every process instance document has a value of
+ * each of them, the process instance id is always the final order, so the order is total.
+ */
+public enum ProcessInstanceSortField {
+    ID, CREATE_DATE, STATE, KEY;
+
+    /** Name of the indexed, not analyzed field holding the sort value */
+    public String getIndexFieldName() {
+        return "__AWF__sort_" + name().toLowerCase();
+    }
+}
@@ -4,6 +4,7 @@ import static pl.net.bluesoft.util.lang.FormatUtil.nvl;
 
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.persistence.*;
@@ -96,6 +97,10 @@ public class ProcessInstance extends AbstractPersistentEntity {
 	@Transient
 	private Set<ProcessInstanceAttribute> toDelete;
 
+	/** Attributes by key and class, built on the first lookup */
+	@Transient
+	private transient ProcessInstanceAttributeIndex attributeIndex;
+
 	public Long getId() {
 		return id;
 	}
@@ -231,8 +236,11 @@ public class ProcessInstance extends AbstractPersistentEntity {
 
 	public void removeAttribute(ProcessInstanceAttribute attr) {
 		attr.setProcessInstance(null);
-		processAttributes.remove(attr);
-		if (attr.getId() > 0) {
+		boolean indexed = isAttributeIndexValid();
+		if (getProcessAttributes().remove(attr) && indexed) {
+			attributeIndex.removed(attr);
+		}
+		if (attr.getId() != null && attr.getId() > 0) {
             if (toDelete == null) {
                 toDelete = new HashSet<ProcessInstanceAttribute>();
             }
@@ -246,7 +254,21 @@ public class ProcessInstance extends AbstractPersistentEntity {
 
 	public void addAttribute(ProcessInstanceAttribute attr) {
 		attr.setProcessInstance(this);
-		processAttributes.add(attr);
+		boolean indexed = isAttributeIndexValid();
+		if (getProcessAttributes().add(attr) && indexed) {
+			attributeIndex.added(attr);
+		}
+	}
+
+	private boolean isAttributeIndexValid() {
+		return attributeIndex != null && attributeIndex.isValidFor(getProcessAttributes());
+	}
+
+	private ProcessInstanceAttributeIndex getAttributeIndex() {
+		if (!isAttributeIndexValid()) {
+			attributeIndex = new ProcessInstanceAttributeIndex(getProcessAttributes());
+		}
+		return attributeIndex;
 	}
 
 	public String getTaskId() {
@@ -271,23 +293,12 @@ public class ProcessInstance extends AbstractPersistentEntity {
 	}
 
 	public ProcessInstanceAttribute findAttributeByKey(String key) {
-		Set<ProcessInstanceAttribute> attrs = getProcessAttributes();
-		for (ProcessInstanceAttribute pia : attrs) {
-			if (pia.getKey() != null && pia.getKey().equals(key)) {
-				return pia;
-			}
-		}
-		return null;
+		return key != null ? getAttributeIndex().findByKey(key) : null;
 	}
 
     public <T extends ProcessInstanceAttribute> T findAttributeByClass(Class<T> clazz) {
-        Set<ProcessInstanceAttribute> attrs = getProcessAttributes();
-        for (ProcessInstanceAttribute pia : attrs) {
-            if (clazz.isAssignableFrom(pia.getClass())) {
-                return (T) pia;
-            }
-        }
-        return null;
+        List<ProcessInstanceAttribute> attrs = getAttributeIndex().findByClass(clazz);
+        return attrs.isEmpty() ? null : (T) attrs.get(0);
     }
 
 	public <T extends ProcessInstanceAttribute> T findOrCreateAttribute(Class<T> attrClass) {
@@ -306,14 +317,7 @@ public class ProcessInstance extends AbstractPersistentEntity {
 	}
     
     public <T extends ProcessInstanceAttribute> Set<T> findAttributesByClass(Class<T> clazz) {
-        Set<T> result = new HashSet<T>();
-        Set<ProcessInstanceAttribute> attrs = getProcessAttributes();
-        for (ProcessInstanceAttribute pia : attrs) {
-            if (clazz.isAssignableFrom(pia.getClass())) {
-                result.add((T) pia);
-            }
-        }
-        return result;
+        return new HashSet<T>((List) getAttributeIndex().findByClass(clazz));
     }
 
     public String getSimpleAttributeValue(String key) {
@@ -332,7 +336,7 @@ public class ProcessInstance extends AbstractPersistentEntity {
 
 	public String getInheritedSimpleAttributeValue(String key, String default_) {
 		for (ProcessInstance pi = this; pi != null; pi = pi.getParent()) {
-			ProcessInstanceAttribute attr = findAttributeByKey(key);
+			ProcessInstanceAttribute attr = pi.findAttributeByKey(key);
 			if (attr instanceof ProcessInstanceSimpleAttribute) {
 				return ((ProcessInstanceSimpleAttribute)attr).getValue();
 			}
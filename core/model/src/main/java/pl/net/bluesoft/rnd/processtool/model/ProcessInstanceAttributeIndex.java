@@ -0,0 +1,141 @@
+package pl.net.bluesoft.rnd.processtool.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attributes of a process instance by key and by class, built from the attribute set on first use.
+ *
+ * The index is valid only for the set it was built from and as long as the size of the set does
+ * not change behind its back, so a set replaced by Hibernate or modified directly is indexed again.
+ * Lookups by class are resolved on first use of a class and kept up to date afterwards.
+ * Keys are mutable, so a key lookup checks the key of the attribute found, and a lookup which
+ * finds nothing indexes the keys again when the key of any attribute changed since it was indexed.
+ */
+class ProcessInstanceAttributeIndex {
+	private final Set<ProcessInstanceAttribute> attributes;
+	private int size;
+
+	private final Map<String, ProcessInstanceAttribute> byKey = new HashMap<String, ProcessInstanceAttribute>();
+	/** Whether some attributes share a key, only the first one is indexed */
+	private boolean duplicateKeys;
+	/** Attributes not in the key index, without a key or sharing one, with their key when indexed */
+	private final Map<ProcessInstanceAttribute, String> unindexed = new IdentityHashMap<ProcessInstanceAttribute, String>();
+	/** Attributes of a class or its subclasses */
+	private final Map<Class<?>, List<ProcessInstanceAttribute>> byClass = new HashMap<Class<?>, List<ProcessInstanceAttribute>>();
+
+	ProcessInstanceAttributeIndex(Set<ProcessInstanceAttribute> attributes) {
+		this.attributes = attributes;
+		this.size = attributes.size();
+		indexKeys();
+	}
+
+	boolean isValidFor(Set<ProcessInstanceAttribute> attributes) {
+		return this.attributes == attributes && size == attributes.size();
+	}
+
+	ProcessInstanceAttribute findByKey(String key) {
+		ProcessInstanceAttribute attr = byKey.get(key);
+		if (attr != null && key.equals(attr.getKey())) {
+			return attr;
+		}
+		if (attr != null || hasChangedKeys()) {
+			indexKeys();
+			attr = byKey.get(key);
+		}
+		return attr;
+	}
+
+	List<ProcessInstanceAttribute> findByClass(Class<?> clazz) {
+		List<ProcessInstanceAttribute> result = byClass.get(clazz);
+		if (result == null) {
+			result = new ArrayList<ProcessInstanceAttribute>();
+			for (ProcessInstanceAttribute attr : attributes) {
+				if (clazz.isAssignableFrom(attr.getClass())) {
+					result.add(attr);
+				}
+			}
+			byClass.put(clazz, result);
+		}
+		return result;
+	}
+
+	/** Attribute added to the set */
+	void added(ProcessInstanceAttribute attr) {
+		size = attributes.size();
+		indexKey(attr);
+		for (Map.Entry<Class<?>, List<ProcessInstanceAttribute>> e : byClass.entrySet()) {
+			if (e.getKey().isAssignableFrom(attr.getClass())) {
+				e.getValue().add(attr);
+			}
+		}
+	}
+
+	/** Attribute removed from the set */
+	void removed(ProcessInstanceAttribute attr) {
+		size = attributes.size();
+		if (attr.getKey() != null && byKey.get(attr.getKey()) == attr) {
+			byKey.remove(attr.getKey());
+			if (duplicateKeys) {
+				// another attribute with the same key takes its place
+				for (ProcessInstanceAttribute other : attributes) {
+					if (other != attr && attr.getKey().equals(other.getKey())) {
+						byKey.put(other.getKey(), other);
+						unindexed.remove(other);
+						break;
+					}
+				}
+			}
+		}
+		unindexed.remove(attr);
+		for (List<ProcessInstanceAttribute> list : byClass.values()) {
+			for (Iterator<ProcessInstanceAttribute> it = list.iterator(); it.hasNext(); ) {
+				if (it.next() == attr) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private boolean hasChangedKeys() {
+		for (Map.Entry<String, ProcessInstanceAttribute> e : byKey.entrySet()) {
+			if (!e.getKey().equals(e.getValue().getKey())) {
+				return true;
+			}
+		}
+		for (Map.Entry<ProcessInstanceAttribute, String> e : unindexed.entrySet()) {
+			String key = e.getKey().getKey();
+			if (key == null ? e.getValue() != null : !key.equals(e.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void indexKeys() {
+		byKey.clear();
+		unindexed.clear();
+		duplicateKeys = false;
+		for (ProcessInstanceAttribute attr : attributes) {
+			indexKey(attr);
+		}
+	}
+
+	private void indexKey(ProcessInstanceAttribute attr) {
+		if (attr.getKey() == null) {
+			unindexed.put(attr, null);
+		}
+		else if (!byKey.containsKey(attr.getKey())) {
+			byKey.put(attr.getKey(), attr);
+		}
+		else {
+			unindexed.put(attr, attr.getKey());
+			duplicateKeys = true;
+		}
+	}
+}
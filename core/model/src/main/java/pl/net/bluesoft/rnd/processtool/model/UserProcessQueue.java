@@ -32,7 +32,10 @@ public class UserProcessQueue extends AbstractPersistentEntity
 			parameters = {
 					@org.hibernate.annotations.Parameter(name = "initial_value", value = "" + 1),
 					@org.hibernate.annotations.Parameter(name = "value_column", value = "_DB_ID"),
-					@org.hibernate.annotations.Parameter(name = "sequence_name", value = "DB_SEQ_ID_USER_PROC_QUEUE")
+					@org.hibernate.annotations.Parameter(name = "sequence_name", value = "DB_SEQ_ID_USER_PROC_QUEUE"),
+					/* ids of a task's elements written at once are taken from the memory, not the sequence */
+					@org.hibernate.annotations.Parameter(name = "optimizer", value = "hilo"),
+					@org.hibernate.annotations.Parameter(name = "increment_size", value = "" + 50)
 			}
 	)
 	@Column(name = "id")
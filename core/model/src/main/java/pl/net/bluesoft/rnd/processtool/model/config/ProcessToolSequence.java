@@ -33,6 +33,11 @@ public class ProcessToolSequence extends AbstractPersistentEntity {
 	private String name;
 	private long value;
 
+	/** Number of values reserved by a node at once, default is used when not set */
+	private Integer blockSize;
+	/** Values are taken one by one in the caller's transaction, so a rolled back transaction leaves no gap */
+	private Boolean gapless;
+
 	public Long getId() {
 		return id;
 	}
@@ -64,4 +69,20 @@ public class ProcessToolSequence extends AbstractPersistentEntity {
     public void setValue(long value) {
         this.value = value;
     }
+
+    public Integer getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(Integer blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public boolean isGapless() {
+        return Boolean.TRUE.equals(gapless);
+    }
+
+    public void setGapless(boolean gapless) {
+        this.gapless = gapless;
+    }
 }
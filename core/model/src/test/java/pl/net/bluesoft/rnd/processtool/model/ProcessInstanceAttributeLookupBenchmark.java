@@ -0,0 +1,62 @@
+package pl.net.bluesoft.rnd.processtool.model;
+
+/**
+ * Compares attribute lookups on a process instance with hundreds of attributes against
+ * a linear scan of the attribute set. Each approach gets warmup iterations before the measured ones.
+ *
+ * Not a unit test, timings depend on the machine. Run the main method to compare the two.
+ */
+public class ProcessInstanceAttributeLookupBenchmark {
+	private static final int ATTRIBUTES = 500;
+	private static final int WARMUP_ITERATIONS = 20;
+	private static final int MEASURED_ITERATIONS = 50;
+
+	private interface Lookup {
+		ProcessInstanceAttribute find(ProcessInstance pi, String key);
+	}
+
+	public static void main(String[] args) {
+		ProcessInstance pi = ProcessInstanceAttributeLookupTest.createProcessInstance(ATTRIBUTES);
+
+		long scan = measure(new Lookup() {
+			@Override
+			public ProcessInstanceAttribute find(ProcessInstance pi, String key) {
+				for (ProcessInstanceAttribute pia : pi.getProcessAttributes()) {
+					if (key.equals(pia.getKey())) {
+						return pia;
+					}
+				}
+				return null;
+			}
+		}, pi);
+
+		long indexed = measure(new Lookup() {
+			@Override
+			public ProcessInstanceAttribute find(ProcessInstance pi, String key) {
+				return pi.findAttributeByKey(key);
+			}
+		}, pi);
+
+		System.out.println("Lookup of all " + ATTRIBUTES + " attributes, scan: " + scan / 1000
+				+ " us/op, indexed: " + indexed / 1000 + " us/op");
+	}
+
+	private static long measure(Lookup lookup, ProcessInstance pi) {
+		for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+			lookupAll(lookup, pi);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; ++i) {
+			lookupAll(lookup, pi);
+		}
+		return (System.nanoTime() - start) / MEASURED_ITERATIONS;
+	}
+
+	private static void lookupAll(Lookup lookup, ProcessInstance pi) {
+		for (int i = 0; i < ATTRIBUTES; ++i) {
+			if (lookup.find(pi, "key" + i) == null) {
+				throw new IllegalStateException("Attribute key" + i + " not found");
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package pl.net.bluesoft.rnd.processtool.model;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks that the attribute lookups of a process instance with hundreds of attributes
+ * follow changes of the attributes.
+ */
+public class ProcessInstanceAttributeLookupTest {
+	private static final int ATTRIBUTES = 500;
+
+	@Test
+	public void testLookupsFollowChanges() {
+		ProcessInstance pi = createProcessInstance(ATTRIBUTES);
+		Assert.assertEquals("value7", pi.getSimpleAttributeValue("key7"));
+		Assert.assertNull(pi.findAttributeByClass(ProcessInstanceDictionaryAttribute.class));
+
+		pi.removeAttribute(pi.findAttributeByKey("key7"));
+		Assert.assertNull(pi.findAttributeByKey("key7"));
+
+		pi.addDictionaryAttributeItem("dictionary", "k", "v");
+		Assert.assertNotNull(pi.findAttributeByClass(ProcessInstanceDictionaryAttribute.class));
+		Assert.assertEquals(ATTRIBUTES, pi.findAttributesByClass(ProcessInstanceAttribute.class).size());
+
+		// key set after the attribute was added
+		ProcessInstanceSimpleAttribute late = new ProcessInstanceSimpleAttribute();
+		pi.addAttribute(late);
+		late.setKey("late");
+		late.setValue("late value");
+		Assert.assertEquals("late value", pi.getSimpleAttributeValue("late"));
+
+		// attribute set replaced, as Hibernate does when it loads the process
+		Set<ProcessInstanceAttribute> replaced = new HashSet<ProcessInstanceAttribute>();
+		replaced.add(new ProcessInstanceSimpleAttribute("other", "other value"));
+		pi.setProcessAttributes(replaced);
+		Assert.assertNull(pi.findAttributeByKey("key1"));
+		Assert.assertEquals("other value", pi.getSimpleAttributeValue("other"));
+	}
+
+	@Test
+	public void testLookupsFollowKeyChanges() {
+		ProcessInstance pi = createProcessInstance(ATTRIBUTES);
+		ProcessInstanceAttribute attr = pi.findAttributeByKey("key7");
+
+		attr.setKey("renamed");
+		Assert.assertSame(attr, pi.findAttributeByKey("renamed"));
+		Assert.assertNull(pi.findAttributeByKey("key7"));
+
+		// a second attribute with a key is not indexed until the key changes
+		ProcessInstanceSimpleAttribute duplicate = new ProcessInstanceSimpleAttribute("key8", "duplicate");
+		pi.addAttribute(duplicate);
+		duplicate.setKey("unique");
+		Assert.assertSame(duplicate, pi.findAttributeByKey("unique"));
+	}
+
+	@Test
+	public void testInheritedValueComesFromParent() {
+		ProcessInstance parent = createProcessInstance(ATTRIBUTES);
+		ProcessInstance child = new ProcessInstance();
+		child.setParent(parent);
+		child.setSimpleAttribute("own", "own value");
+
+		Assert.assertEquals("own value", child.getInheritedSimpleAttributeValue("own"));
+		Assert.assertEquals("value3", child.getInheritedSimpleAttributeValue("key3"));
+		Assert.assertEquals("default", child.getInheritedSimpleAttributeValue("missing", "default"));
+	}
+
+	static ProcessInstance createProcessInstance(int attributes) {
+		ProcessInstance pi = new ProcessInstance();
+		for (int i = 0; i < attributes; ++i) {
+			pi.setSimpleAttribute("key" + i, "value" + i);
+		}
+		return pi;
+	}
+}
@@ -370,7 +370,7 @@ public class ProcessCommentsWidget extends BaseProcessToolVaadinWidget implement
 			comments = new ProcessComments();
 			comments.setProcessInstance(pi);
 			comments.setKey(ProcessComments.class.getName());
-			pi.getProcessAttributes().add(comments);
+			pi.addAttribute(comments);
 		}
 		comments.setComments(new HashSet());
 		for (ProcessComment pc : bic.getItemIds()) {
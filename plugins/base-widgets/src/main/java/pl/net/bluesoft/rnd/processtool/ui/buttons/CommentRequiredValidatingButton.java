@@ -104,7 +104,7 @@ public class CommentRequiredValidatingButton extends StandardValidatingButton {
             comments = new ProcessComments();
             comments.setProcessInstance(pi);
             comments.setKey(ProcessComments.class.getName());
-            pi.getProcessAttributes().add(comments);
+            pi.addAttribute(comments);
         }
         comments.getComments().add(pc);
         pc.setComments(comments);
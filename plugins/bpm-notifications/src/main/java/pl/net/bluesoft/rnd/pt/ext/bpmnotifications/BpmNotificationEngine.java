@@ -8,11 +8,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,7 +27,6 @@ import javax.activation.DataHandler;
 import javax.activation.URLDataSource;
 import javax.mail.Message;
 import javax.mail.Multipart;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -32,11 +38,13 @@ import org.hibernate.criterion.Restrictions;
 
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
 import pl.net.bluesoft.rnd.processtool.bpm.ProcessToolBpmSession;
 import pl.net.bluesoft.rnd.processtool.model.BpmTask;
 import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
 import pl.net.bluesoft.rnd.processtool.model.UserData;
 import pl.net.bluesoft.rnd.processtool.plugins.ProcessToolRegistry;
+import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.config.NotificationRuleIndex;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.facade.NotificationsFacade;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotification;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotificationConfig;
@@ -47,6 +55,7 @@ import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.service.TemplateArgumentProvi
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions.DatabaseMailSessionProvider;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions.IMailSessionProvider;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions.JndiMailSessionProvider;
+import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions.MailTransportPool;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.templates.MailTemplateProvider;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.util.NotificationHistory;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.service.NotificationHistoryEntry;
@@ -70,14 +79,28 @@ public class BpmNotificationEngine implements BpmNotificationService
     /** Mail body encoding */
     private static final String MAIL_ENCODING = "UTF-8";
     
+    /** Number of notifications claimed at once by the dispatcher */
+    private static final int CLAIM_BATCH_SIZE = 50;
+    /** Claimed notifications which are not sent or released within this time can be claimed again */
+    private static final long CLAIM_LEASE_TIME = 10 * 60 * 1000;
+    /** Number of messages sent in parallel, also the number of pooled connections per mail profile */
+    private static final int SENDER_THREADS = 4;
+    /** Delay before the first retry of a failed notification, doubled with every next failure */
+    private static final long RETRY_BASE_DELAY = 60 * 1000;
+    private static final long RETRY_MAX_DELAY = 60 * 60 * 1000;
+    
     private static final Logger logger = Logger.getLogger(BpmNotificationEngine.class.getName());
 
-    private Collection<BpmNotificationConfig> configCache = new HashSet<BpmNotificationConfig>();
+    /** Index of the active notification rules, replaced as a whole when the config is reloaded */
+    private volatile NotificationRuleIndex ruleIndex;
+    
+    /** Taken by the thread reloading the config, other threads keep using the current one */
+    private final ReentrantLock refreshLock = new ReentrantLock();
 
-    private long cacheUpdateTime;
-    private long refrshInterval;
+    private volatile long cacheUpdateTime;
+    private volatile long refrshInterval;
 
-    private ProcessToolBpmSession bpmSession;
+    private volatile ProcessToolBpmSession bpmSession;
     
     /** Data provider for standard e-mail template */
     private TemplateDataProvider templateDataProvider;
@@ -85,12 +108,17 @@ public class BpmNotificationEngine implements BpmNotificationService
     private ProcessToolRegistry registry;
     
     /** Provider for mail main session and mail connection properties */
-    private IMailSessionProvider mailSessionProvider;
+    private volatile IMailSessionProvider mailSessionProvider;
     
     /** Provider for email templates */
-    private MailTemplateProvider templateProvider;
+    private volatile MailTemplateProvider templateProvider;
 
 	private NotificationHistory history = new NotificationHistory(1000);
+	
+	/** Connected mail transports reused between messages */
+	private final MailTransportPool transportPool = new MailTransportPool(SENDER_THREADS);
+	
+	private final ExecutorService senderExecutor = Executors.newFixedThreadPool(SENDER_THREADS);
     
     public BpmNotificationEngine(ProcessToolRegistry registry)
     {
@@ -131,101 +159,178 @@ public class BpmNotificationEngine implements BpmNotificationService
     	
     	readRefreshIntervalFromSettings();
     	
-    	registerMailSettingProvider();
-    	
         /* Refresh config for providers */
         templateProvider.refreshConfig();
-        mailSessionProvider.refreshConfig();
+        mailSessionProvider = createMailSessionProvider();
         
         logger.info("[NOTIFICATIONS] Notifications engine initialized");
     }
     
-    /** The method check if there are any new notifications in database to be sent */
+    /** 
+     * The method sends the notifications waiting in database. The notifications are claimed in
+     * bounded batches, every claim is committed before the messages are sent, so the table is 
+     * not locked during sending and other dispatchers can work on other notifications. 
+     * Notifications which could not be sent are released and retried later with a growing delay.
+     */
     public void handleNotifications()
-    {
-        registry.withProcessToolContext(new ProcessToolContextCallback() 
-        {
-			@Override
-			public void withContext(ProcessToolContext ctx)
-			{
-				ProcessToolContext.Util.setThreadProcessToolContext(ctx);
-				
-				handleNotificationsWithContext();
-			}
-        });
-    }
-    
-    /** The method check if there are any new notifications in database to be sent */
-    public void handleNotificationsWithContext()
     {
     	logger.info("[NOTIFICATIONS JOB] Checking awaiting notifications... ");
-
-		try
-		{
     	
-	    	/* Get all notifications waiting to be sent */
-	    	Collection<BpmNotification> notificationsToSend = NotificationsFacade.getNotificationsToSend();
-	    	
-	    	logger.info("[NOTIFICATIONS JOB] "+notificationsToSend.size()+" notifications waiting to be sent...");
-	    	
-	    	for(BpmNotification notification: notificationsToSend)
+    	final String claimId = UUID.randomUUID().toString();
+    	int sentCount = 0;
+    	int failedCount = 0;
+    	
+    	try
+    	{
+	    	while(true)
 	    	{
-	    		try
-	    		{
-	    			sendNotification(notification);
-	    			
-	    			/* Notification was sent, so remove it from te queue */
-	    			NotificationsFacade.removeNotification(notification);
-	    		}
-	    		catch(Exception ex)
-	    		{
-	    			logger.log(Level.SEVERE, "[NOTIFICATIONS JOB] Problem during notification sending", ex);
-	    		}
+		    	List<BpmNotification> notifications = registry.withProcessToolContext(new ReturningProcessToolContextCallback<List<BpmNotification>>() 
+		    	{
+		    		@Override
+		    		public List<BpmNotification> processWithContext(ProcessToolContext ctx)
+		    		{
+		    			ProcessToolContext.Util.setThreadProcessToolContext(ctx);
+		    			
+		    			return NotificationsFacade.claimNotificationsToSend(claimId, CLAIM_BATCH_SIZE, CLAIM_LEASE_TIME);
+		    		}
+		    	});
+		    	
+		    	if(notifications.isEmpty())
+		    		break;
+		    	
+		    	final Map<BpmNotification, Exception> results = sendNotifications(notifications);
+		    	
+		    	/* Remove sent notifications from the queue, release the failed ones */
+		    	registry.withProcessToolContext(new ProcessToolContextCallback() 
+		    	{
+		    		@Override
+		    		public void withContext(ProcessToolContext ctx)
+		    		{
+		    			ProcessToolContext.Util.setThreadProcessToolContext(ctx);
+		    			
+		    			completeNotifications(results);
+		    		}
+		    	});
+		    	
+		    	for(Exception error: results.values())
+		    	{
+		    		if(error == null)
+		    			sentCount++;
+		    		else
+		    			failedCount++;
+		    	}
 	    	}
-		}
-		/* Table is locked, end transation */
-		catch(Exception ex)
-		{
-
-		}
+    	}
+    	catch(InterruptedException ex)
+    	{
+    		Thread.currentThread().interrupt();
+    	}
+    	catch(Exception ex)
+    	{
+    		/* claimed notifications will be claimed again after the lease expires */
+    		logger.log(Level.SEVERE, "[NOTIFICATIONS JOB] Problem during notifications handling", ex);
+    	}
+    	
+    	if(sentCount > 0 || failedCount > 0)
+    		logger.info("[NOTIFICATIONS JOB] "+sentCount+" notifications sent, "+failedCount+" failed");
     }
     
+    /** Send the notifications in parallel, the result maps every notification to its error or null */
+    private Map<BpmNotification, Exception> sendNotifications(List<BpmNotification> notifications) throws InterruptedException
+    {
+    	Map<BpmNotification, Future<?>> futures = new LinkedHashMap<BpmNotification, Future<?>>();
+    	for(final BpmNotification notification: notifications)
+    	{
+    		futures.put(notification, senderExecutor.submit(new Callable<Object>() 
+    		{
+				@Override
+				public Object call() throws Exception
+				{
+					sendNotification(notification);
+					return null;
+				}
+			}));
+    	}
+    	
+    	Map<BpmNotification, Exception> results = new LinkedHashMap<BpmNotification, Exception>();
+    	for(Map.Entry<BpmNotification, Future<?>> entry: futures.entrySet())
+    	{
+    		try
+    		{
+    			entry.getValue().get();
+    			results.put(entry.getKey(), null);
+    		}
+    		catch(ExecutionException ex)
+    		{
+    			results.put(entry.getKey(), ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+    		}
+    	}
+    	return results;
+    }
+    
+    private void completeNotifications(Map<BpmNotification, Exception> results)
+    {
+    	Collection<Long> sentIds = new ArrayList<Long>();
+    	for(Map.Entry<BpmNotification, Exception> entry: results.entrySet())
+    	{
+    		BpmNotification notification = entry.getKey();
+    		if(entry.getValue() == null)
+    		{
+    			sentIds.add(notification.getId());
+    		}
+    		else
+    		{
+    			int attempts = notification.getAttempts() + 1;
+    			Date nextAttemptDate = new Date(System.currentTimeMillis() + getRetryDelay(attempts));
+    			
+    			logger.log(Level.SEVERE, "[NOTIFICATIONS JOB] Problem during notification sending, attempt "+attempts+
+    					", next attempt at "+nextAttemptDate, entry.getValue());
+    			
+    			NotificationsFacade.scheduleRetry(notification.getId(), attempts, nextAttemptDate);
+    		}
+    	}
+    	NotificationsFacade.removeNotifications(sentIds);
+    }
+    
+    /** Delay before the next attempt to send a notification which failed given number of times */
+    static long getRetryDelay(int attempts)
+    {
+    	long delay = RETRY_BASE_DELAY;
+    	for(int i = 1; i < attempts && delay < RETRY_MAX_DELAY; ++i)
+    		delay *= 2;
+    	
+    	return Math.min(delay, RETRY_MAX_DELAY);
+    }
+    
+    /** Close pooled connections and stop the sender threads */
+    public void shutdown()
+    {
+    	senderExecutor.shutdown();
+    	transportPool.close();
+    }
     
     public void onProcessStateChange(BpmTask task, ProcessInstance pi, UserData userData, boolean processStarted,
 									 boolean processEnded, boolean enteringStep) {
     	
         refreshConfigIfNecessary();
         ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
-
-//		logger.log(Level.INFO, "BpmNotificationEngine processes " + configCache.size() + " rules");
+        final ProcessInstance processInstance = pi;
+        
+        List<BpmNotificationConfig> matchingConfigs = ruleIndex.findMatching(enteringStep, processStarted, processEnded,
+        		pi.getDefinitionName(), task != null ? task.getTaskName() : null, new NotificationRuleIndex.LastActionProvider() 
+        		{
+					@Override
+					public String getLastAction()
+					{
+						return processInstance.getSimpleAttributeValue("ACTION");
+					}
+				});
 		 
-        for (BpmNotificationConfig cfg : configCache) {
+        for (BpmNotificationConfig cfg : matchingConfigs) {
             try {
-            	if(!((enteringStep & cfg.isOnEnteringStep())||(processStarted & cfg.isNotifyOnProcessStart())||(processEnded & cfg.isNotifyOnProcessEnd()))) {
-
-//            		logger.info("Not matched notification #" + cfg.getId() + ": enteringStep=" + enteringStep );
-            		continue;
-            	}
 				if (cfg.isNotifyOnProcessEnd() && (task != null && task.getProcessInstance().getParent() != null)) {
 					continue;
 				}
-                if (hasText(cfg.getProcessTypeRegex()) && !pi.getDefinitionName().toLowerCase().matches(cfg.getProcessTypeRegex().toLowerCase())) {
-//            		logger.info("Not matched notification #" + cfg.getId() + ":pra pi.getDefinitionName()=" + pi.getDefinitionName() );
-                    continue;
-                }
-                if (!(
-					(!hasText(cfg.getStateRegex()) || (task != null && task.getTaskName().toLowerCase().matches(cfg.getStateRegex().toLowerCase())))
-				)) {
-//            		logger.info("Not matched notification #" + cfg.getId() + ": task.getTaskName()=" + task.getTaskName() );
-                    continue;
-                }
-                if (hasText(cfg.getLastActionRegex())) {
-                	String lastAction = pi.getSimpleAttributeValue("ACTION");
-                	if (lastAction == null || !lastAction.toLowerCase().matches(cfg.getLastActionRegex().toLowerCase())) {
-//                		logger.info("Not matched notification #" + cfg.getId() + ": lastAction=" + lastAction );
-                        continue;
-                	}
-                }
                 logger.info("Matched notification #" + cfg.getId() + " for process state change #" + pi.getInternalId());
                 List<String> emailsToNotify = new LinkedList<String>();
                 if (task != null && cfg.isNotifyTaskAssignee()) {
@@ -273,31 +378,32 @@ public class BpmNotificationEngine implements BpmNotificationService
         }
     }
     
-    /** Register mail session provider. There is support for:
+    /** Create and configure mail session provider. There is support for:
      * <li> Database configuration (mail.settings.provider.type = database)
      * <li> JNDI resource configuration (mail.settings.provider.type = jndi)
      * 
      * If configuration in pt_settings is not set, default is database
      */
-    private void registerMailSettingProvider()
+    private IMailSessionProvider createMailSessionProvider()
     {	
     	/* Look for configuration for mail provider. If none exists, default is database */
     	String providerName = ProcessToolContext.Util.getThreadProcessToolContext().getSetting(PROVIDER_TYPE);
+    	IMailSessionProvider provider = null;
     	
     	if(providerName == null)
     	{
     		logger.warning("Mail session provider type is not set, using default database provider");
-    		mailSessionProvider = new DatabaseMailSessionProvider();
+    		provider = new DatabaseMailSessionProvider();
     	}
     	else if(providerName.equals("database"))
     	{
     		logger.info("Mail session provider set to database");
-    		mailSessionProvider = new DatabaseMailSessionProvider();
+    		provider = new DatabaseMailSessionProvider();
     	}
     	else if(providerName.equals("jndi"))
     	{
     		logger.info("Mail session provider set to jndi resources");
-    		mailSessionProvider = new JndiMailSessionProvider();
+    		provider = new JndiMailSessionProvider();
     	}
     	else
     	{
@@ -305,23 +411,18 @@ public class BpmNotificationEngine implements BpmNotificationService
     		//throw new IllegalArgumentException("Unknown provider ["+providerName+"]! Service will be stopped");
     	}
     	
+    	/* Refresh config before the provider is published to the sender threads */
+    	if(provider != null)
+    		provider.refreshConfig();
     	
+    	return provider;
     }
     
     /** Read config refresh rate */
     private void readRefreshIntervalFromSettings()
     {
-    	String refreshIntervalString = ProcessToolContext.Util.getThreadProcessToolContext().getSetting(REFRESH_INTERVAL);
-    	
-    	if(refreshIntervalString == null)
-    	{
-    		refrshInterval = CONFIG_DEFAULT_CACHE_REFRESH_INTERVAL;
-    	}
-    	else
-    	{
-    		refrshInterval = Long.parseLong(refreshIntervalString);
-    	}
-    		
+    	refrshInterval = ProcessToolContext.Util.getThreadProcessToolContext().getRegistry().getSettingsCache()
+    			.getDurationMillis(REFRESH_INTERVAL, CONFIG_DEFAULT_CACHE_REFRESH_INTERVAL);
     }
 
 	private Collection<String> extractUserEmails(String notifyUserAttributes, ProcessToolContext ctx, ProcessInstance pi) {
@@ -374,36 +475,63 @@ public class BpmNotificationEngine implements BpmNotificationService
 	}
 
 	@Override
-	public synchronized void invalidateCache() {
+	public void invalidateCache() {
 		cacheUpdateTime = 0;
 	}
 
+	/**
+	 * Reload the configuration if it is older than the refresh interval. The new configuration
+	 * is built aside and swapped in, threads handling events meanwhile use the previous one
+	 * instead of waiting for the reload. Only the first load blocks.
+	 */
     @SuppressWarnings("unchecked")
-	public synchronized void refreshConfigIfNecessary() {
-        if (cacheUpdateTime + refrshInterval < System.currentTimeMillis()) {
+	public void refreshConfigIfNecessary() {
+        if (ruleIndex != null && cacheUpdateTime + refrshInterval >= System.currentTimeMillis()) {
+        	return;
+        }
+        
+        if (ruleIndex == null) {
+        	refreshLock.lock();
+        }
+        else if (!refreshLock.tryLock()) {
+        	return;
+        }
+        
+        try {
+            if (ruleIndex != null && cacheUpdateTime + refrshInterval >= System.currentTimeMillis()) {
+            	return;
+            }
+            
             Session session = ProcessToolContext.Util.getThreadProcessToolContext().getHibernateSession();
-            configCache = session
+            List<BpmNotificationConfig> configs = session
                     .createCriteria(BpmNotificationConfig.class)
                     .add(Restrictions.eq("active", true))
                     .addOrder(Order.asc("id"))
                     .list();
-
-            cacheUpdateTime = System.currentTimeMillis();
+            
+            NotificationRuleIndex newRuleIndex = new NotificationRuleIndex(configs);
             
             /* Update cache refresh rate 8 */
             readRefreshIntervalFromSettings();
             
-            registerMailSettingProvider();
-            
             /* Refresh config for providers */
-            templateProvider.refreshConfig();
-            mailSessionProvider.refreshConfig();
+            MailTemplateProvider newTemplateProvider = new MailTemplateProvider();
+            newTemplateProvider.refreshConfig();
+            IMailSessionProvider newMailSessionProvider = createMailSessionProvider();
 
             bpmSession = ProcessToolContext.Util.getThreadProcessToolContext().getProcessToolSessionFactory().createAutoSession();
+            templateProvider = newTemplateProvider;
+            if (newMailSessionProvider != null) {
+            	mailSessionProvider = newMailSessionProvider;
+            }
+            ruleIndex = newRuleIndex;
+            cacheUpdateTime = System.currentTimeMillis();
             
-            logger.info("Mail configuration updated. Interval is set to "+refrshInterval);
+            logger.info("Mail configuration updated, "+newRuleIndex.size()+" rules. Interval is set to "+refrshInterval);
+        }
+        finally {
+        	refreshLock.unlock();
         }
-
     }
     
     /** Methods add notification to queue for notifications to be sent in the
@@ -466,41 +594,19 @@ public class BpmNotificationEngine implements BpmNotificationService
     {
     	javax.mail.Session mailSession = mailSessionProvider.getSession(notification.getProfileName());
     	
-    	/* Create javax mail message from notification bean */
-        Message message = createMessageFromNotification(notification, mailSession);
-        
         try 
         {
-	    	/* If smtps is required, force diffrent transport properties */
-	    	if(isSmtpsRequired(mailSession))
-	    	{
-	    		Properties emailPrtoperties = mailSession.getProperties();
-	    		
-	    		String secureHost = emailPrtoperties.getProperty("mail.smtp.host");
-	    		String securePort = emailPrtoperties.getProperty("mail.smtp.port");
-	    		String userName = emailPrtoperties.getProperty("mail.smtp.user");
-	    		String userPassword = emailPrtoperties.getProperty("mail.smtp.password");
-	    		
-	            Transport transport = mailSession.getTransport("smtps");
-	            transport.connect(secureHost, Integer.parseInt(securePort), userName, userPassword);
-	            transport.sendMessage(message, message.getAllRecipients());
-	            transport.close();
-	    	}
-	    	/* Default transport mechanism */
-	    	else
-	    	{
-	    		Transport.send(message);
-	    	}
+	    	/* Create javax mail message from notification bean */
+	        Message message = createMessageFromNotification(notification, mailSession);
+	        
+	        transportPool.send(notification.getProfileName(), mailSession, message);
 
 			history.notificationSent(notification);
-
-	    	logger.info("Emails sent");
         }
         catch (Exception e) 
         {
 			history.errorWhileSendingNotification(notification, e);
-
-            logger.log(Level.SEVERE, e.getMessage(), e);
+			throw e;
         }
     }
     
@@ -546,16 +652,6 @@ public class BpmNotificationEngine implements BpmNotificationService
         return message;
     }
     
-    /** Check if tranport protocol is set to smtps */
-    private boolean isSmtpsRequired(javax.mail.Session mailSession)
-    {
-		Properties emailPrtoperties = mailSession.getProperties();
-		String transportProtocol = emailPrtoperties.getProperty("mail.transport.protocol");
-		
-		return "smtps".equals(transportProtocol);
-		
-    }
-
 	@Override
 	public String findTemplate(String templateName)
 	{
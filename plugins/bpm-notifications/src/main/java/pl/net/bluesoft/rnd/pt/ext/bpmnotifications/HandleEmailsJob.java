@@ -1,5 +1,6 @@
 package pl.net.bluesoft.rnd.pt.ext.bpmnotifications;
 
+import org.quartz.DisallowConcurrentExecution;
 import org.quartz.Job;
 import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
@@ -14,6 +15,7 @@ import pl.net.bluesoft.rnd.processtool.model.processdata.ProcessDeadline;
  * @author Maciej Pawlak
  *
  */
+@DisallowConcurrentExecution
 public class HandleEmailsJob implements Job {
 
     @Override
@@ -0,0 +1,287 @@
+package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.config;
+
+import static pl.net.bluesoft.util.lang.Strings.hasText;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotificationConfig;
+
+/**
+ * Immutable index of the active notification rules, built once when the configuration is loaded.
+ *
+ * The rules are grouped by the events they react to, then by process type and by state.
+ * Conditions without regular expression characters are looked up in hash maps, only real
+ * regular expressions are precompiled and matched. Like before, names are compared
+ * case insensitively: both the name and the expression are lowercased.
+ *
+ * Finding the rules for an event costs the number of distinct regular expressions and matching
+ * rules, not the number of all rules.
+ */
+public class NotificationRuleIndex
+{
+	private static final Logger logger = Logger.getLogger(NotificationRuleIndex.class.getName());
+
+	private static final Pattern REGEX_CHARACTERS = Pattern.compile("[\\\\\\[\\](){}.*+?^$|]");
+
+	private static final Comparator<Rule> RULE_ORDER = new Comparator<Rule>()
+	{
+		@Override
+		public int compare(Rule r1, Rule r2)
+		{
+			return r1.order - r2.order;
+		}
+	};
+
+	private final ProcessIndex enteringStepRules = new ProcessIndex();
+	private final ProcessIndex processStartRules = new ProcessIndex();
+	private final ProcessIndex processEndRules = new ProcessIndex();
+	private final int size;
+
+	/** @param configs active configurations, in the order the rules should be applied */
+	public NotificationRuleIndex(Collection<BpmNotificationConfig> configs)
+	{
+		int order = 0;
+		for(BpmNotificationConfig config: configs)
+		{
+			try
+			{
+				Rule rule = new Rule(config, order++);
+
+				if(config.isOnEnteringStep())
+					enteringStepRules.add(rule);
+				if(config.isNotifyOnProcessStart())
+					processStartRules.add(rule);
+				if(config.isNotifyOnProcessEnd())
+					processEndRules.add(rule);
+			}
+			catch(PatternSyntaxException e)
+			{
+				logger.log(Level.SEVERE, "Invalid expression in notification config #" + config.getId() + ", skipping it", e);
+			}
+		}
+		this.size = order;
+	}
+
+	/**
+	 * Find the configurations matching the event. The last action condition is checked
+	 * only for the rules matching the process type and state.
+	 *
+	 * @param stateName task name, null if there is no task
+	 * @param lastAction provides the last action of the process, called at most once
+	 */
+	public List<BpmNotificationConfig> findMatching(boolean enteringStep, boolean processStarted, boolean processEnded,
+													String processName, String stateName, LastActionProvider lastAction)
+	{
+		String process = processName != null ? processName.toLowerCase() : null;
+		String state = stateName != null ? stateName.toLowerCase() : null;
+
+		List<Rule> candidates = new ArrayList<Rule>();
+		int sources = 0;
+		if(enteringStep)
+		{
+			enteringStepRules.collect(process, state, candidates);
+			sources++;
+		}
+		if(processStarted)
+		{
+			processStartRules.collect(process, state, candidates);
+			sources++;
+		}
+		if(processEnded)
+		{
+			processEndRules.collect(process, state, candidates);
+			sources++;
+		}
+
+		if(candidates.isEmpty())
+			return Collections.emptyList();
+
+		/* Restore the configuration order and drop rules found for more than one event */
+		Collections.sort(candidates, RULE_ORDER);
+		if(sources > 1)
+			candidates = new ArrayList<Rule>(new LinkedHashSet<Rule>(candidates));
+
+		List<BpmNotificationConfig> result = new ArrayList<BpmNotificationConfig>(candidates.size());
+		boolean lastActionLoaded = false;
+		String action = null;
+		for(Rule rule: candidates)
+		{
+			if(rule.lastAction != null)
+			{
+				if(!lastActionLoaded)
+				{
+					action = lastAction.getLastAction();
+					action = action != null ? action.toLowerCase() : null;
+					lastActionLoaded = true;
+				}
+				if(action == null || !rule.lastAction.matches(action))
+					continue;
+			}
+			result.add(rule.config);
+		}
+		return result;
+	}
+
+	/** Number of indexed rules */
+	public int size()
+	{
+		return size;
+	}
+
+	public interface LastActionProvider
+	{
+		String getLastAction();
+	}
+
+	private static boolean isLiteral(String regex)
+	{
+		return !REGEX_CHARACTERS.matcher(regex).find();
+	}
+
+	/** Condition on a lowercased name, a literal or a precompiled regular expression */
+	private static class Condition
+	{
+		final String literal;
+		final Pattern pattern;
+
+		Condition(String regex)
+		{
+			String lowerCaseRegex = regex.toLowerCase();
+			if(isLiteral(lowerCaseRegex))
+			{
+				this.literal = lowerCaseRegex;
+				this.pattern = null;
+			}
+			else
+			{
+				this.literal = null;
+				this.pattern = Pattern.compile(lowerCaseRegex);
+			}
+		}
+
+		boolean matches(String lowerCaseValue)
+		{
+			return literal != null ? literal.equals(lowerCaseValue) : pattern.matcher(lowerCaseValue).matches();
+		}
+	}
+
+	private static class Rule
+	{
+		final BpmNotificationConfig config;
+		final int order;
+		/** null when the rule does not depend on the last action */
+		final Condition lastAction;
+
+		Rule(BpmNotificationConfig config, int order)
+		{
+			this.config = config;
+			this.order = order;
+			this.lastAction = hasText(config.getLastActionRegex()) ? new Condition(config.getLastActionRegex()) : null;
+		}
+	}
+
+	/**
+	 * Values grouped by a condition on a name: literal conditions in a hash map, regular
+	 * expressions compiled once per distinct expression, and values without a condition.
+	 */
+	private static abstract class ConditionIndex<T>
+	{
+		private final Map<String, T> literals = new HashMap<String, T>();
+		private final Map<String, T> patternValues = new LinkedHashMap<String, T>();
+		private final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>();
+		private T unconditional;
+
+		protected abstract T newValue();
+
+		/** Get the value for a condition, null or empty regex stands for no condition */
+		T get(String regex)
+		{
+			if(!hasText(regex))
+			{
+				if(unconditional == null)
+					unconditional = newValue();
+				return unconditional;
+			}
+
+			String lowerCaseRegex = regex.toLowerCase();
+			boolean literal = isLiteral(lowerCaseRegex);
+			Map<String, T> values = literal ? literals : patternValues;
+			T value = values.get(lowerCaseRegex);
+			if(value == null)
+			{
+				if(!literal)
+					patterns.put(lowerCaseRegex, Pattern.compile(lowerCaseRegex));
+				value = newValue();
+				values.put(lowerCaseRegex, value);
+			}
+			return value;
+		}
+
+		/** Collect the values whose condition matches the lowercased name, only unconditional ones for null */
+		void collect(String lowerCaseName, Collection<T> result)
+		{
+			if(unconditional != null)
+				result.add(unconditional);
+			if(lowerCaseName == null)
+				return;
+
+			T literal = literals.get(lowerCaseName);
+			if(literal != null)
+				result.add(literal);
+
+			for(Map.Entry<String, Pattern> entry: patterns.entrySet())
+			{
+				if(entry.getValue().matcher(lowerCaseName).matches())
+					result.add(patternValues.get(entry.getKey()));
+			}
+		}
+	}
+
+	private static class StateIndex extends ConditionIndex<List<Rule>>
+	{
+		@Override
+		protected List<Rule> newValue()
+		{
+			return new ArrayList<Rule>();
+		}
+	}
+
+	private static class ProcessIndex extends ConditionIndex<StateIndex>
+	{
+		@Override
+		protected StateIndex newValue()
+		{
+			return new StateIndex();
+		}
+
+		void add(Rule rule)
+		{
+			get(rule.config.getProcessTypeRegex()).get(rule.config.getStateRegex()).add(rule);
+		}
+
+		void collect(String lowerCaseProcess, String lowerCaseState, List<Rule> result)
+		{
+			List<StateIndex> stateIndexes = new ArrayList<StateIndex>();
+			collect(lowerCaseProcess, stateIndexes);
+
+			List<List<Rule>> rules = new ArrayList<List<Rule>>();
+			for(StateIndex stateIndex: stateIndexes)
+				stateIndex.collect(lowerCaseState, rules);
+
+			for(List<Rule> list: rules)
+				result.addAll(list);
+		}
+	}
+}
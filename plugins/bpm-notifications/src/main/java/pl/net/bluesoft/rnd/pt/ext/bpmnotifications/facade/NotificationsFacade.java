@@ -1,11 +1,14 @@
 package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.facade;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
-import org.hibernate.LockMode;
-import org.hibernate.SQLQuery;
 import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 
 import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
 import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotification;
@@ -19,14 +22,48 @@ import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotificationMailProp
  */
 public class NotificationsFacade 
 {
-	/** Get all notifications waiting to be sent */
-	public static Collection<BpmNotification> getNotificationsToSend()
+	/**
+	 * Claim at most batchSize notifications waiting to be sent. Only the notifications which
+	 * are not claimed by another dispatcher (or whose lease expired) and are due for sending
+	 * are claimed. The claim is a conditional update of the rows, so dispatchers running
+	 * concurrently never claim the same notification and the rest of the table stays unlocked.
+	 * 
+	 * The claim should be committed before the notifications are sent.
+	 * 
+	 * @return the claimed notifications
+	 */
+	public static List<BpmNotification> claimNotificationsToSend(String claimId, int batchSize, long leaseTime)
 	{
-		return (List<BpmNotification>)getSession()
-				.createCriteria(BpmNotification.class)
-				.setLockMode(LockMode.UPGRADE_NOWAIT)
+		Session session = getSession();
+		Date now = new Date();
+		
+		List<Long> ids = session.createCriteria(BpmNotification.class)
+				.add(Restrictions.or(Restrictions.isNull("leaseExpireDate"), Restrictions.lt("leaseExpireDate", now)))
+				.add(Restrictions.or(Restrictions.isNull("nextAttemptDate"), Restrictions.le("nextAttemptDate", now)))
+				.setProjection(Projections.id())
+				.addOrder(Order.asc("id"))
+				.setMaxResults(batchSize)
+				.list();
+		
+		if(ids.isEmpty())
+			return Collections.emptyList();
+		
+		/* Rows claimed by somebody else in the meantime are skipped by the condition */
+		session.createQuery("update BpmNotification set claimId = :claimId, leaseExpireDate = :leaseExpireDate " +
+				"where id in (:ids) and (leaseExpireDate is null or leaseExpireDate < :now)")
+				.setString("claimId", claimId)
+				.setTimestamp("leaseExpireDate", new Date(now.getTime() + leaseTime))
+				.setParameterList("ids", ids)
+				.setTimestamp("now", now)
+				.executeUpdate();
+		
+		return session.createCriteria(BpmNotification.class)
+				.add(Restrictions.eq("claimId", claimId))
+				.add(Restrictions.in("id", ids))
+				.addOrder(Order.asc("id"))
 				.list();
 	}
+	
 	/** Get all notifications properties */
 	public static Collection<BpmNotificationMailProperties> getNotificationMailProperties()
 	{
@@ -43,19 +80,30 @@ public class NotificationsFacade
 		session.saveOrUpdate(notification);
 	}
 	
-	public static void removeNotification(BpmNotification notification) 
+	/** Removes sent notifications */
+	public static void removeNotifications(Collection<Long> ids) 
 	{
-		Session session = getSession();
-		
-		session.delete(notification);
+		if(ids.isEmpty())
+			return;
 		
+		getSession().createQuery("delete from BpmNotification where id in (:ids)")
+				.setParameterList("ids", ids)
+				.executeUpdate();
+	}
+	
+	/** Releases the claim of a notification which could not be sent, it will be sent again after nextAttemptDate */
+	public static void scheduleRetry(Long id, int attempts, Date nextAttemptDate)
+	{
+		getSession().createQuery("update BpmNotification set claimId = null, leaseExpireDate = null, " +
+				"attempts = :attempts, nextAttemptDate = :nextAttemptDate where id = :id")
+				.setInteger("attempts", attempts)
+				.setTimestamp("nextAttemptDate", nextAttemptDate)
+				.setLong("id", id)
+				.executeUpdate();
 	}
 	
 	private static Session getSession()
 	{
 		return ProcessToolContext.Util.getThreadProcessToolContext().getHibernateSession();
 	}
-
-
-
 }
@@ -1,5 +1,7 @@
 package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model;
 
+import java.util.Date;
+
 import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Table;
@@ -45,6 +47,18 @@ public class BpmNotification extends PersistentEntity
     @Type(type = "org.hibernate.type.StringClobType")
 	private String body;
 	
+	/** Identifier of the dispatcher run which claimed the notification for sending */
+	private String claimId;
+	
+	/** The claim is valid until this date, later the notification can be claimed again */
+	private Date leaseExpireDate;
+	
+	/** Number of failed sending attempts */
+	private Integer attempts;
+	
+	/** The notification is not sent again before this date */
+	private Date nextAttemptDate;
+	
 
 	public String getBody() {
 		return body;
@@ -102,4 +116,36 @@ public class BpmNotification extends PersistentEntity
 		this.profileName = profileName;
 	}
 
+	public String getClaimId() {
+		return claimId;
+	}
+
+	public void setClaimId(String claimId) {
+		this.claimId = claimId;
+	}
+
+	public Date getLeaseExpireDate() {
+		return leaseExpireDate;
+	}
+
+	public void setLeaseExpireDate(Date leaseExpireDate) {
+		this.leaseExpireDate = leaseExpireDate;
+	}
+
+	public int getAttempts() {
+		return attempts != null ? attempts : 0;
+	}
+
+	public void setAttempts(Integer attempts) {
+		this.attempts = attempts;
+	}
+
+	public Date getNextAttemptDate() {
+		return nextAttemptDate;
+	}
+
+	public void setNextAttemptDate(Date nextAttemptDate) {
+		this.nextAttemptDate = nextAttemptDate;
+	}
+
 }
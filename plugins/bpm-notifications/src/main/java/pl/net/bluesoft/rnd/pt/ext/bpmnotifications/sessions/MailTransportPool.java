@@ -0,0 +1,195 @@
+package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Pool of connected mail transports, kept per mail session profile. Reusing a connection
+ * saves the connect, TLS and authentication handshake for every sent message.
+ *
+ * A pooled transport is reused only with session properties equal to the ones it was connected with,
+ * so the connections are renewed after the mail configuration changes. Transports idle for
+ * longer than {@link #MAX_IDLE_TIME} are closed, as servers drop such connections anyway.
+ */
+public class MailTransportPool
+{
+	private static final Logger logger = Logger.getLogger(MailTransportPool.class.getName());
+
+	/** Idle connections are closed after this time */
+	public static final long MAX_IDLE_TIME = 60 * 1000;
+
+	/** Maximum number of idle connections kept for one profile */
+	private final int maxIdlePerProfile;
+
+	private final Map<String, LinkedList<PooledTransport>> idleTransports = new HashMap<String, LinkedList<PooledTransport>>();
+
+	public MailTransportPool(int maxIdlePerProfile)
+	{
+		this.maxIdlePerProfile = maxIdlePerProfile;
+	}
+
+	/** Send the message with a pooled connection for given profile */
+	public void send(String profileName, Session mailSession, Message message) throws MessagingException
+	{
+		PooledTransport transport = borrow(profileName, mailSession);
+
+		try
+		{
+			transport.transport.sendMessage(message, message.getAllRecipients());
+		}
+		catch(MessagingException ex)
+		{
+			close(transport);
+			if(!transport.reused)
+				throw ex;
+
+			/* The server could have dropped the pooled connection, try once again with a new one */
+			logger.log(Level.FINE, "Sending with a pooled connection failed, reconnecting", ex);
+			transport = connect(mailSession);
+			try
+			{
+				transport.transport.sendMessage(message, message.getAllRecipients());
+			}
+			catch(MessagingException retryEx)
+			{
+				close(transport);
+				throw retryEx;
+			}
+		}
+
+		release(profileName, transport);
+	}
+
+	/** Close all idle connections */
+	public void close()
+	{
+		Collection<PooledTransport> transports = new ArrayList<PooledTransport>();
+		synchronized(idleTransports)
+		{
+			for(LinkedList<PooledTransport> profileTransports: idleTransports.values())
+				transports.addAll(profileTransports);
+			idleTransports.clear();
+		}
+
+		for(PooledTransport transport: transports)
+			close(transport);
+	}
+
+	private PooledTransport borrow(String profileName, Session mailSession) throws MessagingException
+	{
+		long now = System.currentTimeMillis();
+		List<PooledTransport> stale = new ArrayList<PooledTransport>();
+		PooledTransport result = null;
+
+		synchronized(idleTransports)
+		{
+			LinkedList<PooledTransport> transports = idleTransports.get(profileName);
+			while(transports != null && !transports.isEmpty() && result == null)
+			{
+				PooledTransport transport = transports.removeFirst();
+				if(transport.properties.equals(mailSession.getProperties()) && now - transport.releaseTime < MAX_IDLE_TIME)
+					result = transport;
+				else
+					stale.add(transport);
+			}
+		}
+
+		for(PooledTransport transport: stale)
+			close(transport);
+
+		/* isConnected checks the connection with the server, but outside the lock */
+		if(result != null && result.transport.isConnected())
+		{
+			result.reused = true;
+			return result;
+		}
+
+		if(result != null)
+			close(result);
+
+		return connect(mailSession);
+	}
+
+	private void release(String profileName, PooledTransport transport)
+	{
+		transport.releaseTime = System.currentTimeMillis();
+		synchronized(idleTransports)
+		{
+			LinkedList<PooledTransport> transports = idleTransports.get(profileName);
+			if(transports == null)
+			{
+				transports = new LinkedList<PooledTransport>();
+				idleTransports.put(profileName, transports);
+			}
+			if(transports.size() < maxIdlePerProfile)
+			{
+				/* most recently used first, so surplus connections age out */
+				transports.addFirst(transport);
+				return;
+			}
+		}
+		close(transport);
+	}
+
+	private static PooledTransport connect(Session mailSession) throws MessagingException
+	{
+		Properties properties = mailSession.getProperties();
+		Transport transport;
+
+		/* If smtps is required, force diffrent transport properties */
+		if("smtps".equals(properties.getProperty("mail.transport.protocol")))
+		{
+			transport = mailSession.getTransport("smtps");
+			transport.connect(
+					properties.getProperty("mail.smtp.host"),
+					Integer.parseInt(properties.getProperty("mail.smtp.port")),
+					properties.getProperty("mail.smtp.user"),
+					properties.getProperty("mail.smtp.password"));
+		}
+		/* Default transport mechanism, the same as used by Transport.send */
+		else
+		{
+			transport = mailSession.getTransport("smtp");
+			transport.connect();
+		}
+		return new PooledTransport(transport, properties);
+	}
+
+	private static void close(PooledTransport transport)
+	{
+		try
+		{
+			transport.transport.close();
+		}
+		catch(MessagingException ex)
+		{
+			logger.log(Level.FINE, "Error while closing mail transport", ex);
+		}
+	}
+
+	private static class PooledTransport
+	{
+		final Transport transport;
+		final Properties properties;
+		long releaseTime;
+		boolean reused;
+
+		PooledTransport(Transport transport, Properties properties)
+		{
+			this.transport = transport;
+			this.properties = properties;
+		}
+	}
+}
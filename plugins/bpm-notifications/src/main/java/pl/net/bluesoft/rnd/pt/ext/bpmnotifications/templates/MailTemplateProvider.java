@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.hibernate.Criteria;
@@ -34,14 +35,20 @@ public class MailTemplateProvider implements TemplateLoader
     
     private Logger logger = Logger.getLogger(MailTemplateProvider.class.getName());
     
-    private Configuration freemarkerConfiguration;
+    private volatile Configuration freemarkerConfiguration;
     
-    private Map<String, BpmNotificationTemplate> templateMap = new HashMap<String, BpmNotificationTemplate>();
+    private volatile Map<String, BpmNotificationTemplate> templateMap = new HashMap<String, BpmNotificationTemplate>();
     
-    /** Cache for the */
-    private Map<String, String> templateCache = new HashMap<String, String>();
+    /** Cache for the template sources */
+    private volatile Map<String, String> templateCache = new HashMap<String, String>();
     
-    /** Refresh config: look for modifictations of templates in database */
+    /** Templates parsed when the config is refreshed */
+    private volatile Map<String, Template> parsedTemplates = new HashMap<String, Template>();
+    
+    /** 
+     * Refresh config: look for modifictations of templates in database. All templates are parsed
+     * here and published together, so rendering never parses and never sees a half-loaded config.
+     */
     @SuppressWarnings("unchecked")
 	public void refreshConfig() 
     {
@@ -53,17 +60,41 @@ public class MailTemplateProvider implements TemplateLoader
         		.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY)
         		.list();
         
+        Map<String, BpmNotificationTemplate> newTemplateMap = new HashMap<String, BpmNotificationTemplate>();
+        Map<String, String> newTemplateCache = new HashMap<String, String>();
+        
         for (BpmNotificationTemplate t : templates) 
         {
-            templateMap.put(t.getTemplateName(), t);
-            templateCache.put(t.getTemplateName(), t.getTemplateBody() != null ? t.getTemplateBody().replaceAll("\\\\u", "\\u") : "");
-            templateCache.put(t.getTemplateName() + SUBJECT_TEMPLATE_SUFFIX, t.getSubjectTemplate() != null
+            newTemplateMap.put(t.getTemplateName(), t);
+            newTemplateCache.put(t.getTemplateName(), t.getTemplateBody() != null ? t.getTemplateBody().replaceAll("\\\\u", "\\u") : "");
+            newTemplateCache.put(t.getTemplateName() + SUBJECT_TEMPLATE_SUFFIX, t.getSubjectTemplate() != null
                     ? t.getSubjectTemplate().replaceAll("\\\\u", "\\u") : "");
-            templateCache.put(t.getTemplateName() + SENDER_TEMPLATE_SUFFIX, t.getSender());
+            newTemplateCache.put(t.getTemplateName() + SENDER_TEMPLATE_SUFFIX, t.getSender());
+        }
+        
+        Configuration newConfiguration = new Configuration();
+        newConfiguration.setTemplateLoader(this);
+        
+        Map<String, Template> newParsedTemplates = new HashMap<String, Template>();
+        for (Map.Entry<String, String> entry : newTemplateCache.entrySet()) 
+        {
+            if (entry.getValue() == null)
+                continue;
+            try 
+            {
+                newParsedTemplates.put(entry.getKey(), new Template(entry.getKey(), new StringReader(entry.getValue()), newConfiguration));
+            }
+            catch (IOException e) 
+            {
+                /* reported again when the template is used */
+                logger.log(Level.WARNING, "Unable to parse template " + entry.getKey(), e);
+            }
         }
         
-        freemarkerConfiguration = new Configuration();
-        freemarkerConfiguration.setTemplateLoader(this);
+        templateMap = newTemplateMap;
+        templateCache = newTemplateCache;
+        parsedTemplates = newParsedTemplates;
+        freemarkerConfiguration = newConfiguration;
     }
     
     public String findTemplate(String templateName) {
@@ -86,7 +117,9 @@ public class MailTemplateProvider implements TemplateLoader
         StringWriter sw = new StringWriter();
         try 
         {
-            Template template = freemarkerConfiguration.getTemplate(templateName);
+            Template template = parsedTemplates.get(templateName);
+            if (template == null)
+                template = freemarkerConfiguration.getTemplate(templateName);
             template.process(data != null ? data : new HashMap(), sw);
         }
         catch (Exception e) {
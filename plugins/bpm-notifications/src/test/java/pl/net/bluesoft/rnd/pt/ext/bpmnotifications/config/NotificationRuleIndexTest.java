@@ -0,0 +1,79 @@
+package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import pl.net.bluesoft.rnd.pt.ext.bpmnotifications.model.BpmNotificationConfig;
+
+public class NotificationRuleIndexTest
+{
+	private static final NotificationRuleIndex.LastActionProvider ACCEPT = new NotificationRuleIndex.LastActionProvider()
+	{
+		@Override
+		public String getLastAction()
+		{
+			return "Accept";
+		}
+	};
+
+	@Test
+	public void testLiteralAndRegexConditionsAreCaseInsensitive()
+	{
+		BpmNotificationConfig literal = createConfig(1L, "Complaint", "Verification", null);
+		BpmNotificationConfig regex = createConfig(2L, "compl.*", null, null);
+		BpmNotificationConfig otherProcess = createConfig(3L, "Invoice", "Verification", null);
+		BpmNotificationConfig anyProcess = createConfig(4L, null, "verif[a-z]+", null);
+
+		NotificationRuleIndex index = new NotificationRuleIndex(Arrays.asList(literal, regex, otherProcess, anyProcess));
+
+		List<BpmNotificationConfig> result = index.findMatching(true, false, false, "COMPLAINT", "verification", ACCEPT);
+		Assert.assertEquals(Arrays.asList(literal, regex, anyProcess), result);
+
+		result = index.findMatching(true, false, false, "Complaint", null, ACCEPT);
+		Assert.assertEquals(Arrays.asList(regex), result);
+	}
+
+	@Test
+	public void testEventTypesAndLastAction()
+	{
+		BpmNotificationConfig onStart = createConfig(1L, "Complaint", null, null);
+		onStart.setOnEnteringStep(false);
+		onStart.setNotifyOnProcessStart(true);
+		BpmNotificationConfig onAccept = createConfig(2L, "Complaint", null, "accept|approve");
+		onAccept.setNotifyOnProcessStart(true);
+		BpmNotificationConfig onReject = createConfig(3L, "Complaint", null, "Reject");
+
+		NotificationRuleIndex index = new NotificationRuleIndex(Arrays.asList(onStart, onAccept, onReject));
+
+		Assert.assertEquals(Arrays.asList(onAccept), index.findMatching(true, false, false, "Complaint", "Step", ACCEPT));
+		/* a rule listening to both events is returned once, in configuration order */
+		Assert.assertEquals(Arrays.asList(onStart, onAccept), index.findMatching(true, true, false, "Complaint", "Step", ACCEPT));
+		Assert.assertTrue(index.findMatching(false, false, true, "Complaint", "Step", ACCEPT).isEmpty());
+	}
+
+	@Test
+	public void testInvalidExpressionSkipsOnlyItsRule()
+	{
+		BpmNotificationConfig invalid = createConfig(1L, "compl(", null, null);
+		BpmNotificationConfig valid = createConfig(2L, "Complaint", null, null);
+
+		NotificationRuleIndex index = new NotificationRuleIndex(Arrays.asList(invalid, valid));
+
+		Assert.assertEquals(Arrays.asList(valid), index.findMatching(true, false, false, "Complaint", null, ACCEPT));
+	}
+
+	private static BpmNotificationConfig createConfig(Long id, String processTypeRegex, String stateRegex, String lastActionRegex)
+	{
+		BpmNotificationConfig config = new BpmNotificationConfig();
+		config.setId(id);
+		config.setActive(true);
+		config.setOnEnteringStep(true);
+		config.setProcessTypeRegex(processTypeRegex);
+		config.setStateRegex(stateRegex);
+		config.setLastActionRegex(lastActionRegex);
+		return config;
+	}
+}
@@ -0,0 +1,174 @@
+package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal SMTP server accepting every message, used to test mail sending without a real server.
+ * It counts the accepted connections and messages, can reject messages and drop open connections.
+ */
+class FakeSmtpServer
+{
+	private final ServerSocket serverSocket;
+	private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private final AtomicInteger messageCount = new AtomicInteger();
+	private volatile boolean rejectMessages;
+
+	FakeSmtpServer() throws IOException
+	{
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				acceptConnections();
+			}
+		}, "fake-smtp-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	int getConnectionCount()
+	{
+		return connectionCount.get();
+	}
+
+	int getMessageCount()
+	{
+		return messageCount.get();
+	}
+
+	void setRejectMessages(boolean rejectMessages)
+	{
+		this.rejectMessages = rejectMessages;
+	}
+
+	/** Close all open connections, as a server dropping idle clients does */
+	void dropConnections() throws IOException
+	{
+		for(Socket socket: connections)
+			socket.close();
+		connections.clear();
+	}
+
+	void stop() throws IOException
+	{
+		serverSocket.close();
+		dropConnections();
+	}
+
+	private void acceptConnections()
+	{
+		while(!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				connectionCount.incrementAndGet();
+				connections.add(socket);
+
+				Thread handler = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handleConnection(socket);
+					}
+				}, "fake-smtp-connection");
+				handler.setDaemon(true);
+				handler.start();
+			}
+			catch(IOException e)
+			{
+				/* server stopped */
+			}
+		}
+	}
+
+	private void handleConnection(Socket socket)
+	{
+		try
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			OutputStream out = socket.getOutputStream();
+
+			reply(out, "220 localhost fake ESMTP");
+
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+
+				if(command.equals("EHLO") || command.equals("HELO"))
+				{
+					reply(out, "250 localhost");
+				}
+				else if(command.equals("DATA"))
+				{
+					reply(out, "354 End data with <CR><LF>.<CR><LF>");
+					while((line = in.readLine()) != null && !line.equals("."))
+					{
+						/* skip message content */
+					}
+					if(rejectMessages)
+					{
+						reply(out, "554 Transaction failed");
+					}
+					else
+					{
+						messageCount.incrementAndGet();
+						reply(out, "250 OK queued");
+					}
+				}
+				else if(command.equals("QUIT"))
+				{
+					reply(out, "221 Bye");
+					break;
+				}
+				else
+				{
+					/* MAIL, RCPT, RSET, NOOP */
+					reply(out, "250 OK");
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			/* connection dropped */
+		}
+		finally
+		{
+			connections.remove(socket);
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				/* ignore */
+			}
+		}
+	}
+
+	private static void reply(OutputStream out, String reply) throws IOException
+	{
+		out.write((reply + "\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+}
@@ -0,0 +1,108 @@
+package pl.net.bluesoft.rnd.pt.ext.bpmnotifications.sessions;
+
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailTransportPoolTest
+{
+	private static final String PROFILE = "test";
+
+	private FakeSmtpServer server;
+	private MailTransportPool pool;
+	private Session mailSession;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = new FakeSmtpServer();
+		pool = new MailTransportPool(2);
+
+		Properties properties = new Properties();
+		properties.put("mail.transport.protocol", "smtp");
+		properties.put("mail.smtp.host", "localhost");
+		properties.put("mail.smtp.port", String.valueOf(server.getPort()));
+		mailSession = Session.getInstance(properties);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		pool.close();
+		server.stop();
+	}
+
+	@Test
+	public void testConnectionIsReusedForConsecutiveMessages() throws Exception
+	{
+		for(int i = 0; i < 20; ++i)
+			pool.send(PROFILE, mailSession, createMessage(i));
+
+		Assert.assertEquals(20, server.getMessageCount());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testReconnectsAfterServerDroppedConnection() throws Exception
+	{
+		pool.send(PROFILE, mailSession, createMessage(1));
+		server.dropConnections();
+		pool.send(PROFILE, mailSession, createMessage(2));
+
+		Assert.assertEquals(2, server.getMessageCount());
+		Assert.assertEquals(2, server.getConnectionCount());
+	}
+
+	@Test
+	public void testChangedConfigurationOpensNewConnection() throws Exception
+	{
+		pool.send(PROFILE, mailSession, createMessage(1));
+
+		Properties properties = new Properties();
+		properties.putAll(mailSession.getProperties());
+		properties.put("mail.smtp.timeout", "10000");
+		mailSession = Session.getInstance(properties);
+		pool.send(PROFILE, mailSession, createMessage(2));
+
+		Assert.assertEquals(2, server.getMessageCount());
+		Assert.assertEquals(2, server.getConnectionCount());
+	}
+
+	@Test
+	public void testRejectedMessageIsReported() throws Exception
+	{
+		server.setRejectMessages(true);
+		try
+		{
+			pool.send(PROFILE, mailSession, createMessage(1));
+			Assert.fail("Rejected message should not be reported as sent");
+		}
+		catch(MessagingException e)
+		{
+			/* expected */
+		}
+
+		server.setRejectMessages(false);
+		pool.send(PROFILE, mailSession, createMessage(2));
+		Assert.assertEquals(1, server.getMessageCount());
+	}
+
+	private Message createMessage(int number) throws MessagingException
+	{
+		Message message = new MimeMessage(mailSession);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("recipient@example.com"));
+		message.setSubject("Notification " + number);
+		message.setText("Body of notification " + number);
+		return message;
+	}
+}
@@ -0,0 +1,72 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.util.Collection;
+
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Checks that repeated lookups of a process definition are served by the second-level cache
+ * and that a change of the configuration evicts it.
+ */
+public class ConfigurationCacheTests extends AperteDataSourceTestCase
+{
+	public void testLookupsHitCacheUntilConfigurationChanges()
+	{
+		final String key = registry.withProcessToolContext(new ReturningProcessToolContextCallback<String>()
+		{
+			@Override
+			public String processWithContext(ProcessToolContext ctx)
+			{
+				Collection<ProcessDefinitionConfig> configs = ctx.getProcessDefinitionDAO().getActiveConfigurations();
+				return configs.isEmpty() ? null : configs.iterator().next().getBpmDefinitionKey();
+			}
+		});
+		assertNotNull("No process definitions in the test database", key);
+
+		Statistics statistics = registry.getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+
+		/* the first lookup fills the cache, the next ones in new sessions are served from it */
+		lookup(key);
+		long missesAfterFirstLookup = statistics.getQueryCacheMissCount();
+		for(int i = 0; i < 5; ++i)
+			lookup(key);
+		assertEquals(missesAfterFirstLookup, statistics.getQueryCacheMissCount());
+		assertTrue(statistics.getQueryCacheHitCount() >= 5);
+
+		/* any committed change of the configuration evicts the cached lookups */
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				ProcessDefinitionConfig cfg = ctx.getProcessDefinitionDAO().getActiveConfigurationByKey(key);
+				ctx.getProcessDefinitionDAO().setConfigurationEnabled(cfg, !Boolean.FALSE.equals(cfg.getEnabled()));
+			}
+		});
+		long missesBeforeChangedLookup = statistics.getQueryCacheMissCount();
+		lookup(key);
+		assertEquals(missesBeforeChangedLookup + 1, statistics.getQueryCacheMissCount());
+	}
+
+	private void lookup(final String key)
+	{
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				ProcessDefinitionConfig cfg = ctx.getProcessDefinitionDAO().getActiveConfigurationByKey(key);
+				assertNotNull(cfg);
+				cfg.getStates().size();
+			}
+		});
+	}
+}
@@ -0,0 +1,70 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.hibernate.ResultsPageWrapper;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.UserData;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Reads the recent processes of a user page by page and checks the pages, their order,
+ * the total and the number of queries of a page.
+ */
+public class ProcessInstancePagingTests extends AperteDataSourceTestCase
+{
+	private static final int PAGE_SIZE = 5;
+
+	public void testRecentProcessesPages()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+
+				Long userId = (Long)ctx.getHibernateSession()
+						.createQuery("select log.user.id from ProcessInstanceLog log group by log.user.id order by count(distinct log.processInstance.id) desc")
+						.setMaxResults(1)
+						.uniqueResult();
+				assertNotNull("No process logs in the test database", userId);
+				UserData user = (UserData)ctx.getHibernateSession().get(UserData.class, userId);
+
+				Calendar minDate = Calendar.getInstance();
+				minDate.add(Calendar.YEAR, -20);
+
+				Statistics statistics = registry.getSessionFactory().getStatistics();
+				statistics.setStatisticsEnabled(true);
+				ctx.getHibernateSession().clear();
+				statistics.clear();
+
+				ResultsPageWrapper<ProcessInstance> firstPage = ctx.getProcessInstanceDAO().getRecentProcesses(user, minDate, 0, PAGE_SIZE);
+				assertTrue(statistics.getQueryExecutionCount() <= 3);
+
+				int total = firstPage.getTotal();
+				assertEquals(total, ctx.getProcessInstanceDAO().getRecentProcesses(user, minDate, null, null).getTotal().intValue());
+
+				List<ProcessInstance> all = new ArrayList<ProcessInstance>(firstPage.getResults());
+				for(int offset = PAGE_SIZE; offset < total; offset += PAGE_SIZE)
+					all.addAll(ctx.getProcessInstanceDAO().getRecentProcesses(user, minDate, offset, PAGE_SIZE).getResults());
+
+				assertEquals(total, all.size());
+				Set<Long> ids = new HashSet<Long>();
+				for(int i = 0; i < all.size(); ++i)
+				{
+					assertTrue("Process on more than one page", ids.add(all.get(i).getId()));
+					if(i > 0)
+						assertTrue(all.get(i - 1).getId() > all.get(i).getId());
+				}
+			}
+		});
+	}
+}
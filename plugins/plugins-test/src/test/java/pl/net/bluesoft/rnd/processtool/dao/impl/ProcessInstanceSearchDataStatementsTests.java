@@ -0,0 +1,147 @@
+package pl.net.bluesoft.rnd.processtool.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.aperteworkflow.search.ProcessInstanceSearchData;
+import org.aperteworkflow.search.ProcessInstanceSearchPage;
+import org.aperteworkflow.search.ProcessInstanceSortField;
+import org.aperteworkflow.search.SearchProvider;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessStateConfiguration;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Checks that the number of SQL statements needed to save a process instance
+ * does not depend on the number of its active tasks.
+ *
+ * The test process is removed afterwards and the search index is not written.
+ */
+public class ProcessInstanceSearchDataStatementsTests extends AperteDataSourceTestCase
+{
+	private static final int PARALLEL_TASKS = 50;
+	private static final int STATES = 5;
+	private static final String PROCESS_NAME = "test.search.data.process";
+
+	/** Keeps the search index of the test database untouched */
+	private static final SearchProvider NO_INDEX = new SearchProvider()
+	{
+		@Override
+		public void updateIndex(ProcessInstanceSearchData processInstanceSearchData)
+		{
+		}
+
+		@Override
+		public List<Long> searchProcesses(String query, Integer offset, Integer limit, boolean onlyRunning,
+				String[] userRoles, String assignee, String[] queues)
+		{
+			return new ArrayList<Long>();
+		}
+
+		@Override
+		public ProcessInstanceSearchPage searchProcesses(String query, ProcessInstanceSortField sortField,
+				boolean descending, String cursor, int limit, boolean onlyRunning, String[] userRoles,
+				String assignee, String[] queues)
+		{
+			throw new UnsupportedOperationException();
+		}
+	};
+
+	public void testSaveUsesConstantNumberOfStatements()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+				Session session = ctx.getHibernateSession();
+
+				Long processInstanceId = createProcessInstance(session);
+				try
+				{
+					Statistics statistics = registry.getSessionFactory().getStatistics();
+					statistics.setStatisticsEnabled(true);
+
+					long oneTaskStatements = countStatements(ctx, statistics, processInstanceId, 1);
+					long manyTasksStatements = countStatements(ctx, statistics, processInstanceId, PARALLEL_TASKS);
+
+					assertEquals(oneTaskStatements, manyTasksStatements);
+				}
+				finally
+				{
+					removeProcessInstance(session, processInstanceId);
+				}
+			}
+		});
+	}
+
+	private long countStatements(ProcessToolContext ctx, Statistics statistics, Long processInstanceId, int taskCount)
+	{
+		Session session = ctx.getHibernateSession();
+		session.clear();
+
+		ProcessInstance processInstance = (ProcessInstance)session.get(ProcessInstance.class, processInstanceId);
+		List<ProcessStateConfiguration> states = new ArrayList<ProcessStateConfiguration>(processInstance.getDefinition().getStates());
+
+		/* parallel tasks in all states of the process */
+		BpmTask[] tasks = new BpmTask[taskCount];
+		for(int i = 0; i < taskCount; ++i)
+		{
+			tasks[i] = new BpmTask();
+			tasks[i].setProcessInstance(processInstance);
+			tasks[i].setTaskName(states.get(i % states.size()).getName());
+		}
+		processInstance.setActiveTasks(tasks);
+
+		statistics.clear();
+		new ProcessInstanceDAOImpl(session, NO_INDEX).saveProcessInstance(processInstance);
+		return statistics.getPrepareStatementCount();
+	}
+
+	private Long createProcessInstance(Session session)
+	{
+		ProcessDefinitionConfig definition = new ProcessDefinitionConfig();
+		definition.setProcessName(PROCESS_NAME);
+		definition.setBpmDefinitionKey(PROCESS_NAME);
+		definition.setDescription("Search data test");
+		definition.setCreateDate(new Date());
+		for(int i = 0; i < STATES; ++i)
+		{
+			ProcessStateConfiguration state = new ProcessStateConfiguration();
+			state.setName("state" + i);
+			state.setDescription("State " + i);
+			state.setDefinition(definition);
+			definition.getStates().add(state);
+		}
+		session.save(definition);
+
+		String internalId = PROCESS_NAME + "." + System.currentTimeMillis();
+		ProcessInstance pi = new ProcessInstance();
+		pi.setInternalId(internalId);
+		pi.setExternalKey(internalId);
+		pi.setDefinitionName(PROCESS_NAME);
+		pi.setDefinition(definition);
+		pi.setCreateDate(new Date());
+		session.save(pi);
+		session.flush();
+		return pi.getId();
+	}
+
+	private void removeProcessInstance(Session session, Long processInstanceId)
+	{
+		session.clear();
+		ProcessInstance pi = (ProcessInstance)session.get(ProcessInstance.class, processInstanceId);
+		ProcessDefinitionConfig definition = pi.getDefinition();
+		session.delete(pi);
+		session.delete(definition);
+		session.flush();
+	}
+}
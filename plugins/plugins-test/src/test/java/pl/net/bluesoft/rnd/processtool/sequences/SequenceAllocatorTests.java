@@ -0,0 +1,175 @@
+package pl.net.bluesoft.rnd.processtool.sequences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.LockMode;
+import org.hibernate.criterion.Restrictions;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessToolSequence;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Takes values of a test sequence from many threads at once, with separate allocators
+ * standing for cluster nodes, and checks that no value is given twice.
+ */
+public class SequenceAllocatorTests extends AperteDataSourceTestCase
+{
+	private static final String PROCESS_NAME = "test.sequence.process";
+	private static final int THREAD_COUNT = 8;
+	private static final int VALUES_PER_THREAD = 250;
+
+	public void testPooledValuesAreUnique() throws Exception
+	{
+		String sequenceName = "pooled" + System.currentTimeMillis();
+		createSequence(sequenceName, 7, false);
+		try
+		{
+			List<Long> values = takeValuesConcurrently(sequenceName);
+
+			assertEquals("Value given more than once", values.size(), new HashSet<Long>(values).size());
+		}
+		finally
+		{
+			removeSequence(sequenceName);
+		}
+	}
+
+	public void testGaplessValuesAreConsecutive() throws Exception
+	{
+		String sequenceName = "gapless" + System.currentTimeMillis();
+		createSequence(sequenceName, null, true);
+		try
+		{
+			List<Long> values = takeValuesConcurrently(sequenceName);
+
+			Collections.sort(values);
+			for(int i = 0; i < values.size(); ++i)
+				assertEquals(i + 1, values.get(i).longValue());
+		}
+		finally
+		{
+			removeSequence(sequenceName);
+		}
+	}
+
+	public void testRowLockedByCallerDoesNotBlock() throws Exception
+	{
+		final String sequenceName = "locked" + System.currentTimeMillis();
+		createSequence(sequenceName, 5, false);
+		try
+		{
+			final SequenceAllocator allocator = new SequenceAllocator();
+			List<Long> values = registry.withProcessToolContext(new ReturningProcessToolContextCallback<List<Long>>()
+			{
+				@Override
+				public List<Long> processWithContext(ProcessToolContext ctx)
+				{
+					/* the caller's transaction holds the row lock, a block cannot be reserved beside it */
+					ctx.getHibernateSession().createCriteria(ProcessToolSequence.class)
+							.add(Restrictions.eq("processDefinitionName", PROCESS_NAME))
+							.add(Restrictions.eq("name", sequenceName))
+							.setLockMode(LockMode.UPGRADE)
+							.list();
+
+					List<Long> values = new ArrayList<Long>();
+					for(int i = 0; i < 3; ++i)
+						values.add(allocator.getNextValue(ctx.getHibernateSession(), PROCESS_NAME, sequenceName));
+					return values;
+				}
+			});
+
+			assertEquals(3, new HashSet<Long>(values).size());
+			assertFalse(values.contains(takeValue(allocator, sequenceName)));
+		}
+		finally
+		{
+			removeSequence(sequenceName);
+		}
+	}
+
+	private List<Long> takeValuesConcurrently(final String sequenceName) throws Exception
+	{
+		/* two allocators, as if on two nodes */
+		final SequenceAllocator[] allocators = { new SequenceAllocator(), new SequenceAllocator() };
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+		List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+		for(int i = 0; i < THREAD_COUNT; ++i)
+		{
+			final SequenceAllocator allocator = allocators[i % allocators.length];
+			results.add(executor.submit(new Callable<List<Long>>()
+			{
+				@Override
+				public List<Long> call() throws Exception
+				{
+					List<Long> values = new ArrayList<Long>();
+					for(int j = 0; j < VALUES_PER_THREAD; ++j)
+						values.add(takeValue(allocator, sequenceName));
+					return values;
+				}
+			}));
+		}
+
+		List<Long> values = new ArrayList<Long>();
+		for(Future<List<Long>> result: results)
+			values.addAll(result.get());
+		executor.shutdown();
+
+		assertEquals(THREAD_COUNT * VALUES_PER_THREAD, values.size());
+		return values;
+	}
+
+	private Long takeValue(final SequenceAllocator allocator, final String sequenceName)
+	{
+		return registry.withProcessToolContext(new ReturningProcessToolContextCallback<Long>()
+		{
+			@Override
+			public Long processWithContext(ProcessToolContext ctx)
+			{
+				return allocator.getNextValue(ctx.getHibernateSession(), PROCESS_NAME, sequenceName);
+			}
+		});
+	}
+
+	private void createSequence(final String sequenceName, final Integer blockSize, final boolean gapless)
+	{
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				ProcessToolSequence seq = new ProcessToolSequence();
+				seq.setProcessDefinitionName(PROCESS_NAME);
+				seq.setName(sequenceName);
+				seq.setBlockSize(blockSize);
+				seq.setGapless(gapless);
+				ctx.getHibernateSession().save(seq);
+			}
+		});
+	}
+
+	private void removeSequence(final String sequenceName)
+	{
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				ctx.getHibernateSession().createQuery("delete from ProcessToolSequence where processDefinitionName = :processName and name = :name")
+						.setParameter("processName", PROCESS_NAME)
+						.setParameter("name", sequenceName)
+						.executeUpdate();
+			}
+		});
+	}
+}
@@ -0,0 +1,104 @@
+package pl.net.bluesoft.rnd.processtool.userqueues;
+
+import java.util.Collection;
+
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.dao.UserProcessQueueDAO;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+import pl.net.bluesoft.rnd.processtool.model.UserProcessQueue;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Writes the queue elements of a test task for many users and checks the elements in the table
+ * and that the number of SQL statements does not depend on the number of users.
+ */
+public class UserProcessQueueProjectionTests extends AperteDataSourceTestCase
+{
+	private static final int USERS = 40;
+
+	public void testWriteUsesConstantNumberOfStatements()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+				Session session = ctx.getHibernateSession();
+				UserProcessQueueDAO queueDao = ctx.getUserProcessQueueDAO();
+
+				/* ids not used by any real task */
+				Long processId = -System.currentTimeMillis();
+				Long oneUserTaskId = processId - 1;
+				Long manyUsersTaskId = processId - 2;
+
+				/* the writes are batched by hibernate.jdbc.batch_size */
+				assertTrue(((SessionFactoryImplementor)registry.getSessionFactory()).getSettings().getJdbcBatchSize() >= USERS);
+
+				Statistics statistics = registry.getSessionFactory().getStatistics();
+				statistics.setStatisticsEnabled(true);
+				try
+				{
+					long oneUserStatements = write(session, statistics, queueDao, processId, oneUserTaskId, 1, QueueType.OWN_IN_QUEUE);
+					long manyUsersStatements = write(session, statistics, queueDao, processId, manyUsersTaskId, USERS, QueueType.OWN_IN_QUEUE);
+					/* a new block of ids may have to be taken from the sequence */
+					assertTrue(manyUsersStatements <= oneUserStatements + 1);
+					assertQueue(queueDao, manyUsersTaskId, USERS, QueueType.OWN_IN_QUEUE);
+
+					oneUserStatements = write(session, statistics, queueDao, processId, oneUserTaskId, 1, QueueType.OWN_IN_PROGRESS);
+					manyUsersStatements = write(session, statistics, queueDao, processId, manyUsersTaskId, USERS, QueueType.OWN_IN_PROGRESS);
+					assertEquals(oneUserStatements, manyUsersStatements);
+					assertQueue(queueDao, manyUsersTaskId, USERS, QueueType.OWN_IN_PROGRESS);
+
+					/* nothing changes, nothing is written */
+					UserQueueDelta delta = new UserQueueDelta(null);
+					projection(processId, manyUsersTaskId, USERS, QueueType.OWN_IN_PROGRESS).write(queueDao, delta);
+					assertTrue(delta.isEmpty());
+				}
+				finally
+				{
+					queueDao.delete(queueDao.getAllUserProcessQueueByTaskId(oneUserTaskId));
+					queueDao.delete(queueDao.getAllUserProcessQueueByTaskId(manyUsersTaskId));
+					session.flush();
+				}
+			}
+		});
+	}
+
+	private long write(Session session, Statistics statistics, UserProcessQueueDAO queueDao, Long processId, Long taskId,
+			int users, QueueType type)
+	{
+		session.flush();
+		session.clear();
+
+		statistics.clear();
+		UserQueueDelta delta = new UserQueueDelta(null);
+		projection(processId, taskId, users, type).write(queueDao, delta);
+		session.flush();
+		long statements = statistics.getPrepareStatementCount();
+
+		assertEquals(users, delta.getDeltas().size());
+		assertEquals(Integer.valueOf(1), delta.getDeltas().get("user0").get(type));
+		return statements;
+	}
+
+	private UserProcessQueueProjection projection(Long processId, Long taskId, int users, QueueType type)
+	{
+		UserProcessQueueProjection projection = new UserProcessQueueProjection(processId, taskId);
+		for(int i = 0; i < users; ++i)
+			projection.put("user" + i, type);
+		return projection;
+	}
+
+	private void assertQueue(UserProcessQueueDAO queueDao, Long taskId, int users, QueueType type)
+	{
+		Collection<UserProcessQueue> elements = queueDao.getAllUserProcessQueueByTaskId(taskId);
+		assertEquals(users, elements.size());
+		for(UserProcessQueue element: elements)
+			assertEquals(type, element.getQueueType());
+	}
+}
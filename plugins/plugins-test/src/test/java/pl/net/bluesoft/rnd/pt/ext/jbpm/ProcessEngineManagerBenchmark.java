@@ -0,0 +1,52 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import org.jbpm.api.Configuration;
+
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Compares context open latency with a process engine built per context (old behaviour)
+ * and with the engine shared by {@link ProcessEngineManager}.
+ *
+ * Not a unit test, timings depend on the machine. Run the main method against the test database.
+ */
+public class ProcessEngineManagerBenchmark extends AperteDataSourceTestCase
+{
+	private static final int WARMUP = 5;
+	private static final int ITERATIONS = 50;
+
+	public static void main(String[] args) throws Exception
+	{
+		ProcessEngineManagerBenchmark benchmark = new ProcessEngineManagerBenchmark();
+		benchmark.setUp();
+		benchmark.run();
+	}
+
+	private void run()
+	{
+		Configuration configuration = new Configuration();
+		configuration.setHibernateSessionFactory(registry.getSessionFactory());
+
+		for (int i = 0; i < WARMUP; ++i) {
+			configuration.buildProcessEngine().close();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			configuration.buildProcessEngine().close();
+		}
+		long perContextBuild = (System.nanoTime() - start) / ITERATIONS;
+
+		ProcessEngineManager manager = new ProcessEngineManager(configuration);
+		for (int i = 0; i < WARMUP; ++i) {
+			manager.release(manager.acquire());
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			manager.release(manager.acquire());
+		}
+		long shared = (System.nanoTime() - start) / ITERATIONS;
+		manager.close();
+
+		System.out.println("Process engine per context: " + perContextBuild / 1000 + " us, shared engine: " + shared / 1000 + " us");
+	}
+}
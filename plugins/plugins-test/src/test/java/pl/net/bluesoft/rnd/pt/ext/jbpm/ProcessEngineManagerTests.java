@@ -0,0 +1,117 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.api.Configuration;
+import org.jbpm.api.ProcessEngine;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Checks that the process engine is built once and shared by the contexts using it,
+ * each of them with its own hibernate session.
+ */
+public class ProcessEngineManagerTests extends AperteDataSourceTestCase
+{
+	public void testEngineBuiltOnceAndReferenceCounted()
+	{
+		Configuration configuration = new Configuration();
+		configuration.setHibernateSessionFactory(registry.getSessionFactory());
+		final int[] builds = new int[1];
+		ProcessEngineManager manager = new ProcessEngineManager(configuration)
+		{
+			@Override
+			protected ProcessEngine buildProcessEngine()
+			{
+				++builds[0];
+				return super.buildProcessEngine();
+			}
+		};
+
+		ProcessEngine first = manager.acquire();
+		ProcessEngine second = manager.acquire();
+		assertSame(first, second);
+		manager.release(first);
+		manager.release(second);
+		assertSame(first, manager.acquire());
+		assertEquals(1, builds[0]);
+
+		/* an engine still in use survives the invalidation, the next context gets a new one */
+		manager.invalidate();
+		ProcessEngine rebuilt = manager.acquire();
+		assertNotSame(first, rebuilt);
+		assertEquals(2, builds[0]);
+		manager.release(first);
+		manager.release(rebuilt);
+		manager.close();
+	}
+
+	public void testContextsShareEngine()
+	{
+		final ProcessEngine[] engines = new ProcessEngine[2];
+		for (int i = 0; i < engines.length; ++i) {
+			final int idx = i;
+			registry.withProcessToolContext(new ProcessToolContextCallback()
+			{
+				@Override
+				public void withContext(ProcessToolContext ctx)
+				{
+					engines[idx] = ((ProcessToolContextImpl)ctx).getProcessEngine();
+				}
+			});
+		}
+		assertSame(engines[0], engines[1]);
+	}
+
+	public void testConcurrentContextsKeepOwnSessions() throws Exception
+	{
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 2; ++i) {
+			results.add(executor.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call() throws Exception
+				{
+					return registry.withProcessToolContext(new ReturningProcessToolContextCallback<Boolean>()
+					{
+						@Override
+						public Boolean processWithContext(ProcessToolContext ctx)
+						{
+							/* both contexts are open on the shared engine at once */
+							await(barrier);
+							boolean own = registry.getSessionFactory().getCurrentSession() == ctx.getHibernateSession();
+							await(barrier);
+							return own;
+						}
+					});
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue("Context sees the session of another context", result.get());
+		}
+		executor.shutdown();
+	}
+
+	private static void await(CyclicBarrier barrier)
+	{
+		try {
+			barrier.await(30, TimeUnit.SECONDS);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.model.ProcessInstance;
+import pl.net.bluesoft.rnd.processtool.model.config.ProcessDefinitionConfig;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Creates a page of test tasks, half of them in subprocesses, and checks that their process instances
+ * are read with one query for the executions, one for the process instances and one for every level
+ * of parent processes.
+ */
+public class ProcessInstanceBatchLoaderTests extends AperteDataSourceTestCase
+{
+	private static final int PAGE_SIZE = 100;
+	private static final String PROCESS_NAME = "test.batch.loader.process";
+
+	/** Ids of the test rows, far from the ones generated by jbpm */
+	private static final long FIRST_TASK_ID = -2000000L;
+
+	public void testTaskPageUsesConstantNumberOfStatements()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+				Session session = ctx.getHibernateSession();
+
+				String prefix = PROCESS_NAME + "." + System.currentTimeMillis() + ".";
+				createTasks(session, prefix);
+				try
+				{
+					List<String> executionIds = session
+							.createSQLQuery("select execution_id_ from jbpm4_task where dbid_ <= :firstId and dbid_ > :lastId")
+							.setParameter("firstId", FIRST_TASK_ID)
+							.setParameter("lastId", FIRST_TASK_ID - PAGE_SIZE)
+							.list();
+					assertEquals(PAGE_SIZE, executionIds.size());
+
+					Statistics statistics = registry.getSessionFactory().getStatistics();
+					statistics.setStatisticsEnabled(true);
+
+					/* start with an empty session, so nothing is served from the persistence context */
+					session.clear();
+					statistics.clear();
+
+					ProcessInstanceBatchLoader loader = new ProcessInstanceBatchLoader(session);
+					Map<String, ProcessInstance> instances = loader.getProcessInstancesByExecution(executionIds);
+
+					/* what a task list shows */
+					for(ProcessInstance pi: instances.values())
+					{
+						pi.getDefinition().getDescription();
+						ProcessInstance root = pi.getRootProcessInstance();
+						root.getDefinition().getDescription();
+						root.getSimpleAttributeValue("markedImportant", "false");
+					}
+					long statements = statistics.getPrepareStatementCount();
+
+					assertEquals(PAGE_SIZE, instances.size());
+					/* executions, process instances and one level of parents */
+					assertTrue(statements <= 3);
+					assertEquals(PAGE_SIZE + PAGE_SIZE / 2, loader.getProcessInstances().size());
+				}
+				finally
+				{
+					removeTasks(session, prefix);
+				}
+			}
+		});
+	}
+
+	/** Every other task belongs to a subprocess, its parent process has no task on the page */
+	private void createTasks(Session session, String prefix)
+	{
+		ProcessDefinitionConfig definition = new ProcessDefinitionConfig();
+		definition.setProcessName(PROCESS_NAME);
+		definition.setBpmDefinitionKey(PROCESS_NAME);
+		definition.setDescription("Batch loader test");
+		definition.setCreateDate(new Date());
+		session.save(definition);
+
+		for(int i = 0; i < PAGE_SIZE; ++i)
+		{
+			String executionId = prefix + i;
+
+			ProcessInstance pi = createProcessInstance(definition, executionId);
+			if(i % 2 == 1)
+			{
+				ProcessInstance parent = createProcessInstance(definition, executionId + ".parent");
+				session.save(parent);
+				pi.setParent(parent);
+			}
+			session.save(pi);
+
+			long id = FIRST_TASK_ID - i;
+			session.createSQLQuery(
+					"insert into jbpm4_execution (dbid_, class_, dbversion_, id_, state_, instance_) values (:id, 'pvm', 0, :executionId, 'active-root', :id)")
+					.setParameter("id", id)
+					.setParameter("executionId", executionId)
+					.executeUpdate();
+			session.createSQLQuery(
+					"insert into jbpm4_task (dbid_, class_, dbversion_, priority_, create_, execution_id_) values (:id, 'T', 0, 0, now(), :executionId)")
+					.setParameter("id", id)
+					.setParameter("executionId", executionId)
+					.executeUpdate();
+		}
+		session.flush();
+	}
+
+	private ProcessInstance createProcessInstance(ProcessDefinitionConfig definition, String internalId)
+	{
+		ProcessInstance pi = new ProcessInstance();
+		pi.setInternalId(internalId);
+		pi.setExternalKey(internalId);
+		pi.setDefinitionName(PROCESS_NAME);
+		pi.setDefinition(definition);
+		pi.setCreateDate(new Date());
+		pi.setSimpleAttribute("markedImportant", "true");
+		return pi;
+	}
+
+	private void removeTasks(Session session, String prefix)
+	{
+		session.createSQLQuery("delete from jbpm4_task where dbid_ <= :firstId and dbid_ > :lastId")
+				.setParameter("firstId", FIRST_TASK_ID)
+				.setParameter("lastId", FIRST_TASK_ID - PAGE_SIZE)
+				.executeUpdate();
+		session.createSQLQuery("delete from jbpm4_execution where dbid_ <= :firstId and dbid_ > :lastId")
+				.setParameter("firstId", FIRST_TASK_ID)
+				.setParameter("lastId", FIRST_TASK_ID - PAGE_SIZE)
+				.executeUpdate();
+
+		/* subprocesses and attributes go with their roots */
+		List<ProcessInstance> roots = session
+				.createQuery("from ProcessInstance where internalId like :prefix and parent is null")
+				.setParameter("prefix", prefix + "%")
+				.list();
+		for(ProcessInstance root: roots)
+			session.delete(root);
+		session.flush();
+		session.createQuery("delete from ProcessDefinitionConfig where processName = :processName")
+				.setParameter("processName", PROCESS_NAME)
+				.executeUpdate();
+	}
+}
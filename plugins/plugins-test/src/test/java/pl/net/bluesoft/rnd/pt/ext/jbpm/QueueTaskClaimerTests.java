@@ -0,0 +1,145 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.ProcessToolContextCallback;
+import pl.net.bluesoft.rnd.processtool.ReturningProcessToolContextCallback;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Claims tasks of a test queue from many threads at once and checks that every task
+ * is claimed exactly once, both with skip locked and with conditional updates.
+ */
+public class QueueTaskClaimerTests extends AperteDataSourceTestCase
+{
+	private static final String QUEUE_NAME = "test.claimer.queue";
+	private static final int TASK_COUNT = 200;
+	private static final int THREAD_COUNT = 8;
+
+	/** Ids of the test rows, far from the ones generated by jbpm */
+	private static final long FIRST_TASK_ID = -1000000L;
+
+	public void testEveryTaskClaimedOnceWithSkipLocked() throws Exception
+	{
+		testConcurrentClaims(true, false);
+	}
+
+	public void testEveryTaskClaimedOnceWithConditionalUpdates() throws Exception
+	{
+		testConcurrentClaims(false, false);
+	}
+
+	public void testEveryTaskClaimedOnceWithShuffledCandidates() throws Exception
+	{
+		testConcurrentClaims(false, true);
+	}
+
+	private void testConcurrentClaims(final boolean skipLocked, final boolean shuffle) throws Exception
+	{
+		createQueueTasks();
+		try
+		{
+			ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+			List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+			for(int i = 0; i < THREAD_COUNT; ++i)
+			{
+				final String userLogin = "claimer" + i;
+				results.add(executor.submit(new Callable<List<Long>>()
+				{
+					@Override
+					public List<Long> call() throws Exception
+					{
+						List<Long> claimed = new ArrayList<Long>();
+						Long taskId;
+						while((taskId = claimTask(userLogin, skipLocked, shuffle)) != null)
+							claimed.add(taskId);
+						return claimed;
+					}
+				}));
+			}
+
+			List<Long> allClaimed = new ArrayList<Long>();
+			for(Future<List<Long>> result: results)
+				allClaimed.addAll(result.get());
+			executor.shutdown();
+
+			Set<Long> uniqueClaimed = new HashSet<Long>(allClaimed);
+			assertEquals("Task claimed more than once", allClaimed.size(), uniqueClaimed.size());
+			assertEquals("Not every task claimed", TASK_COUNT, uniqueClaimed.size());
+		}
+		finally
+		{
+			removeQueueTasks();
+		}
+	}
+
+	private Long claimTask(final String userLogin, final boolean skipLocked, final boolean shuffle)
+	{
+		return registry.withProcessToolContext(new ReturningProcessToolContextCallback<Long>()
+		{
+			@Override
+			public Long processWithContext(ProcessToolContext ctx)
+			{
+				QueueTaskClaimer claimer = new QueueTaskClaimer(ctx.getHibernateSession(), skipLocked);
+				claimer.setShuffleCandidates(shuffle);
+				return claimer.claimTask(QUEUE_NAME, null, userLogin);
+			}
+		});
+	}
+
+	private void createQueueTasks()
+	{
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				List<Long> ids = new ArrayList<Long>();
+				for(int i = 0; i < TASK_COUNT; ++i)
+					ids.add(FIRST_TASK_ID - i);
+				Collections.shuffle(ids);
+
+				for(Long id: ids)
+				{
+					ctx.getHibernateSession().createSQLQuery(
+							"insert into jbpm4_task (dbid_, class_, dbversion_, priority_, create_) values (:id, 'T', 0, :priority, now())")
+							.setParameter("id", id)
+							.setParameter("priority", (int)(id % 3))
+							.executeUpdate();
+					ctx.getHibernateSession().createSQLQuery(
+							"insert into jbpm4_participation (dbid_, dbversion_, groupid_, type_, task_) values (:id, 0, :queueName, 'candidate', :id)")
+							.setParameter("id", id)
+							.setParameter("queueName", QUEUE_NAME)
+							.executeUpdate();
+				}
+			}
+		});
+	}
+
+	private void removeQueueTasks()
+	{
+		registry.withProcessToolContext(new ProcessToolContextCallback()
+		{
+			@Override
+			public void withContext(ProcessToolContext ctx)
+			{
+				ctx.getHibernateSession().createSQLQuery("delete from jbpm4_participation where groupid_ = :queueName")
+						.setParameter("queueName", QUEUE_NAME)
+						.executeUpdate();
+				ctx.getHibernateSession().createSQLQuery("delete from jbpm4_task where dbid_ <= :firstId and dbid_ > :lastId")
+						.setParameter("firstId", FIRST_TASK_ID)
+						.setParameter("lastId", FIRST_TASK_ID - TASK_COUNT)
+						.executeUpdate();
+			}
+		});
+	}
+}
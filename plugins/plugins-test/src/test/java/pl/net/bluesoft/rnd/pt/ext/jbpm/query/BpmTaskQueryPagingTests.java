@@ -0,0 +1,73 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.bpm.BpmTaskPage;
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Checks that reading the task list page by page with cursors returns the same tasks
+ * as reading it at once.
+ */
+public class BpmTaskQueryPagingTests extends AperteDataSourceTestCase
+{
+	private static final int PAGE_SIZE = 7;
+
+	public void testCursorPagesMatchWholeList()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+
+				String userLogin = (String)ctx.getHibernateSession()
+						.createSQLQuery("select user_login from pt_user_process_queue group by user_login order by count(*) desc")
+						.setMaxResults(1)
+						.uniqueResult();
+				assertNotNull("No user process queues in the test database", userLogin);
+
+				List<String> allTaskIds = getTaskIds(createQuery(ctx, userLogin).getBpmTasks());
+
+				List<String> pagedTaskIds = new ArrayList<String>();
+				String cursor = null;
+				do
+				{
+					BpmTaskQuery query = createQuery(ctx, userLogin);
+					query.addCursorCondition(cursor);
+					query.setMaxResultsLimit(PAGE_SIZE);
+
+					BpmTaskPage page = query.getBpmTasksPage();
+					assertTrue(page.getTasks().size() <= PAGE_SIZE);
+					pagedTaskIds.addAll(getTaskIds(page.getTasks()));
+					cursor = page.getNextCursor();
+				}
+				while(cursor != null);
+
+				assertEquals(allTaskIds, pagedTaskIds);
+			}
+		});
+	}
+
+	private static BpmTaskQuery createQuery(ProcessToolContext ctx, String userLogin)
+	{
+		BpmTaskQuery query = new BpmTaskQuery(ctx);
+		query.addUserLoginCondition(userLogin);
+		query.addQueueTypeCondition(Arrays.asList(QueueType.values()));
+		return query;
+	}
+
+	private static List<String> getTaskIds(List<BpmTask> tasks)
+	{
+		List<String> ids = new ArrayList<String>(tasks.size());
+		for(BpmTask task: tasks)
+			ids.add(task.getInternalTaskId());
+		return ids;
+	}
+}
@@ -0,0 +1,67 @@
+package pl.net.bluesoft.rnd.pt.ext.jbpm.query;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.hibernate.stat.Statistics;
+
+import pl.net.bluesoft.rnd.processtool.ProcessToolContext;
+import pl.net.bluesoft.rnd.processtool.model.BpmTask;
+import pl.net.bluesoft.rnd.processtool.model.QueueType;
+import pl.net.bluesoft.rnd.pt.ext.testabstract.AperteDataSourceTestCase;
+
+/**
+ * Checks that the number of SQL statements needed to build a page of tasks
+ * does not depend on the page size.
+ */
+public class BpmTaskQueryStatementsTests extends AperteDataSourceTestCase
+{
+	private static final int SMALL_PAGE = 5;
+	private static final int LARGE_PAGE = 100;
+
+	public void testTaskPageUsesConstantNumberOfStatements()
+	{
+		doTest(new AperteTestMethod()
+		{
+			@Override
+			public void test()
+			{
+				ProcessToolContext ctx = ProcessToolContext.Util.getThreadProcessToolContext();
+
+				String userLogin = (String)ctx.getHibernateSession()
+						.createSQLQuery("select user_login from pt_user_process_queue group by user_login order by count(*) desc")
+						.setMaxResults(1)
+						.uniqueResult();
+				assertNotNull("No user process queues in the test database", userLogin);
+
+				Statistics statistics = registry.getSessionFactory().getStatistics();
+				statistics.setStatisticsEnabled(true);
+
+				long smallPageStatements = countStatements(ctx, statistics, userLogin, SMALL_PAGE);
+				long largePageStatements = countStatements(ctx, statistics, userLogin, LARGE_PAGE);
+
+				assertEquals(smallPageStatements, largePageStatements);
+			}
+		});
+	}
+
+	private long countStatements(ProcessToolContext ctx, Statistics statistics, String userLogin, int pageSize)
+	{
+		/* start every page with an empty session, so nothing is served from the persistence context */
+		ctx.getHibernateSession().clear();
+		statistics.clear();
+
+		BpmTaskQuery query = new BpmTaskQuery(ctx);
+		query.addUserLoginCondition(userLogin);
+		query.addQueueTypeCondition(Arrays.asList(QueueType.values()));
+		query.setMaxResultsLimit(pageSize);
+
+		List<BpmTask> tasks = query.getBpmTasks();
+		for(BpmTask task: tasks)
+		{
+			task.getOwner().getLogin();
+			task.getCreator();
+		}
+		return statistics.getPrepareStatementCount();
+	}
+}
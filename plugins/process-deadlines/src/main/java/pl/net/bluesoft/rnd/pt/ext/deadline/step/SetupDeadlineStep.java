@@ -94,21 +94,12 @@ public class SetupDeadlineStep implements ProcessToolProcessStep {
         for (String tn : taskNames) 
         {
             String attrKey = "deadline_" + tn;
-            ProcessDeadline pid = null;
-            for (ProcessInstanceAttribute attr : processInstance.getProcessAttributes()) {
-                if (attr.getKey() == null) {
-                    logger.info("Attribute key is null! Process instance: " + processInstance.getInternalId());
-                }
-                if (attrKey.equals(attr.getKey())) {
-                    pid = (ProcessDeadline) attr;
-                    break;
-                }
-            }
+            ProcessDeadline pid = (ProcessDeadline) processInstance.findAttributeByKey(attrKey);
             if (pid == null) {
                 pid = new ProcessDeadline();
                 pid.setKey("deadline_" + tn);
                 pid.setProcessInstance(processInstance);
-                processInstance.getProcessAttributes().add(pid);
+                processInstance.addAttribute(pid);
             }
             pid.setProfileName(profileName);
             pid.setNotifyUsersWithLogin(notifyUsersWithLogin);